@@ -0,0 +1,158 @@
+package benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import local.CAFragment;
+import workload.Workload;
+
+/**
+ * JMH benchmarks of CAFragment.step() over board sizes, colony densities and simulated workloads.
+ * Every size has its own method so each evaluated cell counts as one operation, the scores are nanoseconds per cell.
+ * The board is put back to its starting state every RESET_STEPS steps, so the colony doesn't drift away from the density being measured.
+ * The reset is a counter and an array copy inside the measured call, about one byte copied per cell every RESET_STEPS steps,
+ * because an invocation level setup would time stamp every call and skew steps this short.
+ * With -prof gc the allocation rate comes next to the scores, gc.alloc.rate.norm is then bytes per cell.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StepBenchmark {
+
+	public static final String DENSITY_EMPTY = "empty";	// No bacteria at all, the cheapest possible step
+	public static final String DENSITY_SEEDED = "seeded";	// A few full health bacteria scattered around, like the start of a run
+	public static final String DENSITY_SATURATED = "saturated";	// Every cell has a bacteria, the most expensive step
+
+	static final int RESET_STEPS = 10;	// Steps between putting the board back
+	static final int SEEDS_PER_CELL = 10000;	// One seed every this many cells for the seeded density
+
+	/** A board being stepped, one subclass per size
+	 */
+	@State(Scope.Thread)
+	public abstract static class Board {
+		@Param({DENSITY_EMPTY, DENSITY_SEEDED, DENSITY_SATURATED})
+		public String density;
+
+		@Param({"none", "uniform:1"})	// Workload specs, see Workload.parse
+		public String workload;
+
+		CAFragment fragment;
+		private byte[][] start;
+		private int steps = 0;
+
+		abstract int getSize();
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			int size = getSize();
+			start = createBoard(size, density);
+			fragment = new CAFragment(size, size, 0, 1);
+			fragment.setWorkload(Workload.parse(workload, 0));
+			reset();
+		}
+
+		/**
+		 * Steps the board once, putting it back first every RESET_STEPS steps.
+		 */
+		void step() {
+			if(++steps == RESET_STEPS) {
+				steps = 0;
+				reset();
+			}
+			fragment.step();
+		}
+
+		/** Copies the starting board in place, so resetting allocates nothing that -prof gc would count.
+		 */
+		private void reset() {
+			byte[][] board = fragment.getBoard()[CAFragment.MUTABLE_BOARD];
+			for(int x = 0; x < board.length; x++) {
+				System.arraycopy(start[x], 0, board[x], 0, start[x].length);
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Board100 extends Board {
+		@Override
+		int getSize() {
+			return 100;
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Board250 extends Board {
+		@Override
+		int getSize() {
+			return 250;
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Board500 extends Board {
+		@Override
+		int getSize() {
+			return 500;
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(98 * 98)	// The outer ring of cells is border and never stepped
+	public void step100(Board100 board) {
+		board.step();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(248 * 248)
+	public void step250(Board250 board) {
+		board.step();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(498 * 498)
+	public void step500(Board500 board) {
+		board.step();
+	}
+
+	/** Builds the starting board for a density, always the same for the same arguments.
+	 * @param size Width and height of the board
+	 * @param density One of the DENSITY constants
+	 * @return The board, indexed [x][y]
+	 */
+	public static byte[][] createBoard(int size, String density) {
+		byte[][] board = new byte[size][size];
+		Random random = new Random(size * 31 + density.hashCode());
+		for(int x = 0; x < size; x++) {
+			for(int y = 0; y < size; y++) {
+				if(density.equals(DENSITY_SATURATED) && x > 0 && y > 0 && x < size - 1 && y < size - 1) {
+					board[x][y] = (byte) (CAFragment.SPLIT_SIZE - random.nextInt(64));	// Below the split size so it stays saturated
+				}else {
+					board[x][y] = CAFragment.NO_BACTERIA;
+				}
+			}
+		}
+		if(density.equals(DENSITY_SEEDED)) {
+			int seeds = Math.max(1, (size * size) / SEEDS_PER_CELL);
+			for(int i = 0; i < seeds; i++) {
+				board[1 + random.nextInt(size - 2)][1 + random.nextInt(size - 2)] = CAFragment.MAX_BACTERIA;
+			}
+		}
+		return board;
+	}
+}
@@ -0,0 +1,291 @@
+package benchmark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A TCP proxy that makes a link on this machine behave like a slow one.
+ * It listens on a port and forwards every connection to a target, holding each piece of data back by a latency plus jitter,
+ * squeezing it through a bandwidth cap and stalling the whole link for a while every so often.
+ * Data always comes out in the order it went in, like it would over TCP, so jitter only ever adds delay.
+ * Put it between two transfer managers by pointing the left node's right port at it, or between the nodes and the master by pointing them at it.
+ */
+public class LinkEmulator implements Closeable {
+
+	static final int BUFFER_SIZE = 1 << 16;
+	static final int CONNECT_TRIES = 200;	// The target is often another node that is not listening yet
+	static final long CONNECT_RETRY_MILLIS = 50;
+
+	/** How one direction of a link behaves
+	 */
+	public static class Profile {
+		long latencyNanos;
+		long jitterNanos;	// Up to this much extra delay, uniformly random
+		long bytesPerSecond;	// 0 for no cap
+		long pauseEveryNanos;	// 0 for no pauses
+		long pauseNanos;
+
+		/**
+		 * @param latencyMillis One way delay of every piece of data
+		 * @param jitterMillis Up to this much random extra delay
+		 * @param kilobytesPerSecond Bandwidth cap, 0 for none
+		 * @param pauseEveryMillis The link stalls once every this many milliseconds, 0 for never
+		 * @param pauseMillis How long each stall lasts
+		 */
+		public Profile(double latencyMillis, double jitterMillis, long kilobytesPerSecond, long pauseEveryMillis, long pauseMillis) {
+			this.latencyNanos = (long) (latencyMillis * 1000000);
+			this.jitterNanos = (long) (jitterMillis * 1000000);
+			this.bytesPerSecond = kilobytesPerSecond * 1000;
+			this.pauseEveryNanos = pauseEveryMillis * 1000000;
+			this.pauseNanos = pauseMillis * 1000000;
+		}
+
+		/** Reads a profile written as latencyMillis:jitterMillis:kilobytesPerSecond:pauseEveryMillis:pauseMillis, missing values are 0.
+		 * @param spec For example 2:0.5:10000 or 1:0:0:1000:50
+		 * @return The profile
+		 */
+		public static Profile parse(String spec) {
+			String[] parts = spec.split(":");
+			double[] values = new double[5];
+			if(parts.length > values.length) {
+				throw new IllegalArgumentException("Link profile has at most " + values.length + " values: " + spec);
+			}
+			for(int i = 0; i < parts.length; i++) {
+				values[i] = Double.parseDouble(parts[i]);
+			}
+			return new Profile(values[0], values[1], (long) values[2], (long) values[3], (long) values[4]);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%.2fms +%.2fms %s%s", latencyNanos / 1e6, jitterNanos / 1e6,
+					bytesPerSecond == 0 ? "uncapped" : (bytesPerSecond / 1000) + "KB/s",
+					pauseEveryNanos == 0 ? "" : String.format(" pause %dms every %dms", pauseNanos / 1000000, pauseEveryNanos / 1000000));
+		}
+	}
+
+	private ServerSocket server;
+	private String targetHost;
+	private int targetPort;
+	private Profile forward;
+	private Profile backward;
+	private Random random;
+	private long startTime = System.nanoTime();	// Pauses are lined up to this so every link of a run stalls on the same schedule
+	private ArrayList<Socket> sockets = new ArrayList<Socket>();
+	private volatile boolean stop = false;
+
+	/** Starts listening and forwarding, with the same behavior both ways.
+	 * @param listenPort Port to accept connections on
+	 * @param targetHost Where to forward them
+	 * @param targetPort Port to forward them to
+	 * @param profile How both directions behave
+	 * @param seed Seed of the jitter
+	 * @throws IOException
+	 */
+	public LinkEmulator(int listenPort, String targetHost, int targetPort, Profile profile, long seed) throws IOException {
+		this(listenPort, targetHost, targetPort, profile, profile, seed);
+	}
+
+	/** Starts listening and forwarding.
+	 * @param listenPort Port to accept connections on
+	 * @param targetHost Where to forward them
+	 * @param targetPort Port to forward them to
+	 * @param forward How data going to the target behaves
+	 * @param backward How data coming back from the target behaves
+	 * @param seed Seed of the jitter
+	 * @throws IOException
+	 */
+	public LinkEmulator(int listenPort, String targetHost, int targetPort, Profile forward, Profile backward, long seed) throws IOException {
+		this.targetHost = targetHost;
+		this.targetPort = targetPort;
+		this.forward = forward;
+		this.backward = backward;
+		this.random = new Random(seed);
+		server = new ServerSocket(listenPort);
+		Thread acceptor = new Thread(this::acceptConnections, "LinkEmulator " + listenPort);
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	private void acceptConnections() {
+		while(!stop) {
+			try {
+				Socket client = server.accept();
+				Socket target = connectTarget();
+				client.setTcpNoDelay(true);	// Delays are ours to add, the proxy itself should not hold anything back
+				target.setTcpNoDelay(true);
+				synchronized (sockets) {
+					sockets.add(client);
+					sockets.add(target);
+				}
+				startPipe(client, target, forward, "forward");
+				startPipe(target, client, backward, "backward");
+			} catch (SocketException e) {
+				break;	// Closed
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private Socket connectTarget() throws IOException {
+		for(int tries = 0; ; tries++) {
+			try {
+				return new Socket(targetHost, targetPort);
+			} catch (ConnectException e) {
+				if(tries >= CONNECT_TRIES || stop) {
+					throw e;
+				}
+			}
+			try { Thread.sleep(CONNECT_RETRY_MILLIS); } catch (InterruptedException e) { }
+		}
+	}
+
+	/** A piece of data and when it comes out the other end, a null data means the sender closed its side
+	 */
+	static class Packet {
+		byte[] data;
+		long deliverAt;
+	}
+
+	/** Starts a thread that reads from one socket and timestamps what it reads, and one that writes it to the other socket when it is due.
+	 */
+	private void startPipe(Socket from, Socket to, Profile profile, String direction) {
+		LinkedBlockingQueue<Packet> queue = new LinkedBlockingQueue<Packet>();
+		String name = "LinkEmulator " + server.getLocalPort() + " " + direction;
+
+		Thread reader = new Thread(() -> {
+			long linkFree = 0;	// When the bandwidth cap lets the next byte onto the link
+			long lastDelivery = 0;
+			byte[] buffer = new byte[BUFFER_SIZE];
+			try {
+				InputStream in = from.getInputStream();
+				while(true) {
+					int count = in.read(buffer);
+					long now = System.nanoTime();
+					Packet packet = new Packet();
+					if(count < 0) {
+						packet.deliverAt = Math.max(now, lastDelivery);
+						queue.put(packet);
+						break;
+					}
+					packet.data = Arrays.copyOf(buffer, count);
+					long sent = now;
+					if(profile.bytesPerSecond > 0) {
+						linkFree = Math.max(linkFree, now) + count * 1000000000L / profile.bytesPerSecond;
+						sent = linkFree;
+					}
+					long jitter;
+					synchronized (random) {
+						jitter = profile.jitterNanos > 0 ? (long) (random.nextDouble() * profile.jitterNanos) : 0;
+					}
+					long deliverAt = skipPause(sent + profile.latencyNanos + jitter, profile);
+					lastDelivery = Math.max(lastDelivery, deliverAt);	// Never overtake what was sent before
+					packet.deliverAt = lastDelivery;
+					queue.put(packet);
+				}
+			} catch (IOException | InterruptedException e) {
+				Packet end = new Packet();
+				end.deliverAt = System.nanoTime();
+				queue.offer(end);
+			}
+		}, name + " in");
+
+		Thread writer = new Thread(() -> {
+			try {
+				OutputStream out = to.getOutputStream();
+				while(true) {
+					Packet packet = queue.take();
+					long wait;
+					while((wait = packet.deliverAt - System.nanoTime()) > 0) {
+						LockSupport.parkNanos(wait);
+					}
+					if(packet.data == null) {
+						to.shutdownOutput();
+						break;
+					}
+					out.write(packet.data);
+					out.flush();
+				}
+			} catch (IOException | InterruptedException e) {
+				if(!stop) {
+					try { from.close(); } catch (IOException e1) { }	// Can't deliver any more, so stop taking any
+				}
+			}
+		}, name + " out");
+
+		reader.setDaemon(true);
+		writer.setDaemon(true);
+		reader.start();
+		writer.start();
+	}
+
+	/** Moves a delivery time that falls into a stall to the end of it.
+	 */
+	private long skipPause(long deliverAt, Profile profile) {
+		if(profile.pauseEveryNanos <= 0 || profile.pauseNanos <= 0) {
+			return deliverAt;
+		}
+		long sinceStart = deliverAt - startTime;
+		long intoPeriod = sinceStart % profile.pauseEveryNanos;
+		long pauseStart = profile.pauseEveryNanos - profile.pauseNanos;	// Each period ends with its stall
+		if(intoPeriod >= pauseStart) {
+			return deliverAt + (profile.pauseEveryNanos - intoPeriod);
+		}
+		return deliverAt;
+	}
+
+	public int getListenPort() {
+		return server.getLocalPort();
+	}
+
+	/** Stops accepting and drops every forwarded connection.
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		stop = true;
+		server.close();
+		synchronized (sockets) {
+			for(Socket socket : sockets) {
+				socket.close();
+			}
+			sockets.clear();
+		}
+	}
+
+	/** java -cp ca.jar benchmark.LinkEmulator listenPort targetHost:targetPort profile [backwardProfile]
+	 *  A profile is latencyMillis:jitterMillis:kilobytesPerSecond:pauseEveryMillis:pauseMillis, for example 2:0.5:10000
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if(args.length < 3) {
+			System.out.println("java -cp ca.jar benchmark.LinkEmulator listenPort targetHost:targetPort profile [backwardProfile]");
+			System.out.println("	profile: latencyMillis:jitterMillis:kilobytesPerSecond:pauseEveryMillis:pauseMillis, missing values are 0");
+			System.out.println("Example: java -cp ca.jar benchmark.LinkEmulator 1235 192.168.0.2:1234 2:0.5:10000");
+			return;
+		}
+		int listenPort = Integer.parseInt(args[0]);
+		String targetHost = args[1].substring(0, args[1].lastIndexOf(':'));
+		int targetPort = Integer.parseInt(args[1].substring(args[1].lastIndexOf(':') + 1));
+		Profile forward = Profile.parse(args[2]);
+		Profile backward = args.length > 3 ? Profile.parse(args[3]) : forward;
+		new LinkEmulator(listenPort, targetHost, targetPort, forward, backward, 1);
+		System.out.println("Forwarding " + listenPort + " to " + args[1] + ", forward " + forward + ", backward " + backward);
+		while(true) {
+			try { Thread.sleep(Long.MAX_VALUE); } catch (InterruptedException e) { break; }
+		}
+	}
+}
@@ -0,0 +1,387 @@
+package benchmark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import local.LocalFragment;
+import server.ClusterOverseer;
+import transferManagers.BalancingSignal;
+import server.ServerFragment;
+
+/**
+ * Brings up a master and N nodes on this machine, runs a scenario and tears it all down again, for every node count asked for.
+ * Nodes run either as threads in this JVM or as child JVMs started from the same classpath.
+ * Every frame of every node goes into a CSV (compute time, network time, width and the frame's load imbalance) and a summary of
+ * speedup and parallel efficiency against the smallest node count is printed at the end.
+ * With a link profile every link between nodes and every link to the master goes through a LinkEmulator.
+ */
+public class ScalingHarness {
+
+	public static final String MODE_INPROCESS = "inprocess";
+	public static final String MODE_JVM = "jvm";
+	public static final String SCALING_STRONG = "strong";	// The whole board stays the same size, each node gets a smaller piece
+	public static final String SCALING_WEAK = "weak";	// Each node keeps the same size piece, the whole board grows
+	public static final List<String> HARNESS_OPTIONS = Arrays.asList("link", "workload", "signal", "strips", "grid", "trace", "heatmap");	// Options followed by a value, the flags are ClusterOverseer.SERVER_FLAGS
+
+	private String mode;
+	private String scaling;
+	private int width;
+	private int height;
+	private int seed;
+	private int stepsPerFrame;
+	private int framesToSimulate;
+	private boolean isBalancing;
+	private int basePort;
+	private LinkEmulator.Profile linkProfile = null;
+	private String workload = null;
+	private int balancingSignal = BalancingSignal.SIGNAL_TIME;
+	private boolean isCalibrating = false;
+	private int stripsPerNode = 0;
+	private int gridRows = 0;
+	private boolean isProbing = false;
+	private String traceFile = null;
+	private String heatmapFile = null;
+	private boolean isStoppingWhenQuiet = false;
+
+	/** Everything one node sent about one frame
+	 */
+	static class FrameSample {
+		int nodes;
+		int node;
+		int frame;
+		long computeNanos;
+		long networkNanos;
+		int width;
+	}
+
+	/** How one node count went
+	 */
+	static class RunResult {
+		int nodes;
+		double startupSeconds;	// Launch until the master sent the start
+		double seconds;	// Start until every node was done
+		List<FrameSample> samples = new ArrayList<FrameSample>();
+	}
+
+	/**
+	 * @param mode MODE_INPROCESS or MODE_JVM
+	 * @param scaling SCALING_STRONG or SCALING_WEAK
+	 * @param width For strong scaling the width of the whole board, for weak scaling the width of each node
+	 * @param height How tall the board is
+	 * @param seed Seed of the noise function
+	 * @param stepsPerFrame Simulation steps per frame
+	 * @param framesToSimulate How many frames each run does
+	 * @param isBalancing Should the nodes balance
+	 * @param basePort First port to use, each run takes a fresh range above it
+	 */
+	public ScalingHarness(String mode, String scaling, int width, int height, int seed, int stepsPerFrame, int framesToSimulate, boolean isBalancing, int basePort) {
+		this.mode = mode;
+		this.scaling = scaling;
+		this.width = width;
+		this.height = height;
+		this.seed = seed;
+		this.stepsPerFrame = stepsPerFrame;
+		this.framesToSimulate = framesToSimulate;
+		this.isBalancing = isBalancing;
+		this.basePort = basePort;
+	}
+
+	/** Sends every link between nodes, and between the nodes and the master, through a LinkEmulator.
+	 * @param linkProfile How the links behave, null for plain localhost
+	 */
+	public void setLinkProfile(LinkEmulator.Profile linkProfile) {
+		this.linkProfile = linkProfile;
+	}
+
+	/**
+	 * @param workload Workload spec every run uses, see Workload.parse, or null for the default
+	 */
+	public void setWorkload(String workload) {
+		this.workload = workload;
+	}
+
+	/**
+	 * @param balancingSignal What the nodes balance on, one of the BalancingSignal constants
+	 */
+	public void setBalancingSignal(int balancingSignal) {
+		this.balancingSignal = balancingSignal;
+	}
+
+	/**
+	 * @param isCalibrating Should the nodes benchmark themselves first and get boards sized to their speed
+	 */
+	public void setCalibrating(boolean isCalibrating) {
+		this.isCalibrating = isCalibrating;
+	}
+
+	/**
+	 * @param stripsPerNode Strips per node to balance with, 0 for one board per node
+	 */
+	public void setStripsPerNode(int stripsPerNode) {
+		this.stripsPerNode = stripsPerNode;
+	}
+
+	/**
+	 * @param gridRows Rows of tiles to cut the board into, 0 for a chain, -1 to pick them for each node count
+	 */
+	public void setGridRows(int gridRows) {
+		this.gridRows = gridRows;
+	}
+
+	/**
+	 * @param isProbing Measure the links between the nodes first and order them by it
+	 */
+	public void setProbing(boolean isProbing) {
+		this.isProbing = isProbing;
+	}
+
+	/**
+	 * @param traceFile Write a Chrome trace of every run, the node count is added before the extension, or null to not trace
+	 */
+	public void setTraceFile(String traceFile) {
+		this.traceFile = traceFile;
+	}
+
+	/**
+	 * @param heatmapFile Write the column cost heatmap of every run to this PNG and a CSV next to it, the node count is added before the extension, or null for none
+	 */
+	public void setHeatmapFile(String heatmapFile) {
+		this.heatmapFile = heatmapFile;
+	}
+
+	/**
+	 * @param isStoppingWhenQuiet End every run early once a whole frame changes no cell or every bacteria is dead
+	 */
+	public void setStoppingWhenQuiet(boolean isStoppingWhenQuiet) {
+		this.isStoppingWhenQuiet = isStoppingWhenQuiet;
+	}
+
+	/** Runs the scenario with one node count.
+	 * @param nodes How many nodes
+	 * @return Every frame sample and the wall time
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public RunResult run(int nodes) throws IOException, InterruptedException {
+		int nodeWidth = scaling.equals(SCALING_STRONG) ? width / nodes : width;
+		int masterPort = basePort;
+		int nodePortBase = basePort + 1;
+		int rightPortBase = linkProfile == null ? 0 : basePort + nodes + 2;	// Where the emulators between nodes listen
+		int nodeMasterPort = linkProfile == null ? masterPort : basePort + 2 * nodes + 2;
+		List<LinkEmulator> emulators = new ArrayList<LinkEmulator>();
+		if(linkProfile != null) {
+			for(int i = 0; i < nodes - 1; i++) {
+				emulators.add(new LinkEmulator(rightPortBase + i, "127.0.0.1", nodePortBase + i + 1, linkProfile, i));
+			}
+			emulators.add(new LinkEmulator(nodeMasterPort, "127.0.0.1", masterPort, linkProfile, nodes));
+		}
+		basePort += 2 * nodes + 3;	// The next run gets ports nobody has used yet
+
+		RunResult result = new RunResult();
+		result.nodes = nodes;
+		ServerFragment.FrameListener listener = (nodeNumber, frame, computeNanos, networkNanos, frameWidth) -> {
+			FrameSample sample = new FrameSample();
+			sample.nodes = nodes;
+			sample.node = nodeNumber;
+			sample.frame = frame;
+			sample.computeNanos = computeNanos;
+			sample.networkNanos = networkNanos;
+			sample.width = frameWidth;
+			synchronized (result) {
+				result.samples.add(sample);
+			}
+		};
+
+		ClusterOverseer[] overseer = new ClusterOverseer[1];
+		IOException[] masterError = new IOException[1];
+		Thread master = new Thread(() -> {
+			try {
+				overseer[0] = new ClusterOverseer(nodeWidth, height, nodes, seed, stepsPerFrame, framesToSimulate, isBalancing, masterPort, nodePortBase, rightPortBase, false, balancingSignal, workload, isCalibrating, stripsPerNode, gridRows, isProbing, getRunFile(traceFile, nodes), getRunFile(heatmapFile, nodes), listener);
+				overseer[0].setStoppingWhenQuiet(isStoppingWhenQuiet);
+			} catch (IOException e) {
+				masterError[0] = e;
+			}
+		}, "ScalingHarness master");
+		long startTime = System.nanoTime();
+		master.start();
+
+		List<Process> processes = new ArrayList<Process>();
+		for(int i = 0; i < nodes; i++) {
+			if(mode.equals(MODE_JVM)) {
+				processes.add(startNodeJVM(nodeMasterPort, i));
+			}else {
+				new LocalFragment("127.0.0.1", nodeMasterPort, 1, null);
+			}
+		}
+
+		master.join();
+		if(masterError[0] != null) {
+			throw masterError[0];
+		}
+		long simulationStart = System.nanoTime();
+		result.startupSeconds = (simulationStart - startTime) / 1e9;
+		overseer[0].waitUntilDone();
+		result.seconds = (System.nanoTime() - simulationStart) / 1e9;
+		for(Process process : processes) {
+			process.waitFor();
+		}
+		for(LinkEmulator emulator : emulators) {
+			emulator.close();
+		}
+		return result;
+	}
+
+	/**
+	 * @param file Output file for every run, or null
+	 * @param nodes How many nodes the run has
+	 * @return File of the run with this many nodes, null if file is
+	 */
+	private static String getRunFile(String file, int nodes) {
+		if(file == null) {
+			return null;
+		}
+		int dot = file.lastIndexOf('.');
+		return dot < 0 ? file + "-" + nodes : file.substring(0, dot) + "-" + nodes + file.substring(dot);
+	}
+
+	private Process startNodeJVM(int masterPort, int node) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), ClusterOverseer.class.getName(), "-c", "127.0.0.1:" + masterPort);
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(new File(System.getProperty("java.io.tmpdir"), "ScalingHarness-node" + node + ".log"));
+		return builder.start();
+	}
+
+	/** Writes every sample as a CSV row, with the load imbalance (max over mean compute of all nodes) of its frame.
+	 * @param results Every run
+	 * @param file Where to write
+	 * @throws IOException
+	 */
+	static void writeCSV(List<RunResult> results, String file) throws IOException {
+		try (PrintWriter writer = new PrintWriter(new FileWriter(file))) {
+			writer.println("nodes,frame,node,computeMs,networkMs,width,imbalance");
+			for(RunResult result : results) {
+				TreeMap<Integer, List<FrameSample>> frames = groupByFrame(result);
+				for(List<FrameSample> frame : frames.values()) {
+					double imbalance = getImbalance(frame);
+					for(FrameSample sample : frame) {
+						writer.printf("%d,%d,%d,%.3f,%.3f,%d,%.4f%n", sample.nodes, sample.frame, sample.node,
+								sample.computeNanos / 1e6, sample.networkNanos / 1e6, sample.width, imbalance);
+					}
+				}
+			}
+		}
+	}
+
+	static TreeMap<Integer, List<FrameSample>> groupByFrame(RunResult result) {
+		TreeMap<Integer, List<FrameSample>> frames = new TreeMap<Integer, List<FrameSample>>();
+		for(FrameSample sample : result.samples) {
+			frames.computeIfAbsent(sample.frame, frame -> new ArrayList<FrameSample>()).add(sample);
+		}
+		for(List<FrameSample> frame : frames.values()) {
+			frame.sort((a, b) -> Integer.compare(a.node, b.node));
+		}
+		return frames;
+	}
+
+	/**
+	 * @return Max compute time over mean compute time of the frame, 1 is perfectly balanced.
+	 */
+	static double getImbalance(List<FrameSample> frame) {
+		long max = 0;
+		long sum = 0;
+		for(FrameSample sample : frame) {
+			max = Math.max(max, sample.computeNanos);
+			sum += sample.computeNanos;
+		}
+		return sum == 0 ? 1 : max / (sum / (double) frame.size());
+	}
+
+	/** java -cp ca.jar benchmark.ScalingHarness [mode] [scaling] [nodeCounts] [width] [height] [stepsPerFrame] [frames] [isBalancing] [csvFile] [options]
+	 *  nodeCounts is comma separated, for example 1,2,4
+	 *  The options can come after any of the others, in any order, and are the same as for ClusterOverseer -s besides --metrics, plus
+	 *  --link profile, a LinkEmulator profile like 2:0.5:10000, left out for plain localhost
+	 * @param args
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int positional = 0;	// The options start after these
+		while(positional < args.length && positional < 9 && !args[positional].startsWith("--")) {
+			positional++;
+		}
+		String mode = positional > 0 ? args[0] : MODE_INPROCESS;
+		String scaling = positional > 1 ? args[1] : SCALING_STRONG;
+		String nodeCounts = positional > 2 ? args[2] : "1,2,4";
+		int width = positional > 3 ? Integer.parseInt(args[3]) : 1000;
+		int height = positional > 4 ? Integer.parseInt(args[4]) : 500;
+		int stepsPerFrame = positional > 5 ? Integer.parseInt(args[5]) : 10;
+		int frames = positional > 6 ? Integer.parseInt(args[6]) : 20;
+		boolean isBalancing = positional > 7 ? args[7].contains("t") : true;
+		String csvFile = positional > 8 ? args[8] : "scaling.csv";
+		Map<String, String> options = ClusterOverseer.parseOptions(args, positional, ClusterOverseer.SERVER_FLAGS, HARNESS_OPTIONS);
+		LinkEmulator.Profile linkProfile = options.containsKey("link") ? LinkEmulator.Profile.parse(options.get("link")) : null;
+		String workload = options.get("workload");
+		String signalName = options.getOrDefault("signal", "time");
+		int balancingSignal = BalancingSignal.parse(signalName);
+		boolean isCalibrating = options.containsKey("calibrate");
+		int stripsPerNode = Integer.parseInt(options.getOrDefault("strips", "0"));
+		int gridRows = Integer.parseInt(options.getOrDefault("grid", "0"));
+		boolean isProbing = options.containsKey("probe");
+		String traceFile = options.get("trace");
+		String heatmapFile = options.get("heatmap");
+		boolean isStoppingWhenQuiet = options.containsKey("stop-when-quiet");
+		if(!mode.equals(MODE_INPROCESS) && !mode.equals(MODE_JVM)) {
+			throw new IllegalArgumentException("Mode has to be " + MODE_INPROCESS + " or " + MODE_JVM);
+		}
+		if(!scaling.equals(SCALING_STRONG) && !scaling.equals(SCALING_WEAK)) {
+			throw new IllegalArgumentException("Scaling has to be " + SCALING_STRONG + " or " + SCALING_WEAK);
+		}
+
+		ScalingHarness harness = new ScalingHarness(mode, scaling, width, height, 1, stepsPerFrame, frames, isBalancing, 21000);
+		harness.setLinkProfile(linkProfile);
+		harness.setWorkload(workload);
+		harness.setBalancingSignal(balancingSignal);
+		harness.setCalibrating(isCalibrating);
+		harness.setStripsPerNode(stripsPerNode);
+		harness.setGridRows(gridRows);
+		harness.setProbing(isProbing);
+		harness.setTraceFile(traceFile);
+		harness.setHeatmapFile(heatmapFile);
+		harness.setStoppingWhenQuiet(isStoppingWhenQuiet);
+		List<RunResult> results = new ArrayList<RunResult>();
+		for(String nodeCount : nodeCounts.split(",")) {
+			results.add(harness.run(Integer.parseInt(nodeCount.trim())));
+		}
+		writeCSV(results, csvFile);
+
+		RunResult baseline = results.get(0);
+		System.out.printf("%s scaling, %s, %d wide, %d tall, %d frames of %d steps, links %s, workload %s, balancing on %s%s%s%s%s%n", scaling, mode, width, height, frames, stepsPerFrame,
+				linkProfile == null ? "localhost" : linkProfile, workload == null ? "default" : workload, signalName, isCalibrating ? ", calibrated" : "", stripsPerNode > 0 ? ", " + stripsPerNode + " strips per node" : "", gridRows != 0 ? ", grid" : "", isProbing ? ", probed" : "");
+		System.out.println("nodes    startup    seconds    speedup  efficiency  mean imbalance");
+		for(RunResult result : results) {
+			double speedup = baseline.seconds / result.seconds;
+			double efficiency;
+			if(scaling.equals(SCALING_STRONG)) {
+				efficiency = speedup * baseline.nodes / result.nodes;
+			}else {
+				efficiency = speedup;	// Perfect weak scaling keeps the time flat
+			}
+			double imbalance = 0;
+			TreeMap<Integer, List<FrameSample>> frameSamples = groupByFrame(result);
+			for(List<FrameSample> frame : frameSamples.values()) {
+				imbalance += getImbalance(frame);
+			}
+			imbalance /= Math.max(1, frameSamples.size());
+			System.out.printf("%5d %10.2f %10.2f %10.2f %11.2f %15.3f%n", result.nodes, result.startupSeconds, result.seconds, speedup, efficiency, imbalance);
+		}
+		System.out.println("Wrote " + csvFile);
+	}
+}
@@ -0,0 +1,257 @@
+package benchmark;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+import transferManagers.BalancingTransferManager;
+import transferManagers.NonBalancingTransferManager;
+import transferManagers.TransferManager;
+
+/**
+ * Runs a chain of transfer managers on localhost, each in its own thread, and measures the exchanges between them.
+ * Instead of simulating, every node waits for a made up compute time (its width times its cost per column) and hands doneNow a random board.
+ * Reports latency percentiles of doneNow, columns moved per second and, for balancing, how long it takes the widths to settle.
+ * Several variants (protocol and socket options) are run one after the other so they can be compared.
+ * With a link profile every link of the chain goes through a LinkEmulator, so slow links can be reproduced on one machine.
+ */
+public class TransferBenchmark {
+
+	public static final String VARIANT_BALANCING = "balancing";
+	public static final String VARIANT_NONBALANCING = "nonbalancing";
+	public static final String NODELAY_SUFFIX = "+nodelay";	// Appended to a variant to turn Nagle off
+
+	static final double CONVERGED_IMBALANCE = 0.05;	// Max compute over mean compute within this is counted as balanced
+
+	private int nodes;
+	private int height;
+	private int width;
+	private int steps;
+	private long[] nanosPerColumn;
+	private int basePort;
+	private LinkEmulator.Profile linkProfile = null;
+
+	/** Everything measured for one variant
+	 */
+	public static class Result {
+		String variant;
+		long[] latencies;	// Every doneNow call on every node, sorted
+		double columnsPerSecond;
+		double seconds;
+		int convergedStep = -1;	// Step after which the chain stayed balanced, -1 if it never did
+		double convergedSeconds = -1;
+		int[] finalWidths;
+
+		long percentile(double percent) {
+			if(latencies.length == 0) {
+				return 0;
+			}
+			int index = (int) Math.ceil(percent / 100.0 * latencies.length) - 1;
+			return latencies[Math.max(0, Math.min(latencies.length - 1, index))];
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-22s %10.1f %10.1f %10.1f %10.1f %12.0f %10s %s",
+					variant, percentile(50) / 1000.0, percentile(90) / 1000.0, percentile(99) / 1000.0, percentile(100) / 1000.0, columnsPerSecond,
+					convergedStep < 0 ? "never" : String.format("%d/%.2fs", convergedStep, convergedSeconds), Arrays.toString(finalWidths));
+		}
+	}
+
+	/**
+	 * @param nodes How many transfer managers in the chain, 2 is a pair
+	 * @param height Height of the boards
+	 * @param width Starting width of every board
+	 * @param steps How many exchanges to do
+	 * @param nanosPerColumn Simulated compute cost of one column on each node, repeated if shorter than the chain
+	 * @param basePort First port to use, node i listens on basePort + i
+	 */
+	public TransferBenchmark(int nodes, int height, int width, int steps, long[] nanosPerColumn, int basePort) {
+		this.nodes = nodes;
+		this.height = height;
+		this.width = width;
+		this.steps = steps;
+		this.nanosPerColumn = nanosPerColumn;
+		this.basePort = basePort;
+	}
+
+	/** Sends every link of the chain through a LinkEmulator, which listens on basePort + nodes + 1 + i for the link right of node i.
+	 * @param linkProfile How the links behave, null for plain localhost
+	 */
+	public void setLinkProfile(LinkEmulator.Profile linkProfile) {
+		this.linkProfile = linkProfile;
+	}
+
+	/** Runs the chain with one variant.
+	 * @param variant VARIANT_BALANCING or VARIANT_NONBALANCING, optionally followed by NODELAY_SUFFIX
+	 * @return The measurements
+	 * @throws InterruptedException
+	 * @throws IOException If a link emulator can't listen
+	 */
+	public Result run(String variant) throws InterruptedException, IOException {
+		boolean balancing = variant.startsWith(VARIANT_BALANCING);
+		boolean noDelay = variant.endsWith(NODELAY_SUFFIX);
+		List<LinkEmulator> emulators = new ArrayList<LinkEmulator>();
+		if(linkProfile != null) {
+			for(int i = 0; i < nodes - 1; i++) {
+				emulators.add(new LinkEmulator(basePort + nodes + 1 + i, "127.0.0.1", basePort + i + 1, linkProfile, i));
+			}
+		}
+
+		long[][] latencies = new long[nodes][steps];
+		int[][] widths = new int[nodes][steps];
+		long[][] finishTimes = new long[nodes][steps];
+		CountDownLatch connected = new CountDownLatch(nodes);
+		CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[nodes];
+		Throwable[] errors = new Throwable[nodes];
+
+		for(int i = 0; i < nodes; i++) {
+			final int node = i;
+			threads[i] = new Thread(() -> {
+				TransferManager manager = balancing ? new BalancingTransferManager() : new NonBalancingTransferManager();
+				try {
+					manager.setPorts(basePort + node, linkProfile == null ? basePort + node + 1 : basePort + nodes + 1 + node);
+					manager.setTcpNoDelay(noDelay);
+					Thread right = null;
+					if(node < nodes - 1) {	// Connect right while waiting for the left so the chain comes up at once
+						right = new Thread(() -> {
+							try {
+								manager.connectRight(InetAddress.getLoopbackAddress().getAddress(), true, height);
+							} catch (IOException e) { throw new RuntimeException(e); }
+						});
+						right.start();
+					}
+					if(node > 0) {
+						manager.connectLeft(true, height);
+					}
+					if(right != null) {
+						right.join();
+					}
+					connected.countDown();
+					start.await();
+					runNode(node, manager, latencies[node], widths[node], finishTimes[node]);
+				} catch (Throwable e) {
+					errors[node] = e;
+					connected.countDown();
+				} finally {
+					try { manager.close(); } catch (IOException e) { e.printStackTrace(); }
+				}
+			}, "TransferBenchmark node " + i);
+			threads[i].start();
+		}
+		connected.await();
+		long startTime = System.nanoTime();
+		start.countDown();
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		long endTime = System.nanoTime();
+		for(LinkEmulator emulator : emulators) {
+			emulator.close();
+		}
+		for(Throwable error : errors) {
+			if(error != null) {
+				throw new IllegalStateException("Node failed during " + variant, error);
+			}
+		}
+
+		Result result = new Result();
+		result.variant = variant;
+		result.seconds = (endTime - startTime) / 1e9;
+		result.latencies = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+		// Balancing moves two columns one way per link and step, non balancing one column each way, so two either way
+		result.columnsPerSecond = (nodes - 1) * (long) steps * 2 / result.seconds;
+		result.finalWidths = new int[nodes];
+		for(int i = 0; i < nodes; i++) {
+			result.finalWidths[i] = widths[i][steps - 1];
+		}
+		findConvergence(result, widths, finishTimes, startTime);
+		return result;
+	}
+
+	/** Waits out the simulated compute time and calls doneNow, over and over.
+	 */
+	private void runNode(int node, TransferManager manager, long[] latencies, int[] widths, long[] finishTimes) throws IOException {
+		long costPerColumn = nanosPerColumn[node % nanosPerColumn.length];
+		byte[][] board = new byte[width][height];
+		Random random = new Random(node);
+		for(byte[] column : board) {
+			random.nextBytes(column);
+		}
+		for(int step = 0; step < steps; step++) {
+			long computeNanos = board.length * costPerColumn;
+			long computeEnd = System.nanoTime() + computeNanos;
+			while(System.nanoTime() < computeEnd) {
+				LockSupport.parkNanos(computeEnd - System.nanoTime());
+			}
+			long startTime = System.nanoTime();
+			board = manager.doneNow(board, computeNanos);
+			long endTime = System.nanoTime();
+			latencies[step] = endTime - startTime;
+			widths[step] = board.length;
+			finishTimes[step] = endTime;
+		}
+	}
+
+	/** Finds the first step after which max over mean compute time stayed within CONVERGED_IMBALANCE.
+	 */
+	private void findConvergence(Result result, int[][] widths, long[][] finishTimes, long startTime) {
+		int converged = -1;
+		for(int step = steps - 1; step >= 0; step--) {
+			double max = 0;
+			double sum = 0;
+			for(int node = 0; node < nodes; node++) {
+				double compute = widths[node][step] * (double) nanosPerColumn[node % nanosPerColumn.length];
+				max = Math.max(max, compute);
+				sum += compute;
+			}
+			if(max / (sum / nodes) - 1 > CONVERGED_IMBALANCE) {
+				break;
+			}
+			converged = step;
+		}
+		if(converged >= 0) {
+			result.convergedStep = converged;
+			result.convergedSeconds = (finishTimes[0][converged] - startTime) / 1e9;
+		}
+	}
+
+	/** java -cp ca.jar benchmark.TransferBenchmark [nodes] [height] [width] [steps] [nanosPerColumn] [variants] [linkProfile]
+	 *  nanosPerColumn and variants are comma separated, for example 20000,40000 and balancing,balancing+nodelay
+	 *  linkProfile is a LinkEmulator profile, for example 2:0.5:10000, left out for plain localhost
+	 * @param args
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws InterruptedException, IOException {
+		int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+		int height = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		int width = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		int steps = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+		long[] nanosPerColumn = Arrays.stream((args.length > 4 ? args[4] : "20000,40000").split(",")).mapToLong(Long::parseLong).toArray();
+		String variants = args.length > 5 ? args[5] : "balancing,balancing+nodelay,nonbalancing,nonbalancing+nodelay";
+		LinkEmulator.Profile linkProfile = args.length > 6 ? LinkEmulator.Profile.parse(args[6]) : null;
+
+		List<Result> results = new ArrayList<Result>();
+		int basePort = 20000;
+		for(String variant : variants.split(",")) {
+			TransferBenchmark benchmark = new TransferBenchmark(nodes, height, width, steps, nanosPerColumn, basePort);
+			benchmark.setLinkProfile(linkProfile);
+			basePort += 2 * nodes + 1;	// Fresh ports so closed listeners from the last variant can't get in the way
+			results.add(benchmark.run(variant.trim()));
+		}
+
+		System.out.printf("%d nodes, %d tall, %d wide, %d steps, ns per column %s, links %s%n", nodes, height, width, steps, Arrays.toString(nanosPerColumn),
+				linkProfile == null ? "localhost" : linkProfile);
+		System.out.println("variant                 p50 (us)   p90 (us)   p99 (us)   max (us)    columns/s  converged  final widths");
+		for(Result result : results) {
+			System.out.println(result);
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package local;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Lets the nodes agree on values of the whole cluster at frame boundaries. Every node sends its values of a frame to the master,
+ * which combines them once every node in the chain has and sends the result back to all of them, one round trip however long the chain is.
+ * Only the nodes in the chain when a frame's values come together get them, a node added later starts with the frames after it joined.
+ */
+public class Allreduce {
+	public static final int OP_SUM = 0;
+	public static final int OP_MAX = 1;
+	public static final int OP_MIN = 2;
+
+	public static final int VALUE_LIVE = 0;	// Live cells after the frame's last step
+	public static final int VALUE_CHANGED = 1;	// Cells changed over every step of the frame
+	public static final int VALUE_SLOWEST_COMPUTE = 2;	// Nanoseconds spent stepping during the frame, of the slowest node
+	public static final int VALUE_FASTEST_COMPUTE = 3;	// and of the fastest
+	public static final int[] FRAME_OPS = {OP_SUM, OP_SUM, OP_MAX, OP_MIN};	// What every node sends every frame
+
+	private int frame = -1;	// Latest frame the cluster's values came back for
+	private double[] values = new double[0];
+
+	/** Builds the packet for the master, see ServerFragment.OPC_REDUCE.
+	 * @param frame The frame just finished
+	 * @param ops How to combine each value, one of the OP constants
+	 * @param values This node's values
+	 * @return The packet
+	 */
+	public static byte[] getPacket(int frame, int[] ops, double[] values) {
+		ByteBuffer packet = ByteBuffer.allocate(2 * 4 + values.length * (4 + 8));
+		packet.putInt(frame).putInt(values.length);
+		for(int i = 0; i < values.length; i++) {
+			packet.putInt(ops[i]).putDouble(values[i]);
+		}
+		return packet.array();
+	}
+
+	/**
+	 * @param op One of the OP constants
+	 * @param a One value
+	 * @param b The other
+	 * @return Both combined
+	 */
+	public static double combine(int op, double a, double b) {
+		switch(op) {
+			case OP_SUM:
+				return a + b;
+			case OP_MAX:
+				return Math.max(a, b);
+			case OP_MIN:
+				return Math.min(a, b);
+			default:
+				throw new IllegalStateException("Unknown reduction " + op);
+		}
+	}
+
+	/** Takes the cluster's values from the master, see ServerFragment.OPC_REDUCED.
+	 * @param packet Frame, count, then every value
+	 */
+	public synchronized void reduced(ByteBuffer packet) {
+		int reducedFrame = packet.getInt();
+		double[] reducedValues = new double[packet.getInt()];
+		for(int i = 0; i < reducedValues.length; i++) {
+			reducedValues[i] = packet.getDouble();
+		}
+		if(reducedFrame > frame) {
+			frame = reducedFrame;
+			values = reducedValues;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * @return Latest frame the cluster's values are in for, -1 before the first
+	 */
+	public synchronized int getFrame() {
+		return frame;
+	}
+
+	/**
+	 * @return The cluster's values of getFrame
+	 */
+	public synchronized double[] getValues() {
+		return values.clone();
+	}
+
+	/** Blocks until the cluster's values of a frame, or a later one, are in.
+	 * @param frame The frame
+	 * @return The values
+	 * @throws InterruptedException
+	 */
+	public synchronized double[] waitFor(int frame) throws InterruptedException {
+		while(this.frame < frame) {
+			wait();
+		}
+		return values.clone();
+	}
+}
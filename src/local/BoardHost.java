@@ -0,0 +1,47 @@
+package local;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * A node's share of the board when it is not one plain board in a chain, either several strips or one tile of a grid.
+ * The simulation loop steps it and exchanges borders through it instead of a transfer manager.
+ */
+interface BoardHost {
+
+	/** Steps everything this node has once.
+	 * @return Time spent stepping
+	 */
+	long step();
+
+	/** Sends the borders to the neighbors and waits for theirs.
+	 * @throws IOException
+	 */
+	void exchange() throws IOException;
+
+	/**
+	 * @return Other nodes this one sends borders to, each once
+	 */
+	int[] getNeighbors();
+
+	/**
+	 * @return How many columns this node simulates, border columns left out
+	 */
+	int getWidth();
+
+	/**
+	 * @return Every board this node simulates
+	 */
+	Collection<CAFragment> getFragments();
+
+	/**
+	 * @return Cells holding bacteria after the last step
+	 */
+	long getOccupiedCells();
+
+	/** Builds the costs packet for the master, see ServerFragment.OPC_STRIPCOSTS, and starts counting the next frame.
+	 * @param frame The frame just finished
+	 * @return The packet
+	 */
+	byte[] getFrameCosts(int frame);
+}
@@ -0,0 +1,31 @@
+package local;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for a CAFragment.updateBoard that changed the width or moved the board.
+ */
+@Name("ca.BoardResize")
+@Label("Board Resize")
+@Category({"Cellular Automata", "Node"})
+@Description("The board got wider or narrower after an exchange, or moved along the full board")
+@StackTrace(false)
+class BoardResizeEvent extends jdk.jfr.Event {
+	@Label("Old Width")
+	int oldWidth;
+
+	@Label("New Width")
+	int newWidth;
+
+	@Label("Shift Amount")
+	@Description("How far the board's start moved, negative is to the left")
+	int shiftAmount;
+
+	@Label("Board X")
+	@Description("Where the board starts on the full board afterwards")
+	int boardX;
+}
@@ -1,13 +1,9 @@
 package local;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Random;
-
-import com.google.common.primitives.Bytes;
-import com.google.common.primitives.Ints;
-
 import library.OpenSimplexNoise;
+import workload.UniformWorkload;
+import workload.WorkBurner;
+import workload.Workload;
 
 /**
  * Actually does the cellular automata simulation
@@ -20,21 +16,33 @@ public class CAFragment {
 	public static final double NEIGHBOR_HUNGER_FACTOR = 1.7;
 	public static final double EAT_RATE_MULTIPLIER = 0.1;
 	
-	static final byte MAX_BACTERIA = 127;	// Full health / food bacteria
+	public static final byte MAX_BACTERIA = 127;	// Full health / food bacteria
 	static final byte NEW_BACTERIA = -127;	// Bacteria with "1" or minimum health
-	static final byte NO_BACTERIA = -128;	// Empty space, no bacteria
+	public static final byte NO_BACTERIA = -128;	// Empty space, no bacteria
 	
-	static final byte MUTABLE_BOARD = 0;
+	public static final byte MUTABLE_BOARD = 0;	// The current cells in getBoard, the other half is the copy step reads from
 	static final byte READ_BOARD = 1;
 	static final double SIMPLEX_MULTIPLIER = 0.01;
+	public static final double CELL_WORK = 20;	// Nominal nanoseconds to evaluate any cell, from StepBenchmark on an empty board
+	public static final double BACTERIA_WORK = 15;	// Nominal extra nanoseconds for a bacteria cell, before its workload
 	
 	private int width;
 	private int height;
 	private int boardXPosition;
+	private int boardYPosition = 0;
 	
 	
 	private byte board[][][];
 	private OpenSimplexNoise simplex;
+	private Workload workload = new UniformWorkload(1);
+	private int stepCount = 0;
+	
+	private long stepCells = 0;	// What the last step did, counted as it goes
+	private long stepBacteria = 0;
+	private double stepWorkUnits = 0;
+	private PopulationStats stepStats = new PopulationStats();	// Counted while the last step wrote the cells
+	private double[] columnWork = new double[0];	// Work of every column of the full board this fragment stepped since the last takeColumnWork
+	private int workStart = 0;	// Column of the full board columnWork starts at
 	
 	/**	Sets up one node's worth of CA
 	 * @param width How wide to start
@@ -43,9 +51,21 @@ public class CAFragment {
 	 * @param simplexSeed Seed of the noise function. 
 	 */
 	public CAFragment(int width, int height, int boardXPosition, int simplexSeed){
+		this(width, height, boardXPosition, 0, simplexSeed);
+	}
+	
+	/**	Sets up one tile of CA, for when the board is split both ways
+	 * @param width How wide to start
+	 * @param height How tall the tile is
+	 * @param boardXPosition Where on the full board this fragment lies
+	 * @param boardYPosition How far down the full board this fragment lies
+	 * @param simplexSeed Seed of the noise function. 
+	 */
+	public CAFragment(int width, int height, int boardXPosition, int boardYPosition, int simplexSeed){
 		this.width = width;
 		this.height = height;
 		this.boardXPosition = boardXPosition;
+		this.boardYPosition = boardYPosition;
 		
 		simplex = new OpenSimplexNoise(simplexSeed);
 		board = new byte[2][width][height];
@@ -60,13 +80,72 @@ public class CAFragment {
 	 * Do one step of the simulation, all cells update simultaneously. 
 	 */
 	public void step(){
+		StepEvent event = new StepEvent();
+		event.begin();
+		stepBacteria = 0;
+		stepWorkUnits = 0;
+		stepCells = (long) Math.max(0, width - 2) * Math.max(0, height - 2);
 		for(int i = 0; i < width; i++){
 		    System.arraycopy(board[MUTABLE_BOARD][i], 0, board[READ_BOARD][i], 0, height);
 		}
+		coverColumnWork(boardXPosition + 1, boardXPosition + width - 1);
+		double cellsWork = Math.max(0, height - 2) * CELL_WORK;
+		stepStats.clear();
+		long[] health = stepStats.health;
+		long births = 0;
+		long deaths = 0;
+		long changed = 0;
 		for(int x = 1; x < width-1; x++){
+			long bacteria = stepBacteria;
+			double workUnits = stepWorkUnits;
+			byte[] readColumn = board[READ_BOARD][x];
+			byte[] column = board[MUTABLE_BOARD][x];
+			int firstLive = -1;
+			int lastLive = -1;
 			for(int y = 1; y < height-1; y++){
-				board[MUTABLE_BOARD][x][y] = getUpdatedCellValue(x, y);
+				byte value = getUpdatedCellValue(x, y);
+				byte oldValue = readColumn[y];
+				column[y] = value;
+				if(value != oldValue){
+					changed++;
+				}
+				if(value != NO_BACTERIA){
+					health[PopulationStats.getHealthBucket(value)]++;
+					if(oldValue == NO_BACTERIA){
+						births++;
+					}
+					if(firstLive < 0){
+						firstLive = y;
+					}
+					lastLive = y;
+				}else if(oldValue != NO_BACTERIA){
+					deaths++;
+				}
 			}
+			columnWork[boardXPosition + x - workStart] += cellsWork + (stepBacteria - bacteria) * BACTERIA_WORK + (stepWorkUnits - workUnits) * WorkBurner.UNIT_NANOS;
+			if(firstLive >= 0){
+				stepStats.minX = Math.min(stepStats.minX, boardXPosition + x);
+				stepStats.maxX = boardXPosition + x;
+				stepStats.minY = Math.min(stepStats.minY, boardYPosition + firstLive);
+				stepStats.maxY = Math.max(stepStats.maxY, boardYPosition + lastLive);
+			}
+		}
+		for(long count : health){
+			stepStats.live += count;
+		}
+		stepStats.births = births;
+		stepStats.deaths = deaths;
+		stepStats.changed = changed;
+		stepCount++;
+		event.end();
+		if(event.shouldCommit()) {
+			event.step = stepCount;
+			event.boardX = boardXPosition;
+			event.width = width;
+			event.height = height;
+			event.occupiedCells = stepBacteria;
+			event.workUnits = stepWorkUnits;
+			event.commit();
 		}
 	}
 	
@@ -95,7 +174,10 @@ public class CAFragment {
 			}
 			return newCellValue;
 		}else{	// If it is a bacteria cell
-			doUselessWork((byte) 50);
+			stepBacteria++;
+			if(workload != null){
+				stepWorkUnits += workload.doWork(boardXPosition + x, boardYPosition + y, stepCount);
+			}
 			int foodSource = (int) (EAT_RATE_MULTIPLIER * 255 * getFoodAt(x, y, false));
 			if((foodSource + (int) newCellValue) < MAX_BACTERIA){
 				newCellValue += foodSource;
@@ -134,25 +216,112 @@ public class CAFragment {
 		}
 	}
 	
-	Random rand = new Random();
-	/** Basically, no-op for a while to simulate actually doing some hard work
-	 * @param difficulty how hard the sha is to find, bigger is harder
+	/** Sets the simulated work done for every bacteria, by default every bacteria costs one work unit.
+	 * @param workload How much work each bacteria costs, null for none
 	 */
-	public void doUselessWork(byte difficulty) {
-		int currentTarget = rand.nextInt();
-		int inc = 0;
-		while(true){
-			byte[] possibleHash = getHash(currentTarget, inc);
-			if(possibleHash[0] >= difficulty) {
-				return;
-			}
-			inc++;
+	public void setWorkload(Workload workload){
+		this.workload = workload;
+	}
+	
+	public Workload getWorkload(){
+		return workload;
+	}
+	
+	/**
+	 * @return How many cells the last step evaluated
+	 */
+	public long getStepCells(){
+		return stepCells;
+	}
+	
+	/**
+	 * @return How many of the cells the last step evaluated had a bacteria
+	 */
+	public long getStepBacteria(){
+		return stepBacteria;
+	}
+	
+	/**
+	 * @return Workload units the last step burned, slowdown included
+	 */
+	public double getStepWorkUnits(){
+		return stepWorkUnits;
+	}
+	
+	/** Live cells, births, deaths, health and where the bacteria are after the last step, counted while it wrote the cells.
+	 * @return The same object every step, copy it to keep it
+	 */
+	public PopulationStats getStepStats(){
+		return stepStats;
+	}
+	
+	/** Everything the last step did as one number, in nominal nanoseconds, so it can be compared against time.
+	 * Unlike timing the step it is the same every run and has no GC or scheduling noise in it.
+	 * @return Work of the last step
+	 */
+	public double getStepWork(){
+		return stepCells * CELL_WORK + stepBacteria * BACTERIA_WORK + stepWorkUnits * WorkBurner.UNIT_NANOS;
+	}
+	
+	/** Grows columnWork to take these columns too, it keeps the columns the board moved away from until they are taken.
+	 * @param start First column of the full board
+	 * @param end Column of the full board after the last
+	 */
+	private void coverColumnWork(int start, int end){
+		if(start >= workStart && end <= workStart + columnWork.length){
+			return;
+		}
+		double[] work;
+		if(columnWork.length > 0){
+			start = Math.min(start, workStart);
+			work = new double[Math.max(end, workStart + columnWork.length) - start];
+			System.arraycopy(columnWork, 0, work, workStart - start, columnWork.length);
+		}else{
+			work = new double[Math.max(0, end - start)];
 		}
+		columnWork = work;
+		workStart = start;
 	}
-	public byte[] getHash(int randNumber, int offset){
-		MessageDigest digest = null;;
-		try { digest = MessageDigest.getInstance("SHA-256"); } catch (NoSuchAlgorithmException e) { e.printStackTrace(); }
-		return digest.digest( Bytes.concat(Ints.toByteArray(randNumber), Ints.toByteArray(offset)) );
+	
+	/**
+	 * @return First column of the full board takeColumnWork has work for
+	 */
+	public int getColumnWorkStart(){
+		return workStart;
+	}
+	
+	/**
+	 * @return Column of the full board after the last one takeColumnWork has work for
+	 */
+	public int getColumnWorkEnd(){
+		return workStart + columnWork.length;
+	}
+	
+	/** Adds the work of every column this fragment stepped, the same nominal nanoseconds as getStepWork, into bins of the full board's columns and starts counting over.
+	 * Columns the board moved away from since the last call are in there too, with the work done on them while they were here.
+	 * @param bins Work of each bin
+	 * @param firstBin Bin of the full board that bins[0] is
+	 * @param binColumns Columns of the full board in one bin
+	 */
+	public void takeColumnWork(double[] bins, int firstBin, int binColumns){
+		for(int i = 0; i < columnWork.length; i++){
+			bins[(workStart + i) / binColumns - firstBin] += columnWork[i];
+		}
+		columnWork = new double[0];
+	}
+	
+	/**
+	 * @return How many steps this fragment has done, the time axis of the workload
+	 */
+	public int getStepCount(){
+		return stepCount;
+	}
+	
+	/**
+	 * @param stepCount How many steps the cluster has done, for a board handed over from another node
+	 */
+	public void setStepCount(int stepCount){
+		this.stepCount = stepCount;
 	}
 	
 	
@@ -182,6 +351,13 @@ public class CAFragment {
 		return boardXPosition;
 	}
 	
+	/**
+	 * @return How far down the full board this fragment lies.
+	 */
+	public int getYOffset() {
+		return boardYPosition;
+	}
+	
 	/** Set a given position to a cell value, used for initial placement. 
 	 * @param x X coordinate
 	 * @param y Y coordinate
@@ -200,10 +376,21 @@ public class CAFragment {
 	 * @param shiftAmount How much to adjust the board's offset.
 	 */
 	public void updateBoard(byte[][] newBoard, int shiftAmount) {
+		BoardResizeEvent event = new BoardResizeEvent();
+		event.begin();
+		int oldWidth = width;
 		board = new byte[2][newBoard.length][newBoard[0].length];
 	    System.arraycopy(newBoard, 0, board[MUTABLE_BOARD], 0, newBoard.length);
 		width = newBoard.length;
 		boardXPosition += shiftAmount;
 		board[MUTABLE_BOARD] = newBoard;
+		event.end();
+		if((oldWidth != width || shiftAmount != 0) && event.shouldCommit()) {
+			event.oldWidth = oldWidth;
+			event.newWidth = width;
+			event.shiftAmount = shiftAmount;
+			event.boardX = boardXPosition;
+			event.commit();
+		}
 	}
 }
@@ -1,13 +1,12 @@
 package local;
 import java.awt.Color;
-import java.awt.Graphics;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
-
-import javax.imageio.IIOException;
-import javax.imageio.ImageIO;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
@@ -16,13 +15,25 @@ import library.OpenSimplexNoise;
 
 
 public class CARenderer {
+	public static final int DEFAULT_COMPRESSION_LEVEL = 3;	// Boards are mostly long runs, higher levels barely shrink them
+	public static final int DEFAULT_BAND_ROWS = 64;	// Rows of the combined image kept in memory at once
+	
+	public static final int AGGREGATE_MAJORITY = 0;	// A block shows bacteria if most of its cells have them, with their average health
+	public static final int AGGREGATE_MEAN_HEALTH = 1;	// A block shows the average value of all its cells, empty cells count as no health
+	
 	int imageName = 0;
+	int framesRendered = 0;
+	int fullResolutionCadence = 1;
+	ArrayList<DetailLevel> detailLevels = new ArrayList<DetailLevel>();
 	File currentDirectory;
 	OpenSimplexNoise simplex;
+	int[] palette;
+	PngWriter pngWriter = new PngWriter(DEFAULT_COMPRESSION_LEVEL, PngWriter.FILTER_NONE, Runtime.getRuntime().availableProcessors());
 	
 	
 	public CARenderer(long simplexSeed, String folderName) throws URISyntaxException{
 		this.simplex = new OpenSimplexNoise(simplexSeed);
+		this.palette = getPalette();
 		
 		currentDirectory = new File(
 				File.separator + 
@@ -47,35 +58,255 @@ public class CARenderer {
 //		}
 	}
 	
+	/** Builds the color of every possible cell value, the food color assumes food is the same everywhere (see getFoodAt).
+	 * @return RGB colors indexed by the unsigned value of the cell
+	 */
+	public int[] getPalette(){
+		int[] palette = new int[256];
+		for(int i = 0; i < 256; i++){
+			byte cell = (byte) i;
+			if(cell == CAFragment.NO_BACTERIA){	// If it is food
+				int newColor = (int)(255*getFoodAt(0, 0, false, 0));
+				palette[i] = getIntRGB(newColor, newColor, newColor);
+			}else{
+				int newColor = 128 + (int)cell;
+				newColor = newColor > 255 ? 255 : newColor;
+				palette[i] = getIntRGB(255-newColor, 0, newColor);
+			}
+		}
+		return palette;
+	}
+	
+	/** Changes how frames are encoded, for example a different deflate level or filter.
+	 * @param pngWriter The writer to use from now on
+	 */
+	public void setPngWriter(PngWriter pngWriter){
+		this.pngWriter = pngWriter;
+	}
+	
+	/** Only write the full resolution frame every so many frames, the detail levels have their own cadence.
+	 * @param cadence 1 writes every frame, 0 never writes full resolution frames
+	 */
+	public void setFullResolutionCadence(int cadence){
+		if(cadence < 0){
+			throw new IllegalArgumentException("Cadence can't be negative, " + cadence);
+		}
+		this.fullResolutionCadence = cadence;
+	}
+	
+	/** Adds a downsampled copy of every frame, written to its own lod folder next to the full frames.
+	 * Frames in each folder are numbered 0, 1, 2... in the order they are written, like the full frames.
+	 * @param factor How many cells wide and tall each block is, for example 2, 4 or 8
+	 * @param aggregation AGGREGATE_MAJORITY or AGGREGATE_MEAN_HEALTH
+	 * @param cadence Write this level every so many frames
+	 */
+	public void addDetailLevel(int factor, int aggregation, int cadence){
+		if(factor < 2 || cadence < 1){
+			throw new IllegalArgumentException("Detail levels need a factor of at least 2 and a cadence of at least 1");
+		}
+		if(aggregation != AGGREGATE_MAJORITY && aggregation != AGGREGATE_MEAN_HEALTH){
+			throw new IllegalArgumentException("Unknown aggregation " + aggregation);
+		}
+		DetailLevel level = new DetailLevel();
+		level.factor = factor;
+		level.aggregation = aggregation;
+		level.cadence = cadence;
+		level.directory = new File(currentDirectory, "lod" + factor);
+		if(!level.directory.exists()){
+			level.directory.mkdirs();
+		}
+		detailLevels.add(level);
+		detailLevels.sort(Comparator.comparingInt(l -> l.factor));
+	}
+	
+	/** Adds detail levels from a comma separated list like "4:majority:1,8:mean:1", factor:aggregation:cadence.
+	 * @param spec The list of levels
+	 */
+	public void addDetailLevels(String spec){
+		for(String levelSpec : spec.split(",")){
+			String[] parts = levelSpec.trim().split(":");
+			if(parts.length != 3){
+				throw new IllegalArgumentException("Detail level should look like factor:aggregation:cadence, " + levelSpec);
+			}
+			int aggregation;
+			if(parts[1].equals("majority")){
+				aggregation = AGGREGATE_MAJORITY;
+			}else if(parts[1].equals("mean")){
+				aggregation = AGGREGATE_MEAN_HEALTH;
+			}else{
+				throw new IllegalArgumentException("Aggregation should be majority or mean, " + parts[1]);
+			}
+			addDetailLevel(Integer.parseInt(parts[0]), aggregation, Integer.parseInt(parts[2]));
+		}
+	}
+	
 	public void renderCurrentFrame(byte[][][] board, int xOffset) throws IOException{
+		RenderEvent event = new RenderEvent();
+		event.begin();
+		int frame = framesRendered;
+		framesRendered++;
 		
-		int width = board[CAFragment.MUTABLE_BOARD].length;
-		int height = board[CAFragment.MUTABLE_BOARD][0].length;
-		BufferedImage output = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-		for(int y = 0; y < height; y++){
-			for(int x = 0; x < width; x++){
-				if(board[CAFragment.MUTABLE_BOARD][x][y] == CAFragment.NO_BACTERIA ){	// If it is food
-					int newColor = (int)(255*getFoodAt(x, y, false, xOffset));
-					output.setRGB(x, y, getIntRGB(newColor, newColor, newColor));
-				}else{
-					int newColor = 128 + (int)board[CAFragment.MUTABLE_BOARD][x][y];
-					newColor = newColor > 255 ? 255 : newColor;
-					output.setRGB(x, y, getIntRGB(255-newColor, 0, newColor));
+		renderDetailLevels(board[CAFragment.MUTABLE_BOARD], frame);
+		
+		boolean isFullResolution = fullResolutionCadence != 0 && frame % fullResolutionCadence == 0;
+		if(isFullResolution){
+			try {
+			    File outputfile = new File(currentDirectory.getPath() + String.format(File.separator +"%d.png", imageName));
+			    imageName++;
+			    pngWriter.writeIndexed(outputfile, board[CAFragment.MUTABLE_BOARD], palette);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		event.end();
+		if(event.shouldCommit()) {
+			event.frame = frame;
+			event.width = board[CAFragment.MUTABLE_BOARD].length;
+			event.boardX = xOffset;
+			event.isFullResolution = isFullResolution;
+			event.commit();
+		}
+	}
+	
+	/** Builds and writes every detail level that is due this frame. The board is only read for the finest level that is due,
+	 * coarser levels are summed up from a finer level's blocks when their factor is a multiple of it.
+	 * @param board The board, indexed [x][y]
+	 * @param frame How many frames were rendered before this one
+	 */
+	private void renderDetailLevels(byte[][] board, int frame){
+		ArrayList<DetailLevel> done = new ArrayList<DetailLevel>();
+		for(DetailLevel level : detailLevels){
+			if(frame % level.cadence != 0){
+				continue;
+			}
+			DetailLevel finer = null;
+			for(DetailLevel candidate : done){	// Sorted by factor, so this ends on the coarsest level that fits
+				if(level.factor % candidate.factor == 0){
+					finer = candidate;
 				}
-				
+			}
+			if(finer != null){
+				level.accumulate(finer);
+			}else{
+				level.accumulate(board);
+			}
+			done.add(level);
+			try {
+				File outputfile = new File(level.directory, level.framesWritten + ".png");
+				level.framesWritten++;
+				pngWriter.writeIndexed(outputfile, level.getBlocks(), palette);
+			} catch (IOException e) {
+				e.printStackTrace();
 			}
 		}
-		try {
-		    File outputfile = new File(currentDirectory.getPath() + String.format(File.separator +"%d.png", imageName));
-		    imageName++;
-		    ImageIO.write(output, "png", outputfile);
-		} catch (IOException e) {
-			e.printStackTrace();
+	}
+	
+	/**
+	 * One downsampled level of the frame pyramid and the per block sums it is built from.
+	 */
+	static class DetailLevel {
+		int factor;
+		int aggregation;
+		int cadence;
+		File directory;
+		int framesWritten = 0;
+		
+		int width;
+		int height;
+		int boardWidth;
+		int boardHeight;
+		int[][] occupied;	// Cells with bacteria in each block
+		int[][] healthSum;	// Sum of the cell values of those bacteria, offset so empty is 0
+		byte[][] blocks;
+		
+		private void resize(int boardWidth, int boardHeight){
+			this.boardWidth = boardWidth;
+			this.boardHeight = boardHeight;
+			int newWidth = (boardWidth + factor - 1) / factor;
+			int newHeight = (boardHeight + factor - 1) / factor;
+			if(occupied == null || newWidth != width || newHeight != height){	// Balancing changes the width, reuse the arrays when it didn't
+				width = newWidth;
+				height = newHeight;
+				occupied = new int[width][height];
+				healthSum = new int[width][height];
+				blocks = new byte[width][height];
+			}else{
+				for(int x = 0; x < width; x++){
+					Arrays.fill(occupied[x], 0);
+					Arrays.fill(healthSum[x], 0);
+				}
+			}
+		}
+		
+		/** Sums the board up into blocks
+		 * @param board The board, indexed [x][y]
+		 */
+		void accumulate(byte[][] board){
+			resize(board.length, board[0].length);
+			for(int x = 0; x < boardWidth; x++){
+				byte[] column = board[x];
+				int[] blockOccupied = occupied[x / factor];
+				int[] blockHealth = healthSum[x / factor];
+				for(int y = 0; y < boardHeight; y++){
+					byte cell = column[y];
+					if(cell != CAFragment.NO_BACTERIA){
+						blockOccupied[y / factor]++;
+						blockHealth[y / factor] += cell - CAFragment.NO_BACTERIA;
+					}
+				}
+			}
+		}
+		
+		/** Sums a finer level's blocks up into this level's blocks, the factor has to be a multiple of the finer factor.
+		 * @param finer The finer level, already accumulated this frame
+		 */
+		void accumulate(DetailLevel finer){
+			resize(finer.boardWidth, finer.boardHeight);
+			int ratio = factor / finer.factor;
+			for(int x = 0; x < finer.width; x++){
+				int[] blockOccupied = occupied[x / ratio];
+				int[] blockHealth = healthSum[x / ratio];
+				for(int y = 0; y < finer.height; y++){
+					blockOccupied[y / ratio] += finer.occupied[x][y];
+					blockHealth[y / ratio] += finer.healthSum[x][y];
+				}
+			}
 		}
 		
+		/**
+		 * @return The downsampled board, cell values like a normal board so the same palette works.
+		 */
+		byte[][] getBlocks(){
+			for(int x = 0; x < width; x++){
+				int cellsWide = Math.min(factor, boardWidth - x * factor);
+				for(int y = 0; y < height; y++){
+					int cells = cellsWide * Math.min(factor, boardHeight - y * factor);
+					int count = occupied[x][y];
+					int value;
+					if(aggregation == AGGREGATE_MAJORITY){
+						value = count * 2 > cells ? healthSum[x][y] / count : 0;
+					}else{
+						value = healthSum[x][y] / cells;
+					}
+					blocks[x][y] = (byte) (value + CAFragment.NO_BACTERIA);
+				}
+			}
+			return blocks;
+		}
 	}
 	
 	public static void combineAllImages( int width, int height, int nodes) {
+		combineAllImages(width, height, nodes, null, DEFAULT_BAND_ROWS);
+	}
+	
+	/** Stitches the frames of every node together, the combined frames either go into output/combined or straight into a video.
+	 * @param width How wide each node started as
+	 * @param height How tall the simulation is
+	 * @param nodes How many nodes rendered frames
+	 * @param video Where to stream the combined frames, null to write them as images instead
+	 * @param bandRows How many rows of the mosaic to hold in memory at once
+	 */
+	public static void combineAllImages( int width, int height, int nodes, Y4MWriter video, int bandRows) {
 		File parentDirectory = null;
 		File outputDirectory = null;
 		try {
@@ -113,54 +344,106 @@ public class CARenderer {
 		System.out.println("Output Cleaned.");
 		System.out.println("Combining...");
 		int totalWidth = (width * nodes) - (nodes - 1);
-	    BufferedImage output = new BufferedImage(totalWidth, height, BufferedImage.TYPE_INT_ARGB);
-	    Graphics g = output.getGraphics();
-	    g.setColor(Color.GREEN);
-	    BufferedImage input = null;
-	    int frame = 0;
-	    outer:
+		int[] band = new int[totalWidth * bandRows];
+		int borderColor = Color.GREEN.getRGB() & 0xFFFFFF;
+		PngWriter settings = new PngWriter(DEFAULT_COMPRESSION_LEVEL, PngWriter.FILTER_SUB, Runtime.getRuntime().availableProcessors());
+		PngRowReader[] inputs = new PngRowReader[nodes];
+		int frame = 0;
+		outer:
 		while(true) {
-			int currentWidth = 0;
-			for(int node = 0; node < nodes; node++) {
-				try {
-					input = ImageIO.read(new File(String.format(parentDirectory + File.separator +"node%d"+ File.separator +"%d.png", node, frame)));
-				} catch (IIOException e) {
-					break outer;
-				}catch (IOException e) {e.printStackTrace();}
-				
-				g.drawImage(input, currentWidth, 0, null);
-			    
-				if(currentWidth != 0) {
-					g.drawLine(currentWidth, 0, currentWidth, height - 1);
+			try {
+				for(int node = 0; node < nodes; node++) {
+					File inputFile = new File(String.format(parentDirectory + File.separator +"node%d"+ File.separator +"%d.png", node, frame));
+					if(!inputFile.exists()) {
+						break outer;
+					}
+					inputs[node] = new PngRowReader(inputFile);
 				}
 				
-				currentWidth += input.getWidth() - 1;
-			}
-			
-		    try {
-		    	File outputfile = new File(String.format(outputDirectory + File.separator +"%d.png", frame));
-				ImageIO.write(output, "png", outputfile);
+				try (StreamingPngWriter image = video == null ? new StreamingPngWriter(new File(String.format(outputDirectory + File.separator +"%d.png", frame)), totalWidth, height, settings) : null) {
+					if(video != null) {
+						video.startFrame();
+					}
+					for(int bandStart = 0; bandStart < height; bandStart += bandRows) {	// Only one band of the mosaic is ever in memory
+						int rows = Math.min(bandRows, height - bandStart);
+						Arrays.fill(band, 0);
+						int currentWidth = 0;
+						for(int node = 0; node < nodes; node++) {
+							PngRowReader input = inputs[node];
+							int visible = Math.min(input.getWidth(), totalWidth - currentWidth);
+							for(int row = 0; row < rows && bandStart + row < input.getHeight(); row++) {
+								input.readRow(band, row * totalWidth + currentWidth, visible);
+								if(currentWidth != 0) {
+									band[row * totalWidth + currentWidth] = borderColor;
+								}
+							}
+							currentWidth += input.getWidth() - 1;
+							if(currentWidth >= totalWidth) {
+								break;
+							}
+						}
+						if(video != null) {
+							for(int row = 0; row < rows; row++) {
+								video.writeRow(bandStart + row, band, row * totalWidth);
+							}
+						}else {
+							image.writeRows(band, rows);
+						}
+					}
+					if(video != null) {
+						video.endFrame();
+					}
+				}
 			} catch (IOException e) {
 				e.printStackTrace();
+			} finally {
+				for(int node = 0; node < nodes; node++) {
+					if(inputs[node] != null) {
+						try { inputs[node].close(); } catch (IOException e) { e.printStackTrace(); }
+						inputs[node] = null;
+					}
+				}
 			}
-		    frame++;
-	    }
-		g.dispose();
+			frame++;
+		}
 		System.out.println("Combined.");
 	}
 	
-	public static void renderVideo() throws IOException{
-		String strCmdText = String.format("C:\\\\cmd\\\\ffmpeg\\\\bin\\\\ffmpeg.exe -r 20 -f image2 -i \"%s\\output\\%%d.png\" -vcodec libx264 -crf 1 -pix_fmt yuv420p \"%s\\output.mp4\" -y", System.getProperty("user.dir"), System.getProperty("user.dir"));
-		System.out.println(strCmdText);
-		Runtime.getRuntime().exec(strCmdText);
+	/** Combines the frames of every node straight into a y4m video, no combined images are written.
+	 * @param width How wide each node started as
+	 * @param height How tall the simulation is
+	 * @param nodes How many nodes rendered frames
+	 * @param fps Frame rate of the video
+	 * @param encoderCommand Encoder to pipe the y4m stream into, or empty to write output/output.y4m
+	 * @throws IOException
+	 */
+	public static void renderVideo(int width, int height, int nodes, int fps, List<String> encoderCommand) throws IOException{
+		int totalWidth = (width * nodes) - (nodes - 1);
+		Y4MWriter video;
+		if(encoderCommand.isEmpty()) {
+			File videoFile;
+			try {
+				videoFile = new File(
+						File.separator + 
+						FilenameUtils.getPath(CARenderer.class.getProtectionDomain().getCodeSource().getLocation().toURI().getPath()) + 
+						File.separator + 
+						"output" + 
+						File.separator + 
+						"output.y4m");
+			} catch (URISyntaxException e) {
+				throw new IOException(e);
+			}
+			System.out.println("Writing " + videoFile.getAbsolutePath());
+			video = Y4MWriter.toFile(videoFile, totalWidth, height, fps, Y4MWriter.CHROMA_420);
+		}else {
+			System.out.println("Piping into " + String.join(" ", encoderCommand));
+			video = Y4MWriter.toEncoder(encoderCommand, totalWidth, height, fps, Y4MWriter.CHROMA_420);
+		}
+		combineAllImages(width, height, nodes, video, DEFAULT_BAND_ROWS);
+		video.close();
+		System.out.println("Video done, " + video.getFramesWritten() + " frames.");
 	}
 	
-//	public void renderVideo() throws IOException{
-//		String strCmdText = String.format("C:\\cmd\\ffmpeg\\bin\\ffmpeg.exe -r 20 -f image2 -i \"%s\\output\\%%d.png\" -vcodec libx264 -crf 1 -pix_fmt yuv420p \"%s\\output.mp4\" -y", System.getProperty("user.dir"), System.getProperty("user.dir"));
-//		System.out.println(strCmdText);
-//		Runtime.getRuntime().exec(strCmdText);
-//	}
-	
 	private int getIntRGB(int r, int g, int b){
 		int rgb = r;
 		rgb = (rgb << 8) + g;
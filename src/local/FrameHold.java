@@ -0,0 +1,39 @@
+package local;
+
+/**
+ * Lets the master agree with every node on a frame none of them has started yet, see ServerFragment.OPC_HOLD.
+ * A hold answers with the frame the node is on and keeps the simulation from starting a later one until the master lets it go,
+ * so the frame after the furthest answer can't have been started by anyone when the master names it.
+ * Nothing waits on the simulation to answer, so a node a frame behind its neighbors is never stuck behind one that holds.
+ */
+public class FrameHold {
+	private int frame = 0;	// Frame the simulation is on, or starts with
+	private int heldFrame = -1;	// Last frame the simulation may start while holding
+	private boolean isHolding = false;
+
+	/** Called by the simulation before every frame, blocks while holding if the frame is past the held one.
+	 * @param frame Frame about to start
+	 */
+	public synchronized void startFrame(int frame) {
+		while(isHolding && frame > heldFrame) {
+			try { wait(); } catch (InterruptedException e) { }
+		}
+		this.frame = frame;
+	}
+
+	/** Holds the simulation after the frame it is on.
+	 * @return The frame it is on, it may still finish it
+	 */
+	public synchronized int hold() {
+		isHolding = true;
+		heldFrame = frame;
+		return frame;
+	}
+
+	/** Lets the simulation carry on, whatever the master decided has to be set before this.
+	 */
+	public synchronized void release() {
+		isHolding = false;
+		notifyAll();
+	}
+}
@@ -1,5 +1,6 @@
 package local;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
@@ -9,11 +10,25 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
 
 import server.ServerFragment;
+import transferManagers.BalancingSignal;
 import transferManagers.BalancingTransferManager;
+import transferManagers.HaloRouter;
+import transferManagers.LinkProbe;
 import transferManagers.NonBalancingTransferManager;
+import transferManagers.Tracer;
 import transferManagers.TransferManager;
+import workload.Workload;
 
 /**
  * The node side object that sets up and handles some basic network traffic.
@@ -32,20 +47,49 @@ public class LocalFragment {
 	 * @throws IOException
 	 */
 	public LocalFragment(String masterIP) throws IOException{
+		this(masterIP, ServerFragment.PORT, 1, null);
+	}
+	
+	int fullResolutionCadence;
+	String detailLevels;
+	/** Constructs and starts the local simulation, with downsampled previews of the frames
+	 * 
+	 * @param masterIP IP as a string of the master node
+	 * @param masterPort Port the master accepts nodes on
+	 * @param fullResolutionCadence Write the full resolution frame every so many frames
+	 * @param detailLevels Downsampled levels to write, see CARenderer.addDetailLevels, or null for none
+	 * @throws IOException
+	 */
+	public LocalFragment(String masterIP, int masterPort, int fullResolutionCadence, String detailLevels) throws IOException{
+		this.fullResolutionCadence = fullResolutionCadence;
+		this.detailLevels = detailLevels;
 		System.out.printf("Connecting to master at %s...", masterIP);
-		masterCommunication = new MasterCommunication(this, masterIP);
+		masterCommunication = new MasterCommunication(this, masterIP, masterPort);
 		masterCommunication.start();
 		System.out.println("Connected to master.");
 	}
 	
 	int simulationFrameSteps;
-	int framesToSimulate;
+	volatile int framesToSimulate;	// Can come down while running, see ServerFragment.OPC_STOP
+	boolean isRendering = true;
+	boolean hasNeighbors = true;
+	BalancingSignal balancingSignal;
+	BoardHost boardHost;	// The strips or the tile, null for one board in a chain
+	StripHost stripHost;
+	TileHost tileHost;
+	HaloRouter haloRouter;
+	Tracer tracer = new Tracer();	// Off until the master asks for a trace
+	Allreduce allreduce = new Allreduce();	// The whole cluster's values of the latest frame
+	PopulationStats nodeStats = new PopulationStats();	// Strips and tiles add up into this
+	volatile int costBinColumns = 0;	// Columns in one bin of the column costs sent every frame, 0 until the master asks for them
+	String workload;
 	/**	Accepts the metadata packet from the master and constructs a transfer manager
 	 * @param receiveData The metadata packet
 	 * @throws URISyntaxException 
 	 */
 	private void initialize(byte[] receiveData) throws URISyntaxException{
 		synchronized (masterCommunication) {
+			closeLinkProbe();
 			
 			int width = getInt(receiveData, 0);			
 			int height = getInt(receiveData, 4*1);
@@ -59,28 +103,59 @@ public class LocalFragment {
 			framesToSimulate = getInt(receiveData, 4*8);
 			boolean hasLeft = receiveData[36] == 1;
 			boolean hasRight = receiveData[37] == 1;
+			hasNeighbors = hasLeft || hasRight;
 			boolean isBalancing = receiveData[38] == 1;
+			nodeNumber = getInt(receiveData, 39);
+			int leftPort = getInt(receiveData, 39 + 4);
+			int rightPort = getInt(receiveData, 39 + 4*2);
+			isRendering = receiveData[39 + 4*3] == 1;
+			balancingSignal = new BalancingSignal(getInt(receiveData, 39 + 4*3 + 1));
+			int stripsPerNode = getInt(receiveData, 39 + 4*4 + 1);
+			int gridRows = getInt(receiveData, 39 + 4*5 + 1);
+			int workloadLength = getInt(receiveData, ServerFragment.PACKET_SIZE);
+			workload = new String(receiveData, ServerFragment.PACKET_SIZE + 4, workloadLength, StandardCharsets.UTF_8);
+			
+			if(stripsPerNode > 0 || gridRows > 0) {	// The strips or tile and the neighbors come with assignStrips or assignTile
+				if(haloRouter == null) {
+					try {
+						haloRouter = new HaloRouter(leftPort);
+					} catch (IOException e) { e.printStackTrace(); }
+					if(stripsPerNode > 0) {
+						stripHost = new StripHost(height, simplexSeed, balancingSignal.getSignal(), haloRouter);
+						boardHost = stripHost;
+					}else {
+						tileHost = new TileHost(simplexSeed, balancingSignal.getSignal(), haloRouter);
+						boardHost = tileHost;
+					}
+				}
+				isRendering = false;
+				isInitialized = true;
+				return;
+			}
 			
-			nodeNumber = boardXPosition / width;
 			if(isBalancing) {
 				transferManager = new BalancingTransferManager();
 			}else {
 				transferManager = new NonBalancingTransferManager();
 			}
+			transferManager.setPorts(leftPort, rightPort);
+			transferManager.setTracer(tracer);
 			
-			if(hasLeft) {
-				try {
-					transferManager.connectLeft(true, height);
-				} catch (IOException e) { e.printStackTrace(); }
-			}
-			if(hasRight) {
-				try {
-					transferManager.connectRight(rightNode, true, height);
-				} catch (IOException e) { e.printStackTrace(); }
-			}
+			try {
+				transferManager.connect(rightNode, hasLeft, hasRight, height);
+			} catch (IOException e) { e.printStackTrace(); }
 			
 			caFragment = new CAFragment(width, height, boardXPosition, simplexSeed);
-			caRenderer = new CARenderer(simplexSeed, "node" + nodeNumber);
+			if(!workload.isEmpty()) {
+				caFragment.setWorkload(Workload.parse(workload, nodeNumber));
+			}
+			if(isRendering && caRenderer == null) {	// A node that moves in the chain keeps writing where it started
+				caRenderer = new CARenderer(simplexSeed, "node" + nodeNumber);
+				caRenderer.setFullResolutionCadence(fullResolutionCadence);
+				if(detailLevels != null) {
+					caRenderer.addDetailLevels(detailLevels);
+				}
+			}
 			if(startX >= 0) {
 				caFragment.setCell(startX, startY, CAFragment.MAX_BACTERIA);
 			}
@@ -88,52 +163,469 @@ public class LocalFragment {
 		}
 		
 	}
+	static final int CALIBRATION_SIZE = 64;	// Width and height of the calibration board
+	static final int CALIBRATION_RESET_STEPS = 10;	// Steps between putting the calibration board back
+	static final long CALIBRATION_WARMUP_NANOS = 100000000L;
+	static final long CALIBRATION_NANOS = 200000000L;
+	/** Runs a short standard benchmark and tells the master how fast this node is, so it can size the boards to match.
+	 * The board is full of bacteria so the workload is part of what gets measured.
+	 * @param receiveData The calibrate packet, node number and workload spec
+	 */
+	private void calibrate(byte[] receiveData) {
+		int calibrationNode = getInt(receiveData, 0);
+		int workloadLength = getInt(receiveData, 4);
+		String workload = new String(receiveData, 8, workloadLength, StandardCharsets.UTF_8);
+		CAFragment fragment = new CAFragment(CALIBRATION_SIZE, CALIBRATION_SIZE, 0, 1);
+		if(!workload.isEmpty()) {
+			fragment.setWorkload(Workload.parse(workload, calibrationNode));
+		}
+		
+		long cells = 0;
+		long nanos = 0;
+		long warmupEnd = System.nanoTime() + CALIBRATION_WARMUP_NANOS;
+		boolean warm = false;
+		while(nanos < CALIBRATION_NANOS) {
+			for(int x = 1; x < CALIBRATION_SIZE - 1; x++) {	// Below the split size so it stays full
+				for(int y = 1; y < CALIBRATION_SIZE - 1; y++) {
+					fragment.setCell(x, y, (byte) (CAFragment.SPLIT_SIZE - 20));
+				}
+			}
+			long startTime = System.nanoTime();
+			for(int i = 0; i < CALIBRATION_RESET_STEPS; i++) {
+				fragment.step();
+				cells += fragment.getStepCells();
+			}
+			if(warm) {
+				nanos += System.nanoTime() - startTime;
+			}else {
+				cells = 0;
+				warm = System.nanoTime() > warmupEnd;
+			}
+		}
+		long cellsPerSecond = (long) (cells / (nanos / 1e9));
+		System.out.println("Calibrated at " + cellsPerSecond + " cells per second");
+		masterCommunication.sendPacket(ServerFragment.OPC_CALIBRATION, ByteBuffer.allocate(8).putLong(cellsPerSecond).array());
+	}
+	
+	LinkProbe linkProbe;
+	/** Starts listening for link probes from the other nodes and tells the master the port.
+	 */
+	private void probeListen() {
+		try {
+			if(linkProbe == null) {
+				linkProbe = new LinkProbe();
+			}
+			masterCommunication.sendPacket(ServerFragment.OPC_PROBEPORT, Ints.toByteArray(linkProbe.getPort()));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/** Measures the links to the nodes the master asked about, one at a time so they don't share the network, and reports them.
+	 * A link that can't be measured is reported with no bandwidth, so the master keeps it away from the chain.
+	 * @param receiveData The probe packet, count then address and port of each node
+	 */
+	private void probe(byte[] receiveData) {
+		int count = getInt(receiveData, 0);
+		ByteBuffer result = ByteBuffer.allocate(4 + count * 16);
+		result.putInt(count);
+		for(int i = 0; i < count; i++) {
+			byte[] address = new byte[4];
+			System.arraycopy(receiveData, 4 + i * 8, address, 0, 4);
+			long[] link;
+			try {
+				link = LinkProbe.measure(address, getInt(receiveData, 4 + i * 8 + 4));
+			} catch (IOException e) {
+				e.printStackTrace();
+				link = new long[] {Long.MAX_VALUE / 4, 0};
+			}
+			result.putLong(link[0]).putLong(link[1]);
+		}
+		masterCommunication.sendPacket(ServerFragment.OPC_PROBERESULT, result.array());
+	}
+	
+	private void closeLinkProbe() {
+		if(linkProbe != null) {
+			try {
+				linkProbe.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			linkProbe = null;
+		}
+	}
+	
+	volatile int pauseFrame = -1;
+	FrameHold frameHold = new FrameHold();	// Where the master agrees with every node on a frame to pause after
+	int[] pauseStrips = new int[0];	// Strips to upload at the pause, when running strips
+	boolean isAssigned = false;
+	boolean isDrained = false;
+	boolean isSimulating = false;
+	/** Accepts a new place in the chain and a board from the master, after a pause or as a spare joining the cluster.
+	 * Reconnects to the new neighbors, then either lets the paused simulation carry on or starts it.
+	 * @param receiveData The assign packet, a metadata packet followed by the frame to resume after, step count and board
+	 * @throws URISyntaxException
+	 */
+	private void assign(byte[] receiveData) throws URISyntaxException {
+		synchronized (masterCommunication) {
+			initialize(receiveData);
+			int offset = ServerFragment.PACKET_SIZE + 4 + getInt(receiveData, ServerFragment.PACKET_SIZE);
+			int pausedFrame = getInt(receiveData, offset);
+			int stepCount = getInt(receiveData, offset + 4);
+			int width = getInt(receiveData, 0);
+			int height = getInt(receiveData, 4);
+			byte[][] board = new byte[width][height];
+			for(int x = 0; x < width; x++) {
+				System.arraycopy(receiveData, offset + 8 + x * height, board[x], 0, height);
+			}
+			caFragment.updateBoard(board, 0);
+			caFragment.setStepCount(stepCount);
+			System.out.println("Now node " + nodeNumber + ", " + width + " wide at " + caFragment.getXOffset());
+			
+			pauseFrame = -1;
+			isAssigned = true;
+			masterCommunication.notifyAll();
+			if(!isSimulating) {
+				startSimulation(pausedFrame + 1);
+			}
+		}
+	}
+	
+	/** Accepts a new strip table from the master, with the boards of any strips this node gains, after a pause or as a spare joining the cluster.
+	 * Strips this node gave up were already uploaded and removed by the pause.
+	 * @param receiveData The strips packet, see ServerFragment.assignStrips
+	 */
+	private void assignStrips(byte[] receiveData) {
+		synchronized (masterCommunication) {
+			ByteBuffer packet = ByteBuffer.wrap(receiveData);
+			nodeNumber = packet.getInt();
+			int pausedFrame = packet.getInt();
+			int stepCount = packet.getInt();
+			byte[][] addresses = new byte[packet.getInt()][4];
+			int[] ports = new int[addresses.length];
+			for(int i = 0; i < addresses.length; i++) {
+				packet.get(addresses[i]);
+				ports[i] = packet.getInt();
+			}
+			int[] stripOwner = new int[packet.getInt()];
+			int[] stripX = new int[stripOwner.length];
+			int[] stripWidth = new int[stripOwner.length];
+			for(int i = 0; i < stripOwner.length; i++) {
+				stripOwner[i] = packet.getInt();
+				stripX[i] = packet.getInt();
+				stripWidth[i] = packet.getInt();
+			}
+			haloRouter.setDirectory(addresses, ports);
+			stripHost.setTable(nodeNumber, stripOwner, stripX, stripWidth);
+			int boards = packet.getInt();
+			int height = stripHost.getHeight();
+			for(int i = 0; i < boards; i++) {
+				int strip = packet.getInt();
+				byte[][] board = new byte[stripWidth[strip]][height];
+				for(byte[] column : board) {
+					packet.get(column);
+				}
+				stripHost.addStrip(strip, board, stepCount);
+			}
+			if(!workload.isEmpty()) {	// Parsed again, the slowdown goes by node number
+				stripHost.setWorkload(Workload.parse(workload, nodeNumber));
+			}
+			System.out.println("Now node " + nodeNumber + " with strips " + java.util.Arrays.toString(stripHost.getStrips()));
+			
+			pauseFrame = -1;
+			isAssigned = true;
+			masterCommunication.notifyAll();
+			if(pausedFrame < 0) {	// The first assignment, the master starts everyone at once
+				connectNeighbors();
+			}else if(!isSimulating) {
+				startSimulation(pausedFrame + 1);
+			}
+		}
+	}
+	
+	/** Accepts a tile of the grid from the master, at the start or after the bounds moved.
+	 * @param receiveData The tile packet, see ServerFragment.assignTile
+	 */
+	private void assignTile(byte[] receiveData) {
+		synchronized (masterCommunication) {
+			ByteBuffer packet = ByteBuffer.wrap(receiveData);
+			nodeNumber = packet.getInt();
+			int pausedFrame = packet.getInt();
+			int stepCount = packet.getInt();
+			byte[][] addresses = new byte[packet.getInt()][4];
+			int[] ports = new int[addresses.length];
+			for(int i = 0; i < addresses.length; i++) {
+				packet.get(addresses[i]);
+				ports[i] = packet.getInt();
+			}
+			int[] columnBounds = new int[packet.getInt()];
+			for(int i = 0; i < columnBounds.length; i++) {
+				columnBounds[i] = packet.getInt();
+			}
+			int[] rowBounds = new int[packet.getInt()];
+			for(int i = 0; i < rowBounds.length; i++) {
+				rowBounds[i] = packet.getInt();
+			}
+			int column = nodeNumber % (columnBounds.length - 1);
+			int row = nodeNumber / (columnBounds.length - 1);
+			byte[][] board = new byte[TileHost.getTileSize(columnBounds, column)][TileHost.getTileSize(rowBounds, row)];
+			for(byte[] boardColumn : board) {
+				packet.get(boardColumn);
+			}
+			haloRouter.setDirectory(addresses, ports);
+			tileHost.setTile(nodeNumber, columnBounds, rowBounds, board, stepCount);
+			if(!workload.isEmpty()) {
+				tileHost.setWorkload(Workload.parse(workload, nodeNumber));
+			}
+			System.out.println("Now node " + nodeNumber + ", tile " + board.length + " by " + board[0].length + " at " + TileHost.getTileStart(columnBounds, column) + ", " + TileHost.getTileStart(rowBounds, row));
+			
+			pauseFrame = -1;
+			isAssigned = true;
+			masterCommunication.notifyAll();
+			if(pausedFrame < 0) {	// The first assignment, the master starts everyone at once
+				connectNeighbors();
+			}else if(!isSimulating) {
+				startSimulation(pausedFrame + 1);
+			}
+		}
+	}
+	
+	/** Opens the connections to every node this one sends borders to and tells the master, it starts the simulation once every node has.
+	 */
+	private void connectNeighbors() {
+		try {
+			haloRouter.connect(boardHost.getNeighbors());
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		masterCommunication.sendPacket(ServerFragment.OPC_READY, null);
+	}
+	
+	/**
+	 * The master took this node out of the chain, stops the paused simulation.
+	 */
+	private void drain() {
+		synchronized (masterCommunication) {
+			isDrained = true;
+			masterCommunication.notifyAll();
+		}
+	}
+	
+	/** Uploads the board to the master and waits until it says where to go next.
+	 * @param frame The frame just finished
+	 * @return False if the node was drained and should stop
+	 * @throws IOException
+	 */
+	private boolean pause(int frame) throws IOException {
+		isAssigned = false;
+		if(stripHost != null) {	// Only the strips that move go up, the router stays connected
+			for(int strip : pauseStrips) {
+				CAFragment fragment = stripHost.removeStrip(strip);
+				masterCommunication.sendPacket(ServerFragment.OPC_STRIPBOARD, Bytes.concat(Ints.toByteArray(strip), getBoardPacket(fragment, frame)));
+			}
+		}else if(tileHost != null) {	// The whole tile goes up, the bounds are about to move
+			masterCommunication.sendPacket(ServerFragment.OPC_BOARD, getBoardPacket(tileHost.getFragment(), frame));
+		}else {
+			transferManager.close();	// The neighbors are about to change
+			masterCommunication.sendPacket(ServerFragment.OPC_BOARD, getBoardPacket(caFragment, frame));
+		}
+		System.out.println("Paused after frame " + frame);
+		while(!isAssigned && !isDrained) {
+			try { masterCommunication.wait(); } catch (InterruptedException e) { }
+		}
+		return !isDrained;
+	}
+	
+	/** Packs a board up for the master, see ServerFragment.OPC_BOARD.
+	 * @param fragment Whose board
+	 * @param frame The frame just finished
+	 * @return The packet
+	 */
+	private static byte[] getBoardPacket(CAFragment fragment, int frame) {
+		byte[][] board = fragment.getBoard()[CAFragment.MUTABLE_BOARD];
+		ByteBuffer packet = ByteBuffer.allocate(ServerFragment.BOARD_HEADER_SIZE + board.length * board[0].length);
+		packet.putInt(frame).putInt(fragment.getStepCount()).putInt(fragment.getXOffset()).putInt(board.length).putInt(board[0].length);
+		for(byte[] column : board) {
+			packet.put(column);
+		}
+		return packet.array();
+	}
+	
+	/**
+	 * @return What the last step left on this node's boards
+	 */
+	private PopulationStats getStepStats() {
+		if(boardHost == null) {
+			return caFragment.getStepStats();
+		}
+		nodeStats.clear();
+		for(CAFragment fragment : boardHost.getFragments()) {
+			nodeStats.add(fragment.getStepStats());
+		}
+		return nodeStats;
+	}
+	
+	/** Packs up what every column cost since the last frame for the master, see ServerFragment.OPC_COLUMNCOSTS, and starts counting over.
+	 * @param frame The frame just finished
+	 * @return The packet
+	 */
+	private byte[] getColumnCosts(int frame) {
+		Collection<CAFragment> fragments = boardHost != null ? boardHost.getFragments() : Collections.singletonList(caFragment);
+		int firstBin = Integer.MAX_VALUE;
+		int lastBin = 0;
+		for(CAFragment fragment : fragments) {
+			if(fragment.getColumnWorkEnd() > fragment.getColumnWorkStart()) {
+				firstBin = Math.min(firstBin, fragment.getColumnWorkStart() / costBinColumns);
+				lastBin = Math.max(lastBin, (fragment.getColumnWorkEnd() - 1) / costBinColumns);
+			}
+		}
+		double[] bins = new double[Math.max(0, lastBin - firstBin + 1)];
+		ByteBuffer packet = ByteBuffer.allocate(5 * 4 + bins.length * 4 + fragments.size() * 2 * 4);
+		packet.putInt(frame).putInt(costBinColumns).putInt(firstBin).putInt(bins.length).putInt(fragments.size());
+		for(CAFragment fragment : fragments) {
+			fragment.takeColumnWork(bins, firstBin, costBinColumns);
+			int width = fragment.getBoard()[CAFragment.MUTABLE_BOARD].length;
+			packet.putInt(fragment.getXOffset() + 1).putInt(fragment.getXOffset() + width - 1);
+		}
+		for(double work : bins) {
+			packet.putFloat((float) work);
+		}
+		return packet.array();
+	}
+	
+	/** Starts the simulation in its own thread, so the master can still be heard while it runs.
+	 * @param firstFrame Frame to start with, 0 unless joining a running cluster
+	 */
+	private void startSimulation(int firstFrame) {
+		isSimulating = true;
+		new Thread(() -> {
+			try {
+				simulate(firstFrame);
+			} catch (IOException e) { e.printStackTrace(); }
+		}, "Simulation").start();
+	}
+	
 	private long totalNetTime = 0;
 	private long totalSimTime = 0;
-	/** Starts the simulation, must initialize before starting.
+	private long totalBytesExchanged = 0;	// With neighbors since the node started, sent to the master with every frame mark
+	private long totalColumnsMoved = 0;
+	/** Runs the simulation, must initialize before starting.
+	 * @param firstFrame Frame to start with
 	 * @throws IOException
 	 */
-	private void startSimulation() throws IOException{
+	private void simulate(int firstFrame) throws IOException{
 		synchronized (masterCommunication) {
 			if(!isInitialized) {
 				throw new IllegalStateException("Tried to start simulation without initializing.");
 			}
-			for(int currentFrame = 0; currentFrame < framesToSimulate; currentFrame++) {
+			for(int currentFrame = firstFrame; currentFrame < framesToSimulate; currentFrame++) {
+				frameHold.startFrame(currentFrame);
 				long frameNetTime = 0;
 				long frameSimTime = 0;
+				ByteBuffer population = ByteBuffer.allocate(2 * 4 + simulationFrameSteps * PopulationStats.SIZE).putInt(currentFrame).putInt(simulationFrameSteps);
+				long frameChanged = 0;
+				long frameLive = 0;
 				for(int currentStep = 0; currentStep < simulationFrameSteps; currentStep++) {
 					long netTime = 0;
 					long simTime = 0;
 					
 					long startTime = System.nanoTime();
-					caFragment.step();
-					simTime = System.nanoTime() - startTime;
+					if(boardHost != null) {
+						simTime = boardHost.step();
+					}else {
+						caFragment.step();
+						simTime = System.nanoTime() - startTime;
+					}
+					tracer.record(Tracer.SPAN_STEP, startTime);
+					frameSimTime += simTime;
+					PopulationStats stepStats = getStepStats();
+					stepStats.write(population);
+					frameChanged += stepStats.changed;
+					frameLive = stepStats.live;
 					
 					if(currentFrame == framesToSimulate - 1 && currentStep == simulationFrameSteps - 1) {
 						break;
 					}
+					if(boardHost != null) {
+						startTime = System.nanoTime();
+						boardHost.exchange();
+						frameNetTime += System.nanoTime() - startTime;
+						tracer.record(Tracer.SPAN_EXCHANGE, startTime);
+						continue;
+					}
+					if(!hasNeighbors) {	// Alone in the cluster, nothing to exchange
+						continue;
+					}
 					
-					startTime = System.currentTimeMillis();
-					byte[][] newBoard = transferManager.doneNow(caFragment.getBoard()[CAFragment.MUTABLE_BOARD], simTime);
-					netTime = System.currentTimeMillis() - startTime;
+					startTime = System.nanoTime();
+					long cost = balancingSignal.getCost(simTime, caFragment.getStepWork());
+					byte[][] newBoard = transferManager.doneNow(caFragment.getBoard()[CAFragment.MUTABLE_BOARD], cost);
+					netTime = System.nanoTime() - startTime;
 					
 					frameNetTime += netTime;
-					frameSimTime += simTime / 1000000;
 					
 					int shiftLeft = transferManager.getShiftAmount();
 					caFragment.updateBoard(newBoard, shiftLeft);
 				}
-				totalNetTime += frameNetTime;
-				totalSimTime += frameSimTime;
-				masterCommunication.sendPacket(ServerFragment.OPC_FRAMEMARK, new byte[] {1});
-				caRenderer.renderCurrentFrame(caFragment.getBoard(), caFragment.getXOffset());
-				System.out.println(String.format("%d of %d:%d:%d", currentFrame, framesToSimulate, frameNetTime, frameSimTime));
+				totalNetTime += frameNetTime / 1000000;
+				totalSimTime += frameSimTime / 1000000;
+				long markTime = System.nanoTime();
+				int width;
+				long occupiedCells;
+				if(boardHost != null) {
+					width = boardHost.getWidth();
+					occupiedCells = boardHost.getOccupiedCells();
+					totalBytesExchanged += haloRouter.takeBytesExchanged();
+					masterCommunication.sendPacket(ServerFragment.OPC_STRIPCOSTS, boardHost.getFrameCosts(currentFrame));
+				}else {
+					width = caFragment.getBoard()[CAFragment.MUTABLE_BOARD].length;
+					occupiedCells = caFragment.getStepBacteria();
+					if(transferManager != null) {
+						totalBytesExchanged += transferManager.takeBytesExchanged();
+						totalColumnsMoved += transferManager.takeColumnsMoved();
+						masterCommunication.sendPacket(ServerFragment.OPC_LINKSTATS, transferManager.takeLinkStats(currentFrame));
+					}
+				}
+				masterCommunication.sendPacket(ServerFragment.OPC_POPULATION, population.array());
+				masterCommunication.sendPacket(ServerFragment.OPC_REDUCE, Allreduce.getPacket(currentFrame, Allreduce.FRAME_OPS, new double[] {frameLive, frameChanged, frameSimTime, frameSimTime}));
+				if(costBinColumns > 0) {
+					masterCommunication.sendPacket(ServerFragment.OPC_COLUMNCOSTS, getColumnCosts(currentFrame));
+				}
+				masterCommunication.sendPacket(ServerFragment.OPC_FRAMEMARK, ByteBuffer.allocate(ServerFragment.FRAMEMARK_SIZE)
+						.putInt(currentFrame)
+						.putInt(width)
+						.putLong(frameSimTime)
+						.putLong(frameNetTime)
+						.putLong(occupiedCells)
+						.putLong(totalBytesExchanged)
+						.putLong(totalColumnsMoved)
+						.array());
+				tracer.record(Tracer.SPAN_FRAMEMARK, markTime);
+				if(isRendering) {
+					long renderTime = System.nanoTime();
+					caRenderer.renderCurrentFrame(caFragment.getBoard(), caFragment.getXOffset());
+					tracer.record(Tracer.SPAN_RENDER, renderTime);
+				}
+				byte[] spans = tracer.takeSpans();
+				if(spans != null) {
+					masterCommunication.sendPacket(ServerFragment.OPC_SPANS, spans);
+				}
+				System.out.println(String.format("%d of %d:%d:%d", currentFrame, framesToSimulate, frameNetTime / 1000000, frameSimTime / 1000000));
+				if(currentFrame == pauseFrame && !pause(currentFrame)) {
+					System.out.println("Drained, leaving the cluster");
+					break;
+				}
 			}
 			System.out.println(String.format("Done:%d:%d", totalNetTime, totalSimTime));
 			
 			masterCommunication.sendPacket(ServerFragment.OPC_DONE, new byte[] {1});
 			masterCommunication.close();
-			transferManager.close();
+			if(haloRouter != null) {
+				haloRouter.close();
+			}else if(!isDrained) {
+				transferManager.close();
+			}
 		}
 	}
 	
@@ -150,42 +642,39 @@ public class LocalFragment {
 	 * This class handles the communication between the local fragment and the master in its own thread. 
 	 */
 	public static class MasterCommunication extends Thread{
+		public static final long CLOSE_DRAIN_MILLIS = 5000;	// Longest close waits for queued packets to go out
 		
 		private byte[] messageBuffer;
 		DataInputStream reader;
 		DataOutputStream writer;
 		Socket masterSocket;
 		LocalFragment fragment;
+		private ArrayDeque<OutgoingPacket> outbound = new ArrayDeque<OutgoingPacket>();	// Waiting for the sender
+		private boolean isClosing = false;
+		private Thread sender;
 		/** Sets up and connects to the master.
 		 * @param fragment The local fragment so we can run functions on it. 
 		 * @param masterIP IP of the master node as a string.
+		 * @param masterPort Port the master accepts nodes on.
 		 * @throws IOException
 		 */
-		public MasterCommunication(LocalFragment fragment, String masterIP) throws IOException {
+		public MasterCommunication(LocalFragment fragment, String masterIP, int masterPort) throws IOException {
 			InetAddress masterAddress = InetAddress.getByName(masterIP);
-			int tries = 0;
-			while(true) {
-				try {
-					masterSocket = new Socket(masterAddress, ServerFragment.PORT);
-					break;
-				}catch (ConnectException e) {
-					if(tries > 5) {
-						System.exit(1);
-						System.out.println("	Still retrying, try opening port " + ServerFragment.PORT + "...");
-					}else {
-						System.out.println("	Connection attempt timed out, retry...");
-					}
-					tries++;
-				}
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e) { }
+			try {
+				masterSocket = TransferManager.connectWithBackoff(masterAddress, masterPort);
+			} catch (ConnectException e) {
+				System.out.println("	Master isn't listening, try opening port " + masterPort + "...");
+				System.exit(1);
 			}
+			masterSocket.setTcpNoDelay(true);
 			
 			this.reader = new DataInputStream(masterSocket.getInputStream());
-			this.writer =  new DataOutputStream(masterSocket.getOutputStream());
+			this.writer =  new DataOutputStream(new BufferedOutputStream(masterSocket.getOutputStream(), 1 << 16));
 			this.fragment = fragment;
 			messageBuffer = new byte[ServerFragment.PACKET_SIZE];
+			sender = new Thread(this::sendQueued, "MasterCommunication sender");
+			sender.setDaemon(true);
+			sender.start();
 		}
 		
 		@Override
@@ -199,6 +688,9 @@ public class LocalFragment {
 						continue;
 					}
 					opCode = reader.readInt();
+					if(messageSize > messageBuffer.length) {
+						messageBuffer = new byte[messageSize];
+					}
 					reader.readFully(messageBuffer, 0, messageSize); 
 				}catch (SocketException e){
 					try {
@@ -223,20 +715,65 @@ public class LocalFragment {
 				if(opCode == ServerFragment.OPC_METADATAPACKET) {
 					try {
 						fragment.initialize(messageBuffer);
+						if(fragment.boardHost == null) {	// Both neighbors are connected, strips and tiles connect when they get their boards
+							sendPacket(ServerFragment.OPC_READY, null);
+						}
 					} catch (URISyntaxException e) {
 						// TODO Auto-generated catch block
 						e.printStackTrace();
 					}
+				}else if(opCode == ServerFragment.OPC_CALIBRATE) {
+					fragment.calibrate(messageBuffer);
+				}else if(opCode == ServerFragment.OPC_PROBELISTEN) {
+					fragment.probeListen();
+				}else if(opCode == ServerFragment.OPC_PROBE) {
+					fragment.probe(messageBuffer);
 				}else if(opCode == ServerFragment.OPC_STARTSIMULATION) {
+					fragment.startSimulation(0);
+				}else if(opCode == ServerFragment.OPC_PAUSE) {
+					if(fragment.stripHost != null) {
+						int[] strips = new int[getInt(messageBuffer, 4)];
+						for(int i = 0; i < strips.length; i++) {
+							strips[i] = getInt(messageBuffer, 8 + i * 4);
+						}
+						fragment.pauseStrips = strips;
+					}
+					fragment.pauseFrame = getInt(messageBuffer, 0);
+					fragment.frameHold.release();
+				}else if(opCode == ServerFragment.OPC_HOLD) {
+					sendPacket(ServerFragment.OPC_HELD, ByteBuffer.allocate(4).putInt(fragment.frameHold.hold()).array());
+				}else if(opCode == ServerFragment.OPC_RELEASE) {
+					fragment.frameHold.release();
+				}else if(opCode == ServerFragment.OPC_ASSIGN) {
 					try {
-						fragment.startSimulation();
-					} catch (IOException e) { e.printStackTrace(); }
+						fragment.assign(messageBuffer);
+					} catch (URISyntaxException e) { e.printStackTrace(); }
+				}else if(opCode == ServerFragment.OPC_STRIPS) {
+					fragment.assignStrips(messageBuffer);
+				}else if(opCode == ServerFragment.OPC_TILE) {
+					fragment.assignTile(messageBuffer);
+				}else if(opCode == ServerFragment.OPC_DRAIN) {
+					fragment.drain();
+				}else if(opCode == ServerFragment.OPC_TRACE) {
+					sendPacket(ServerFragment.OPC_CLOCK, fragment.tracer.start());
+				}else if(opCode == ServerFragment.OPC_REDUCED) {
+					fragment.allreduce.reduced(ByteBuffer.wrap(messageBuffer, 0, messageSize));
+				}else if(opCode == ServerFragment.OPC_STOP) {
+					fragment.framesToSimulate = getInt(messageBuffer, 0) + 1;	// Agreed on through a hold, so no node has started it
+					fragment.frameHold.release();
+				}else if(opCode == ServerFragment.OPC_COSTPROFILE) {
+					fragment.costBinColumns = getInt(messageBuffer, 0);
+				}else if(opCode == ServerFragment.OPC_CLOCK) {
+					byte[] clock = fragment.tracer.clockAnswered(ByteBuffer.wrap(messageBuffer, 0, messageSize));
+					if(clock != null) {
+						sendPacket(ServerFragment.OPC_CLOCK, clock);
+					}
 				}
 				
 			}
 		}
 		
-		/**	Send a packet to the master node, usually just opcodes
+		/**	Queues a packet for the master, it goes out with whatever else is waiting. Never blocks on the network.
 		 * @param opCode What the message will contain, or typically the message itself
 		 * @param Packet either the bytes to send or null
 		 */
@@ -245,26 +782,66 @@ public class LocalFragment {
 			if(packet == null || sendPacket.length < 1) {
 				sendPacket = new byte[]{1}; 
 			}
-			try {
-				writer.writeInt(sendPacket.length);
-				writer.writeInt(opCode);
-				writer.write(sendPacket, 0, sendPacket.length);
-				writer.flush();
-			} catch (SocketException e) {
-				System.out.println("Master disconnected, stopping...");
+			OutgoingPacket outgoing = new OutgoingPacket(opCode, sendPacket);
+			synchronized (outbound) {
+				if(isClosing) {
+					return;
+				}
+				outbound.add(outgoing);
+				outbound.notifyAll();
+			}
+		}
+		
+		/**
+		 * Sends everything queued, as many packets per write as are waiting, until the connection closes.
+		 */
+		private void sendQueued() {
+			ArrayList<OutgoingPacket> batch = new ArrayList<OutgoingPacket>();
+			while(true) {
+				synchronized (outbound) {
+					while(outbound.isEmpty() && !isClosing) {
+						try { outbound.wait(); } catch (InterruptedException e) { }
+					}
+					if(outbound.isEmpty()) {
+						return;	// Closing and everything is out
+					}
+					batch.addAll(outbound);
+					outbound.clear();
+				}
 				try {
-					close();
-				} catch (IOException e1) { e1.printStackTrace(); }
-			} catch (IOException e) {
-				e.printStackTrace();
+					for(OutgoingPacket outgoing : batch) {
+						writer.writeInt(outgoing.packet.length);
+						writer.writeInt(outgoing.opCode);
+						writer.write(outgoing.packet, 0, outgoing.packet.length);
+					}
+					writer.flush();
+				} catch (SocketException e) {
+					System.out.println("Master disconnected, stopping...");
+					try {
+						close();
+					} catch (IOException e1) { e1.printStackTrace(); }
+					return;
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				batch.clear();
 			}
 		}
 		
 		private boolean stop = false;
-		/** Closes all open ports and cleans up the object.
+		/** Closes all open ports and cleans up the object, after sending what is still queued if the master takes it within CLOSE_DRAIN_MILLIS.
 		 * @throws IOException
 		 */
 		public void close() throws IOException{
+			synchronized (outbound) {
+				isClosing = true;
+				outbound.notifyAll();
+			}
+			if(Thread.currentThread() != sender) {
+				try {
+					sender.join(CLOSE_DRAIN_MILLIS);
+				} catch (InterruptedException e) { }
+			}
 			if(reader != null) {
 				reader.close();
 			}
@@ -277,4 +854,17 @@ public class LocalFragment {
 			stop = true;
 		}
 	}
+	
+	/**
+	 * A packet waiting to go to the master
+	 */
+	private static class OutgoingPacket {
+		int opCode;
+		byte[] packet;
+		
+		OutgoingPacket(int opCode, byte[] packet) {
+			this.opCode = opCode;
+			this.packet = packet;
+		}
+	}
 }
@@ -29,7 +29,6 @@ public class Main {
 			System.out.printf("%.2f%% done", (i/(double)renderFrames)*100);
 			System.out.println();
 		}
-		//car.renderVideo();
 		System.out.println("100% done");
 	}
 }
\ No newline at end of file
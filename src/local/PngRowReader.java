@@ -0,0 +1,276 @@
+package local;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a PNG one row at a time, so only one row and the inflater window are ever in memory.
+ * Handles the non interlaced 8 bit images we write ourselves and the ones ImageIO writes, grey, RGB, indexed and with alpha.
+ */
+public class PngRowReader implements Closeable {
+
+	private static final int COLOR_GREY = 0;
+	private static final int COLOR_GREY_ALPHA = 4;
+	private static final int COLOR_RGBA = 6;
+
+	private DataInputStream in;
+	private Inflater inflater = new Inflater();
+	private byte[] chunkBuffer = new byte[1 << 16];
+	private int idatRemaining = 0;
+	private boolean noMoreData = false;
+
+	private int width;
+	private int height;
+	private int colorType;
+	private int bytesPerPixel;
+	private int[] palette = null;
+
+	private byte[] prior;
+	private byte[] current;
+	private int rowsRead = 0;
+
+	/** Opens the file and reads everything up to the pixel data.
+	 * @param file The PNG
+	 * @throws IOException If it is not a PNG we can stream
+	 */
+	public PngRowReader(File file) throws IOException {
+		this(new FileInputStream(file));
+	}
+
+	/** Reads everything up to the pixel data.
+	 * @param input The PNG, closed when this is closed
+	 * @throws IOException If it is not a PNG we can stream
+	 */
+	public PngRowReader(InputStream input) throws IOException {
+		in = new DataInputStream(new BufferedInputStream(input, 1 << 16));
+		try {
+			readHeader();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	private void readHeader() throws IOException {
+		byte[] signature = new byte[8];
+		in.readFully(signature);
+		if((signature[0] & 0xFF) != 137 || signature[1] != 'P' || signature[2] != 'N' || signature[3] != 'G') {
+			throw new IOException("Not a PNG");
+		}
+		while(true) {
+			int length = in.readInt();
+			String type = readType();
+			if(type.equals("IHDR")) {
+				width = in.readInt();
+				height = in.readInt();
+				int bitDepth = in.readUnsignedByte();
+				colorType = in.readUnsignedByte();
+				in.readUnsignedByte();	// Compression, always deflate
+				in.readUnsignedByte();	// Filter method, always adaptive
+				int interlace = in.readUnsignedByte();
+				if(bitDepth != 8 || interlace != 0) {
+					throw new IOException("Only 8 bit non interlaced PNGs can be streamed, got depth " + bitDepth + " interlace " + interlace);
+				}
+				switch(colorType) {
+					case COLOR_GREY:
+					case PngWriter.COLOR_INDEXED:
+						bytesPerPixel = 1;
+						break;
+					case COLOR_GREY_ALPHA:
+						bytesPerPixel = 2;
+						break;
+					case PngWriter.COLOR_RGB:
+						bytesPerPixel = 3;
+						break;
+					case COLOR_RGBA:
+						bytesPerPixel = 4;
+						break;
+					default:
+						throw new IOException("Unknown color type " + colorType);
+				}
+				in.readInt();	// CRC
+			}else if(type.equals("PLTE")) {
+				palette = new int[256];
+				for(int i = 0; i < length / 3; i++) {
+					palette[i] = (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+				}
+				in.skipBytes(length % 3);
+				in.readInt();
+			}else if(type.equals("IDAT")) {
+				idatRemaining = length;
+				break;
+			}else if(type.equals("IEND")) {
+				throw new IOException("PNG has no pixel data");
+			}else {
+				skipFully(length + 4);
+			}
+		}
+		if(colorType == PngWriter.COLOR_INDEXED && palette == null) {
+			throw new IOException("Indexed PNG without a palette");
+		}
+		prior = new byte[width * bytesPerPixel];
+		current = new byte[width * bytesPerPixel];
+	}
+
+	/** Reads the next row as RGB colors.
+	 * @param rgb Where to put the colors, at least the width of the image
+	 * @param offset Where in rgb to start
+	 * @param count How many pixels of the row to copy, the rest are still read
+	 * @throws IOException
+	 */
+	public void readRow(int[] rgb, int offset, int count) throws IOException {
+		if(rowsRead >= height) {
+			throw new EOFException("All " + height + " rows have been read");
+		}
+		byte[] swap = prior;
+		prior = current;
+		current = swap;
+
+		readInflated(filterByte, 1);
+		readInflated(current, current.length);
+		unfilter(filterByte[0] & 0xFF);
+		rowsRead++;
+
+		count = Math.min(count, width);
+		for(int x = 0; x < count; x++) {
+			rgb[offset + x] = getRGB(x);
+		}
+	}
+
+	private int getRGB(int x) {
+		int i = x * bytesPerPixel;
+		switch(colorType) {
+			case PngWriter.COLOR_INDEXED:
+				return palette[current[i] & 0xFF];
+			case COLOR_GREY:
+			case COLOR_GREY_ALPHA:
+				int grey = current[i] & 0xFF;
+				return (grey << 16) | (grey << 8) | grey;
+			default:
+				return ((current[i] & 0xFF) << 16) | ((current[i + 1] & 0xFF) << 8) | (current[i + 2] & 0xFF);
+		}
+	}
+
+	private void unfilter(int filter) throws IOException {
+		int bpp = bytesPerPixel;
+		boolean hasPrior = rowsRead > 0;
+		switch(filter) {
+			case PngWriter.FILTER_NONE:
+				break;
+			case PngWriter.FILTER_SUB:
+				for(int i = bpp; i < current.length; i++) {
+					current[i] += current[i - bpp];
+				}
+				break;
+			case PngWriter.FILTER_UP:
+				if(hasPrior) {
+					for(int i = 0; i < current.length; i++) {
+						current[i] += prior[i];
+					}
+				}
+				break;
+			case PngWriter.FILTER_AVERAGE:
+				for(int i = 0; i < current.length; i++) {
+					int left = i >= bpp ? current[i - bpp] & 0xFF : 0;
+					int up = hasPrior ? prior[i] & 0xFF : 0;
+					current[i] += (left + up) >> 1;
+				}
+				break;
+			case PngWriter.FILTER_PAETH:
+				for(int i = 0; i < current.length; i++) {
+					int left = i >= bpp ? current[i - bpp] & 0xFF : 0;
+					int up = hasPrior ? prior[i] & 0xFF : 0;
+					int upLeft = (i >= bpp && hasPrior) ? prior[i - bpp] & 0xFF : 0;
+					int p = left + up - upLeft;
+					int pa = Math.abs(p - left);
+					int pb = Math.abs(p - up);
+					int pc = Math.abs(p - upLeft);
+					current[i] += (pa <= pb && pa <= pc) ? left : (pb <= pc ? up : upLeft);
+				}
+				break;
+			default:
+				throw new IOException("Unknown filter " + filter + " on row " + rowsRead);
+		}
+	}
+
+	private byte[] filterByte = new byte[1];
+	private void readInflated(byte[] buffer, int length) throws IOException {
+		int offset = 0;
+		try {
+			while(offset < length) {
+				int count = inflater.inflate(buffer, offset, length - offset);
+				if(count == 0) {
+					if(inflater.finished() || inflater.needsDictionary()) {
+						throw new EOFException("Pixel data ended early");
+					}
+					fillInflater();
+				}
+				offset += count;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Feeds the inflater the next piece of IDAT data, moving on to the next IDAT chunk if needed.
+	 */
+	private void fillInflater() throws IOException {
+		while(idatRemaining == 0) {
+			if(noMoreData) {
+				throw new EOFException("Pixel data ended early");
+			}
+			in.readInt();	// CRC of the previous chunk
+			int length = in.readInt();
+			String type = readType();
+			if(type.equals("IDAT")) {
+				idatRemaining = length;
+			}else {
+				noMoreData = true;
+			}
+		}
+		int count = Math.min(idatRemaining, chunkBuffer.length);
+		in.readFully(chunkBuffer, 0, count);
+		idatRemaining -= count;
+		inflater.setInput(chunkBuffer, 0, count);
+	}
+
+	private String readType() throws IOException {
+		byte[] type = new byte[4];
+		in.readFully(type);
+		return new String(type, StandardCharsets.US_ASCII);
+	}
+
+	private void skipFully(int count) throws IOException {
+		while(count > 0) {
+			int skipped = in.skipBytes(count);
+			if(skipped <= 0) {
+				throw new EOFException();
+			}
+			count -= skipped;
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public void close() throws IOException {
+		inflater.end();
+		in.close();
+	}
+}
@@ -0,0 +1,427 @@
+package local;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
+
+/**
+ * A small PNG encoder that is a lot faster than ImageIO for our frames.
+ * It writes 8 bit indexed images straight from the board bytes, so there is no RGB image in between.
+ * Big images are cut into row chunks that are filtered and deflated on separate threads, the chunks are stitched back into one zlib stream.
+ * All writers share one pool of daemon threads, so making writers costs no threads.
+ */
+public class PngWriter {
+
+	public static final int FILTER_NONE = 0;
+	public static final int FILTER_SUB = 1;
+	public static final int FILTER_UP = 2;
+	public static final int FILTER_AVERAGE = 3;
+	public static final int FILTER_PAETH = 4;
+	public static final int FILTER_ADAPTIVE = 5;	// Picks the best of the above for every row, slowest
+
+	public static final int COLOR_RGB = 2;
+	public static final int COLOR_INDEXED = 3;
+
+	static final int CHUNK_BYTES = 1 << 18;	// Roughly how much filtered data each thread deflates at a time
+	static final int DICTIONARY_BYTES = 1 << 15;	// Deflate window, each chunk is primed with this much of the data before it
+
+	private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+
+	private static ThreadPoolExecutor pool = null;	// Shared by every writer, made by the first one that wants threads
+
+	private int compressionLevel;
+	private int filter;
+	private int threads;
+
+	/** Gives the rows of an image, it has to be safe to call from several threads at once.
+	 */
+	public interface RowSource {
+		/** Fills in one unfiltered row.
+		 * @param y Which row
+		 * @param row Where to put it, exactly one row long
+		 */
+		void getRow(int y, byte[] row);
+	}
+
+	/** One deflated piece of the zlib stream
+	 */
+	static class Segment {
+		byte[] compressed;
+		long adler;
+		long length;
+	}
+
+	/**
+	 * @param compressionLevel Deflate level, 0 to 9
+	 * @param filter One of the FILTER constants, FILTER_NONE is usually best for indexed images
+	 * @param threads How many threads of the shared pool to compress with at once, 1 compresses on the calling thread
+	 */
+	public PngWriter(int compressionLevel, int filter, int threads) {
+		if(compressionLevel < 0 || compressionLevel > 9) {
+			throw new IllegalArgumentException("Compression level has to be between 0 and 9, " + compressionLevel);
+		}
+		if(filter < FILTER_NONE || filter > FILTER_ADAPTIVE) {
+			throw new IllegalArgumentException("Unknown filter " + filter);
+		}
+		this.compressionLevel = compressionLevel;
+		this.filter = filter;
+		this.threads = Math.max(1, threads);
+	}
+
+	/** Makes the shared pool or grows it, it never shrinks.
+	 * @param threads How many threads it needs at least
+	 * @return The pool
+	 */
+	private static synchronized ExecutorService getPool(int threads) {
+		if(pool == null) {
+			pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(threads, runnable -> {
+				Thread thread = new Thread(runnable, "PngWriter");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}else if(pool.getMaximumPoolSize() < threads) {
+			pool.setMaximumPoolSize(threads);
+			pool.setCorePoolSize(threads);
+		}
+		return pool;
+	}
+
+	/** Writes a board as an 8 bit indexed PNG, every cell value is its own palette entry.
+	 * @param file File to write
+	 * @param board Board indexed [x][y] like in CAFragment
+	 * @param palette RGB color of each cell value, indexed by the unsigned byte value
+	 * @throws IOException
+	 */
+	public void writeIndexed(File file, byte[][] board, int[] palette) throws IOException {
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+			writeIndexed(out, board, palette);
+		}
+	}
+
+	/** Writes a board as an 8 bit indexed PNG, every cell value is its own palette entry.
+	 * @param out Stream to write to, it is not closed
+	 * @param board Board indexed [x][y] like in CAFragment
+	 * @param palette RGB color of each cell value, indexed by the unsigned byte value
+	 * @throws IOException
+	 */
+	public void writeIndexed(OutputStream out, byte[][] board, int[] palette) throws IOException {
+		int width = board.length;
+		int height = board[0].length;
+		writeImage(out, width, height, COLOR_INDEXED, palette, (y, row) -> {
+			for(int x = 0; x < width; x++) {
+				row[x] = board[x][y];
+			}
+		});
+	}
+
+	/** Writes a whole image.
+	 * @param out Stream to write to, it is not closed
+	 * @param width Width in pixels
+	 * @param height Height in pixels
+	 * @param colorType COLOR_INDEXED or COLOR_RGB
+	 * @param palette Palette for indexed images, ignored for RGB
+	 * @param rows Where the pixel data comes from
+	 * @throws IOException
+	 */
+	public void writeImage(OutputStream out, int width, int height, int colorType, int[] palette, RowSource rows) throws IOException {
+		writeStart(out, width, height, colorType, palette);
+		int rowBytes = width * getBytesPerPixel(colorType);
+
+		List<Segment> segments = compressRows(rows, 0, height, rowBytes, getBytesPerPixel(colorType), true);
+		long adler = 1;
+		for(int i = 0; i < segments.size(); i++) {
+			Segment segment = segments.get(i);
+			byte[] data = segment.compressed;
+			if(i == 0) {
+				data = Bytes.concat(getZlibHeader(compressionLevel), data);
+			}
+			adler = combineAdler32(adler, segment.adler, segment.length);
+			if(i == segments.size() - 1) {
+				data = Bytes.concat(data, Ints.toByteArray((int) adler));
+			}
+			writeChunk(out, "IDAT", data, 0, data.length);
+		}
+		writeEnd(out);
+	}
+
+	/** Writes the signature, header and palette, after this come IDAT chunks.
+	 */
+	static void writeStart(OutputStream out, int width, int height, int colorType, int[] palette) throws IOException {
+		out.write(SIGNATURE);
+		ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+		header.write(Ints.toByteArray(width));
+		header.write(Ints.toByteArray(height));
+		header.write(8);	// Bit depth
+		header.write(colorType);
+		header.write(0);	// Deflate
+		header.write(0);	// Adaptive filtering
+		header.write(0);	// Not interlaced
+		writeChunk(out, "IHDR", header.toByteArray(), 0, header.size());
+		if(colorType == COLOR_INDEXED) {
+			byte[] plte = new byte[palette.length * 3];
+			for(int i = 0; i < palette.length; i++) {
+				plte[i * 3] = (byte) (palette[i] >> 16);
+				plte[i * 3 + 1] = (byte) (palette[i] >> 8);
+				plte[i * 3 + 2] = (byte) palette[i];
+			}
+			writeChunk(out, "PLTE", plte, 0, plte.length);
+		}
+	}
+
+	static void writeEnd(OutputStream out) throws IOException {
+		writeChunk(out, "IEND", new byte[0], 0, 0);
+		out.flush();
+	}
+
+	static void writeChunk(OutputStream out, String type, byte[] data, int offset, int length) throws IOException {
+		byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data, offset, length);
+		out.write(Ints.toByteArray(length));
+		out.write(typeBytes);
+		out.write(data, offset, length);
+		out.write(Ints.toByteArray((int) crc.getValue()));
+	}
+
+	/** Filters and deflates a range of rows, in parallel if there is a pool and enough data.
+	 *  The segments have no zlib header or checksum, put them back to back to get the deflate stream.
+	 * @param rows Where the pixel data comes from
+	 * @param firstRow First row to compress
+	 * @param endRow One past the last row to compress
+	 * @param rowBytes Bytes in one unfiltered row
+	 * @param bytesPerPixel Bytes per pixel, the filters need it
+	 * @param isLast If this range ends the deflate stream
+	 * @return The compressed segments in order
+	 * @throws IOException
+	 */
+	List<Segment> compressRows(RowSource rows, int firstRow, int endRow, int rowBytes, int bytesPerPixel, boolean isLast) throws IOException {
+		int rowsPerChunk = Math.max(1, CHUNK_BYTES / (rowBytes + 1));
+		List<Segment> segments = new ArrayList<Segment>();
+		if(threads == 1 || endRow - firstRow <= rowsPerChunk) {
+			for(int start = firstRow; start < endRow; start += rowsPerChunk) {
+				int end = Math.min(endRow, start + rowsPerChunk);
+				segments.add(compressChunk(rows, start, end, rowBytes, bytesPerPixel, isLast && end == endRow));
+			}
+			return segments;
+		}
+
+		ExecutorService pool = getPool(threads);
+		List<Future<Segment>> futures = new ArrayList<Future<Segment>>();
+		try {
+			for(int start = firstRow; start < endRow; start += rowsPerChunk) {
+				if(futures.size() - segments.size() >= threads) {	// Keeps at most threads chunks of this writer in the pool
+					segments.add(futures.get(segments.size()).get());
+				}
+				final int chunkStart = start;
+				final int chunkEnd = Math.min(endRow, start + rowsPerChunk);
+				final boolean chunkIsLast = isLast && chunkEnd == endRow;
+				futures.add(pool.submit(() -> compressChunk(rows, chunkStart, chunkEnd, rowBytes, bytesPerPixel, chunkIsLast)));
+			}
+			while(segments.size() < futures.size()) {
+				segments.add(futures.get(segments.size()).get());
+			}
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+		return segments;
+	}
+
+	/** Filters and deflates one chunk of rows on its own. The rows before the chunk are filtered again to prime the deflate window,
+	 *  so chunks compress almost as well as one long stream would.
+	 */
+	private Segment compressChunk(RowSource rows, int startRow, int endRow, int rowBytes, int bytesPerPixel, boolean isLast) {
+		int dictionaryRows = Math.min(startRow, (DICTIONARY_BYTES + rowBytes) / (rowBytes + 1));
+		int firstRow = startRow - dictionaryRows;
+
+		byte[] prior = new byte[rowBytes];
+		byte[] current = new byte[rowBytes];
+		byte[] filtered = new byte[(endRow - firstRow) * (rowBytes + 1)];
+		byte[] scratch = new byte[rowBytes + 1];
+		boolean hasPrior = false;
+		if(firstRow > 0) {
+			rows.getRow(firstRow - 1, prior);
+			hasPrior = true;
+		}
+		for(int y = firstRow; y < endRow; y++) {
+			rows.getRow(y, current);
+			filterRow(filter, current, hasPrior ? prior : null, rowBytes, bytesPerPixel, filtered, (y - firstRow) * (rowBytes + 1), scratch);
+			byte[] swap = prior;
+			prior = current;
+			current = swap;
+			hasPrior = true;
+		}
+
+		int dictionaryLength = dictionaryRows * (rowBytes + 1);
+		int dataLength = filtered.length - dictionaryLength;
+
+		Segment segment = new Segment();
+		Adler32 adler = new Adler32();
+		adler.update(filtered, dictionaryLength, dataLength);
+		segment.adler = adler.getValue();
+		segment.length = dataLength;
+
+		Deflater deflater = new Deflater(compressionLevel, true);
+		if(dictionaryLength > 0) {
+			int primeLength = Math.min(dictionaryLength, DICTIONARY_BYTES);
+			deflater.setDictionary(filtered, dictionaryLength - primeLength, primeLength);
+		}
+		deflater.setInput(filtered, dictionaryLength, dataLength);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(dataLength / 4 + 64);
+		byte[] buffer = new byte[1 << 16];
+		if(isLast) {
+			deflater.finish();
+			while(!deflater.finished()) {
+				int count = deflater.deflate(buffer);
+				out.write(buffer, 0, count);
+			}
+		}else {
+			int count;
+			do {	// Sync flush ends on a byte boundary so the next chunk can be appended as is
+				count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+				out.write(buffer, 0, count);
+			} while(count == buffer.length);
+		}
+		deflater.end();
+		segment.compressed = out.toByteArray();
+		return segment;
+	}
+
+	/** Applies a PNG filter to one row, the filter type byte is written first.
+	 * @param filter Filter to use, FILTER_ADAPTIVE tries all of them
+	 * @param row The unfiltered row
+	 * @param prior The unfiltered row above, or null for the first row
+	 * @param rowBytes Length of the row
+	 * @param bpp Bytes per pixel
+	 * @param out Where to put the filtered row
+	 * @param offset Where in out to put it
+	 * @param scratch Buffer of rowBytes + 1, only used by FILTER_ADAPTIVE
+	 */
+	static void filterRow(int filter, byte[] row, byte[] prior, int rowBytes, int bpp, byte[] out, int offset, byte[] scratch) {
+		if(filter != FILTER_ADAPTIVE) {
+			applyFilter(filter, row, prior, rowBytes, bpp, out, offset);
+			return;
+		}
+		long bestSum = Long.MAX_VALUE;
+		for(int candidate = FILTER_NONE; candidate <= FILTER_PAETH; candidate++) {
+			applyFilter(candidate, row, prior, rowBytes, bpp, scratch, 0);
+			long sum = 0;
+			for(int i = 1; i <= rowBytes; i++) {
+				sum += Math.abs((int) scratch[i]);	// Usual heuristic, smallest sum of signed values wins
+			}
+			if(sum < bestSum) {
+				bestSum = sum;
+				System.arraycopy(scratch, 0, out, offset, rowBytes + 1);
+			}
+		}
+	}
+
+	private static void applyFilter(int filter, byte[] row, byte[] prior, int rowBytes, int bpp, byte[] out, int offset) {
+		out[offset] = (byte) filter;
+		offset++;
+		switch(filter) {
+			case FILTER_NONE:
+				System.arraycopy(row, 0, out, offset, rowBytes);
+				break;
+			case FILTER_SUB:
+				for(int i = 0; i < rowBytes; i++) {
+					int left = i >= bpp ? row[i - bpp] & 0xFF : 0;
+					out[offset + i] = (byte) (row[i] - left);
+				}
+				break;
+			case FILTER_UP:
+				for(int i = 0; i < rowBytes; i++) {
+					int up = prior != null ? prior[i] & 0xFF : 0;
+					out[offset + i] = (byte) (row[i] - up);
+				}
+				break;
+			case FILTER_AVERAGE:
+				for(int i = 0; i < rowBytes; i++) {
+					int left = i >= bpp ? row[i - bpp] & 0xFF : 0;
+					int up = prior != null ? prior[i] & 0xFF : 0;
+					out[offset + i] = (byte) (row[i] - ((left + up) >> 1));
+				}
+				break;
+			case FILTER_PAETH:
+				for(int i = 0; i < rowBytes; i++) {
+					int left = i >= bpp ? row[i - bpp] & 0xFF : 0;
+					int up = prior != null ? prior[i] & 0xFF : 0;
+					int upLeft = (i >= bpp && prior != null) ? prior[i - bpp] & 0xFF : 0;
+					out[offset + i] = (byte) (row[i] - paeth(left, up, upLeft));
+				}
+				break;
+			default:
+				throw new IllegalStateException("Unknown filter " + filter);
+		}
+	}
+
+	private static int paeth(int a, int b, int c) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a);
+		int pb = Math.abs(p - b);
+		int pc = Math.abs(p - c);
+		if(pa <= pb && pa <= pc) {
+			return a;
+		}
+		return pb <= pc ? b : c;
+	}
+
+	static int getBytesPerPixel(int colorType) {
+		return colorType == COLOR_RGB ? 3 : 1;
+	}
+
+	static byte[] getZlibHeader(int level) {
+		int cmf = 0x78;	// Deflate with a 32k window
+		int levelFlag = level <= 1 ? 0 : level <= 5 ? 1 : level == 6 ? 2 : 3;
+		int flg = levelFlag << 6;
+		flg += 31 - ((cmf * 256 + flg) % 31);
+		return new byte[] {(byte) cmf, (byte) flg};
+	}
+
+	/** Same as zlib's adler32_combine, gives the checksum of two pieces put together.
+	 * @param adler1 Checksum of the first piece
+	 * @param adler2 Checksum of the second piece
+	 * @param length2 Length of the second piece
+	 * @return Checksum of both
+	 */
+	static long combineAdler32(long adler1, long adler2, long length2) {
+		final long base = 65521;
+		long remainder = length2 % base;
+		long sum1 = adler1 & 0xFFFF;
+		long sum2 = (remainder * sum1) % base;
+		sum1 += (adler2 & 0xFFFF) + base - 1;
+		sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF) + base - remainder;
+		if(sum1 >= base) sum1 -= base;
+		if(sum1 >= base) sum1 -= base;
+		if(sum2 >= (base << 1)) sum2 -= (base << 1);
+		if(sum2 >= base) sum2 -= base;
+		return sum1 | (sum2 << 16);
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	public int getFilter() {
+		return filter;
+	}
+}
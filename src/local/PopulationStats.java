@@ -0,0 +1,94 @@
+package local;
+
+import java.nio.ByteBuffer;
+
+/**
+ * What the board looked like after one step, counted by CAFragment while it writes the cells so it costs no extra pass over the board.
+ * The stats of several boards add up into the stats of all of them, so strips, nodes and the whole cluster use the same class.
+ */
+public class PopulationStats {
+	public static final int HEALTH_BUCKETS = 8;	// Live cells by health, each bucket 32 values wide from the weakest bacteria up
+	public static final int SIZE = (4 + HEALTH_BUCKETS) * 8 + 4 * 4;	// live, births, deaths, changed, the health buckets, then the bounding box
+
+	public long live;	// Cells holding bacteria
+	public long births;	// Empty cells that got a bacteria
+	public long deaths;	// Bacteria that died
+	public long changed;	// Cells whose value changed, births and deaths included
+	public long[] health = new long[HEALTH_BUCKETS];
+	public int minX = Integer.MAX_VALUE;	// Bounding box of the live cells on the full board, minX > maxX when there are none
+	public int maxX = Integer.MIN_VALUE;
+	public int minY = Integer.MAX_VALUE;
+	public int maxY = Integer.MIN_VALUE;
+
+	/**
+	 * @param value Value of a live cell
+	 * @return Its health bucket
+	 */
+	public static int getHealthBucket(byte value) {
+		return (value - CAFragment.NO_BACTERIA) >> 5;
+	}
+
+	/** Starts over with nothing counted.
+	 */
+	public void clear() {
+		live = 0;
+		births = 0;
+		deaths = 0;
+		changed = 0;
+		for(int i = 0; i < HEALTH_BUCKETS; i++) {
+			health[i] = 0;
+		}
+		minX = Integer.MAX_VALUE;
+		maxX = Integer.MIN_VALUE;
+		minY = Integer.MAX_VALUE;
+		maxY = Integer.MIN_VALUE;
+	}
+
+	/** Adds another board's stats of the same step.
+	 * @param other The other board's
+	 */
+	public void add(PopulationStats other) {
+		live += other.live;
+		births += other.births;
+		deaths += other.deaths;
+		changed += other.changed;
+		for(int i = 0; i < HEALTH_BUCKETS; i++) {
+			health[i] += other.health[i];
+		}
+		minX = Math.min(minX, other.minX);
+		maxX = Math.max(maxX, other.maxX);
+		minY = Math.min(minY, other.minY);
+		maxY = Math.max(maxY, other.maxY);
+	}
+
+	/**
+	 * @param packet Where to write SIZE bytes
+	 */
+	public void write(ByteBuffer packet) {
+		packet.putLong(live).putLong(births).putLong(deaths).putLong(changed);
+		for(long count : health) {
+			packet.putLong(count);
+		}
+		packet.putInt(minX).putInt(maxX).putInt(minY).putInt(maxY);
+	}
+
+	/**
+	 * @param packet Positioned at stats written by write
+	 * @return The stats
+	 */
+	public static PopulationStats read(ByteBuffer packet) {
+		PopulationStats stats = new PopulationStats();
+		stats.live = packet.getLong();
+		stats.births = packet.getLong();
+		stats.deaths = packet.getLong();
+		stats.changed = packet.getLong();
+		for(int i = 0; i < HEALTH_BUCKETS; i++) {
+			stats.health[i] = packet.getLong();
+		}
+		stats.minX = packet.getInt();
+		stats.maxX = packet.getInt();
+		stats.minY = packet.getInt();
+		stats.maxY = packet.getInt();
+		return stats;
+	}
+}
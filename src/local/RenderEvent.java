@@ -0,0 +1,30 @@
+package local;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for one CARenderer.renderCurrentFrame.
+ */
+@Name("ca.Render")
+@Label("Render Frame")
+@Category({"Cellular Automata", "Node"})
+@Description("Writing one frame, video, detail levels and the full resolution image when it is due")
+@StackTrace(false)
+class RenderEvent extends jdk.jfr.Event {
+	@Label("Frame")
+	int frame;
+
+	@Label("Width")
+	int width;
+
+	@Label("Board X")
+	int boardX;
+
+	@Label("Full Resolution")
+	@Description("The full resolution image was written this frame")
+	boolean isFullResolution;
+}
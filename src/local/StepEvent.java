@@ -0,0 +1,38 @@
+package local;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for one CAFragment.step, only costs anything while a recording has it on.
+ */
+@Name("ca.Step")
+@Label("Simulation Step")
+@Category({"Cellular Automata", "Node"})
+@Description("One step of one board or strip")
+@StackTrace(false)
+class StepEvent extends jdk.jfr.Event {
+	@Label("Step")
+	int step;
+
+	@Label("Board X")
+	@Description("Where the board starts on the full board")
+	int boardX;
+
+	@Label("Width")
+	int width;
+
+	@Label("Height")
+	int height;
+
+	@Label("Occupied Cells")
+	@Description("Cells holding bacteria during the step")
+	long occupiedCells;
+
+	@Label("Work Units")
+	@Description("Workload units burned by the bacteria")
+	double workUnits;
+}
@@ -0,0 +1,125 @@
+package local;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
+
+/**
+ * Writes an RGB PNG a band of rows at a time, so an image never has to be in memory all at once.
+ * Each band is deflated as soon as it is handed in, in parallel if the PngWriter has threads, and written out as IDAT chunks.
+ */
+public class StreamingPngWriter implements Closeable {
+
+	private PngWriter settings;
+	private OutputStream out;
+	private int width;
+	private int height;
+	private int rowBytes;
+
+	private int rowsWritten = 0;
+	private long adler = 1;
+	private boolean wroteZlibHeader = false;
+
+	private byte[] history;	// The last rows of the previous band, the deflate dictionary of the next band comes from them
+	private int historyRows;
+	private byte[] band = new byte[0];
+
+	/** Opens the file and writes everything up to the pixel data.
+	 * @param file File to write
+	 * @param width Width of the image
+	 * @param height Height of the image, exactly this many rows have to be written
+	 * @param settings Compression level, filter and threads to use
+	 * @throws IOException
+	 */
+	public StreamingPngWriter(File file, int width, int height, PngWriter settings) throws IOException {
+		this(new BufferedOutputStream(new FileOutputStream(file), 1 << 16), width, height, settings);
+	}
+
+	/** Writes everything up to the pixel data.
+	 * @param out Stream to write to, closed when this is closed
+	 * @param width Width of the image
+	 * @param height Height of the image, exactly this many rows have to be written
+	 * @param settings Compression level, filter and threads to use
+	 * @throws IOException
+	 */
+	public StreamingPngWriter(OutputStream out, int width, int height, PngWriter settings) throws IOException {
+		this.out = out;
+		this.width = width;
+		this.height = height;
+		this.settings = settings;
+		this.rowBytes = width * PngWriter.getBytesPerPixel(PngWriter.COLOR_RGB);
+		historyRows = (PngWriter.DICTIONARY_BYTES + rowBytes) / (rowBytes + 1) + 1;
+		history = new byte[historyRows * rowBytes];
+		PngWriter.writeStart(out, width, height, PngWriter.COLOR_RGB, null);
+	}
+
+	/** Compresses and writes the next band of rows.
+	 * @param rgb Colors of the band, row after row
+	 * @param rows How many rows are in the band
+	 * @throws IOException
+	 */
+	public void writeRows(int[] rgb, int rows) throws IOException {
+		if(rowsWritten + rows > height) {
+			throw new IllegalStateException("Image is only " + height + " rows tall");
+		}
+		if(band.length < rows * rowBytes) {
+			band = new byte[rows * rowBytes];
+		}
+		for(int i = 0; i < rows * width; i++) {
+			int color = rgb[i];
+			band[i * 3] = (byte) (color >> 16);
+			band[i * 3 + 1] = (byte) (color >> 8);
+			band[i * 3 + 2] = (byte) color;
+		}
+
+		final int bandStart = rowsWritten;
+		final int historyStart = bandStart - historyRows;
+		final byte[] bandRows = band;
+		PngWriter.RowSource source = (y, row) -> {
+			if(y >= bandStart) {
+				System.arraycopy(bandRows, (y - bandStart) * rowBytes, row, 0, rowBytes);
+			}else {
+				System.arraycopy(history, (y - historyStart) * rowBytes, row, 0, rowBytes);
+			}
+		};
+		boolean isLast = bandStart + rows == height;
+		List<PngWriter.Segment> segments = settings.compressRows(source, bandStart, bandStart + rows, rowBytes, 3, isLast);
+		for(PngWriter.Segment segment : segments) {
+			byte[] data = segment.compressed;
+			if(!wroteZlibHeader) {
+				data = Bytes.concat(PngWriter.getZlibHeader(settings.getCompressionLevel()), data);
+				wroteZlibHeader = true;
+			}
+			adler = PngWriter.combineAdler32(adler, segment.adler, segment.length);
+			PngWriter.writeChunk(out, "IDAT", data, 0, data.length);
+		}
+		rowsWritten += rows;
+
+		// Keep the tail of what was just written for the next band, shifting the old history along if the band was short
+		int keep = Math.min(historyRows, rows);
+		System.arraycopy(history, keep * rowBytes, history, 0, (historyRows - keep) * rowBytes);
+		System.arraycopy(band, (rows - keep) * rowBytes, history, (historyRows - keep) * rowBytes, keep * rowBytes);
+	}
+
+	/** Writes the checksum and end of the image, then closes the stream.
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		if(rowsWritten != height) {
+			out.close();
+			throw new IllegalStateException("Only " + rowsWritten + " of " + height + " rows were written");
+		}
+		byte[] checksum = Ints.toByteArray((int) adler);
+		PngWriter.writeChunk(out, "IDAT", checksum, 0, checksum.length);
+		PngWriter.writeEnd(out);
+		out.close();
+	}
+}
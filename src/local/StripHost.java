@@ -0,0 +1,222 @@
+package local;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import transferManagers.BalancingSignal;
+import transferManagers.HaloRouter;
+import workload.UniformWorkload;
+import workload.Workload;
+
+/**
+ * Runs the strips one node owns when the board is cut into many more strips than there are nodes.
+ * Every strip is its own CAFragment with a border column on each side that has a neighbor, the same as a node in the chain.
+ * Border columns between two strips on this node are copied in memory, the rest go through the HaloRouter.
+ * The master moves whole strips between nodes to balance, so this keeps track of what each strip costs.
+ */
+public class StripHost implements BoardHost {
+
+	private int height;
+	private int simplexSeed;
+	private int nodeNumber;
+	private int balancingSignal;
+	private HaloRouter router;
+	private Workload workload = new UniformWorkload(1);
+
+	private int[] stripOwner = new int[0];	// Which node has each strip
+	private int[] stripX = new int[0];	// Where each strip's board starts on the full board, border column included
+	private int[] stripWidth = new int[0];	// Width of each strip's board, border columns included
+	private TreeMap<Integer, CAFragment> strips = new TreeMap<Integer, CAFragment>();
+	private HashMap<Integer, BalancingSignal> signals = new HashMap<Integer, BalancingSignal>();
+	private HashMap<Integer, Long> frameCosts = new HashMap<Integer, Long>();
+
+	/**
+	 * @param height Height of the board
+	 * @param simplexSeed Seed of the noise function
+	 * @param balancingSignal What strip costs are measured with, one of the BalancingSignal constants
+	 * @param router Carries border columns to the other nodes
+	 */
+	public StripHost(int height, int simplexSeed, int balancingSignal, HaloRouter router) {
+		this.height = height;
+		this.simplexSeed = simplexSeed;
+		this.balancingSignal = balancingSignal;
+		this.router = router;
+	}
+
+	/** Takes a new strip table from the master, strips this node lost have to be removed before.
+	 * @param nodeNumber Which node this is now
+	 * @param stripOwner Which node has each strip
+	 * @param stripX Where each strip's board starts on the full board
+	 * @param stripWidth Width of each strip's board
+	 */
+	public void setTable(int nodeNumber, int[] stripOwner, int[] stripX, int[] stripWidth) {
+		this.nodeNumber = nodeNumber;
+		this.stripOwner = stripOwner;
+		this.stripX = stripX;
+		this.stripWidth = stripWidth;
+	}
+
+	/**
+	 * @param workload What every strip's bacteria cost, null for none
+	 */
+	public void setWorkload(Workload workload) {
+		this.workload = workload;
+		for(CAFragment fragment : strips.values()) {
+			fragment.setWorkload(workload);
+		}
+	}
+
+	/** Starts running a strip, either new or handed over from another node.
+	 * @param strip Which strip
+	 * @param board Its board, indexed [x][y]
+	 * @param stepCount How many steps the cluster has done
+	 */
+	public void addStrip(int strip, byte[][] board, int stepCount) {
+		CAFragment fragment = new CAFragment(board.length, height, stripX[strip], simplexSeed);
+		fragment.updateBoard(board, 0);
+		fragment.setStepCount(stepCount);
+		fragment.setWorkload(workload);
+		strips.put(strip, fragment);
+		signals.put(strip, new BalancingSignal(balancingSignal));
+	}
+
+	/** Stops running a strip so it can go to another node.
+	 * @param strip Which strip
+	 * @return Its fragment
+	 */
+	public CAFragment removeStrip(int strip) {
+		signals.remove(strip);
+		frameCosts.remove(strip);
+		return strips.remove(strip);
+	}
+
+	/**
+	 * @return The strips this node has, in order
+	 */
+	public int[] getStrips() {
+		return strips.keySet().stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	@Override
+	public int[] getNeighbors() {
+		TreeSet<Integer> neighbors = new TreeSet<Integer>();
+		for(int strip : strips.keySet()) {
+			if(strip > 0 && stripOwner[strip - 1] != nodeNumber) {
+				neighbors.add(stripOwner[strip - 1]);
+			}
+			if(strip < stripOwner.length - 1 && stripOwner[strip + 1] != nodeNumber) {
+				neighbors.add(stripOwner[strip + 1]);
+			}
+		}
+		return neighbors.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	@Override
+	public Collection<CAFragment> getFragments() {
+		return strips.values();
+	}
+
+	/**
+	 * @return How many columns this node simulates, border columns left out
+	 */
+	@Override
+	public int getWidth() {
+		int width = 0;
+		for(int strip : strips.keySet()) {
+			width += stripWidth[strip] - (strip > 0 ? 1 : 0) - (strip < stripOwner.length - 1 ? 1 : 0);
+		}
+		return width;
+	}
+
+	@Override
+	public long getOccupiedCells() {
+		long cells = 0;
+		for(CAFragment fragment : strips.values()) {
+			cells += fragment.getStepBacteria();
+		}
+		return cells;
+	}
+
+	/** Steps every strip once and adds what each cost to the frame.
+	 * @return Time spent stepping
+	 */
+	@Override
+	public long step() {
+		long totalNanos = 0;
+		for(int strip : strips.keySet()) {
+			CAFragment fragment = strips.get(strip);
+			long startTime = System.nanoTime();
+			fragment.step();
+			long nanos = System.nanoTime() - startTime;
+			totalNanos += nanos;
+			frameCosts.merge(strip, signals.get(strip).getCost(nanos, fragment.getStepWork()), Long::sum);
+		}
+		return totalNanos;
+	}
+
+	/** Sends every strip's outer columns to the strips next to it and waits for theirs.
+	 * @throws IOException
+	 */
+	@Override
+	public void exchange() throws IOException {
+		for(int strip : strips.keySet()) {
+			byte[][] board = strips.get(strip).getBoard()[CAFragment.MUTABLE_BOARD];
+			if(strip > 0) {
+				sendColumn(strip - 1, HaloRouter.SIDE_RIGHT, board[1]);
+			}
+			if(strip < stripOwner.length - 1) {
+				sendColumn(strip + 1, HaloRouter.SIDE_LEFT, board[board.length - 2]);
+			}
+		}
+		router.flush();
+		for(int strip : strips.keySet()) {
+			byte[][] board = strips.get(strip).getBoard()[CAFragment.MUTABLE_BOARD];
+			if(strip > 0 && stripOwner[strip - 1] != nodeNumber) {
+				System.arraycopy(router.receive(strip, HaloRouter.SIDE_LEFT), 0, board[0], 0, height);
+			}
+			if(strip < stripOwner.length - 1 && stripOwner[strip + 1] != nodeNumber) {
+				System.arraycopy(router.receive(strip, HaloRouter.SIDE_RIGHT), 0, board[board.length - 1], 0, height);
+			}
+		}
+	}
+
+	private void sendColumn(int strip, int side, byte[] column) throws IOException {
+		if(stripOwner[strip] == nodeNumber) {	// Outer columns are only read by the next step, so writing straight into the neighbor is safe
+			byte[][] board = strips.get(strip).getBoard()[CAFragment.MUTABLE_BOARD];
+			System.arraycopy(column, 0, side == HaloRouter.SIDE_LEFT ? board[0] : board[board.length - 1], 0, height);
+		}else {
+			router.send(stripOwner[strip], strip, side, column);
+		}
+	}
+
+	/** Builds the strip costs packet for the master and starts counting the next frame.
+	 * @param frame The frame just finished
+	 * @return Frame, strip count, then strip and cost for each strip
+	 */
+	@Override
+	public byte[] getFrameCosts(int frame) {
+		ByteBuffer packet = ByteBuffer.allocate(8 + strips.size() * 12);
+		packet.putInt(frame).putInt(strips.size());
+		for(int strip : strips.keySet()) {
+			packet.putInt(strip).putLong(frameCosts.getOrDefault(strip, 0L));
+		}
+		frameCosts.clear();
+		return packet.array();
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @param strip Which strip
+	 * @return Its fragment, or null if another node has it
+	 */
+	public CAFragment getStrip(int strip) {
+		return strips.get(strip);
+	}
+}
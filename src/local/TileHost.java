@@ -0,0 +1,206 @@
+package local;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.stream.IntStream;
+
+import transferManagers.BalancingSignal;
+import transferManagers.HaloRouter;
+import workload.UniformWorkload;
+import workload.Workload;
+
+/**
+ * Runs one tile when the board is split into a grid instead of a chain of full height strips.
+ * The grid is cut by column bounds that go all the way down and row bounds that go all the way across, node r * columns + c has tile (r, c).
+ * The tile has a border on every side that has a neighbor, and a corner cell for every diagonal neighbor, all exchanged through the HaloRouter.
+ * Borders only cover the tile's own cells, so a border never carries a corner that is still waiting for its own update.
+ */
+public class TileHost implements BoardHost {
+
+	static final int[] DX = {-1, 1, 0, 0, -1, 1, -1, 1};	// Direction of each HaloRouter side
+	static final int[] DY = {0, 0, -1, 1, -1, -1, 1, 1};
+	static final int[] OPPOSITE = {HaloRouter.SIDE_RIGHT, HaloRouter.SIDE_LEFT, HaloRouter.SIDE_BOTTOM, HaloRouter.SIDE_TOP,
+			HaloRouter.SIDE_BOTTOM_RIGHT, HaloRouter.SIDE_BOTTOM_LEFT, HaloRouter.SIDE_TOP_RIGHT, HaloRouter.SIDE_TOP_LEFT};
+
+	private int simplexSeed;
+	private HaloRouter router;
+	private Workload workload = new UniformWorkload(1);
+	private BalancingSignal signal;
+	private long frameCost = 0;
+
+	private int nodeNumber;
+	private int rows;
+	private int columns;
+	private int row;
+	private int column;
+	private CAFragment fragment;
+
+	/**
+	 * @param simplexSeed Seed of the noise function
+	 * @param balancingSignal What the tile's cost is measured with, one of the BalancingSignal constants
+	 * @param router Carries borders to the other nodes
+	 */
+	public TileHost(int simplexSeed, int balancingSignal, HaloRouter router) {
+		this.simplexSeed = simplexSeed;
+		this.signal = new BalancingSignal(balancingSignal);
+		this.router = router;
+	}
+
+	/** Takes a tile from the master, at the start or after the bounds moved.
+	 * @param nodeNumber Which node this is, picks the tile
+	 * @param columnBounds Where each column of tiles starts on the full board, then the full width
+	 * @param rowBounds Where each row of tiles starts on the full board, then the full height
+	 * @param board The tile's board with its borders, indexed [x][y]
+	 * @param stepCount How many steps the cluster has done
+	 */
+	public void setTile(int nodeNumber, int[] columnBounds, int[] rowBounds, byte[][] board, int stepCount) {
+		this.nodeNumber = nodeNumber;
+		rows = rowBounds.length - 1;
+		columns = columnBounds.length - 1;
+		row = nodeNumber / columns;
+		column = nodeNumber % columns;
+		fragment = new CAFragment(board.length, board[0].length, getTileStart(columnBounds, column), getTileStart(rowBounds, row), simplexSeed);
+		fragment.updateBoard(board, 0);
+		fragment.setStepCount(stepCount);
+		fragment.setWorkload(workload);
+	}
+
+	/**
+	 * @param bounds Column or row bounds
+	 * @param i Which column or row of tiles
+	 * @return Where its board starts on the full board, border included
+	 */
+	public static int getTileStart(int[] bounds, int i) {
+		return bounds[i] - (i > 0 ? 1 : 0);
+	}
+
+	/**
+	 * @param bounds Column or row bounds
+	 * @param i Which column or row of tiles
+	 * @return How wide or tall its board is, borders included
+	 */
+	public static int getTileSize(int[] bounds, int i) {
+		return bounds[i + 1] + (i < bounds.length - 2 ? 1 : 0) - getTileStart(bounds, i);
+	}
+
+	/**
+	 * @param workload What the tile's bacteria cost, null for none
+	 */
+	public void setWorkload(Workload workload) {
+		this.workload = workload;
+		if(fragment != null) {
+			fragment.setWorkload(workload);
+		}
+	}
+
+	/**
+	 * @return The tile
+	 */
+	public CAFragment getFragment() {
+		return fragment;
+	}
+
+	@Override
+	public Collection<CAFragment> getFragments() {
+		return Collections.singletonList(fragment);
+	}
+
+	@Override
+	public int getWidth() {
+		int width = fragment.getBoard()[CAFragment.MUTABLE_BOARD].length;
+		return width - (column > 0 ? 1 : 0) - (column < columns - 1 ? 1 : 0);
+	}
+
+	@Override
+	public long getOccupiedCells() {
+		return fragment.getStepBacteria();
+	}
+
+	@Override
+	public int[] getNeighbors() {
+		return IntStream.range(0, DX.length).filter(this::hasNeighbor).map(this::getNeighbor).toArray();
+	}
+
+	@Override
+	public long step() {
+		long startTime = System.nanoTime();
+		fragment.step();
+		long nanos = System.nanoTime() - startTime;
+		frameCost += signal.getCost(nanos, fragment.getStepWork());
+		return nanos;
+	}
+
+	@Override
+	public void exchange() throws IOException {
+		byte[][] board = fragment.getBoard()[CAFragment.MUTABLE_BOARD];
+		for(int side = 0; side < DX.length; side++) {
+			if(hasNeighbor(side)) {
+				router.send(getNeighbor(side), getNeighbor(side), OPPOSITE[side], getBorder(board, DX[side], DY[side]));
+			}
+		}
+		router.flush();
+		for(int side = 0; side < DX.length; side++) {
+			if(hasNeighbor(side)) {
+				setBorder(board, DX[side], DY[side], router.receive(nodeNumber, side));
+			}
+		}
+	}
+
+	private boolean hasNeighbor(int side) {
+		int neighborRow = row + DY[side];
+		int neighborColumn = column + DX[side];
+		return neighborRow >= 0 && neighborRow < rows && neighborColumn >= 0 && neighborColumn < columns;
+	}
+
+	private int getNeighbor(int side) {
+		return (row + DY[side]) * columns + column + DX[side];
+	}
+
+	/** Copies out the cells just inside a side, for the neighbor on that side.
+	 * Along the side it covers the tile's own cells, plus the edge of the board where there is no neighbor.
+	 * @param board The tile's board
+	 * @param dx Direction across, -1, 0 or 1
+	 * @param dy Direction down, -1, 0 or 1
+	 * @return The cells, x major
+	 */
+	private byte[] getBorder(byte[][] board, int dx, int dy) {
+		int width = board.length;
+		int height = board[0].length;
+		int xStart = dx < 0 ? 1 : dx > 0 ? width - 2 : (column > 0 ? 1 : 0);
+		int xEnd = dx < 0 ? 1 : dx > 0 ? width - 2 : width - 1 - (column < columns - 1 ? 1 : 0);
+		int yStart = dy < 0 ? 1 : dy > 0 ? height - 2 : (row > 0 ? 1 : 0);
+		int yEnd = dy < 0 ? 1 : dy > 0 ? height - 2 : height - 1 - (row < rows - 1 ? 1 : 0);
+		byte[] cells = new byte[(xEnd - xStart + 1) * (yEnd - yStart + 1)];
+		int i = 0;
+		for(int x = xStart; x <= xEnd; x++) {
+			if(yStart == yEnd) {
+				cells[i++] = board[x][yStart];
+			}else {
+				System.arraycopy(board[x], yStart, cells, i, yEnd - yStart + 1);
+				i += yEnd - yStart + 1;
+			}
+		}
+		return cells;
+	}
+
+	/** Copies a neighbor's cells into the border on a side, the same cells along it as getBorder.
+	 */
+	private void setBorder(byte[][] board, int dx, int dy, byte[] cells) {
+		int height = board[0].length;
+		int xStart = dx < 0 ? 0 : dx > 0 ? board.length - 1 : (column > 0 ? 1 : 0);
+		int yStart = dy < 0 ? 0 : dy > 0 ? height - 1 : (row > 0 ? 1 : 0);
+		int yLength = dy != 0 ? 1 : height - yStart - (row < rows - 1 ? 1 : 0);
+		for(int i = 0; i < cells.length; i += yLength) {
+			System.arraycopy(cells, i, board[xStart + i / yLength], yStart, yLength);
+		}
+	}
+
+	@Override
+	public byte[] getFrameCosts(int frame) {
+		byte[] packet = ByteBuffer.allocate(8 + 12).putInt(frame).putInt(1).putInt(nodeNumber).putLong(frameCost).array();
+		frameCost = 0;
+		return packet;
+	}
+}
@@ -0,0 +1,280 @@
+package local;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes frames as an uncompressed YUV4MPEG2 (.y4m) stream, either into a file or into the stdin of an external encoder.
+ * Frames are converted to YUV and written as soon as they are handed in, nothing is buffered besides the current frame.
+ */
+public class Y4MWriter implements Closeable {
+
+	public static final int CHROMA_420 = 0;	// Chroma is averaged over 2x2 blocks, what most encoders expect
+	public static final int CHROMA_444 = 1;	// Full resolution chroma, bigger but lossless on the palette colors
+
+	private OutputStream out;
+	private Process encoder = null;
+
+	private int width;
+	private int height;
+	private int chroma;
+	private int chromaWidth;
+	private int chromaHeight;
+
+	private byte[] yPlane;
+	private byte[] uPlane;
+	private byte[] vPlane;
+	private int[] uSum;
+	private int[] vSum;
+
+	private int[] tablePalette = null;	// Palette the tables below were built from
+	private byte[] yTable = new byte[256];
+	private int[] uTable = new int[256];
+	private int[] vTable = new int[256];
+
+	private int framesWritten = 0;
+
+	/**	Writes the stream header, after this frames can be written.
+	 * @param out Where the stream goes, it will be buffered.
+	 * @param width Width of every frame
+	 * @param height Height of every frame
+	 * @param fps Frame rate written into the header
+	 * @param chroma CHROMA_420 or CHROMA_444
+	 * @throws IOException
+	 */
+	public Y4MWriter(OutputStream out, int width, int height, int fps, int chroma) throws IOException {
+		if(chroma != CHROMA_420 && chroma != CHROMA_444) {
+			throw new IllegalArgumentException("Unknown chroma mode " + chroma);
+		}
+		this.out = new BufferedOutputStream(out, 1 << 16);
+		this.width = width;
+		this.height = height;
+		this.chroma = chroma;
+
+		if(chroma == CHROMA_420) {
+			chromaWidth = (width + 1) / 2;
+			chromaHeight = (height + 1) / 2;
+		}else {
+			chromaWidth = width;
+			chromaHeight = height;
+		}
+		yPlane = new byte[width * height];
+		uPlane = new byte[chromaWidth * chromaHeight];
+		vPlane = new byte[chromaWidth * chromaHeight];
+		uSum = new int[chromaWidth * chromaHeight];
+		vSum = new int[chromaWidth * chromaHeight];
+
+		String header = String.format("YUV4MPEG2 W%d H%d F%d:1 Ip A1:1 %s\n", width, height, fps, chroma == CHROMA_420 ? "C420jpeg" : "C444");
+		this.out.write(header.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/** Creates a writer into a .y4m file, the parent folders are created if needed.
+	 * @param file File to write to, overwritten if it exists
+	 * @param width Width of every frame
+	 * @param height Height of every frame
+	 * @param fps Frame rate written into the header
+	 * @param chroma CHROMA_420 or CHROMA_444
+	 * @return The writer
+	 * @throws IOException
+	 */
+	public static Y4MWriter toFile(File file, int width, int height, int fps, int chroma) throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		if(parent != null && !parent.exists()) {
+			parent.mkdirs();
+		}
+		return new Y4MWriter(new FileOutputStream(file), width, height, fps, chroma);
+	}
+
+	/** Starts an external encoder and writes the stream into its stdin, the encoder has to be told to read y4m from stdin.
+	 *  Example: ffmpeg -f yuv4mpegpipe -i - -c:v libx264 -pix_fmt yuv420p output.mp4 -y
+	 * @param command The encoder and its arguments
+	 * @param width Width of every frame
+	 * @param height Height of every frame
+	 * @param fps Frame rate written into the header
+	 * @param chroma CHROMA_420 or CHROMA_444
+	 * @return The writer
+	 * @throws IOException
+	 */
+	public static Y4MWriter toEncoder(List<String> command, int width, int height, int fps, int chroma) throws IOException {
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+		builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+		Process process = builder.start();
+		Y4MWriter writer = new Y4MWriter(process.getOutputStream(), width, height, fps, chroma);
+		writer.encoder = process;
+		return writer;
+	}
+
+	/** Writes one frame straight from a board, the board is indexed [x][y] like in CAFragment.
+	 * @param board Cell values, must be exactly the size of the stream
+	 * @param palette RGB color of each cell value, indexed by the unsigned byte value
+	 * @throws IOException
+	 */
+	public void writeFrame(byte[][] board, int[] palette) throws IOException {
+		if(board.length != width || board[0].length != height) {
+			throw new IllegalArgumentException("Board is " + board.length + "x" + board[0].length + " but the stream is " + width + "x" + height);
+		}
+		if(!Arrays.equals(palette, tablePalette)) {
+			buildTables(palette);
+		}
+		clearChroma();
+		for(int x = 0; x < width; x++) {
+			byte[] column = board[x];
+			int chromaX = chroma == CHROMA_420 ? x >> 1 : x;
+			for(int y = 0; y < height; y++) {
+				int index = column[y] & 0xFF;
+				yPlane[y * width + x] = yTable[index];
+				int chromaIndex = (chroma == CHROMA_420 ? y >> 1 : y) * chromaWidth + chromaX;
+				uSum[chromaIndex] += uTable[index];
+				vSum[chromaIndex] += vTable[index];
+			}
+		}
+		finishFrame();
+	}
+
+	/** Converts every palette color once, frames with the same palette reuse the tables.
+	 * @param palette RGB color of each cell value
+	 */
+	private void buildTables(int[] palette) {
+		for(int i = 0; i < 256; i++) {
+			int rgb = palette[i];
+			yTable[i] = (byte) getY(rgb);
+			uTable[i] = getU(rgb);
+			vTable[i] = getV(rgb);
+		}
+		tablePalette = palette.clone();
+	}
+
+	/** Writes one frame from an image, for example a composited mosaic.
+	 * @param image Image, must be exactly the size of the stream
+	 * @throws IOException
+	 */
+	public void writeFrame(BufferedImage image) throws IOException {
+		if(image.getWidth() != width || image.getHeight() != height) {
+			throw new IllegalArgumentException("Image is " + image.getWidth() + "x" + image.getHeight() + " but the stream is " + width + "x" + height);
+		}
+		int[] row = new int[width];
+		startFrame();
+		for(int y = 0; y < height; y++) {
+			image.getRGB(0, y, width, 1, row, 0, width);
+			writeRow(y, row, 0);
+		}
+		endFrame();
+	}
+
+	/**
+	 * Starts a frame that is handed in row by row with writeRow, finish it with endFrame.
+	 */
+	public void startFrame() {
+		clearChroma();
+	}
+
+	/** Converts one row of the current frame, rows can come in any order.
+	 * @param y Which row
+	 * @param rgb Colors of the row
+	 * @param offset Where in rgb the row starts
+	 */
+	public void writeRow(int y, int[] rgb, int offset) {
+		int chromaRow = (chroma == CHROMA_420 ? y >> 1 : y) * chromaWidth;
+		for(int x = 0; x < width; x++) {
+			int color = rgb[offset + x];
+			yPlane[y * width + x] = (byte) getY(color);
+			int chromaIndex = chromaRow + (chroma == CHROMA_420 ? x >> 1 : x);
+			uSum[chromaIndex] += getU(color);
+			vSum[chromaIndex] += getV(color);
+		}
+	}
+
+	/** Writes out the frame started with startFrame.
+	 * @throws IOException
+	 */
+	public void endFrame() throws IOException {
+		finishFrame();
+	}
+
+	private void clearChroma() {
+		Arrays.fill(uSum, 0);
+		Arrays.fill(vSum, 0);
+	}
+
+	/**
+	 * Averages the chroma sums and writes the frame out.
+	 */
+	private void finishFrame() throws IOException {
+		if(chroma == CHROMA_420) {
+			for(int cy = 0; cy < chromaHeight; cy++) {
+				int samplesY = (cy * 2 + 1 < height) ? 2 : 1;	// Odd sizes have half blocks on the edge
+				for(int cx = 0; cx < chromaWidth; cx++) {
+					int samples = samplesY * ((cx * 2 + 1 < width) ? 2 : 1);
+					int index = cy * chromaWidth + cx;
+					uPlane[index] = (byte) ((uSum[index] + samples / 2) / samples);
+					vPlane[index] = (byte) ((vSum[index] + samples / 2) / samples);
+				}
+			}
+		}else {
+			for(int i = 0; i < uPlane.length; i++) {
+				uPlane[i] = (byte) uSum[i];
+				vPlane[i] = (byte) vSum[i];
+			}
+		}
+		out.write("FRAME\n".getBytes(StandardCharsets.US_ASCII));
+		out.write(yPlane);
+		out.write(uPlane);
+		out.write(vPlane);
+		framesWritten++;
+	}
+
+	// BT.601 limited range, which is what a y4m stream is assumed to be
+	private static int getY(int rgb) {
+		int r = (rgb >> 16) & 0xFF, g = (rgb >> 8) & 0xFF, b = rgb & 0xFF;
+		return ((66 * r + 129 * g + 25 * b + 128) >> 8) + 16;
+	}
+	private static int getU(int rgb) {
+		int r = (rgb >> 16) & 0xFF, g = (rgb >> 8) & 0xFF, b = rgb & 0xFF;
+		return ((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128;
+	}
+	private static int getV(int rgb) {
+		int r = (rgb >> 16) & 0xFF, g = (rgb >> 8) & 0xFF, b = rgb & 0xFF;
+		return ((112 * r - 94 * g - 18 * b + 128) >> 8) + 128;
+	}
+
+	/**
+	 * @return How many frames have been written so far.
+	 */
+	public int getFramesWritten() {
+		return framesWritten;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/** Flushes and closes the stream, if an encoder was started this waits for it to finish.
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		out.flush();
+		out.close();
+		if(encoder != null) {
+			try {
+				int exitCode = encoder.waitFor();
+				if(exitCode != 0) {
+					System.out.println("Encoder exited with code " + exitCode);
+				}
+			} catch (InterruptedException e) { e.printStackTrace(); }
+		}
+	}
+}
@@ -0,0 +1,475 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import local.PopulationStats;
+import transferManagers.LinkStats;
+import transferManagers.LogHistogram;
+
+/**
+ * Collects the frame marks of every node and works out how the cluster as a whole is doing, so a straggler shows up without reading every node's log.
+ * Shown over JMX and, if serve is called, as Prometheus text on /metrics.
+ */
+public class ClusterMetrics implements ClusterMetricsMBean {
+	public static final double RATE_SMOOTHING = 0.3;	// Weight of the newest sample in the steps per second
+
+	private int stepsPerFrame;
+	private Map<ServerFragment, NodeMetrics> nodes = new IdentityHashMap<ServerFragment, NodeMetrics>();	// By fragment, node numbers change when the chain does
+	private long retiredBytes = 0;	// From nodes that left
+	private long retiredColumns = 0;
+	private int slowestFrame = -1;
+	private long slowestFrameNanos = 0;	// When the slowest frame last moved on
+	private double stepsPerSecond = 0;
+	private int chainLength = 0;	// A step's population is complete once this many nodes sent it
+	private TreeMap<Integer, PopulationStats> pendingSteps = new TreeMap<Integer, PopulationStats>();	// Population of steps not every node sent yet, added up so far
+	private TreeMap<Integer, Integer> pendingNodes = new TreeMap<Integer, Integer>();	// How many nodes sent each of them
+	private int populationStep = 0;	// Last step every node sent its population of
+	private PopulationStats population = new PopulationStats();	// Of the whole board after populationStep
+	private long totalBirths = 0;	// Over every complete step
+	private long totalDeaths = 0;
+	private ObjectName name;
+	private HttpServer httpServer;
+
+	/** Latest frame mark of one node
+	 */
+	private static class NodeMetrics {
+		ServerFragment fragment;
+		int frame = -1;	// Until its first frame mark
+		int width;
+		long computeNanos;
+		long networkNanos;
+		long occupiedCells;
+		long bytesExchanged;
+		long columnsMoved;
+		LinkStats.Summary[] links = new LinkStats.Summary[0];	// From the last link stats packet
+	}
+
+	/** Registers with the platform MBean server.
+	 * @param stepsPerFrame Simulation steps in every frame
+	 * @param port The master's port, tells apart several clusters in one process
+	 */
+	ClusterMetrics(int stepsPerFrame, int port) {
+		this.stepsPerFrame = stepsPerFrame;
+		try {
+			name = new ObjectName("ca:type=ClusterMetrics,port=" + port);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+		} catch (JMException e) {
+			e.printStackTrace();
+			name = null;
+		}
+	}
+
+	/** Takes one frame mark.
+	 * @param fragment Node it came from
+	 * @param frame Frame it finished
+	 * @param width Width of its board
+	 * @param computeNanos Time spent stepping during the frame
+	 * @param networkNanos Time spent exchanging during the frame
+	 * @param occupiedCells Cells holding bacteria
+	 * @param bytesExchanged Bytes exchanged with neighbors since the node started
+	 * @param columnsMoved Columns moved by balancing since the node started
+	 */
+	synchronized void frameDone(ServerFragment fragment, int frame, int width, long computeNanos, long networkNanos, long occupiedCells, long bytesExchanged, long columnsMoved) {
+		NodeMetrics node = nodes.computeIfAbsent(fragment, f -> new NodeMetrics());
+		node.fragment = fragment;
+		node.frame = frame;
+		node.width = width;
+		node.computeNanos = computeNanos;
+		node.networkNanos = networkNanos;
+		node.occupiedCells = occupiedCells;
+		node.bytesExchanged = bytesExchanged;
+		node.columnsMoved = columnsMoved;
+
+		int slowest = Integer.MAX_VALUE;
+		for(NodeMetrics other : nodes.values()) {
+			if(other.frame >= 0) {
+				slowest = Math.min(slowest, other.frame);
+			}
+		}
+		long now = System.nanoTime();
+		if(slowest > slowestFrame) {
+			if(slowestFrame >= 0) {
+				double rate = (slowest - slowestFrame) * stepsPerFrame * 1e9 / Math.max(1, now - slowestFrameNanos);
+				stepsPerSecond = stepsPerSecond == 0 ? rate : RATE_SMOOTHING * rate + (1 - RATE_SMOOTHING) * stepsPerSecond;
+			}
+			slowestFrame = slowest;
+			slowestFrameNanos = now;
+		}
+	}
+
+	/** Takes one node's link summaries, see ServerFragment.OPC_LINKSTATS.
+	 * @param fragment Node it came from
+	 * @param packet The packet
+	 */
+	synchronized void linkStats(ServerFragment fragment, ByteBuffer packet) {
+		packet.getInt();	// Frame
+		LinkStats.Summary[] links = new LinkStats.Summary[packet.getInt()];
+		for(int i = 0; i < links.length; i++) {
+			links[i] = LinkStats.Summary.read(packet);
+		}
+		NodeMetrics node = nodes.computeIfAbsent(fragment, f -> new NodeMetrics());
+		node.fragment = fragment;
+		node.links = links;
+	}
+
+	/**
+	 * @param chainLength Nodes simulating, every one of them sends the population of every step
+	 */
+	synchronized void setChainLength(int chainLength) {
+		this.chainLength = chainLength;
+	}
+
+	/** Takes one node's population stats of every step of a frame, see ServerFragment.OPC_POPULATION.
+	 * A step counts once as many nodes as the chain has sent it, older steps some node never sent are dropped then.
+	 * @param packet The packet
+	 */
+	synchronized void population(ByteBuffer packet) {
+		int frame = packet.getInt();
+		int steps = packet.getInt();
+		for(int i = 0; i < steps; i++) {
+			int step = frame * stepsPerFrame + i + 1;
+			PopulationStats stats = PopulationStats.read(packet);
+			if(step <= populationStep) {
+				continue;
+			}
+			pendingSteps.computeIfAbsent(step, s -> new PopulationStats()).add(stats);
+			if(pendingNodes.merge(step, 1, Integer::sum) >= chainLength) {
+				population = pendingSteps.get(step);
+				populationStep = step;
+				totalBirths += population.births;
+				totalDeaths += population.deaths;
+				pendingSteps.headMap(step, true).clear();
+				pendingNodes.headMap(step, true).clear();
+			}
+		}
+	}
+
+	/** Forgets a node that left, its counters still count towards the totals.
+	 * @param fragment The node
+	 */
+	synchronized void nodeClosed(ServerFragment fragment) {
+		NodeMetrics node = nodes.remove(fragment);
+		if(node != null) {
+			retiredBytes += node.bytesExchanged;
+			retiredColumns += node.columnsMoved;
+		}
+	}
+
+	/**
+	 * @return Nodes that are in the cluster, in chain order
+	 */
+	private ArrayList<NodeMetrics> getChain() {
+		ArrayList<NodeMetrics> chain = new ArrayList<NodeMetrics>();
+		for(NodeMetrics node : nodes.values()) {
+			if(node.fragment.getNodeNumber() >= 0) {
+				chain.add(node);
+			}
+		}
+		chain.sort(Comparator.comparingInt(node -> node.fragment.getNodeNumber()));
+		return chain;
+	}
+
+	@Override
+	public synchronized int getNodes() {
+		return getChain().size();
+	}
+
+	@Override
+	public synchronized int getSlowestFrame() {
+		return slowestFrame;
+	}
+
+	@Override
+	public synchronized double getStepsPerSecond() {
+		return stepsPerSecond;
+	}
+
+	@Override
+	public synchronized double getLoadImbalance() {
+		long max = 0;
+		long total = 0;
+		ArrayList<NodeMetrics> chain = getChain();
+		for(NodeMetrics node : chain) {
+			max = Math.max(max, node.computeNanos);
+			total += node.computeNanos;
+		}
+		return total == 0 ? 1 : max * (double) chain.size() / total;
+	}
+
+	@Override
+	public synchronized double getParallelEfficiency() {
+		long slowest = 0;
+		long total = 0;
+		ArrayList<NodeMetrics> chain = getChain();
+		for(NodeMetrics node : chain) {
+			slowest = Math.max(slowest, node.computeNanos + node.networkNanos);
+			total += node.computeNanos;
+		}
+		return slowest == 0 ? 0 : total / ((double) chain.size() * slowest);
+	}
+
+	@Override
+	public synchronized int getSlowestNode() {
+		int slowestNode = -1;
+		long slowest = -1;
+		for(NodeMetrics node : getChain()) {
+			if(node.computeNanos + node.networkNanos > slowest) {
+				slowest = node.computeNanos + node.networkNanos;
+				slowestNode = node.fragment.getNodeNumber();
+			}
+		}
+		return slowestNode;
+	}
+
+	@Override
+	public synchronized long getBytesExchanged() {
+		long bytes = retiredBytes;
+		for(NodeMetrics node : nodes.values()) {
+			bytes += node.bytesExchanged;
+		}
+		return bytes;
+	}
+
+	@Override
+	public synchronized long getColumnsMoved() {
+		long columns = retiredColumns;
+		for(NodeMetrics node : nodes.values()) {
+			columns += node.columnsMoved;
+		}
+		return columns;
+	}
+
+	@Override
+	public synchronized long getOccupiedCells() {
+		long cells = 0;
+		for(NodeMetrics node : getChain()) {
+			cells += node.occupiedCells;
+		}
+		return cells;
+	}
+
+	@Override
+	public synchronized int getPopulationStep() {
+		return populationStep;
+	}
+
+	@Override
+	public synchronized long getLiveCells() {
+		return population.live;
+	}
+
+	@Override
+	public synchronized long getBirths() {
+		return population.births;
+	}
+
+	@Override
+	public synchronized long getDeaths() {
+		return population.deaths;
+	}
+
+	@Override
+	public synchronized long getChangedCells() {
+		return population.changed;
+	}
+
+	@Override
+	public synchronized long getTotalBirths() {
+		return totalBirths;
+	}
+
+	@Override
+	public synchronized long getTotalDeaths() {
+		return totalDeaths;
+	}
+
+	@Override
+	public synchronized long[] getHealthHistogram() {
+		return population.health.clone();
+	}
+
+	@Override
+	public synchronized int[] getLiveBounds() {
+		return population.minX > population.maxX ? new int[0] : new int[] {population.minX, population.maxX, population.minY, population.maxY};
+	}
+
+	@Override
+	public synchronized double[] getNodeComputeMillis() {
+		return getChain().stream().mapToDouble(node -> node.computeNanos / 1e6).toArray();
+	}
+
+	@Override
+	public synchronized double[] getNodeNetworkMillis() {
+		return getChain().stream().mapToDouble(node -> node.networkNanos / 1e6).toArray();
+	}
+
+	@Override
+	public synchronized int[] getNodeWidths() {
+		return getChain().stream().mapToInt(node -> node.width).toArray();
+	}
+
+	/**
+	 * @return Everything in the Prometheus text format
+	 */
+	public synchronized String toPrometheus() {
+		StringBuilder text = new StringBuilder();
+		appendGauge(text, "ca_nodes", "Nodes in the cluster", getNodes());
+		appendGauge(text, "ca_slowest_frame", "Last frame every node finished", slowestFrame);
+		appendGauge(text, "ca_steps_per_second", "Simulation steps per second of the whole cluster", stepsPerSecond);
+		appendGauge(text, "ca_load_imbalance", "Busiest node's compute time over the mean", getLoadImbalance());
+		appendGauge(text, "ca_parallel_efficiency", "Compute time over node count times the slowest node's frame time", getParallelEfficiency());
+		appendGauge(text, "ca_slowest_node", "Node that took longest for its last frame", getSlowestNode());
+		appendGauge(text, "ca_occupied_cells", "Cells holding bacteria", getOccupiedCells());
+		text.append("# HELP ca_bytes_exchanged_total Bytes exchanged between neighbors\n# TYPE ca_bytes_exchanged_total counter\n");
+		text.append("ca_bytes_exchanged_total ").append(getBytesExchanged()).append('\n');
+		text.append("# HELP ca_columns_moved_total Columns moved between neighbors by balancing\n# TYPE ca_columns_moved_total counter\n");
+		text.append("ca_columns_moved_total ").append(getColumnsMoved()).append('\n');
+		appendPopulation(text);
+
+		ArrayList<NodeMetrics> chain = getChain();
+		text.append("# HELP ca_node_compute_seconds Time the node spent stepping during its last frame\n# TYPE ca_node_compute_seconds gauge\n");
+		for(NodeMetrics node : chain) {
+			text.append("ca_node_compute_seconds{node=\"").append(node.fragment.getNodeNumber()).append("\"} ").append(node.computeNanos / 1e9).append('\n');
+		}
+		text.append("# HELP ca_node_network_seconds Time the node spent exchanging during its last frame\n# TYPE ca_node_network_seconds gauge\n");
+		for(NodeMetrics node : chain) {
+			text.append("ca_node_network_seconds{node=\"").append(node.fragment.getNodeNumber()).append("\"} ").append(node.networkNanos / 1e9).append('\n');
+		}
+		text.append("# HELP ca_node_width Width of the node's board\n# TYPE ca_node_width gauge\n");
+		for(NodeMetrics node : chain) {
+			text.append("ca_node_width{node=\"").append(node.fragment.getNodeNumber()).append("\"} ").append(node.width).append('\n');
+		}
+		text.append("# HELP ca_node_frame Last frame the node finished\n# TYPE ca_node_frame gauge\n");
+		for(NodeMetrics node : chain) {
+			text.append("ca_node_frame{node=\"").append(node.fragment.getNodeNumber()).append("\"} ").append(node.frame).append('\n');
+		}
+		appendLinks(text, chain);
+		return text.toString();
+	}
+
+	/** Adds the population after the last step every node sent.
+	 */
+	private void appendPopulation(StringBuilder text) {
+		appendGauge(text, "ca_population_step", "Last step every node sent its population of", populationStep);
+		appendGauge(text, "ca_live_cells", "Cells holding bacteria after the step", population.live);
+		appendGauge(text, "ca_step_births", "Bacteria born during the step", population.births);
+		appendGauge(text, "ca_step_deaths", "Bacteria that died during the step", population.deaths);
+		appendGauge(text, "ca_step_changed_cells", "Cells whose value changed during the step", population.changed);
+		text.append("# HELP ca_births_total Bacteria born over every step\n# TYPE ca_births_total counter\n");
+		text.append("ca_births_total ").append(totalBirths).append('\n');
+		text.append("# HELP ca_deaths_total Bacteria that died over every step\n# TYPE ca_deaths_total counter\n");
+		text.append("ca_deaths_total ").append(totalDeaths).append('\n');
+		text.append("# HELP ca_health_cells Live cells by health, bucket 0 the weakest\n# TYPE ca_health_cells gauge\n");
+		for(int bucket = 0; bucket < PopulationStats.HEALTH_BUCKETS; bucket++) {
+			text.append("ca_health_cells{bucket=\"").append(bucket).append("\"} ").append(population.health[bucket]).append('\n');
+		}
+		if(population.minX <= population.maxX) {
+			text.append("# HELP ca_live_bounds Bounding box of the live cells on the full board\n# TYPE ca_live_bounds gauge\n");
+			text.append("ca_live_bounds{edge=\"min_x\"} ").append(population.minX).append('\n');
+			text.append("ca_live_bounds{edge=\"max_x\"} ").append(population.maxX).append('\n');
+			text.append("ca_live_bounds{edge=\"min_y\"} ").append(population.minY).append('\n');
+			text.append("ca_live_bounds{edge=\"max_y\"} ").append(population.maxY).append('\n');
+		}
+	}
+
+	/** Adds the percentiles of every link histogram from the last frame, and the balancing decisions so far.
+	 */
+	private static void appendLinks(StringBuilder text, ArrayList<NodeMetrics> chain) {
+		for(int histogram = 0; histogram < LinkStats.HISTOGRAM_NAMES.length; histogram++) {
+			boolean isBytes = histogram == LinkStats.HISTOGRAM_BYTES;
+			String name = "ca_link_" + LinkStats.HISTOGRAM_NAMES[histogram] + (isBytes ? "" : "_seconds");
+			text.append("# HELP ").append(name).append(" Percentiles over the node's last frame, quantile 1 is the max\n# TYPE ").append(name).append(" gauge\n");
+			for(NodeMetrics node : chain) {
+				for(LinkStats.Summary link : node.links) {
+					long[] summary = link.histograms[histogram];
+					if(summary == null || summary[0] == 0) {	// The side doesn't keep it, or nothing of this kind happened on the link
+						continue;
+					}
+					String labels = "node=\"" + node.fragment.getNodeNumber() + "\",side=\"" + LinkStats.SIDE_NAMES[link.side] + "\"";
+					for(int p = 0; p <= LogHistogram.PERCENTILES.length; p++) {
+						double quantile = p < LogHistogram.PERCENTILES.length ? LogHistogram.PERCENTILES[p] / 100 : 1;
+						Object value = isBytes ? (Object) summary[p + 1] : (Object) (summary[p + 1] / 1e9);
+						text.append(name).append('{').append(labels).append(",quantile=\"").append(quantile).append("\"} ").append(value).append('\n');
+					}
+					text.append(name).append("_count{").append(labels).append("} ").append(summary[0]).append('\n');
+				}
+			}
+		}
+		text.append("# HELP ca_link_columns_total Balancing decisions on the link since it connected\n# TYPE ca_link_columns_total counter\n");
+		for(NodeMetrics node : chain) {
+			for(LinkStats.Summary link : node.links) {
+				String labels = "node=\"" + node.fragment.getNodeNumber() + "\",side=\"" + LinkStats.SIDE_NAMES[link.side] + "\"";
+				text.append("ca_link_columns_total{").append(labels).append(",direction=\"taken\"} ").append(link.columnsTaken).append('\n');
+				text.append("ca_link_columns_total{").append(labels).append(",direction=\"given\"} ").append(link.columnsGiven).append('\n');
+			}
+		}
+	}
+
+	private static void appendGauge(StringBuilder text, String name, String help, Object value) {
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(name).append(" gauge\n");
+		text.append(name).append(' ').append(value).append('\n');
+	}
+
+	/** Serves toPrometheus on /metrics.
+	 * @param httpPort Port to listen on, only on this machine
+	 * @throws IOException
+	 */
+	public synchronized void serve(int httpPort) throws IOException {
+		if(httpServer != null) {
+			return;
+		}
+		httpServer = HttpServer.create(new InetSocketAddress("localhost", httpPort), 0);
+		httpServer.createContext("/metrics", this::handle);
+		httpServer.start();
+	}
+
+	/**
+	 * @return Port /metrics is served on, -1 if it isn't
+	 */
+	public synchronized int getHttpPort() {
+		return httpServer == null ? -1 : httpServer.getAddress().getPort();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/** Stops serving and unregisters from JMX.
+	 */
+	synchronized void close() {
+		if(httpServer != null) {
+			httpServer.stop(0);
+			httpServer = null;
+		}
+		if(name != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			} catch (JMException e) {
+				e.printStackTrace();
+			}
+			name = null;
+		}
+	}
+}
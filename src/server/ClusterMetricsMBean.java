@@ -0,0 +1,113 @@
+package server;
+
+/**
+ * What ClusterMetrics shows over JMX, under ca:type=ClusterMetrics,port=the master's port.
+ * Per node arrays are in chain order.
+ */
+public interface ClusterMetricsMBean {
+
+	/**
+	 * @return Nodes that have sent a frame mark and are still connected
+	 */
+	int getNodes();
+
+	/**
+	 * @return Last frame every node finished
+	 */
+	int getSlowestFrame();
+
+	/**
+	 * @return Simulation steps per second of the whole cluster, smoothed
+	 */
+	double getStepsPerSecond();
+
+	/**
+	 * @return Compute time of the busiest node over the mean, 1 is perfectly balanced
+	 */
+	double getLoadImbalance();
+
+	/**
+	 * @return Compute time of every node over the time the slowest node took for the frame, 1 means nobody waited
+	 */
+	double getParallelEfficiency();
+
+	/**
+	 * @return Node that took longest for its last frame, -1 before any frame mark
+	 */
+	int getSlowestNode();
+
+	/**
+	 * @return Bytes exchanged between neighbors, headers included, since the start
+	 */
+	long getBytesExchanged();
+
+	/**
+	 * @return Columns moved between neighbors by balancing since the start
+	 */
+	long getColumnsMoved();
+
+	/**
+	 * @return Cells holding bacteria on the whole board
+	 */
+	long getOccupiedCells();
+
+	/**
+	 * @return Last step every node sent its population of, the rest of the population is of this step
+	 */
+	int getPopulationStep();
+
+	/**
+	 * @return Cells holding bacteria on the whole board after the step
+	 */
+	long getLiveCells();
+
+	/**
+	 * @return Bacteria born during the step
+	 */
+	long getBirths();
+
+	/**
+	 * @return Bacteria that died during the step
+	 */
+	long getDeaths();
+
+	/**
+	 * @return Cells whose value changed during the step, 0 once the board is still
+	 */
+	long getChangedCells();
+
+	/**
+	 * @return Bacteria born over every step so far
+	 */
+	long getTotalBirths();
+
+	/**
+	 * @return Bacteria that died over every step so far
+	 */
+	long getTotalDeaths();
+
+	/**
+	 * @return Live cells by health after the step, see PopulationStats.HEALTH_BUCKETS
+	 */
+	long[] getHealthHistogram();
+
+	/**
+	 * @return Smallest and largest x, then y, of the live cells on the full board, empty when there are none
+	 */
+	int[] getLiveBounds();
+
+	/**
+	 * @return Milliseconds each node spent stepping during its last frame
+	 */
+	double[] getNodeComputeMillis();
+
+	/**
+	 * @return Milliseconds each node spent exchanging during its last frame
+	 */
+	double[] getNodeNetworkMillis();
+
+	/**
+	 * @return Width of each node's board
+	 */
+	int[] getNodeWidths();
+}
@@ -1,30 +1,89 @@
 package server;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 
+import local.Allreduce;
+import local.CAFragment;
 import local.CARenderer;
 import local.LocalFragment;
+import local.TileHost;
+import transferManagers.BalancingSignal;
 
 public class ClusterOverseer {
-	private ArrayList<ServerFragment> fragments;
+	public static final int MIN_WIDTH = 4;	// Narrowest board calibration will hand out, a node needs some columns besides its borders
+	public static final int PAUSE_MARGIN_FRAMES = 2;	// Balancers leave the last frames of the run alone, a pause there would not pay off
+	public static final int MIN_STRIP_WIDTH = 2;	// Narrowest strip, not counting its border columns
+	public static final int STRIP_BALANCE_FRAMES = 5;	// Frames between looks at the strip costs, a move needs a few frames to show up in them
+	public static final double STRIP_IMBALANCE = 1.15;	// How much busier than the mean the busiest node has to be before strips move
+	public static final int MAX_STRIP_MOVES = 8;	// Most strips moved in one go
+	public static final List<String> SERVER_FLAGS = Arrays.asList("calibrate", "probe", "stop-when-quiet");	// -s options that are on when given
+	public static final List<String> SERVER_OPTIONS = Arrays.asList("workload", "signal", "strips", "grid", "metrics", "trace", "heatmap");	// -s options followed by a value
+	
+	private volatile ArrayList<ServerFragment> fragments;	// The chain, left to right
+	private ArrayList<ServerFragment> spareFragments = new ArrayList<ServerFragment>();	// Connected after the start, waiting to be added
+	private ArrayList<ServerFragment> connectedFragments = new ArrayList<ServerFragment>();	// The first nodes to connect, in order
+	private int nodesToConnect;
+	private ControlPlane controlPlane;
+	private ClusterMetrics metrics;
+	private TraceWriter traceWriter;	// Null when not tracing
+	private CostHeatmap heatmap;	// Null when the column costs weren't asked for
+	private Reducer reducer = new Reducer(this::frameReduced);
+	private volatile boolean isStoppingWhenQuiet = false;
+	private boolean isStopping = false;	// The run is already being ended early
+	
+	private int height;
+	private int simplexSeed;
+	private int stepsPerFrame;
+	private int framesToSimulate;
+	private boolean isBalancing;
+	private int nodePortBase;
+	private int rightPortBase;
+	private boolean isRendering;
+	private int balancingSignal;
+	private String workload;
+	private int stripsPerNode;
+	private int gridRows;
+	
+	private int[] stripOwner;	// Which node has each strip, by place in the chain
+	private int[] stripX;	// Where each strip's board starts on the full board, border column included
+	private int[] stripWidth;	// Width of each strip's board, border columns included
+	private int[] columnBounds;	// Where each column of tiles starts, then the full width
+	private int[] rowBounds;	// Where each row of tiles starts, then the full height
+	private Map<ServerFragment, Integer> meshPorts = new IdentityHashMap<ServerFragment, Integer>();	// Where each node's HaloRouter listens, it keeps the port when it moves
 	
 	@SuppressWarnings("unused")
 	public static void main(String[] args) throws IOException{
-		if(args.length == 2 && args[0].equals("-c")) {
+		if(args.length >= 2 && args.length <= 4 && args[0].equals("-c")) {
 			
-			LocalFragment lf = new LocalFragment(args[1]);
+			//java -jar client.jar -c 192.168.0.1 10 4:majority:1,8:mean:1
+			String masterIP = args[1];
+			int masterPort = ServerFragment.PORT;
+			if(masterIP.contains(":")) {
+				masterPort = Integer.parseInt(masterIP.substring(masterIP.lastIndexOf(':') + 1));
+				masterIP = masterIP.substring(0, masterIP.lastIndexOf(':'));
+			}
+			int fullResolutionCadence = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+			String detailLevels = args.length > 3 ? args[3] : null;
+			LocalFragment lf = new LocalFragment(masterIP, masterPort, fullResolutionCadence, detailLevels);
 			
-		}else if(args.length == 8 && args[0].equals("-s")) {
+		}else if(args.length >= 8 && args[0].equals("-s")) {
 			
-			//java -jar client.jar -s 500 500 3 1 50 500
+			//java -jar client.jar -s 500 500 3 1 50 500 true --workload noise:0.5:4@1,1,2 --signal blend --calibrate --strips 8
 			int width = Integer.parseInt(args[1]);
 			int height = Integer.parseInt(args[2]);
 			int nodes = Integer.parseInt(args[3]);
@@ -32,7 +91,23 @@ public class ClusterOverseer {
 			int stepsPerFrame = Integer.parseInt(args[5]);
 			int framesToSimulate = Integer.parseInt(args[6]);
 			boolean isBalancing = args[7].contains("t");
-			ClusterOverseer co = new ClusterOverseer(width, height, nodes, seed, stepsPerFrame, framesToSimulate, isBalancing);
+			Map<String, String> options = parseOptions(args, 8, SERVER_FLAGS, SERVER_OPTIONS);
+			String workload = options.get("workload");
+			int balancingSignal = options.containsKey("signal") ? BalancingSignal.parse(options.get("signal")) : BalancingSignal.SIGNAL_TIME;
+			boolean isCalibrating = options.containsKey("calibrate");
+			int stripsPerNode = Integer.parseInt(options.getOrDefault("strips", "0"));
+			int gridRows = Integer.parseInt(options.getOrDefault("grid", "0"));
+			boolean isProbing = options.containsKey("probe");
+			int metricsPort = Integer.parseInt(options.getOrDefault("metrics", "-1"));
+			String traceFile = options.get("trace");
+			String heatmapFile = options.get("heatmap");
+			boolean isStoppingWhenQuiet = options.containsKey("stop-when-quiet");
+			ClusterOverseer co = new ClusterOverseer(width, height, nodes, seed, stepsPerFrame, framesToSimulate, isBalancing, ServerFragment.PORT, 0, 0, true, balancingSignal, workload, isCalibrating, stripsPerNode, gridRows, isProbing, traceFile, heatmapFile, null);
+			co.setStoppingWhenQuiet(isStoppingWhenQuiet);
+			if(metricsPort >= 0) {
+				co.getMetrics().serve(metricsPort);
+			}
+			co.readCommands(System.in);
 			
 		}else if(args.length == 5 && args[0].equals("-u")) {
 			
@@ -43,9 +118,14 @@ public class ClusterOverseer {
 			int frames = Integer.parseInt(args[4]);
 			CARenderer.combineAllImages(width, height, nodes);
 			
-		}else if(args.length == 1 && args[0].equals("-r")) {
+		}else if(args.length >= 5 && args[0].equals("-r")) {
 			
-			CARenderer.renderVideo();
+			//java -jar client.jar -r 500 500 3 20 ffmpeg -f yuv4mpegpipe -i - -c:v libx264 -pix_fmt yuv420p output.mp4 -y
+			int width = Integer.parseInt(args[1]);
+			int height = Integer.parseInt(args[2]);
+			int nodes = Integer.parseInt(args[3]);
+			int fps = Integer.parseInt(args[4]);
+			CARenderer.renderVideo(width, height, nodes, fps, Arrays.asList(args).subList(5, args.length));
 			
 		}else if(args.length == 1 && args[0].equals("-t")) {
 			File path = null;
@@ -66,24 +146,82 @@ public class ClusterOverseer {
 		}
 	}
 	
+	/** Reads named options like --strips 8 or --probe, in any order. Every one can be left out.
+	 * @param args The arguments
+	 * @param start Where the options start
+	 * @param flags Options that take no value, they come back as "true"
+	 * @param valued Options followed by their value
+	 * @return Every option given, by name without the dashes
+	 */
+	public static Map<String, String> parseOptions(String[] args, int start, List<String> flags, List<String> valued) {
+		Map<String, String> options = new HashMap<String, String>();
+		for(int i = start; i < args.length; i++) {
+			String name = args[i].startsWith("--") ? args[i].substring(2) : null;
+			if(flags.contains(name)) {
+				options.put(name, "true");
+			}else if(valued.contains(name)) {
+				if(i + 1 >= args.length) {
+					throw new IllegalArgumentException("--" + name + " needs a value");
+				}
+				options.put(name, args[++i]);
+			}else {
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+		return options;
+	}
+	
 	private static void printHelp() {
 		System.out.println();
 		System.out.println("Server Use:");
 		System.out.println("The server will wait for `nodes` number of computers to connect, then it will start simulation");
-		System.out.println("	java -jar ca.jar -s width height nodes seed stepsPerFrame framesToSimulate, isBalancing");
+		System.out.println("	java -jar ca.jar -s width height nodes seed stepsPerFrame framesToSimulate isBalancing [options]");
 		System.out.println("		width: How wide in pixels each node starts as.");
 		System.out.println("		height: How tall in pixels the entire simulation is.");
 		System.out.println("		nodes: How many nodes that the server will wait to connect before starting.");
 		System.out.println("		seed: Seed of the noise function.");
 		System.out.println("		stepsPerFrame: How many simulation steps to do before rendering.");
 		System.out.println("		framesToSimulate: How many frames to render.");
-		System.out.println("		framesToSimulate: Should the cluster try to load balance.");
+		System.out.println("		isBalancing: Should the cluster try to load balance.");
+		System.out.println("	Options, in any order, each can be left out:");
+		System.out.println("		--workload spec: Simulated work per bacteria, type:values...@slowdowns. Types are none, uniform, random, noise and hotspot.");
+		System.out.println("			Slowdowns are per node, comma separated, 2 makes a node work at half speed. Default uniform:1.");
+		System.out.println("		--signal name: What neighbors compare to decide who gets a column. Default time.");
+		System.out.println("			time: How long the step took. work: Work counted during the step, no timing noise but blind to machine speed.");
+		System.out.println("			blend: Counted work times the measured time per unit of work, smoothed.");
+		System.out.println("		--calibrate: Benchmark every node first and give faster nodes wider boards, the whole board stays width * nodes wide.");
+		System.out.println("		--strips n: Cut the board into this many strips per node and balance by moving whole strips between any two nodes.");
+		System.out.println("			Nodes don't write frames in this mode. Default 0, one board per node balanced with its neighbors.");
+		System.out.println("		--grid rows: Cut the board into a grid of tiles with this many rows instead of a chain, nodes has to be a multiple of it.");
+		System.out.println("			-1 picks the rows that give the least border per tile. Balancing moves the row and column bounds. Nodes don't write frames in this mode.");
+		System.out.println("		--probe: Measure the links between every two nodes first and order the chain, or place the tiles, so the slowest neighbor link is as fast as it can be.");
+		System.out.println("		--metrics port: Serve the cluster metrics as Prometheus text on http://localhost:port/metrics. They are always on JMX as ca:type=ClusterMetrics.");
+		System.out.println("		--trace file: Record what every node does each step and write it to this file as a Chrome trace, open it in chrome://tracing or Perfetto.");
+		System.out.println("		--heatmap file: Write what every column cost each frame to this PNG, one row per frame with the node boundaries drawn in, and as CSV next to it.");
+		System.out.println("		--stop-when-quiet: End the run early once a whole frame changes no cell, or every bacteria is dead.");
 		System.out.println("Example: java -jar ca.jar -s 500 500 3 1 50 500 false");
+		System.out.println("Example: java -jar ca.jar -s 500 500 3 1 50 500 true --workload noise:0.5:4:64:50:7@1,1,2 --signal blend --calibrate");
+		System.out.println("Example: java -jar ca.jar -s 500 500 3 1 50 500 true --workload hotspot:0.5:8:0:40:0.5 --strips 8");
+		System.out.println("Example: java -jar ca.jar -s 100 2000 4 1 50 500 true --workload noise:0.5:4:64:50:7 --signal work --grid -1");
+		System.out.println("Example: java -jar ca.jar -s 500 500 8 1 50 500 true --probe --metrics 9100 --trace trace.json --heatmap costs.png --stop-when-quiet");
+		System.out.println("While it runs, more nodes can connect as spares. Type `add` to put a spare at the right end of the chain,");
+		System.out.println("or `drain n` to take node n out. The cluster pauses after an upcoming frame and the board is split evenly again. Not in grid mode.");
 		System.out.println();
 		
 		System.out.println("Client Use:");
-		System.out.println("	java -jar ca.jar -c masterIP");
+		System.out.println("	java -jar ca.jar -c masterIP[:port] [fullResolutionCadence] [detailLevels]");
+		System.out.println("		fullResolutionCadence: Only write the full frame every this many frames, 0 for never. Default 1.");
+		System.out.println("		detailLevels: Downsampled previews, factor:aggregation:cadence separated by commas, aggregation is majority or mean.");
 		System.out.println("Example: java -jar ca.jar -c 192.168.0.1");
+		System.out.println("Example: java -jar ca.jar -c 192.168.0.1 10 4:majority:1,8:mean:1");
+		System.out.println();
+		
+		System.out.println("Video Use:");
+		System.out.println("Combines the frames of every node into a y4m video, either output/output.y4m or piped into an encoder");
+		System.out.println("	java -jar ca.jar -r width height nodes fps [encoder command...]");
+		System.out.println("		fps: Frame rate of the video.");
+		System.out.println("		encoder command: Optional, gets the y4m stream on its stdin.");
+		System.out.println("Example: java -jar ca.jar -r 500 500 3 20 ffmpeg -f yuv4mpegpipe -i - -c:v libx264 -pix_fmt yuv420p output.mp4 -y");
 		System.out.println();
 	}
 
@@ -97,45 +235,1165 @@ public class ClusterOverseer {
 	 * @throws IOException
 	 */
 	public ClusterOverseer(int width, int height, int nodes, int simplexSeed, int stepsPerFrame, int framesToSimulate, boolean isBalancing) throws IOException{
-		ServerSocket server = new ServerSocket(ServerFragment.PORT);
-		fragments = new ArrayList<ServerFragment>(nodes);
+		this(width, height, nodes, simplexSeed, stepsPerFrame, framesToSimulate, isBalancing, ServerFragment.PORT, 0, 0, true, BalancingSignal.SIGNAL_TIME, null, false, 0, 0, false, null, null, null);
+	}
+	
+	/** Constructs and starts the server side of the CA simulation, with the options needed to run several nodes on one machine. 
+	 * @param width How wide in pixels each node starts as.
+	 * @param height How tall in pixels the entire simulation is.
+	 * @param nodes How tall in pixels the entire simulation is.
+	 * @param simplexSeed Seed of the noise function.
+	 * @param stepsPerFrame How many simulation steps to do before rendering.
+	 * @param framesToSimulate How many frames to render.
+	 * @param isBalancing Should the cluster try to load balance.
+	 * @param port Port to accept nodes on.
+	 * @param nodePortBase If not 0 node i listens for its left neighbor on nodePortBase + i, or with strips or a grid its HaloRouter listens there, otherwise every node uses the default port.
+	 * @param rightPortBase If not 0 node i connects to its right neighbor on rightPortBase + i instead of the port the neighbor listens on, so a proxy can sit in between.
+	 * @param isRendering Should the nodes write frames.
+	 * @param balancingSignal What the nodes balance on, one of the BalancingSignal constants.
+	 * @param workload Workload spec the nodes simulate their work with, see Workload.parse, or null for the default.
+	 * @param isCalibrating Should every node benchmark itself first, so faster nodes start with wider boards.
+	 * @param stripsPerNode 0 for one board per node balanced with its neighbors, otherwise the board is cut into this many strips per node and whole strips move between any two nodes.
+	 * @param gridRows 0 for a chain, otherwise the board is cut into a grid of tiles with this many rows, -1 to pick the rows with the least border.
+	 * @param isProbing Should the links between the nodes be measured first, so the nodes are placed with the best links between neighbors instead of in the order they connected.
+	 * @param traceFile Write a Chrome trace of what every node does to this file, or null to not trace.
+	 * @param heatmapFile Write what every column cost each frame to this PNG and a CSV next to it, or null to not ask the nodes for it.
+	 * @param frameListener Gets every frame mark, or null to print a line whenever every node finished a frame.
+	 * @throws IOException
+	 */
+	public ClusterOverseer(int width, int height, int nodes, int simplexSeed, int stepsPerFrame, int framesToSimulate, boolean isBalancing, int port, int nodePortBase, int rightPortBase, boolean isRendering, int balancingSignal, String workload, boolean isCalibrating, int stripsPerNode, int gridRows, boolean isProbing, String traceFile, String heatmapFile, ServerFragment.FrameListener frameListener) throws IOException{
+		this.height = height;
+		this.simplexSeed = simplexSeed;
+		this.stepsPerFrame = stepsPerFrame;
+		this.framesToSimulate = framesToSimulate;
+		this.isBalancing = isBalancing;
+		this.nodePortBase = nodePortBase;
+		this.rightPortBase = rightPortBase;
+		this.isRendering = isRendering;
+		this.balancingSignal = balancingSignal;
+		this.workload = workload;
+		this.stripsPerNode = stripsPerNode;
+		this.gridRows = gridRows < 0 ? getGridRows(width * nodes, height, nodes) : gridRows;
+		if(this.gridRows > 0 && (stripsPerNode > 0 || nodes % this.gridRows != 0)) {
+			throw new IllegalArgumentException("A grid can't have strips and needs a multiple of " + this.gridRows + " nodes");
+		}
+		nodesToConnect = nodes;
+		metrics = new ClusterMetrics(stepsPerFrame, port);
+		if(traceFile != null) {
+			traceWriter = new TraceWriter(traceFile);
+		}
+		if(heatmapFile != null) {
+			heatmap = new CostHeatmap(heatmapFile, width * nodes);
+		}
+		controlPlane = new ControlPlane(port, frameListener, metrics, traceWriter, heatmap, reducer, this::nodeConnected);
+		controlPlane.start();
 		System.out.println("Now accepting connections: ");
-		for(int i = 0; i < nodes; i++) {
-			Socket newNode = server.accept();
-			ServerFragment newFragment = new ServerFragment(newNode);
-			fragments.add(newFragment);
-			System.out.println(newNode.getInetAddress().getHostAddress() + ": Connected");
+		synchronized (spareFragments) {
+			while(connectedFragments.size() < nodes) {
+				try { spareFragments.wait(); } catch (InterruptedException e) { }
+			}
+			setChain(new ArrayList<ServerFragment>(connectedFragments));
+		}
+		if(isProbing) {
+			System.out.println("All nodes connected, probing links...");
+			orderByLinks(width * nodes);
+		}
+		int[] widths = new int[nodes];
+		Arrays.fill(widths, width);
+		if(isCalibrating) {
+			System.out.println("All nodes connected, calibrating...");
+			widths = calibrate(width * nodes, workload);
 		}
-		server.close();
 		System.out.println("All nodes connected, initializing...");
+		if(stripsPerNode > 0) {
+			startStrips(widths);
+			return;
+		}
+		if(this.gridRows > 0) {
+			startGrid(width * nodes);
+			return;
+		}
+		int boardXPosition = 0;
 		for(int i = 0; i < fragments.size(); i++) {
 			ServerFragment currentFragment = fragments.get(i);
-			int startX = i == 0 ? 250 : -1;
-			int startY = 100;
-			byte[] rightNode = new byte[4];
-			boolean hasRight = i < fragments.size() - 1;
-			boolean hasLeft = i != 0;
-			if(hasRight) {
-				rightNode = fragments.get(i + 1).getAddress();  
-			}
-			currentFragment.initialize(
-					width, 
-					height, 
-					simplexSeed,
-					startX,
-					startY,
-					rightNode, 
-					i * width,
-					stepsPerFrame,
-					framesToSimulate,
-					hasLeft,
-					hasRight,
-					isBalancing
-					);
-		}
-		System.out.println("All nodes initialized, starting simulation...");
+			int startX = i == 0 ? Math.min(250, widths[i] / 2) : -1;
+			currentFragment.initialize(getMetadata(fragments, i, widths[i], boardXPosition, startX), i);
+			boardXPosition += widths[i];
+		}
+		startWhenReady();
+	}
+	
+	/** Waits until every node has connected to its neighbors, then starts them all at once so no node waits on a neighbor that is still connecting.
+	 */
+	private void startWhenReady() {
+		long startTime = System.nanoTime();
+		try {
+			for(ServerFragment fragment : fragments) {
+				fragment.waitForReady();
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		System.out.println("All nodes connected to their neighbors in " + (System.nanoTime() - startTime) / 1000000 + " ms, starting simulation...");
 		for(ServerFragment fragment : fragments) {
 			fragment.startSimulation();
 		}
 	}
+	
+	/** Reads add and drain commands, one per line, until the stream ends. Runs in its own thread.
+	 * @param in Where to read commands from, usually stdin
+	 */
+	public void readCommands(InputStream in) {
+		Thread commands = new Thread(() -> {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+			try {
+				String line;
+				while((line = reader.readLine()) != null) {
+					String[] command = line.trim().split("\\s+");
+					if(command[0].equals("add")) {
+						addNode();
+					}else if(command[0].equals("drain") && command.length == 2) {
+						drainNode(Integer.parseInt(command[1]));
+					}else if(!command[0].isEmpty()) {
+						System.out.println("Commands: add, drain nodeNumber");
+					}
+				}
+			} catch (IOException | InterruptedException | NumberFormatException e) {
+				e.printStackTrace();
+			}
+		}, "ClusterOverseer commands");
+		commands.setDaemon(true);
+		commands.start();
+	}
+	
+	/** Builds the metadata packet for one place in a chain.
+	 * @param chain The chain, left to right
+	 * @param i Which place
+	 * @param width Width of the board at that place
+	 * @param boardXPosition Where on the full board it lies
+	 * @param startX Where to place the first bacteria, -1 to not
+	 * @return The packet
+	 */
+	private byte[] getMetadata(ArrayList<ServerFragment> chain, int i, int width, int boardXPosition, int startX) {
+		int startY = Math.min(100, height / 2);
+		byte[] rightNode = new byte[4];
+		boolean hasRight = i < chain.size() - 1;
+		boolean hasLeft = i != 0;
+		if(hasRight) {
+			rightNode = chain.get(i + 1).getAddress();  
+		}
+		int leftPort = nodePortBase == 0 ? ServerFragment.PORT : nodePortBase + i;
+		int rightPort = nodePortBase == 0 ? ServerFragment.PORT : nodePortBase + i + 1;
+		if(rightPortBase != 0) {
+			rightPort = rightPortBase + i;
+		}
+		if(stripsPerNode > 0 || gridRows > 0) {
+			leftPort = getMeshPort(chain.get(i));
+		}
+		return ServerFragment.getMetadataPacket(
+				width, 
+				height, 
+				simplexSeed,
+				startX,
+				startY,
+				rightNode, 
+				boardXPosition,
+				stepsPerFrame,
+				framesToSimulate,
+				hasLeft,
+				hasRight,
+				isBalancing,
+				i,
+				leftPort,
+				rightPort,
+				isRendering && stripsPerNode == 0 && gridRows == 0,
+				balancingSignal,
+				stripsPerNode,
+				gridRows,
+				workload
+				);
+	}
+	
+	/** Takes a node that just connected, the first ones make up the cluster and the rest wait as spares until addNode puts them in the chain.
+	 * Runs on the control plane thread.
+	 * @param fragment The node
+	 */
+	private void nodeConnected(ServerFragment fragment) {
+		String address = fragment.getHostAddress();
+		if(traceWriter != null) {	// Spares too, their clocks are lined up by the time they are added
+			fragment.startTracing();
+		}
+		if(heatmap != null) {
+			fragment.startCostProfile(heatmap.getBinColumns());
+		}
+		synchronized (spareFragments) {
+			if(connectedFragments.size() < nodesToConnect) {
+				connectedFragments.add(fragment);
+				System.out.println(address + ": Connected");
+				spareFragments.notifyAll();
+			}else {
+				spareFragments.add(fragment);
+				System.out.println(address + ": Connected as a spare, add it with `add`");
+			}
+		}
+	}
+	
+	/** Adds a spare node to the right end of the chain at the next safe frame, the board is split evenly again.
+	 * @return False if there was no spare node or it is too late in the run
+	 * @throws InterruptedException
+	 */
+	public boolean addNode() throws InterruptedException {
+		if(gridRows > 0) {
+			System.out.println("Nodes can't be added to a grid");
+			return false;
+		}
+		ServerFragment spare;
+		synchronized (spareFragments) {
+			if(spareFragments.isEmpty()) {
+				System.out.println("No spare node connected");
+				return false;
+			}
+			spare = spareFragments.remove(0);
+		}
+		ArrayList<ServerFragment> chain = new ArrayList<ServerFragment>(fragments);
+		chain.add(spare);
+		boolean isReconfigured;
+		if(stripsPerNode > 0) {
+			synchronized (this) {	// The new node starts empty and takes strips from the busiest
+				int[] owner = stripOwner.clone();
+				moveStrips(owner, getStripCosts(true), chain.size(), 1);
+				isReconfigured = reconfigureStrips(chain, owner);
+			}
+		}else {
+			isReconfigured = reconfigure(chain);
+		}
+		if(!isReconfigured) {
+			synchronized (spareFragments) {
+				spareFragments.add(0, spare);
+			}
+			return false;
+		}
+		return true;
+	}
+	
+	/** Takes a node out of the chain at the next safe frame, its columns go to the rest and the board is split evenly again.
+	 * @param nodeNumber Which node, counting from the left
+	 * @return False if it can't be drained or it is too late in the run
+	 * @throws InterruptedException
+	 */
+	public boolean drainNode(int nodeNumber) throws InterruptedException {
+		if(nodeNumber < 0 || nodeNumber >= fragments.size() || fragments.size() < 2 || gridRows > 0) {
+			System.out.println("Can't drain node " + nodeNumber + " of " + fragments.size());
+			return false;
+		}
+		ArrayList<ServerFragment> chain = new ArrayList<ServerFragment>(fragments);
+		ServerFragment drained = chain.remove(nodeNumber);
+		boolean isReconfigured;
+		if(stripsPerNode > 0) {
+			synchronized (this) {	// The drained node's strips go to whoever is least busy
+				int[] owner = stripOwner.clone();
+				for(int s = 0; s < owner.length; s++) {
+					owner[s] = owner[s] == nodeNumber ? -1 : owner[s] > nodeNumber ? owner[s] - 1 : owner[s];
+				}
+				moveStrips(owner, getStripCosts(true), chain.size(), STRIP_IMBALANCE);
+				isReconfigured = reconfigureStrips(chain, owner);
+			}
+		}else {
+			isReconfigured = reconfigure(chain);
+		}
+		if(!isReconfigured) {
+			return false;
+		}
+		drained.drain();
+		return true;
+	}
+	
+	/** Pauses every node after the same frame, collects their boards, splits the board evenly over the new chain and hands it out.
+	 * The nodes reconnect to their new neighbors and carry on with the next frame.
+	 * @param chain The new chain, left to right, every node in it is either in the old chain or a spare
+	 * @return False if it is too late in the run to pause
+	 * @throws InterruptedException
+	 */
+	private synchronized boolean reconfigure(ArrayList<ServerFragment> chain) throws InterruptedException {
+		int pauseFrame = getPauseFrame();
+		if(pauseFrame < 0) {
+			return false;
+		}
+		for(ServerFragment fragment : fragments) {
+			fragment.pause(pauseFrame);
+		}
+		
+		// Stitch the boards back together, leaving out the columns neighbors share
+		ArrayList<byte[]> columns = new ArrayList<byte[]>();
+		int stepCount = 0;
+		int fullXPosition = 0;
+		for(int i = 0; i < fragments.size(); i++) {
+			byte[][] board = fragments.get(i).waitForBoard();
+			if(i == 0) {
+				stepCount = fragments.get(i).getBoardStepCount();
+				fullXPosition = fragments.get(i).getBoardXPosition();
+			}
+			int first = i == 0 ? 0 : 1;
+			int last = i == fragments.size() - 1 ? board.length - 1 : board.length - 2;
+			for(int x = first; x <= last; x++) {
+				columns.add(board[x]);
+			}
+		}
+		
+		int totalWidth = columns.size();
+		if(totalWidth < chain.size() * MIN_WIDTH) {
+			throw new IllegalStateException("Board is only " + totalWidth + " wide, too narrow for " + chain.size() + " nodes");
+		}
+		for(int i = 0; i < chain.size(); i++) {
+			int ownedStart = (int) ((long) totalWidth * i / chain.size());
+			int ownedEnd = (int) ((long) totalWidth * (i + 1) / chain.size());
+			int boardStart = ownedStart - (i == 0 ? 0 : 1);	// Plus a shared column on each side that has a neighbor
+			int boardEnd = ownedEnd + (i == chain.size() - 1 ? 0 : 1);
+			byte[][] board = new byte[boardEnd - boardStart][];
+			for(int x = 0; x < board.length; x++) {
+				board[x] = columns.get(boardStart + x).clone();
+			}
+			chain.get(i).assign(getMetadata(chain, i, board.length, fullXPosition + boardStart, -1), i, pauseFrame, stepCount, board);
+			System.out.println("Node " + i + ": " + board.length + " wide at " + (fullXPosition + boardStart));
+		}
+		setChain(chain);
+		return true;
+	}
+	
+	/** Holds every node and picks the frame they all pause after, see holdNodes.
+	 * If it is too late in the run the nodes are let go again.
+	 * @return The frame, every node is held until it is told to pause after it, -1 if it is too late in the run
+	 * @throws InterruptedException
+	 */
+	private int getPauseFrame() throws InterruptedException {
+		int pauseFrame = holdNodes();
+		if(pauseFrame >= framesToSimulate - 1) {
+			System.out.println("Too close to the end of the run to reconfigure");
+			releaseNodes();
+			return -1;
+		}
+		System.out.println("Pausing after frame " + pauseFrame + "...");
+		return pauseFrame;
+	}
+	
+	/** Agrees with every node on a frame none of them has started. Each node answers with the frame it is on and starts no later one
+	 * until it is told what to do, so the frame after the furthest answer is one every node still has ahead of it.
+	 * The answers come from the nodes' connection threads, so a node stuck behind a slower neighbor still answers.
+	 * @return The frame, Integer.MAX_VALUE if a node already finished the run
+	 * @throws InterruptedException
+	 */
+	private int holdNodes() throws InterruptedException {
+		for(ServerFragment fragment : fragments) {
+			fragment.hold();
+		}
+		int furthestFrame = -1;
+		for(ServerFragment fragment : fragments) {
+			furthestFrame = Math.max(furthestFrame, fragment.waitForHeldFrame());
+		}
+		return furthestFrame == Integer.MAX_VALUE ? furthestFrame : furthestFrame + 1;
+	}
+	
+	/**
+	 * Lets every held node carry on.
+	 */
+	private void releaseNodes() {
+		for(ServerFragment fragment : fragments) {
+			fragment.release();
+		}
+	}
+	
+	/** Makes these the nodes simulating, the metrics and reductions wait for every one of them.
+	 * @param chain The nodes, in order
+	 */
+	private void setChain(ArrayList<ServerFragment> chain) {
+		metrics.setChainLength(chain.size());
+		reducer.setChain(chain);
+		fragments = chain;
+	}
+	
+	/** Gets the whole cluster's values of every frame, see Allreduce, and ends the run early once nothing is happening any more.
+	 * Runs on the control plane thread.
+	 * @param frame The frame
+	 * @param values Every node's values combined
+	 */
+	private void frameReduced(int frame, double[] values) {
+		if(!isStoppingWhenQuiet || isStopping) {
+			return;
+		}
+		if(values[Allreduce.VALUE_LIVE] > 0 && values[Allreduce.VALUE_CHANGED] > 0) {
+			return;
+		}
+		isStopping = true;
+		System.out.println((values[Allreduce.VALUE_LIVE] == 0 ? "Every bacteria is dead" : "The board stopped changing") + " in frame " + frame + ", ending the run early");
+		new Thread(this::stopEarly, "Early stop").start();
+	}
+	
+	/** Ends the run after a frame no node has started yet, agreed on the same way as a pause.
+	 */
+	private synchronized void stopEarly() {
+		int stopFrame;
+		try {
+			stopFrame = holdNodes();
+		} catch (InterruptedException e) {
+			releaseNodes();
+			return;
+		}
+		if(stopFrame >= framesToSimulate - 1) {	// Ends then anyway
+			releaseNodes();
+			return;
+		}
+		System.out.println("Stopping after frame " + stopFrame);
+		framesToSimulate = stopFrame + 1;
+		for(ServerFragment fragment : fragments) {
+			fragment.endAfter(stopFrame);
+		}
+	}
+	
+	/**
+	 * @param isStoppingWhenQuiet End the run early once a whole frame changes no cell or every bacteria is dead
+	 */
+	public void setStoppingWhenQuiet(boolean isStoppingWhenQuiet) {
+		this.isStoppingWhenQuiet = isStoppingWhenQuiet;
+	}
+	
+	/** Cuts the board into strips, hands each node the strips that fall in its part of the board and starts the strip balancer.
+	 * @param widths Width of each node's part of the board, even or from calibration
+	 */
+	private void startStrips(int[] widths) {
+		int totalWidth = Arrays.stream(widths).sum();
+		int strips = fragments.size() * stripsPerNode;
+		if(totalWidth < strips * MIN_STRIP_WIDTH) {
+			throw new IllegalStateException("Board is only " + totalWidth + " wide, too narrow for " + strips + " strips");
+		}
+		stripOwner = new int[strips];
+		stripX = new int[strips];
+		stripWidth = new int[strips];
+		int owner = 0;
+		int ownerEnd = widths[0];
+		for(int s = 0; s < strips; s++) {
+			int ownedStart = (int) ((long) totalWidth * s / strips);
+			int ownedEnd = (int) ((long) totalWidth * (s + 1) / strips);
+			stripX[s] = ownedStart - (s == 0 ? 0 : 1);	// Plus a border column on each side that has a neighbor
+			stripWidth[s] = ownedEnd + (s == strips - 1 ? 0 : 1) - stripX[s];
+			while((ownedStart + ownedEnd) / 2 >= ownerEnd && owner < widths.length - 1) {	// The node whose part has the middle of the strip
+				owner++;
+				ownerEnd += widths[owner];
+			}
+			stripOwner[s] = owner;
+		}
+		for(int i = 0; i < fragments.size(); i++) {
+			fragments.get(i).initialize(getMetadata(fragments, i, 0, 0, -1), i);
+		}
+		
+		int startX = Math.min(250, widths[0] / 2);
+		int startY = Math.min(100, height / 2);
+		ArrayList<Map<Integer, byte[][]>> boards = new ArrayList<Map<Integer, byte[][]>>();
+		for(int i = 0; i < fragments.size(); i++) {
+			boards.add(new TreeMap<Integer, byte[][]>());
+		}
+		for(int s = 0; s < strips; s++) {
+			byte[][] board = new byte[stripWidth[s]][height];
+			for(byte[] column : board) {
+				Arrays.fill(column, CAFragment.NO_BACTERIA);
+			}
+			int x = startX - stripX[s];
+			if(x >= (s == 0 ? 0 : 1) && x < stripWidth[s] - (s == strips - 1 ? 0 : 1)) {
+				board[x][startY] = CAFragment.MAX_BACTERIA;
+			}
+			boards.get(stripOwner[s]).put(s, board);
+		}
+		assignStrips(fragments, stripOwner, -1, 0, boards);
+		startWhenReady();
+		
+		if(isBalancing) {
+			Thread balancer = new Thread(this::balanceStrips, "ClusterOverseer strip balancer");
+			balancer.setDaemon(true);
+			balancer.start();
+		}
+	}
+	
+	/**
+	 * @param fragment A node
+	 * @return Port its HaloRouter listens on
+	 */
+	private int getMeshPort(ServerFragment fragment) {
+		synchronized (meshPorts) {
+			return meshPorts.computeIfAbsent(fragment, f -> nodePortBase == 0 ? ServerFragment.PORT : nodePortBase + meshPorts.size());
+		}
+	}
+	
+	/** Sends every node in a chain the strip table and the boards of the strips it gains.
+	 * @param chain The chain
+	 * @param owner Which node has each strip
+	 * @param frame Frame the cluster paused after, -1 at the start
+	 * @param stepCount How many steps the cluster has done
+	 * @param boards Boards each node gains, by place in the chain then strip
+	 */
+	private void assignStrips(ArrayList<ServerFragment> chain, int[] owner, int frame, int stepCount, ArrayList<Map<Integer, byte[][]>> boards) {
+		byte[][] addresses = new byte[chain.size()][];
+		int[] ports = new int[chain.size()];
+		for(int i = 0; i < chain.size(); i++) {
+			addresses[i] = chain.get(i).getAddress();
+			ports[i] = getMeshPort(chain.get(i));
+		}
+		for(int i = 0; i < chain.size(); i++) {
+			chain.get(i).assignStrips(i, frame, stepCount, addresses, ports, owner, stripX, stripWidth, boards.get(i));
+		}
+	}
+	
+	/**
+	 * Every few frames looks at what the strips cost and moves strips off the busiest node if it is too far above the rest.
+	 */
+	private void balanceStrips() {
+		int lastBalanced = -1;
+		while(true) {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) { }
+			synchronized (this) {
+				int frame = Integer.MAX_VALUE;
+				for(ServerFragment fragment : fragments) {
+					frame = Math.min(frame, fragment.getLastFrame());
+				}
+				if(frame + PAUSE_MARGIN_FRAMES >= framesToSimulate - 1) {
+					break;
+				}
+				if(frame < lastBalanced + STRIP_BALANCE_FRAMES) {
+					continue;
+				}
+				lastBalanced = frame;
+				long[] costs = getStripCosts(false);
+				if(costs == null) {
+					continue;
+				}
+				int[] owner = stripOwner.clone();
+				if(moveStrips(owner, costs, fragments.size(), STRIP_IMBALANCE)) {
+					try {
+						reconfigureStrips(fragments, owner);
+					} catch (InterruptedException e) { e.printStackTrace(); }
+				}
+			}
+		}
+	}
+	
+	/** Gathers what every strip cost during the last frame its node reported.
+	 * @param isGuessing Fill in strips nobody reported yet with the mean of the rest, otherwise give up
+	 * @return Cost of each strip, or null if some are missing
+	 */
+	private long[] getStripCosts(boolean isGuessing) {
+		long[] costs = new long[stripOwner.length];
+		Arrays.fill(costs, -1);
+		long total = 0;
+		int known = 0;
+		for(int i = 0; i < fragments.size(); i++) {
+			for(Map.Entry<Integer, Long> cost : fragments.get(i).getStripCosts().entrySet()) {
+				int strip = cost.getKey();
+				if(strip < costs.length && stripOwner[strip] == i) {	// Moved strips are still in the old node's costs until its next frame
+					costs[strip] = cost.getValue();
+					total += cost.getValue();
+					known++;
+				}
+			}
+		}
+		if(known < costs.length) {
+			if(!isGuessing) {
+				return null;
+			}
+			for(int s = 0; s < costs.length; s++) {
+				if(costs[s] < 0) {
+					costs[s] = known == 0 ? 1 : total / known;
+				}
+			}
+		}
+		return costs;
+	}
+	
+	/** Moves strips from the busiest node to the least busy one, as long as the busiest is too far above the mean and a strip fits in half the gap.
+	 * Strips next to one the least busy node already has go first, so more borders stay in memory.
+	 * @param owner Which node has each strip, changed in place, -1 for strips that have to go somewhere
+	 * @param costs What each strip costs
+	 * @param nodes How many nodes
+	 * @param imbalance How far above the mean the busiest node can be
+	 * @return If any strip moved
+	 */
+	static boolean moveStrips(int[] owner, long[] costs, int nodes, double imbalance) {
+		double[] load = new double[nodes];
+		boolean isMoved = false;
+		for(int s = 0; s < owner.length; s++) {
+			if(owner[s] >= 0) {
+				load[owner[s]] += costs[s];
+			}
+		}
+		for(int s = 0; s < owner.length; s++) {	// Homeless strips first, each to whoever is least busy
+			if(owner[s] < 0) {
+				int lightest = 0;
+				for(int i = 1; i < nodes; i++) {
+					if(load[i] < load[lightest]) {
+						lightest = i;
+					}
+				}
+				owner[s] = lightest;
+				load[lightest] += costs[s];
+				isMoved = true;
+			}
+		}
+		for(int move = 0; move < MAX_STRIP_MOVES; move++) {
+			int busiest = 0;
+			int lightest = 0;
+			double mean = 0;
+			for(int i = 0; i < nodes; i++) {
+				busiest = load[i] > load[busiest] ? i : busiest;
+				lightest = load[i] < load[lightest] ? i : lightest;
+				mean += load[i] / nodes;
+			}
+			if(load[busiest] <= mean * imbalance) {
+				break;
+			}
+			double gap = (load[busiest] - load[lightest]) / 2;
+			int best = -1;
+			boolean isBestAdjacent = false;
+			for(int s = 0; s < owner.length; s++) {
+				if(owner[s] != busiest || costs[s] > gap) {
+					continue;
+				}
+				boolean isAdjacent = (s > 0 && owner[s - 1] == lightest) || (s < owner.length - 1 && owner[s + 1] == lightest);
+				if(best < 0 || (isAdjacent && !isBestAdjacent) || (isAdjacent == isBestAdjacent && costs[s] > costs[best])) {
+					best = s;
+					isBestAdjacent = isAdjacent;
+				}
+			}
+			if(best < 0) {
+				break;
+			}
+			owner[best] = lightest;
+			load[busiest] -= costs[best];
+			load[lightest] += costs[best];
+			isMoved = true;
+		}
+		return isMoved;
+	}
+	
+	/** Pauses every node after the same frame, has each upload the strips that leave it and sends everyone the new strip table.
+	 * Strips that stay where they are never leave their node.
+	 * @param chain The new chain, every node in it is either in the old chain or a spare
+	 * @param owner Which node in the new chain has each strip
+	 * @return False if it is too late in the run to pause
+	 * @throws InterruptedException
+	 */
+	private synchronized boolean reconfigureStrips(ArrayList<ServerFragment> chain, int[] owner) throws InterruptedException {
+		int pauseFrame = getPauseFrame();
+		if(pauseFrame < 0) {
+			return false;
+		}
+		ArrayList<Integer> moving = new ArrayList<Integer>();
+		for(int s = 0; s < owner.length; s++) {
+			if(fragments.get(stripOwner[s]) != chain.get(owner[s])) {
+				moving.add(s);
+			}
+		}
+		for(int i = 0; i < fragments.size(); i++) {
+			final int node = i;
+			fragments.get(i).pause(pauseFrame, moving.stream().filter(s -> stripOwner[s] == node).mapToInt(Integer::intValue).toArray());
+		}
+		
+		ArrayList<Map<Integer, byte[][]>> boards = new ArrayList<Map<Integer, byte[][]>>();
+		for(int i = 0; i < chain.size(); i++) {
+			boards.add(new TreeMap<Integer, byte[][]>());
+		}
+		int stepCount = 0;
+		for(int s : moving) {
+			ServerFragment from = fragments.get(stripOwner[s]);
+			boards.get(owner[s]).put(s, from.waitForStripBoard(s));
+			stepCount = from.getBoardStepCount();
+			System.out.println("Strip " + s + " goes to node " + owner[s]);
+		}
+		for(int i = 0; i < chain.size(); i++) {
+			if(!fragments.contains(chain.get(i))) {
+				chain.get(i).initialize(getMetadata(chain, i, 0, 0, -1), i);
+			}
+		}
+		assignStrips(chain, owner, pauseFrame, stepCount, boards);
+		stripOwner = owner;
+		setChain(chain);
+		return true;
+	}
+	
+	/** Picks the grid shape that gives every tile the least border for its area.
+	 * @param width Width of the whole board
+	 * @param height Height of the whole board
+	 * @param nodes How many tiles
+	 * @return How many rows of tiles
+	 */
+	static int getGridRows(int width, int height, int nodes) {
+		int bestRows = 1;
+		double bestBorder = Double.MAX_VALUE;
+		for(int rows = 1; rows <= nodes; rows++) {
+			if(nodes % rows != 0) {
+				continue;
+			}
+			double border = (double) width / (nodes / rows) + (double) height / rows;	// Half the perimeter of one tile
+			if(border < bestBorder) {
+				bestBorder = border;
+				bestRows = rows;
+			}
+		}
+		return bestRows;
+	}
+	
+	/** Measures the link between every two nodes and puts the nodes in the order, or the grid places, where the slowest link between neighbors is fastest.
+	 * Each node measures its links to the nodes after it in turn, so no two measurements share the network.
+	 * @param totalWidth Width of the whole board, sizes the borders the links will carry
+	 */
+	private void orderByLinks(int totalWidth) {
+		int nodes = fragments.size();
+		double[][] cost = new double[nodes][nodes];
+		double haloBytes = gridRows > 0 ? Math.max(totalWidth / (nodes / gridRows), height / gridRows) : height;
+		try {
+			int[] probePorts = new int[nodes];
+			for(ServerFragment fragment : fragments) {
+				fragment.probeListen();
+			}
+			for(int i = 0; i < nodes; i++) {
+				probePorts[i] = fragments.get(i).waitForProbePort();
+			}
+			for(int i = 0; i < nodes - 1; i++) {
+				byte[][] addresses = new byte[nodes - 1 - i][];
+				int[] ports = new int[nodes - 1 - i];
+				for(int j = i + 1; j < nodes; j++) {
+					addresses[j - i - 1] = fragments.get(j).getAddress();
+					ports[j - i - 1] = probePorts[j];
+				}
+				fragments.get(i).probe(addresses, ports);
+				long[][] links = fragments.get(i).waitForProbeResult();
+				for(int j = i + 1; j < nodes; j++) {
+					cost[i][j] = getLinkCost(links[j - i - 1][0], links[j - i - 1][1], haloBytes);
+					cost[j][i] = cost[i][j];
+				}
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return;
+		}
+		int columns = nodes / Math.max(1, gridRows);
+		int[] connected = new int[nodes];
+		for(int i = 0; i < nodes; i++) {
+			connected[i] = i;
+		}
+		int[] order = gridRows > 0 ? placeGrid(cost, gridRows, columns) : orderChain(cost);
+		double[] before = gridRows > 0 ? getGridCost(connected, cost, columns) : getChainCost(connected, cost);
+		double[] after = gridRows > 0 ? getGridCost(order, cost, columns) : getChainCost(order, cost);
+		ArrayList<ServerFragment> ordered = new ArrayList<ServerFragment>(nodes);
+		for(int i = 0; i < nodes; i++) {
+			ordered.add(fragments.get(order[i]));
+		}
+		setChain(ordered);
+		System.out.println("Node order " + Arrays.toString(order) + ", slowest link " + (long) (before[0] / 1000) + " -> " + (long) (after[0] / 1000) + " microseconds per exchange");
+	}
+	
+	/**
+	 * @param roundTripNanos Round trip time of the link
+	 * @param bytesPerSecond Bandwidth of the link, 0 if it couldn't be measured
+	 * @param haloBytes How much one exchange sends each way
+	 * @return Nanoseconds one exchange over the link takes
+	 */
+	static double getLinkCost(long roundTripNanos, long bytesPerSecond, double haloBytes) {
+		if(bytesPerSecond <= 0) {
+			return Double.MAX_VALUE / 4;
+		}
+		return roundTripNanos + haloBytes * 1e9 / bytesPerSecond;
+	}
+	
+	/** Finds the chain order with the fastest slowest link, and the least total cost among those.
+	 * Starts a nearest neighbor chain from every node and improves each by reversing stretches of it while that helps.
+	 * @param cost Cost of the link between every two nodes
+	 * @return Which node goes in each place
+	 */
+	static int[] orderChain(double[][] cost) {
+		int nodes = cost.length;
+		int[] best = null;
+		for(int start = 0; start < nodes; start++) {
+			int[] order = new int[nodes];
+			boolean[] isPlaced = new boolean[nodes];
+			order[0] = start;
+			isPlaced[start] = true;
+			for(int i = 1; i < nodes; i++) {
+				int next = -1;
+				for(int j = 0; j < nodes; j++) {
+					if(!isPlaced[j] && (next < 0 || cost[order[i - 1]][j] < cost[order[i - 1]][next])) {
+						next = j;
+					}
+				}
+				order[i] = next;
+				isPlaced[next] = true;
+			}
+			double[] orderCost = getChainCost(order, cost);
+			boolean isImproving = true;
+			while(isImproving) {
+				isImproving = false;
+				for(int i = 0; i < nodes - 1; i++) {
+					for(int j = i + 1; j < nodes; j++) {
+						reverse(order, i, j);
+						double[] newCost = getChainCost(order, cost);
+						if(isCheaper(newCost, orderCost)) {
+							orderCost = newCost;
+							isImproving = true;
+						}else {
+							reverse(order, i, j);
+						}
+					}
+				}
+			}
+			if(best == null || isCheaper(orderCost, getChainCost(best, cost))) {
+				best = order;
+			}
+		}
+		return best;
+	}
+	
+	/** Places nodes on a grid so the slowest link between neighboring tiles is fastest.
+	 * Lays the best chain out row by row, turning back at the end of each row so chain neighbors stay grid neighbors, then swaps any two tiles while that helps.
+	 * @param cost Cost of the link between every two nodes
+	 * @param rows Rows of tiles
+	 * @param columns Columns of tiles
+	 * @return Which node goes on each tile, row by row
+	 */
+	static int[] placeGrid(double[][] cost, int rows, int columns) {
+		int[] chain = orderChain(cost);
+		int[] placement = new int[chain.length];
+		for(int r = 0; r < rows; r++) {
+			for(int c = 0; c < columns; c++) {
+				placement[r * columns + c] = chain[r * columns + (r % 2 == 0 ? c : columns - 1 - c)];
+			}
+		}
+		double[] placementCost = getGridCost(placement, cost, columns);
+		boolean isImproving = true;
+		while(isImproving) {
+			isImproving = false;
+			for(int a = 0; a < placement.length - 1; a++) {
+				for(int b = a + 1; b < placement.length; b++) {
+					swap(placement, a, b);
+					double[] newCost = getGridCost(placement, cost, columns);
+					if(isCheaper(newCost, placementCost)) {
+						placementCost = newCost;
+						isImproving = true;
+					}else {
+						swap(placement, a, b);
+					}
+				}
+			}
+		}
+		return placement;
+	}
+	
+	/**
+	 * @return Slowest link, then the total of all links, between neighbors in a chain
+	 */
+	static double[] getChainCost(int[] order, double[][] cost) {
+		double[] chainCost = new double[2];
+		for(int i = 0; i < order.length - 1; i++) {
+			double link = cost[order[i]][order[i + 1]];
+			chainCost[0] = Math.max(chainCost[0], link);
+			chainCost[1] += link;
+		}
+		return chainCost;
+	}
+	
+	/**
+	 * @return Slowest link, then the total of all links, between tiles sharing a side in a grid, corners carry too little to count
+	 */
+	static double[] getGridCost(int[] placement, double[][] cost, int columns) {
+		double[] gridCost = new double[2];
+		for(int i = 0; i < placement.length; i++) {
+			if(i % columns < columns - 1) {
+				double link = cost[placement[i]][placement[i + 1]];
+				gridCost[0] = Math.max(gridCost[0], link);
+				gridCost[1] += link;
+			}
+			if(i + columns < placement.length) {
+				double link = cost[placement[i]][placement[i + columns]];
+				gridCost[0] = Math.max(gridCost[0], link);
+				gridCost[1] += link;
+			}
+		}
+		return gridCost;
+	}
+	
+	private static boolean isCheaper(double[] a, double[] b) {
+		return a[0] < b[0] || (a[0] == b[0] && a[1] < b[1]);
+	}
+	
+	private static void reverse(int[] order, int from, int to) {
+		for(; from < to; from++, to--) {
+			swap(order, from, to);
+		}
+	}
+	
+	private static void swap(int[] order, int a, int b) {
+		int swapped = order[a];
+		order[a] = order[b];
+		order[b] = swapped;
+	}
+	
+	/** Cuts the board into an even grid, hands every node its tile and starts the grid balancer.
+	 * @param totalWidth Width of the whole board
+	 */
+	private void startGrid(int totalWidth) {
+		int columns = fragments.size() / gridRows;
+		columnBounds = new int[columns + 1];
+		rowBounds = new int[gridRows + 1];
+		for(int c = 0; c <= columns; c++) {
+			columnBounds[c] = (int) ((long) totalWidth * c / columns);
+		}
+		for(int r = 0; r <= gridRows; r++) {
+			rowBounds[r] = (int) ((long) height * r / gridRows);
+		}
+		if(totalWidth < columns * MIN_WIDTH || height < gridRows * MIN_WIDTH) {
+			throw new IllegalStateException("Board is too small for a grid of " + gridRows + " by " + columns);
+		}
+		System.out.println("Grid of " + gridRows + " rows by " + columns + " columns");
+		for(int i = 0; i < fragments.size(); i++) {
+			fragments.get(i).initialize(getMetadata(fragments, i, 0, 0, -1), i);
+		}
+		byte[][] board = new byte[totalWidth][height];
+		for(byte[] column : board) {
+			Arrays.fill(column, CAFragment.NO_BACTERIA);
+		}
+		board[Math.min(250, totalWidth / fragments.size() / 2)][Math.min(100, height / 2)] = CAFragment.MAX_BACTERIA;
+		assignTiles(-1, 0, board);
+		startWhenReady();
+		
+		if(isBalancing) {
+			Thread balancer = new Thread(this::balanceGrid, "ClusterOverseer grid balancer");
+			balancer.setDaemon(true);
+			balancer.start();
+		}
+	}
+	
+	/** Cuts the full board into tiles along the current bounds and sends every node its own.
+	 * @param frame Frame the cluster paused after, -1 at the start
+	 * @param stepCount How many steps the cluster has done
+	 * @param board The full board, indexed [x][y]
+	 */
+	private void assignTiles(int frame, int stepCount, byte[][] board) {
+		int columns = columnBounds.length - 1;
+		byte[][] addresses = new byte[fragments.size()][];
+		int[] ports = new int[fragments.size()];
+		for(int i = 0; i < fragments.size(); i++) {
+			addresses[i] = fragments.get(i).getAddress();
+			ports[i] = getMeshPort(fragments.get(i));
+		}
+		for(int i = 0; i < fragments.size(); i++) {
+			int x = TileHost.getTileStart(columnBounds, i % columns);
+			int y = TileHost.getTileStart(rowBounds, i / columns);
+			byte[][] tile = new byte[TileHost.getTileSize(columnBounds, i % columns)][];
+			for(int tileX = 0; tileX < tile.length; tileX++) {
+				tile[tileX] = Arrays.copyOfRange(board[x + tileX], y, y + TileHost.getTileSize(rowBounds, i / columns));
+			}
+			fragments.get(i).assignTile(i, frame, stepCount, addresses, ports, columnBounds, rowBounds, tile);
+		}
+	}
+	
+	/**
+	 * Every few frames looks at what the tiles cost and moves the row and column bounds if the busiest tile is too far above the rest.
+	 */
+	private void balanceGrid() {
+		int lastBalanced = -1;
+		int columns = columnBounds.length - 1;
+		while(true) {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) { }
+			synchronized (this) {
+				int frame = Integer.MAX_VALUE;
+				for(ServerFragment fragment : fragments) {
+					frame = Math.min(frame, fragment.getLastFrame());
+				}
+				if(frame + PAUSE_MARGIN_FRAMES >= framesToSimulate - 1) {
+					break;
+				}
+				if(frame < lastBalanced + STRIP_BALANCE_FRAMES) {
+					continue;
+				}
+				lastBalanced = frame;
+				double[] columnLoads = new double[columns];
+				double[] rowLoads = new double[gridRows];
+				double maxLoad = 0;
+				double totalLoad = 0;
+				boolean isComplete = true;
+				for(int i = 0; i < fragments.size(); i++) {
+					Long cost = fragments.get(i).getStripCosts().get(i);
+					if(cost == null) {
+						isComplete = false;
+						break;
+					}
+					columnLoads[i % columns] += cost;
+					rowLoads[i / columns] += cost;
+					maxLoad = Math.max(maxLoad, cost);
+					totalLoad += cost;
+				}
+				if(!isComplete || totalLoad <= 0 || maxLoad <= totalLoad / fragments.size() * STRIP_IMBALANCE) {
+					continue;
+				}
+				int[] newColumnBounds = getBalancedBounds(columnBounds, columnLoads);
+				int[] newRowBounds = getBalancedBounds(rowBounds, rowLoads);
+				if(!Arrays.equals(newColumnBounds, columnBounds) || !Arrays.equals(newRowBounds, rowBounds)) {
+					try {
+						reconfigureGrid(newColumnBounds, newRowBounds);
+					} catch (InterruptedException e) { e.printStackTrace(); }
+				}
+			}
+		}
+	}
+	
+	/** Moves bounds halfway towards where every band would get the same load, taking the load as spread evenly over each band.
+	 * Going only halfway keeps the bounds from swinging back and forth when the loads are noisy.
+	 * @param bounds Where each band starts, then the end
+	 * @param loads What each band cost
+	 * @return The new bounds, every band at least MIN_WIDTH
+	 */
+	static int[] getBalancedBounds(int[] bounds, double[] loads) {
+		int bands = loads.length;
+		double total = Arrays.stream(loads).sum();
+		int[] newBounds = bounds.clone();
+		int band = 0;
+		double before = 0;	// Load of the bands left of band
+		for(int i = 1; i < bands; i++) {
+			double target = total * i / bands;
+			while(band < bands - 1 && before + loads[band] < target) {
+				before += loads[band];
+				band++;
+			}
+			double inside = loads[band] > 0 ? (target - before) / loads[band] : 0.5;
+			double exact = bounds[band] + Math.max(0, Math.min(1, inside)) * (bounds[band + 1] - bounds[band]);
+			newBounds[i] = (int) Math.round((bounds[i] + exact) / 2);
+		}
+		for(int i = 1; i < bands; i++) {	// Keep every band wide enough, first from the left then from the right
+			newBounds[i] = Math.max(newBounds[i], newBounds[i - 1] + MIN_WIDTH);
+		}
+		for(int i = bands - 1; i > 0; i--) {
+			newBounds[i] = Math.min(newBounds[i], newBounds[i + 1] - MIN_WIDTH);
+		}
+		return newBounds;
+	}
+	
+	/** Pauses every node after the same frame, stitches the tiles back into the full board and hands it out again along new bounds.
+	 * @param newColumnBounds Where each column of tiles starts, then the full width
+	 * @param newRowBounds Where each row of tiles starts, then the full height
+	 * @return False if it is too late in the run to pause
+	 * @throws InterruptedException
+	 */
+	private synchronized boolean reconfigureGrid(int[] newColumnBounds, int[] newRowBounds) throws InterruptedException {
+		int pauseFrame = getPauseFrame();
+		if(pauseFrame < 0) {
+			return false;
+		}
+		for(ServerFragment fragment : fragments) {
+			fragment.pause(pauseFrame);
+		}
+		int columns = columnBounds.length - 1;
+		byte[][] board = new byte[columnBounds[columns]][rowBounds[gridRows]];
+		int stepCount = 0;
+		for(int i = 0; i < fragments.size(); i++) {	// Only the cells each tile owns, its borders belong to the neighbors
+			byte[][] tile = fragments.get(i).waitForBoard();
+			stepCount = fragments.get(i).getBoardStepCount();
+			int x = TileHost.getTileStart(columnBounds, i % columns);
+			int y = TileHost.getTileStart(rowBounds, i / columns);
+			int firstX = columnBounds[i % columns] - x;
+			int firstY = rowBounds[i / columns] - y;
+			int ownedHeight = rowBounds[i / columns + 1] - rowBounds[i / columns];
+			for(int tileX = firstX; tileX < firstX + columnBounds[i % columns + 1] - columnBounds[i % columns]; tileX++) {
+				System.arraycopy(tile[tileX], firstY, board[x + tileX], y + firstY, ownedHeight);
+			}
+		}
+		System.out.println("Columns " + Arrays.toString(columnBounds) + " to " + Arrays.toString(newColumnBounds) + ", rows " + Arrays.toString(rowBounds) + " to " + Arrays.toString(newRowBounds));
+		columnBounds = newColumnBounds;
+		rowBounds = newRowBounds;
+		assignTiles(pauseFrame, stepCount, board);
+		return true;
+	}
+	
+	/** Has every node run the calibration benchmark and splits the board in proportion to how fast they are.
+	 * @param totalWidth Width of the whole board
+	 * @param workload Workload spec the nodes will simulate with, so it is part of the benchmark
+	 * @return Width of each node's board
+	 */
+	private int[] calibrate(int totalWidth, String workload) {
+		long[] cellsPerSecond = new long[fragments.size()];
+		double total = 0;
+		for(int i = 0; i < fragments.size(); i++) {	// One at a time, nodes sharing a machine would slow each other down otherwise
+			fragments.get(i).calibrate(i, workload);
+			try {
+				cellsPerSecond[i] = Math.max(1, fragments.get(i).waitForCalibration());
+			} catch (InterruptedException e) { e.printStackTrace(); }
+			total += cellsPerSecond[i];
+		}
+		int[] widths = getProportionalWidths(totalWidth, cellsPerSecond, total);
+		for(int i = 0; i < widths.length; i++) {
+			System.out.println("Node " + i + ": " + cellsPerSecond[i] + " cells per second, " + widths[i] + " wide");
+		}
+		return widths;
+	}
+	
+	/** Splits a width in proportion to weights, every part at least MIN_WIDTH wide, adding up to exactly the width.
+	 * @param totalWidth Width to split
+	 * @param weights Weight of each part
+	 * @param totalWeight Sum of the weights
+	 * @return The parts
+	 */
+	static int[] getProportionalWidths(int totalWidth, long[] weights, double totalWeight) {
+		int[] widths = new int[weights.length];
+		double exact = 0;
+		int given = 0;
+		for(int i = 0; i < weights.length; i++) {	// Round the running total so the rounding errors don't pile up on the last node
+			exact += totalWidth * (weights[i] / totalWeight);
+			int end = (int) Math.round(exact);
+			widths[i] = Math.max(MIN_WIDTH, end - given);
+			given += widths[i];
+		}
+		while(given > totalWidth) {	// Minimum widths can overshoot, take it back from the widest
+			int widest = 0;
+			for(int i = 1; i < widths.length; i++) {
+				if(widths[i] > widths[widest]) {
+					widest = i;
+				}
+			}
+			int take = Math.min(given - totalWidth, widths[widest] - MIN_WIDTH);
+			if(take <= 0) {
+				break;	// Everyone is already at the minimum, the board just ends up wider
+			}
+			widths[widest] -= take;
+			given -= take;
+		}
+		return widths;
+	}
+	
+	/** Blocks until every node is done simulating.
+	 * @throws InterruptedException
+	 */
+	public void waitUntilDone() throws InterruptedException {
+		ArrayList<ServerFragment> chain;
+		do {	// The chain can change while waiting
+			chain = fragments;
+			for(ServerFragment fragment : chain) {
+				fragment.waitUntilDone();
+			}
+		} while(chain != fragments);
+		controlPlane.close();
+		metrics.close();
+		if(traceWriter != null) {
+			traceWriter.close();
+		}
+		if(heatmap != null) {
+			try {
+				heatmap.write();
+			} catch (IOException e) { e.printStackTrace(); }
+		}
+	}
+	
+	/**
+	 * @return How the cluster is doing, also registered over JMX
+	 */
+	public ClusterMetrics getMetrics() {
+		return metrics;
+	}
 }
@@ -0,0 +1,361 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The master's end of every node connection, all on one thread.
+ * One selector accepts nodes, reads whatever they send and writes whatever is queued for them, so the master doesn't need a thread per node.
+ * Frame marks are handled in batches, everything that arrived during one pass over the selector is handed on together.
+ */
+class ControlPlane extends Thread {
+
+	static final int READ_BUFFER_SIZE = 1 << 16;	// Grows for packets that don't fit, boards can be much bigger
+
+	/**
+	 * Gets every node that connects.
+	 */
+	interface NodeAcceptor {
+		/**
+		 * @param fragment The new node, already reading
+		 */
+		void accepted(ServerFragment fragment);
+	}
+
+	private Selector selector;
+	private ServerSocketChannel server;
+	private ServerFragment.FrameListener frameListener;
+	private ClusterMetrics metrics;
+	private TraceWriter traceWriter;
+	private CostHeatmap heatmap;
+	private Reducer reducer;
+	private NodeAcceptor acceptor;
+	private ConcurrentLinkedQueue<Connection> pendingWrites = new ConcurrentLinkedQueue<Connection>();	// Connections with packets waiting for the socket
+	private ArrayList<Connection> connections = new ArrayList<Connection>();
+	private ArrayList<FrameMark> frameMarks = new ArrayList<FrameMark>();	// Arrived during this pass
+	private int clusterFrame = -1;	// Last frame every node in the cluster finished, for the printout without a listener
+	private volatile boolean stop = false;
+
+	/** Frame mark waiting for the end of the pass
+	 */
+	private static class FrameMark {
+		ServerFragment fragment;
+		int frame;
+		int width;
+		long computeNanos;
+		long networkNanos;
+		long occupiedCells;
+		long bytesExchanged;
+		long columnsMoved;
+	}
+
+	/** Starts listening for nodes, call start to run.
+	 * @param port Port to accept nodes on
+	 * @param frameListener Gets every frame mark, or null to print one line whenever the whole cluster finished a frame
+	 * @param metrics Gets every frame mark too
+	 * @param traceWriter Gets the nodes' spans, or null when not tracing
+	 * @param heatmap Gets the nodes' column costs, or null when not asked for them
+	 * @param reducer Gets the nodes' values of every frame
+	 * @param acceptor Gets every node that connects
+	 * @throws IOException
+	 */
+	ControlPlane(int port, ServerFragment.FrameListener frameListener, ClusterMetrics metrics, TraceWriter traceWriter, CostHeatmap heatmap, Reducer reducer, NodeAcceptor acceptor) throws IOException {
+		super("ClusterOverseer control plane");
+		this.frameListener = frameListener;
+		this.metrics = metrics;
+		this.traceWriter = traceWriter;
+		this.heatmap = heatmap;
+		this.reducer = reducer;
+		this.acceptor = acceptor;
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(port));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+		while(!stop) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				e.printStackTrace();
+				break;
+			}
+			Connection waiting;
+			while((waiting = pendingWrites.poll()) != null) {
+				if(waiting.key.isValid()) {
+					waiting.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+			}
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while(keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if(!key.isValid()) {
+					continue;
+				}
+				if(key.isAcceptable()) {
+					accept();
+					continue;
+				}
+				Connection connection = (Connection) key.attachment();
+				try {
+					if(key.isReadable()) {
+						connection.read();
+					}
+					if(key.isValid() && key.isWritable()) {
+						connection.write();
+					}
+				} catch (IOException e) {
+					connection.close();
+				}
+			}
+			deliverFrameMarks();
+		}
+		for(Connection connection : new ArrayList<Connection>(connections)) {
+			connection.close();
+		}
+	}
+
+	private void accept() {
+		try {
+			SocketChannel channel;
+			while((channel = server.accept()) != null) {
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);	// Pauses and assignments are small and waited on
+				Connection connection = new Connection(channel);
+				connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+				connection.fragment = new ServerFragment(connection);
+				connections.add(connection);
+				acceptor.accepted(connection.fragment);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Hands on the frame marks of this pass, or prints how far the whole cluster got.
+	 */
+	private void deliverFrameMarks() {
+		if(frameMarks.isEmpty()) {
+			return;
+		}
+		for(FrameMark mark : frameMarks) {
+			mark.fragment.setLastFrame(mark.frame);
+			metrics.frameDone(mark.fragment, mark.frame, mark.width, mark.computeNanos, mark.networkNanos, mark.occupiedCells, mark.bytesExchanged, mark.columnsMoved);
+			if(frameListener != null) {
+				frameListener.frameDone(mark.fragment.getNodeNumber(), mark.frame, mark.computeNanos, mark.networkNanos, mark.width);
+			}
+		}
+		frameMarks.clear();
+		if(frameListener == null) {
+			int slowest = Integer.MAX_VALUE;
+			int nodes = 0;
+			for(Connection connection : connections) {
+				if(connection.fragment.getNodeNumber() >= 0 && connection.fragment.getLastFrame() >= 0) {	// Spares that haven't been added yet don't hold it back
+					slowest = Math.min(slowest, connection.fragment.getLastFrame());
+					nodes++;
+				}
+			}
+			if(nodes > 0 && slowest > clusterFrame) {
+				clusterFrame = slowest;
+				System.out.println("Frame " + clusterFrame + " done on all " + nodes + " nodes");
+			}
+		}
+	}
+
+	/** Stops accepting nodes and closes every connection.
+	 */
+	void close() {
+		stop = true;
+		try {
+			server.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		selector.wakeup();
+	}
+
+	/**
+	 * One node's connection, read and written only by the control plane thread except for sends that fit in the socket right away.
+	 */
+	class Connection {
+		private SocketChannel channel;
+		private SelectionKey key;
+		private ServerFragment fragment;
+		private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+		private volatile boolean isClosed = false;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		/** Reads what has arrived and handles every whole packet in it.
+		 * @throws IOException
+		 */
+		private void read() throws IOException {
+			if(channel.read(in) < 0) {
+				close();
+				return;
+			}
+			in.flip();
+			int needed = 0;
+			while(in.remaining() >= 4) {
+				int size = in.getInt(in.position());
+				if(size == 0) {	// Keeps the connection alive, no opcode follows
+					in.getInt();
+					continue;
+				}
+				if(in.remaining() < 8 + size) {
+					needed = 8 + size;
+					break;
+				}
+				in.getInt();
+				int opCode = in.getInt();
+				byte[] packet = new byte[size];
+				in.get(packet);
+				handle(opCode, packet);
+			}
+			in.compact();
+			if(needed > in.capacity()) {
+				ByteBuffer bigger = ByteBuffer.allocate(needed);
+				in.flip();
+				bigger.put(in);
+				in = bigger;
+			}
+		}
+
+		private void handle(int opCode, byte[] packet) {
+			if(opCode == ServerFragment.OPC_FRAMEMARK) {
+				ByteBuffer frameMark = ByteBuffer.wrap(packet);
+				FrameMark mark = new FrameMark();
+				mark.fragment = fragment;
+				mark.frame = frameMark.getInt();
+				mark.width = frameMark.getInt();
+				mark.computeNanos = frameMark.getLong();
+				mark.networkNanos = frameMark.getLong();
+				mark.occupiedCells = frameMark.getLong();
+				mark.bytesExchanged = frameMark.getLong();
+				mark.columnsMoved = frameMark.getLong();
+				frameMarks.add(mark);
+			}else if(opCode == ServerFragment.OPC_SPANS) {
+				if(traceWriter != null) {
+					traceWriter.add(fragment.getNodeNumber(), ByteBuffer.wrap(packet));
+				}
+			}else if(opCode == ServerFragment.OPC_COLUMNCOSTS) {
+				if(heatmap != null) {
+					heatmap.add(fragment.getNodeNumber(), ByteBuffer.wrap(packet));
+				}
+			}else if(opCode == ServerFragment.OPC_REDUCE) {
+				reducer.add(ByteBuffer.wrap(packet));
+			}else if(opCode == ServerFragment.OPC_POPULATION) {
+				metrics.population(ByteBuffer.wrap(packet));
+			}else if(opCode == ServerFragment.OPC_LINKSTATS) {
+				metrics.linkStats(fragment, ByteBuffer.wrap(packet));
+			}else if(opCode == ServerFragment.OPC_DONE) {
+				deliverFrameMarks();	// The last marks go out before the node counts as done
+				System.out.println("Done from node " + fragment.getNodeNumber());
+				close();
+			}else {
+				fragment.handlePacket(opCode, ByteBuffer.wrap(packet));
+			}
+		}
+
+		/** Queues a packet for the node, it is written right away if nothing else is waiting and it fits in the socket.
+		 * @param opCode What the packet is
+		 * @param packet The packet
+		 */
+		void send(int opCode, byte[] packet) {
+			ByteBuffer buffer = ByteBuffer.allocate(8 + packet.length);
+			buffer.putInt(packet.length).putInt(opCode).put(packet).flip();
+			synchronized (outbound) {
+				if(isClosed) {
+					return;
+				}
+				if(outbound.isEmpty()) {
+					try {
+						channel.write(buffer);
+					} catch (IOException e) {
+						e.printStackTrace();
+						return;
+					}
+					if(!buffer.hasRemaining()) {
+						return;
+					}
+				}
+				outbound.add(buffer);
+			}
+			pendingWrites.add(this);
+			selector.wakeup();
+		}
+
+		/** Writes queued packets until the socket is full.
+		 * @throws IOException
+		 */
+		private void write() throws IOException {
+			synchronized (outbound) {
+				while(!outbound.isEmpty()) {
+					ByteBuffer buffer = outbound.peek();
+					channel.write(buffer);
+					if(buffer.hasRemaining()) {
+						return;
+					}
+					outbound.poll();
+				}
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+		/**
+		 * @return Address of the node
+		 */
+		byte[] getAddress() {
+			return channel.socket().getInetAddress().getAddress();
+		}
+
+		String getHostAddress() {
+			return channel.socket().getInetAddress().getHostAddress();
+		}
+
+		boolean isClosed() {
+			return isClosed;
+		}
+
+		/**
+		 * Closes the connection and wakes anything waiting on the node.
+		 */
+		void close() {
+			synchronized (outbound) {
+				if(isClosed) {
+					return;
+				}
+				isClosed = true;
+				outbound.clear();
+			}
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			connections.remove(this);
+			metrics.nodeClosed(fragment);
+			fragment.closed();
+		}
+	}
+}
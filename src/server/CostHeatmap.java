@@ -0,0 +1,156 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.TreeMap;
+
+import local.PngWriter;
+
+/**
+ * Adds up what every column of the full board cost each frame, from every node's column costs, into a space-time picture of the load.
+ * One row per frame and one pixel per bin of columns, from black for no work through red and yellow to white for the most work per column of the run.
+ * Brightness goes with the square root of the work, so plain cells still show up next to a hotspot.
+ * The border columns where two nodes meet are never stepped, so they stay black.
+ * Node boundaries are drawn over it in cyan, so it shows directly whether the balancer keeps up with where the work is.
+ * The same numbers go to a CSV next to the image.
+ */
+class CostHeatmap {
+	public static final int MAX_BINS = 1024;	// Widest the image gets, wider boards put more columns in a bin
+	public static final int BOUNDARY_COLOR = 0x00FFFF;
+
+	private String file;
+	private int columns;
+	private int binColumns;
+	private TreeMap<Integer, Frame> frames = new TreeMap<Integer, Frame>();
+
+	/** What the whole board cost during one frame
+	 */
+	private class Frame {
+		double[] work = new double[(columns + binColumns - 1) / binColumns];
+		ArrayList<int[]> ranges = new ArrayList<int[]>();	// First column, end column and node of every range the nodes simulated
+	}
+
+	/**
+	 * @param file PNG to write, the CSV gets the same name ending in .csv
+	 * @param columns How wide the full board is
+	 */
+	CostHeatmap(String file, int columns) {
+		this.file = file;
+		this.columns = columns;
+		binColumns = Math.max(1, (columns + MAX_BINS - 1) / MAX_BINS);
+	}
+
+	/**
+	 * @return Columns of the full board in one bin, what the nodes are asked for
+	 */
+	int getBinColumns() {
+		return binColumns;
+	}
+
+	/** Adds one node's column costs, see ServerFragment.OPC_COLUMNCOSTS.
+	 * @param nodeNumber Which node sent them
+	 * @param packet The packet
+	 */
+	synchronized void add(int nodeNumber, ByteBuffer packet) {
+		int frameNumber = packet.getInt();
+		packet.getInt();	// Bin columns, always ours
+		int firstBin = packet.getInt();
+		int bins = packet.getInt();
+		int ranges = packet.getInt();
+		Frame frame = frames.computeIfAbsent(frameNumber, f -> new Frame());
+		for(int i = 0; i < ranges; i++) {
+			frame.ranges.add(new int[] {packet.getInt(), packet.getInt(), nodeNumber});
+		}
+		for(int i = 0; i < bins; i++) {
+			float work = packet.getFloat();
+			if(firstBin + i >= 0 && firstBin + i < frame.work.length) {
+				frame.work[firstBin + i] += work;
+			}
+		}
+	}
+
+	/** Writes the image and the CSV.
+	 * @throws IOException
+	 */
+	synchronized void write() throws IOException {
+		if(frames.isEmpty()) {
+			return;
+		}
+		ArrayList<Frame> rows = new ArrayList<Frame>(frames.values());
+		ArrayList<boolean[]> boundaries = new ArrayList<boolean[]>();
+		double maxWork = 0;
+		for(Frame frame : rows) {
+			boundaries.add(getBoundaries(frame));
+			for(int bin = 0; bin < frame.work.length; bin++) {
+				maxWork = Math.max(maxWork, frame.work[bin] / getColumns(bin));
+			}
+		}
+		int bins = rows.get(0).work.length;
+		int[] palette = new int[256];
+		for(int i = 0; i < 255; i++) {	// Black, red, yellow, white
+			double heat = i / 254.0;
+			palette[i] = (int) (255 * Math.min(1, heat * 3)) << 16 | (int) (255 * Math.min(1, Math.max(0, heat * 3 - 1))) << 8 | (int) (255 * Math.max(0, heat * 3 - 2));
+		}
+		palette[255] = BOUNDARY_COLOR;
+		double scale = maxWork == 0 ? 0 : 254 / Math.sqrt(maxWork);
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+			new PngWriter(9, PngWriter.FILTER_SUB, 1).writeImage(out, bins, rows.size(), PngWriter.COLOR_INDEXED, palette, (y, row) -> {
+				Frame frame = rows.get(y);
+				for(int bin = 0; bin < bins; bin++) {
+					row[bin] = boundaries.get(y)[bin] ? (byte) 255 : (byte) Math.round(Math.sqrt(frame.work[bin] / getColumns(bin)) * scale);
+				}
+			});
+		}
+
+		int dot = file.lastIndexOf('.');
+		try (PrintWriter csv = new PrintWriter(new BufferedWriter(new FileWriter((dot < 0 ? file : file.substring(0, dot)) + ".csv")))) {
+			csv.println("frame,column,columns,work_per_column_ns,is_boundary");
+			int y = 0;
+			for(int frameNumber : frames.keySet()) {
+				Frame frame = rows.get(y);
+				for(int bin = 0; bin < bins; bin++) {
+					csv.println(String.format(Locale.ROOT, "%d,%d,%d,%.1f,%d", frameNumber, bin * binColumns, getColumns(bin), frame.work[bin] / getColumns(bin), boundaries.get(y)[bin] ? 1 : 0));
+				}
+				y++;
+			}
+		}
+		System.out.printf("Column costs of %d frames written to %s%n", rows.size(), file);
+	}
+
+	/**
+	 * @param bin Which bin
+	 * @return How many columns of the full board it has, the last one can have fewer
+	 */
+	private int getColumns(int bin) {
+		return Math.min(binColumns, columns - bin * binColumns);
+	}
+
+	/** Finds the bins where one node's columns end and another's start.
+	 * Ranges of the same node next to each other, like its strips, don't count as a boundary.
+	 * @param frame The frame
+	 * @return Which bins have a boundary
+	 */
+	private boolean[] getBoundaries(Frame frame) {
+		boolean[] boundaries = new boolean[frame.work.length];
+		ArrayList<int[]> ranges = new ArrayList<int[]>(frame.ranges);
+		ranges.sort(Comparator.comparingInt(range -> range[0]));
+		for(int i = 1; i < ranges.size(); i++) {
+			int[] previous = ranges.get(i - 1);
+			int[] range = ranges.get(i);
+			int bin = range[0] / binColumns;
+			if(previous[2] != range[2] && previous[0] != range[0] && bin < boundaries.length) {
+				boundaries[bin] = true;
+			}
+		}
+		return boundaries;
+	}
+}
@@ -0,0 +1,97 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import local.Allreduce;
+
+/**
+ * The master's half of Allreduce. Combines every node's values of a frame and, once every node in the chain has sent them,
+ * sends the result back to the whole chain and hands it to the overseer.
+ */
+class Reducer {
+
+	/**
+	 * Gets the cluster's values of every frame.
+	 */
+	interface Listener {
+		/** Runs on the control plane thread, so it must not block.
+		 * @param frame The frame
+		 * @param values Every node's values combined
+		 */
+		void reduced(int frame, double[] values);
+	}
+
+	/** Values of a frame not every node sent yet
+	 */
+	private static class Pending {
+		int[] ops;
+		double[] values;
+		int nodes = 0;
+	}
+
+	private Listener listener;
+	private List<ServerFragment> chain = new ArrayList<ServerFragment>();
+	private TreeMap<Integer, Pending> pending = new TreeMap<Integer, Pending>();
+	private int lastFrame = -1;	// Last frame that came together
+
+	/**
+	 * @param listener Gets the cluster's values of every frame
+	 */
+	Reducer(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @param chain Nodes simulating, a frame comes together once every one of them sent its values
+	 */
+	synchronized void setChain(List<ServerFragment> chain) {
+		this.chain = chain;
+	}
+
+	/** Takes one node's values of a frame, see ServerFragment.OPC_REDUCE.
+	 * Older frames some node never sent are dropped once a frame comes together.
+	 * @param packet The packet
+	 */
+	synchronized void add(ByteBuffer packet) {
+		int frame = packet.getInt();
+		int count = packet.getInt();
+		if(frame <= lastFrame) {
+			return;
+		}
+		Pending reduction = pending.get(frame);
+		for(int i = 0; i < count; i++) {
+			int op = packet.getInt();
+			double value = packet.getDouble();
+			if(reduction == null) {
+				reduction = new Pending();
+				reduction.ops = new int[count];
+				reduction.values = new double[count];
+				pending.put(frame, reduction);
+			}else if(reduction.ops.length != count || (reduction.nodes > 0 && reduction.ops[i] != op)) {
+				throw new IllegalStateException("Nodes sent different values for frame " + frame);
+			}
+			reduction.values[i] = reduction.nodes == 0 ? value : Allreduce.combine(op, reduction.values[i], value);
+			reduction.ops[i] = op;
+		}
+		if(reduction == null) {	// Nothing to combine
+			return;
+		}
+		if(++reduction.nodes < chain.size()) {
+			return;
+		}
+		lastFrame = frame;
+		pending.headMap(frame, true).clear();
+		ByteBuffer result = ByteBuffer.allocate(2 * 4 + count * 8);
+		result.putInt(frame).putInt(count);
+		for(double value : reduction.values) {
+			result.putDouble(value);
+		}
+		for(ServerFragment fragment : chain) {
+			fragment.reduced(result.array());
+		}
+		listener.reduced(frame, reduction.values);
+	}
+}
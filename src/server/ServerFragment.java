@@ -1,11 +1,10 @@
 package server;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.IOException;
-import java.net.Socket;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.google.common.primitives.Bytes;
 import com.google.common.primitives.Ints;
@@ -18,16 +17,63 @@ import local.CARenderer;
 public class ServerFragment {
 	public static final int PORT = 9876;
 	
-	public static final int PACKET_SIZE = (9 * 4) + 3; // 9 int * 4 bytes (36) + 3 bytes = 39 
+	public static final int PACKET_SIZE = (15 * 4) + 4; // 15 int * 4 bytes (60) + 4 bytes = 64, followed by the workload spec
+	public static final int FRAMEMARK_SIZE = (2 * 4) + (5 * 8); // frame, width, compute and network nanoseconds, occupied cells, then bytes exchanged and columns moved since the node started
 	public static final int OPC_METADATAPACKET = 50;	// This is a metadata packet
 	public static final int OPC_STARTSIMULATION = 51;	// Start the simulation
-	public static final int OPC_FRAMEMARK = 53;	// Simulation reached frame
+	public static final int OPC_FRAMEMARK = 53;	// Simulation reached frame, carries the frame's timings and counters
 	public static final int OPC_DONE = 54;	// Simulation is done
+	public static final int OPC_CALIBRATE = 55;	// Run the calibration benchmark, carries the node number and workload spec
+	public static final int OPC_CALIBRATION = 56;	// Result of the calibration benchmark, cells per second
+	public static final int OPC_PAUSE = 57;	// Stop after the given frame and upload the board
+	public static final int OPC_BOARD = 58;	// A paused node's board, frame, step count, x offset, width, height, then the columns
+	public static final int OPC_ASSIGN = 59;	// New place in the chain, a metadata packet followed by the frame to resume after, step count and board
+	public static final int OPC_DRAIN = 60;	// Leave the cluster, the board has gone to the other nodes
+	public static final int OPC_STRIPS = 61;	// Strip table, where every node is and the boards of strips the node gains, see assignStrips
+	public static final int OPC_STRIPBOARD = 62;	// A paused node's board of one strip it is giving up, strip id then the same as OPC_BOARD
+	public static final int OPC_STRIPCOSTS = 63;	// What each of a node's strips, or its tile, cost during a frame, frame, count, then strip or node and cost
+	public static final int OPC_TILE = 64;	// Grid bounds, where every node is and the node's tile, see assignTile
+	public static final int OPC_PROBELISTEN = 65;	// Start a LinkProbe listener and answer with its port
+	public static final int OPC_PROBEPORT = 66;	// Port of the node's LinkProbe listener
+	public static final int OPC_PROBE = 67;	// Measure the links to other nodes, count then address and probe port of each
+	public static final int OPC_PROBERESULT = 68;	// Round trip nanoseconds and bytes per second of each link, in the order they were asked for
+	public static final int OPC_READY = 69;	// Every neighbor link is connected, the node can start as soon as it is told to
+	public static final int OPC_LINKSTATS = 70;	// Timings of the node's links to its neighbors during a frame, frame, count, then a LinkStats summary each
+	public static final int OPC_TRACE = 71;	// Start recording spans, the node answers with OPC_CLOCK
+	public static final int OPC_CLOCK = 72;	// The node's time, the master answers right away with it and its own time after it
+	public static final int OPC_SPANS = 73;	// Spans the node recorded since the last, count then a Tracer span each
+	public static final int OPC_COSTPROFILE = 74;	// Send OPC_COLUMNCOSTS every frame, carries how many columns of the full board go in one bin
+	public static final int OPC_COLUMNCOSTS = 75;	// What the node's columns cost during a frame, frame, bin columns, first bin, bins, ranges, the first and end column of each range the node simulates, then the work of each bin as a float
+	public static final int OPC_POPULATION = 76;	// Population stats after every step of a frame, frame, steps, then a PopulationStats each
+	public static final int OPC_REDUCE = 77;	// The node's values of a frame for the master to combine, frame, count, then the op and value of each, see Allreduce
+	public static final int OPC_REDUCED = 78;	// Every node's values of a frame combined, frame, count, then each value
+	public static final int OPC_STOP = 79;	// End the run after the given frame, as if it were the last, the answer to a hold
+	public static final int OPC_HOLD = 80;	// Answer with OPC_HELD and start no later frame until a pause, stop or release, see FrameHold
+	public static final int OPC_HELD = 81;	// Frame the node is on, it starts no later one until told what to do
+	public static final int OPC_RELEASE = 82;	// Carry on after a hold, nothing changes
+	public static final int BOARD_HEADER_SIZE = 5 * 4;
 	
-	NodeCommunication nodeCommunication;
-	public ServerFragment(Socket socket) throws IOException{
-		nodeCommunication = new NodeCommunication(socket);
-		nodeCommunication.start();
+	/**
+	 * Gets told about every frame a node finishes.
+	 */
+	public interface FrameListener {
+		/**
+		 * @param nodeNumber Which node, counting from the left
+		 * @param frame Which frame it finished
+		 * @param computeNanos Time spent stepping the simulation during the frame
+		 * @param networkNanos Time spent exchanging with neighbors during the frame
+		 * @param width Width of the node's board at the end of the frame
+		 */
+		void frameDone(int nodeNumber, int frame, long computeNanos, long networkNanos, int width);
+	}
+	
+	ControlPlane.Connection connection;
+	volatile int nodeNumber = -1;
+	/**
+	 * @param connection The node's connection on the control plane, which hands this every packet the node sends
+	 */
+	ServerFragment(ControlPlane.Connection connection) {
+		this.connection = connection;
 	}
 	
 	/**
@@ -42,9 +88,36 @@ public class ServerFragment {
 	 * @param framesToSimulate How many frames to simulate total
 	 * @param hasLeft Does it have a left node?
 	 * @param hasRight Does it have a right node?
+	 * @param isBalancing Should it balance with its neighbors?
+	 * @param nodeNumber Where in the chain this node is, counting from the left
+	 * @param leftPort Port to listen on for the left node
+	 * @param rightPort Port the right node listens on
+	 * @param isRendering Should it write frames?
+	 * @param balancingSignal What the node balances on, one of the BalancingSignal constants
+	 * @param stripsPerNode 0 for one board per node, otherwise the board is cut into strips and leftPort is where the node's HaloRouter listens
+	 * @param gridRows 0 for a chain, otherwise how many rows of tiles the board is cut into and leftPort is where the node's HaloRouter listens
+	 * @param workload Workload spec the node simulates its work with, see Workload.parse, or null for the default
 	 * @throws IOException
 	 */
-	public void initialize(int width, int height, int simplexSeed, int startX, int startY, byte[] rightNode, int boardXPosition, int simulationFrameSteps, int framesToSimulate, boolean hasLeft, boolean hasRight, boolean isBalancing) throws IOException{
+	public void initialize(int width, int height, int simplexSeed, int startX, int startY, byte[] rightNode, int boardXPosition, int simulationFrameSteps, int framesToSimulate, boolean hasLeft, boolean hasRight, boolean isBalancing, int nodeNumber, int leftPort, int rightPort, boolean isRendering, int balancingSignal, int stripsPerNode, int gridRows, String workload) throws IOException{
+		initialize(getMetadataPacket(width, height, simplexSeed, startX, startY, rightNode, boardXPosition, simulationFrameSteps, framesToSimulate,
+				hasLeft, hasRight, isBalancing, nodeNumber, leftPort, rightPort, isRendering, balancingSignal, stripsPerNode, gridRows, workload), nodeNumber);
+	}
+	
+	/** Sends a metadata packet built with getMetadataPacket.
+	 * @param metadata The packet
+	 * @param nodeNumber Where in the chain this node is, the same as in the packet
+	 */
+	public void initialize(byte[] metadata, int nodeNumber) {
+		this.nodeNumber = nodeNumber;
+		setReady(false);
+		connection.send(OPC_METADATAPACKET, metadata);
+	}
+	
+	/** Builds a metadata packet, see initialize for the parameters.
+	 * @return The packet
+	 */
+	public static byte[] getMetadataPacket(int width, int height, int simplexSeed, int startX, int startY, byte[] rightNode, int boardXPosition, int simulationFrameSteps, int framesToSimulate, boolean hasLeft, boolean hasRight, boolean isBalancing, int nodeNumber, int leftPort, int rightPort, boolean isRendering, int balancingSignal, int stripsPerNode, int gridRows, String workload) {
 		byte[] packet = Bytes.concat(
 				Ints.toByteArray(width),
 				Ints.toByteArray(height),
@@ -57,96 +130,488 @@ public class ServerFragment {
 				Ints.toByteArray(framesToSimulate),
 				new byte[] {(byte) (hasLeft ? 1 : 0)},
 				new byte[] {(byte) (hasRight ? 1 : 0)},
-				new byte[] {(byte) (isBalancing ? 1 : 0)}
+				new byte[] {(byte) (isBalancing ? 1 : 0)},
+				Ints.toByteArray(nodeNumber),
+				Ints.toByteArray(leftPort),
+				Ints.toByteArray(rightPort),
+				new byte[] {(byte) (isRendering ? 1 : 0)},
+				Ints.toByteArray(balancingSignal),
+				Ints.toByteArray(stripsPerNode),
+				Ints.toByteArray(gridRows)
 				);
 		if(packet.length != PACKET_SIZE) {
 			throw new IllegalStateException("Packet is the wrong size, " + packet.length);
 		}
-		nodeCommunication.sendPacket(OPC_METADATAPACKET, packet);
+		byte[] workloadBytes = (workload == null ? "" : workload).getBytes(StandardCharsets.UTF_8);
+		return Bytes.concat(packet, Ints.toByteArray(workloadBytes.length), workloadBytes);
 	}
 	
-	public void startSimulation() {
-		nodeCommunication.sendPacket(OPC_STARTSIMULATION, new byte[]{1});
-	}
-	
-	public static class NodeCommunication extends Thread{
-		public static final int OPC_METADATAPACKET = 50;
-		public static final int OPC_STARTSIMULATION = 51;
-		
-		private byte[] messageBuffer;
-		DataInputStream reader;
-		DataOutputStream writer;
-		Socket nodeSocket;
-		public NodeCommunication(Socket communicationSocket) throws IOException {
-			nodeSocket = communicationSocket;
-			this.reader = new DataInputStream(nodeSocket.getInputStream());
-			this.writer =  new DataOutputStream(nodeSocket.getOutputStream());
-			messageBuffer = new byte[PACKET_SIZE];
-		}
-		
-		@Override
-		public void run() {
-			while(!stop) {
-				int messageSize = 0;
-				int opCode = 0;
-				try { 
-					messageSize = reader.readInt();
-					if(messageSize == 0){
-						continue;
-					}
-					opCode = reader.readInt();
-					reader.readFully(messageBuffer, 0, messageSize); 
-				}catch (SocketException e){
-					break;
-				} catch (EOFException e){
-					try {
-						close();
-						break;
-					} catch (IOException e1) {
-						System.exit(1);
-					}
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-
-				if(opCode == OPC_FRAMEMARK) {
-					System.out.println("Frame mark from node " + getAddress()[3]);
-				}else if(opCode == OPC_DONE) {
-					System.out.println("Done from node " + getAddress()[3]);
-					try {
-						close();
-						break;
-					} catch (IOException e) {
-						System.exit(1);
-					}
-				} 
-				
+	/** Tells the node to stop after a frame and upload its board, the board comes back through waitForBoard.
+	 * A held node carries on up to the frame.
+	 * @param frame Last frame to simulate before stopping
+	 */
+	public void pause(int frame) {
+		synchronized (this) {
+			board = null;
+		}
+		connection.send(OPC_PAUSE, Ints.toByteArray(frame));
+	}
+	
+	/** Tells a node running strips to stop after a frame and upload the boards of the strips it is giving up, they come back through waitForStripBoard.
+	 * The node then waits for assignStrips even if it gives up nothing. A held node carries on up to the frame.
+	 * @param frame Last frame to simulate before stopping
+	 * @param strips Strips to upload
+	 */
+	public void pause(int frame, int[] strips) {
+		ByteBuffer packet = ByteBuffer.allocate(8 + strips.length * 4).putInt(frame).putInt(strips.length);
+		synchronized (this) {
+			for(int strip : strips) {
+				stripBoards.remove(strip);
+				packet.putInt(strip);
+			}
+		}
+		connection.send(OPC_PAUSE, packet.array());
+	}
+	
+	/** Gives a paused or brand new node running strips the new strip table and the boards of the strips it gains.
+	 * It drops the strips it uploaded, reconnects to whoever has the strips next to its own and carries on.
+	 * @param nodeNumber Which node it is now
+	 * @param frame Frame the cluster paused after, the node resumes with the next one
+	 * @param stepCount How many steps the cluster has done
+	 * @param addresses Address of every node
+	 * @param ports Port every node's HaloRouter listens on
+	 * @param stripOwner Which node has each strip
+	 * @param stripX Where each strip's board starts on the full board
+	 * @param stripWidth Width of each strip's board
+	 * @param boards Boards of the strips it gains, by strip, indexed [x][y]
+	 */
+	public void assignStrips(int nodeNumber, int frame, int stepCount, byte[][] addresses, int[] ports, int[] stripOwner, int[] stripX, int[] stripWidth, Map<Integer, byte[][]> boards) {
+		this.nodeNumber = nodeNumber;
+		int size = 4 * 4 + addresses.length * 8 + 4 + stripOwner.length * 12 + 4;
+		for(Map.Entry<Integer, byte[][]> board : boards.entrySet()) {
+			size += 4 + board.getValue().length * board.getValue()[0].length;
+		}
+		ByteBuffer packet = ByteBuffer.allocate(size);
+		packet.putInt(nodeNumber).putInt(frame).putInt(stepCount).putInt(addresses.length);
+		for(int i = 0; i < addresses.length; i++) {
+			packet.put(addresses[i]).putInt(ports[i]);
+		}
+		packet.putInt(stripOwner.length);
+		for(int i = 0; i < stripOwner.length; i++) {
+			packet.putInt(stripOwner[i]).putInt(stripX[i]).putInt(stripWidth[i]);
+		}
+		packet.putInt(boards.size());
+		for(Map.Entry<Integer, byte[][]> board : boards.entrySet()) {
+			packet.putInt(board.getKey());
+			for(byte[] column : board.getValue()) {
+				packet.put(column);
+			}
+		}
+		connection.send(OPC_STRIPS, packet.array());
+	}
+	
+	/** Gives a node in a grid its tile, at the start or after the bounds moved, it reconnects to its neighbors and carries on.
+	 * @param nodeNumber Which node it is, node r * columns + c has tile (r, c)
+	 * @param frame Frame the cluster paused after, -1 at the start
+	 * @param stepCount How many steps the cluster has done
+	 * @param addresses Address of every node
+	 * @param ports Port every node's HaloRouter listens on
+	 * @param columnBounds Where each column of tiles starts on the full board, then the full width
+	 * @param rowBounds Where each row of tiles starts on the full board, then the full height
+	 * @param board Its tile with borders, indexed [x][y]
+	 */
+	public void assignTile(int nodeNumber, int frame, int stepCount, byte[][] addresses, int[] ports, int[] columnBounds, int[] rowBounds, byte[][] board) {
+		this.nodeNumber = nodeNumber;
+		ByteBuffer packet = ByteBuffer.allocate(4 * 4 + addresses.length * 8 + 4 + columnBounds.length * 4 + 4 + rowBounds.length * 4 + board.length * board[0].length);
+		packet.putInt(nodeNumber).putInt(frame).putInt(stepCount).putInt(addresses.length);
+		for(int i = 0; i < addresses.length; i++) {
+			packet.put(addresses[i]).putInt(ports[i]);
+		}
+		packet.putInt(columnBounds.length);
+		for(int bound : columnBounds) {
+			packet.putInt(bound);
+		}
+		packet.putInt(rowBounds.length);
+		for(int bound : rowBounds) {
+			packet.putInt(bound);
+		}
+		for(byte[] column : board) {
+			packet.put(column);
+		}
+		connection.send(OPC_TILE, packet.array());
+	}
+	
+	/** Gives a paused or brand new node its place in the chain and its board, it reconnects to its neighbors and carries on.
+	 * @param metadata Metadata packet of its new place, see getMetadataPacket
+	 * @param nodeNumber Where in the chain it is now
+	 * @param frame Frame the cluster paused after, the node resumes with the next one
+	 * @param stepCount How many steps the cluster has done
+	 * @param board Its new board, indexed [x][y]
+	 */
+	public void assign(byte[] metadata, int nodeNumber, int frame, int stepCount, byte[][] board) {
+		this.nodeNumber = nodeNumber;
+		byte[] columns = new byte[board.length * board[0].length];
+		for(int x = 0; x < board.length; x++) {
+			System.arraycopy(board[x], 0, columns, x * board[0].length, board[0].length);
+		}
+		connection.send(OPC_ASSIGN, Bytes.concat(metadata, Ints.toByteArray(frame), Ints.toByteArray(stepCount), columns));
+	}
+	
+	/**
+	 * Tells a paused node it is out of the chain and can stop.
+	 */
+	public void drain() {
+		connection.send(OPC_DRAIN, new byte[] {1});
+	}
+	
+	private boolean isHeld = false;
+	private int heldFrame;
+	/** Asks the node which frame it is on and has it start no later one until it gets pause, endAfter or release.
+	 * The frame comes back through waitForHeldFrame.
+	 */
+	public void hold() {
+		synchronized (this) {
+			isHeld = false;
+		}
+		connection.send(OPC_HOLD, new byte[] {1});
+	}
+	
+	/** Blocks until the node answers a hold.
+	 * @return Frame the node is on, Integer.MAX_VALUE if it finished the run instead
+	 * @throws InterruptedException
+	 */
+	public synchronized int waitForHeldFrame() throws InterruptedException {
+		while(!isHeld) {
+			if(!isConnected()) {
+				return Integer.MAX_VALUE;
+			}
+			wait(100);
+		}
+		return heldFrame;
+	}
+	
+	private synchronized void setHeldFrame(int frame) {
+		heldFrame = frame;
+		isHeld = true;
+		notifyAll();
+	}
+	
+	/**
+	 * Lets a held node carry on as if nothing happened.
+	 */
+	public void release() {
+		connection.send(OPC_RELEASE, new byte[] {1});
+	}
+	
+	private byte[][] board = null;
+	private Map<Integer, byte[][]> stripBoards = new ConcurrentHashMap<Integer, byte[][]>();
+	private int boardFrame;
+	private int boardStepCount;
+	private int boardXPosition;
+	/** Blocks until the node uploads its board after a pause.
+	 * @return The board, indexed [x][y]
+	 * @throws InterruptedException
+	 */
+	public synchronized byte[][] waitForBoard() throws InterruptedException {
+		while(board == null) {
+			if(!isConnected()) {
+				throw new IllegalStateException("Node disconnected while pausing");
+			}
+			wait(100);
+		}
+		return board;
+	}
+	
+	private synchronized void setBoard(ByteBuffer packet) {
+		boardFrame = packet.getInt();
+		boardStepCount = packet.getInt();
+		boardXPosition = packet.getInt();
+		int width = packet.getInt();
+		int height = packet.getInt();
+		byte[][] newBoard = new byte[width][height];
+		for(int x = 0; x < width; x++) {
+			packet.get(newBoard[x]);
+		}
+		board = newBoard;
+		notifyAll();
+	}
+	
+	/** Blocks until the node uploads the board of a strip it was told to give up.
+	 * @param strip Which strip
+	 * @return The board, indexed [x][y]
+	 * @throws InterruptedException
+	 */
+	public synchronized byte[][] waitForStripBoard(int strip) throws InterruptedException {
+		while(!stripBoards.containsKey(strip)) {
+			if(!isConnected()) {
+				throw new IllegalStateException("Node disconnected while pausing");
+			}
+			wait(100);
+		}
+		return stripBoards.remove(strip);
+	}
+	
+	private synchronized void setStripBoard(ByteBuffer packet) {
+		int strip = packet.getInt();
+		setBoard(packet);
+		stripBoards.put(strip, board);
+		board = null;
+	}
+	
+	private volatile Map<Integer, Long> stripCosts = new ConcurrentHashMap<Integer, Long>();
+	/**
+	 * @return What each of the node's strips cost during the last frame it finished, by strip
+	 */
+	public Map<Integer, Long> getStripCosts() {
+		return stripCosts;
+	}
+	
+	private void setStripCosts(ByteBuffer packet) {
+		packet.getInt();	// Frame
+		int count = packet.getInt();
+		Map<Integer, Long> costs = new ConcurrentHashMap<Integer, Long>();
+		for(int i = 0; i < count; i++) {
+			costs.put(packet.getInt(), packet.getLong());
+		}
+		stripCosts = costs;
+	}
+	
+	/**
+	 * @return Frame the uploaded board is from
+	 */
+	public int getBoardFrame() {
+		return boardFrame;
+	}
+	
+	/**
+	 * @return How many steps the node had done when it uploaded its board
+	 */
+	public int getBoardStepCount() {
+		return boardStepCount;
+	}
+	
+	/**
+	 * @return Where on the full board the uploaded board lies
+	 */
+	public int getBoardXPosition() {
+		return boardXPosition;
+	}
+	
+	private volatile int lastFrame = -1;
+	/**
+	 * @return Last frame the node said it finished, -1 for none yet
+	 */
+	public int getLastFrame() {
+		return lastFrame;
+	}
+	
+	/**
+	 * @return If the node is still connected
+	 */
+	public boolean isConnected() {
+		return !connection.isClosed();
+	}
+	
+	/** Asks the node to run the calibration benchmark, the answer comes back through waitForCalibration.
+	 * @param nodeNumber Where in the chain the node will be, picks its workload slowdown
+	 * @param workload Workload spec the node will simulate with, or null for the default
+	 */
+	public void calibrate(int nodeNumber, String workload) {
+		byte[] workloadBytes = (workload == null ? "" : workload).getBytes(StandardCharsets.UTF_8);
+		connection.send(OPC_CALIBRATE, Bytes.concat(Ints.toByteArray(nodeNumber), Ints.toByteArray(workloadBytes.length), workloadBytes));
+	}
+	
+	private long cellsPerSecond = -1;
+	/** Blocks until the node answers a calibrate.
+	 * @return How many cells per second the node simulated
+	 * @throws InterruptedException
+	 */
+	public synchronized long waitForCalibration() throws InterruptedException {
+		while(cellsPerSecond < 0) {
+			if(!isConnected()) {
+				throw new IllegalStateException("Node disconnected during calibration");
 			}
+			wait(100);
 		}
-		
-		private boolean stop = false;
-		public void close() throws IOException{
-			reader.close();
-			writer.close();
-			nodeSocket.close();
-			stop = true;
+		return cellsPerSecond;
+	}
+	
+	private synchronized void setCalibration(long cellsPerSecond) {
+		this.cellsPerSecond = cellsPerSecond;
+		notifyAll();
+	}
+	
+	/** Asks the node to start listening for link probes, the port comes back through waitForProbePort.
+	 */
+	public void probeListen() {
+		connection.send(OPC_PROBELISTEN, new byte[] {1});
+	}
+	
+	/**
+	 * Tells the node to start recording spans and sending them with every frame.
+	 */
+	public void startTracing() {
+		connection.send(OPC_TRACE, new byte[] {1});
+	}
+	
+	/**
+	 * @param packet Every node's values of a frame combined, see OPC_REDUCED
+	 */
+	void reduced(byte[] packet) {
+		connection.send(OPC_REDUCED, packet);
+	}
+	
+	/** Tells a held node to end the run early and lets it carry on up to the frame.
+	 * @param frame Last frame to simulate, one the node hasn't started
+	 */
+	public void endAfter(int frame) {
+		connection.send(OPC_STOP, Ints.toByteArray(frame));
+	}
+	
+	/** Asks the node for what its columns cost every frame, see OPC_COLUMNCOSTS.
+	 * @param binColumns Columns of the full board in one bin
+	 */
+	public void startCostProfile(int binColumns) {
+		connection.send(OPC_COSTPROFILE, Ints.toByteArray(binColumns));
+	}
+	
+	private int probePort = -1;
+	/** Blocks until the node answers a probeListen.
+	 * @return Port the node's LinkProbe listens on
+	 * @throws InterruptedException
+	 */
+	public synchronized int waitForProbePort() throws InterruptedException {
+		while(probePort < 0) {
+			if(!isConnected()) {
+				throw new IllegalStateException("Node disconnected during link probing");
+			}
+			wait(100);
+		}
+		return probePort;
+	}
+	
+	private synchronized void setProbePort(int probePort) {
+		this.probePort = probePort;
+		notifyAll();
+	}
+	
+	/** Asks the node to measure its links to other nodes, the results come back through waitForProbeResult.
+	 * @param addresses Address of each node to measure
+	 * @param ports Port of each node's LinkProbe listener
+	 */
+	public void probe(byte[][] addresses, int[] ports) {
+		ByteBuffer packet = ByteBuffer.allocate(4 + addresses.length * 8);
+		packet.putInt(addresses.length);
+		for(int i = 0; i < addresses.length; i++) {
+			packet.put(addresses[i]).putInt(ports[i]);
+		}
+		probeResult = null;
+		connection.send(OPC_PROBE, packet.array());
+	}
+	
+	private long[][] probeResult = null;
+	/** Blocks until the node answers a probe.
+	 * @return Round trip nanoseconds and bytes per second of each link, in the order they were asked for
+	 * @throws InterruptedException
+	 */
+	public synchronized long[][] waitForProbeResult() throws InterruptedException {
+		while(probeResult == null) {
+			if(!isConnected()) {
+				throw new IllegalStateException("Node disconnected during link probing");
+			}
+			wait(100);
+		}
+		return probeResult;
+	}
+	
+	private synchronized void setProbeResult(ByteBuffer packet) {
+		long[][] result = new long[packet.getInt()][2];
+		for(long[] link : result) {
+			link[0] = packet.getLong();
+			link[1] = packet.getLong();
+		}
+		probeResult = result;
+		notifyAll();
+	}
+	
+	private boolean isReady = false;
+	/** Blocks until the node has connected to its neighbors, after the metadata in a chain or after the first strips or tile otherwise.
+	 * @throws InterruptedException
+	 */
+	public synchronized void waitForReady() throws InterruptedException {
+		while(!isReady) {
+			if(!isConnected()) {
+				throw new IllegalStateException("Node disconnected before it was ready");
+			}
+			wait(100);
 		}
-		
-		private void sendPacket(int opCode, byte[] packet) {
-			try {
-				writer.writeInt(packet.length);
-				writer.writeInt(opCode);
-				writer.write(packet, 0, packet.length);
-				writer.flush();
-			} catch (IOException e) { e.printStackTrace(); }
+	}
+	
+	private synchronized void setReady(boolean isReady) {
+		this.isReady = isReady;
+		notifyAll();
+	}
+	
+	public void startSimulation() {
+		connection.send(OPC_STARTSIMULATION, new byte[]{1});
+	}
+	
+	/** Blocks until the node says it is done or disconnects.
+	 * @throws InterruptedException
+	 */
+	public synchronized void waitUntilDone() throws InterruptedException {
+		while(isConnected()) {
+			wait();
 		}
-		
-		public byte[] getAddress() {
-			return nodeSocket.getInetAddress().getAddress();
+	}
+	
+	synchronized void closed() {
+		notifyAll();
+	}
+	
+	public int getNodeNumber() {
+		return nodeNumber;
+	}
+	
+	/** Handles a packet from the node, called on the control plane thread so it must not block.
+	 * Frame marks and done never get here, the control plane handles those itself.
+	 * @param opCode What the packet is
+	 * @param packet The packet
+	 */
+	void handlePacket(int opCode, ByteBuffer packet) {
+		if(opCode == OPC_BOARD) {
+			setBoard(packet);
+		}else if(opCode == OPC_STRIPBOARD) {
+			setStripBoard(packet);
+		}else if(opCode == OPC_STRIPCOSTS) {
+			setStripCosts(packet);
+		}else if(opCode == OPC_HELD) {
+			setHeldFrame(packet.getInt());
+		}else if(opCode == OPC_READY) {
+			setReady(true);
+		}else if(opCode == OPC_PROBEPORT) {
+			setProbePort(packet.getInt());
+		}else if(opCode == OPC_PROBERESULT) {
+			setProbeResult(packet);
+		}else if(opCode == OPC_CALIBRATION) {
+			setCalibration(packet.getLong());
+		}else if(opCode == OPC_CLOCK) {
+			connection.send(OPC_CLOCK, ByteBuffer.allocate(16).put(packet).putLong(System.nanoTime()).array());
 		}
 	}
+	
+	void setLastFrame(int lastFrame) {
+		this.lastFrame = lastFrame;
+	}
 
 	public byte[] getAddress() {
-		return nodeCommunication.getAddress();
+		return connection.getAddress();
+	}
+	
+	/**
+	 * @return Address of the node as text, for printing
+	 */
+	public String getHostAddress() {
+		return connection.getHostAddress();
 	}
 }
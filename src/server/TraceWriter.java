@@ -0,0 +1,77 @@
+package server;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Locale;
+
+import transferManagers.Tracer;
+
+/**
+ * Merges the spans of every node into one trace in the Chrome trace event format, which chrome://tracing and Perfetto open.
+ * Spans are written as they arrive, every node is a process named after its place in the chain.
+ * The nodes already moved their spans to the master's clock, so the whole cluster lines up on one timeline.
+ */
+class TraceWriter {
+
+	private PrintWriter writer;
+	private long origin = System.nanoTime();	// Time 0 of the trace
+	private boolean isFirst = true;
+	private HashSet<Integer> namedNodes = new HashSet<Integer>();
+
+	/** Opens the file and starts the trace.
+	 * @param file Where to write
+	 * @throws IOException
+	 */
+	TraceWriter(String file) throws IOException {
+		writer = new PrintWriter(new BufferedWriter(new FileWriter(file), 1 << 16));
+		writer.print("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+	}
+
+	/** Writes the spans of one node's packet, see ServerFragment.OPC_SPANS.
+	 * @param nodeNumber Which node sent them
+	 * @param packet The packet
+	 */
+	synchronized void add(int nodeNumber, ByteBuffer packet) {
+		if(writer == null) {
+			return;
+		}
+		if(namedNodes.add(nodeNumber)) {
+			writeEvent(String.format("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":%d,\"args\":{\"name\":\"%s\"}}", nodeNumber, nodeNumber < 0 ? "spare" : "node " + nodeNumber));
+			writeEvent(String.format("{\"name\":\"process_sort_index\",\"ph\":\"M\",\"pid\":%d,\"args\":{\"sort_index\":%d}}", nodeNumber, nodeNumber));
+		}
+		int count = packet.getInt();
+		for(int i = 0; i < count; i++) {
+			int name = packet.getInt();
+			int thread = packet.getInt();
+			long start = packet.getLong();
+			long duration = packet.getLong();
+			writeEvent(String.format(Locale.ROOT, "{\"name\":\"%s\",\"cat\":\"node\",\"ph\":\"X\",\"ts\":%.3f,\"dur\":%.3f,\"pid\":%d,\"tid\":%d}",
+					Tracer.SPAN_NAMES[name], (start - origin) / 1e3, duration / 1e3, nodeNumber, thread));
+		}
+	}
+
+	private void writeEvent(String event) {
+		if(!isFirst) {
+			writer.print(',');
+		}
+		writer.println();
+		writer.print(event);
+		isFirst = false;
+	}
+
+	/** Ends the trace and closes the file.
+	 */
+	synchronized void close() {
+		if(writer == null) {
+			return;
+		}
+		writer.println();
+		writer.println("]}");
+		writer.close();
+		writer = null;
+	}
+}
@@ -0,0 +1,77 @@
+package transferManagers;
+
+/**
+ * Turns what a node measured and counted during a step into the cost it hands doneNow, the number neighbors compare to decide who gets a column.
+ * Both sides of a link have to use the same signal, the master picks it for the whole cluster.
+ */
+public class BalancingSignal {
+
+	public static final int SIGNAL_TIME = 0;	// Wall clock time of the step, includes GC, JIT and scheduling noise
+	public static final int SIGNAL_WORK = 1;	// Work counted by CAFragment, the same every run but blind to how fast the machine really is
+	public static final int SIGNAL_BLEND = 2;	// Counted work times a smoothed measure of how long this machine takes per unit of work
+	static final String[] SIGNAL_NAMES = {"time", "work", "blend"};
+
+	public static final double NANOS_PER_WORK_ALPHA = 0.05;	// How fast the blend follows the measured time, smaller is smoother
+
+	private int signal;
+	private double nanosPerWork = 0;
+
+	/**
+	 * @param signal One of the SIGNAL constants
+	 */
+	public BalancingSignal(int signal) {
+		if(signal < SIGNAL_TIME || signal > SIGNAL_BLEND) {
+			throw new IllegalArgumentException("Unknown balancing signal " + signal);
+		}
+		this.signal = signal;
+	}
+
+	/** Works out the cost of the step that just finished.
+	 * @param simulationNanos How long the step took
+	 * @param work How much work the step did, in nominal nanoseconds, see CAFragment.getStepWork
+	 * @return The cost to give doneNow
+	 */
+	public long getCost(long simulationNanos, double work) {
+		switch(signal) {
+			case SIGNAL_WORK:
+				return (long) work;
+			case SIGNAL_BLEND:
+				if(work <= 0) {
+					return simulationNanos;
+				}
+				double measured = simulationNanos / work;
+				if(nanosPerWork == 0) {
+					nanosPerWork = measured;
+				}else {
+					nanosPerWork += NANOS_PER_WORK_ALPHA * (measured - nanosPerWork);
+				}
+				return (long) (work * nanosPerWork);
+			default:
+				return simulationNanos;
+		}
+	}
+
+	public int getSignal() {
+		return signal;
+	}
+
+	/**
+	 * @return The smoothed nanoseconds per unit of work, 0 until the blend has seen a step
+	 */
+	public double getNanosPerWork() {
+		return nanosPerWork;
+	}
+
+	/**
+	 * @param name time, work or blend
+	 * @return The matching SIGNAL constant
+	 */
+	public static int parse(String name) {
+		for(int i = 0; i < SIGNAL_NAMES.length; i++) {
+			if(SIGNAL_NAMES[i].equals(name)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Unknown balancing signal " + name + ", use time, work or blend");
+	}
+}
@@ -1,12 +1,8 @@
 package transferManagers;
 
 import java.io.IOException;
-import java.net.ConnectException;
-import java.net.InetAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
-
-import server.ServerFragment;
+import java.util.ArrayList;
 
 /**
  * Handles network traffic between adjacent nodes, this is the class that does the bulk of network handling. 
@@ -32,16 +28,21 @@ public class BalancingTransferManager extends TransferManager{
 		if(!(leftConnected || rightConnected)) {
 			throw new IllegalStateException("Must initialize either left or right side");
 		}
+		ExchangeEvent event = new ExchangeEvent();
+		event.begin();
 		
 		int newBoardWidth = currentBoard.length;
 		int newBoardHeight = currentBoard[0].length;
+		long startTime = System.nanoTime();
 		if(leftConnected) {
 			leftTransactionHandler.startTransaction(currentBoard, simulationTime);
 		}
 		if(rightConnected) {
 			rightTransactionHandler.startTransaction(currentBoard, simulationTime);
 		}
+		tracer.record(Tracer.SPAN_SEND, startTime);
 		
+		startTime = System.nanoTime();
 		byte[][] newLeftData = null;
 		byte[][] newRightData = null;
 		boolean newBytesFromLeft = false;
@@ -67,7 +68,9 @@ public class BalancingTransferManager extends TransferManager{
 			}
 		}
 		
+		tracer.record(Tracer.SPAN_WAIT, startTime);
 		
+		startTime = System.nanoTime();
 		byte[][] newBoard = new byte[newBoardWidth][newBoardHeight];
 		System.arraycopy(	currentBoard,
 							leftConnected ? 1 : 0, 
@@ -86,6 +89,18 @@ public class BalancingTransferManager extends TransferManager{
 		}
 		
 		shiftAmount = leftConnected ? (newBytesFromLeft ? -1 : 1) : 0; 
+		columnsMoved += (leftConnected ? 1 : 0) + (rightConnected ? 1 : 0);	// Every exchange moves one column one way or the other
+		tracer.record(Tracer.SPAN_BALANCE, startTime);
+		event.end();
+		if(event.shouldCommit()) {
+			event.isBalancing = true;
+			event.oldWidth = currentBoard.length;
+			event.newWidth = newBoardWidth;
+			event.shiftAmount = shiftAmount;
+			event.bytes = (leftConnected ? leftTransactionHandler.getLastTransactionBytes() : 0) + (rightConnected ? rightTransactionHandler.getLastTransactionBytes() : 0);
+			event.cost = simulationTime;
+			event.commit();
+		}
 		
 		return newBoard;
 	}
@@ -110,12 +125,9 @@ public class BalancingTransferManager extends TransferManager{
 			return;
 		}
 		if(connect){
-			ServerSocket server = new ServerSocket(ServerFragment.PORT);
-			leftSocket = server.accept();
-			server.close();
+			leftSocket = acceptLeft();
 			leftTransactionHandler = new LeftTransactionHandler(leftSocket, height);
 			leftTransactionHandler.start();
-			try { Thread.sleep(100); } catch (InterruptedException e) { e.printStackTrace(); }
 			leftConnected = true;
 		}else{
 			leftTransactionHandler.close();
@@ -137,30 +149,10 @@ public class BalancingTransferManager extends TransferManager{
 			return;
 		}
 		if(connect){
-			int tries = 0;
-			while(true) {
-				
-				try {
-					InetAddress rightAddress = InetAddress.getByAddress(address);
-					rightSocket = new Socket(rightAddress, ServerFragment.PORT);
-					break;
-				}catch (ConnectException e) {
-					if(tries > 5) {
-						System.exit(1);
-						System.out.println("Still retrying, try opening port " + ServerFragment.PORT + "...");
-					}else {
-						System.out.println("Connection attempt timed out, retry...");
-					}
-					tries++;
-				}
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e) { }
-			}
+			rightSocket = connectRightSocket(address);
 			
 			rightTransactionHandler = new RightTransactionHandler(rightSocket, height);
 			rightTransactionHandler.start();
-			try { Thread.sleep(100); } catch (InterruptedException e) { e.printStackTrace(); }
 			rightConnected = true;
 		}else{
 			rightTransactionHandler.close();
@@ -171,6 +163,30 @@ public class BalancingTransferManager extends TransferManager{
 	}
 	
 
+	@Override
+	protected LinkStats[] getLinkStats() {
+		ArrayList<LinkStats> links = new ArrayList<LinkStats>();
+		if(leftTransactionHandler != null) {
+			links.add(leftTransactionHandler.getLinkStats());
+		}
+		if(rightTransactionHandler != null) {
+			links.add(rightTransactionHandler.getLinkStats());
+		}
+		return links.toArray(new LinkStats[0]);
+	}
+
+	@Override
+	public long takeBytesExchanged() {
+		long bytes = super.takeBytesExchanged();
+		if(leftTransactionHandler != null) {
+			bytes += leftTransactionHandler.takeBytesExchanged();
+		}
+		if(rightTransactionHandler != null) {
+			bytes += rightTransactionHandler.takeBytesExchanged();
+		}
+		return bytes;
+	}
+
 	@Override
 	public void close() throws IOException {
 		if(rightTransactionHandler != null) {
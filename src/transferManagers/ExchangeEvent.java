@@ -0,0 +1,40 @@
+package transferManagers;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for one TransferManager.doneNow, from handing over the board until the new one is built.
+ */
+@Name("ca.Exchange")
+@Label("Neighbor Exchange")
+@Category({"Cellular Automata", "Network"})
+@Description("Exchanging borders, and columns when balancing, with both neighbors after a step")
+@StackTrace(false)
+class ExchangeEvent extends jdk.jfr.Event {
+	@Label("Balancing")
+	boolean isBalancing;
+
+	@Label("Old Width")
+	int oldWidth;
+
+	@Label("New Width")
+	int newWidth;
+
+	@Label("Shift Amount")
+	@Description("How far the board's start moved, negative is to the left")
+	int shiftAmount;
+
+	@Label("Bytes")
+	@Description("Sent and received with both neighbors, headers included")
+	@DataAmount
+	long bytes;
+
+	@Label("Cost")
+	@Description("The step's cost as the balancing signal measured it")
+	long cost;
+}
@@ -0,0 +1,215 @@
+package transferManagers;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Carries borders between strips or tiles that live on different nodes, for when the board is not a simple chain.
+ * Unlike the transfer managers it is not tied to a left and right neighbor, any node can send to any other.
+ * Connections are made with connect at the start, or the first time a node sends to another, and kept, each one only carries data one way.
+ * Every border is addressed to a strip or tile and the side it goes on, and waits in a queue until it is asked for.
+ */
+public class HaloRouter {
+
+	public static final int SIDE_LEFT = 0;	// Goes in the left border column
+	public static final int SIDE_RIGHT = 1;	// Goes in the right border column
+	public static final int SIDE_TOP = 2;	// Goes in the top border row
+	public static final int SIDE_BOTTOM = 3;	// Goes in the bottom border row
+	public static final int SIDE_TOP_LEFT = 4;	// Corner cells, a tile's diagonal neighbors need them too
+	public static final int SIDE_TOP_RIGHT = 5;
+	public static final int SIDE_BOTTOM_LEFT = 6;
+	public static final int SIDE_BOTTOM_RIGHT = 7;
+	static final int SIDES = 8;
+
+	private ServerSocket server;
+	private byte[][] addresses = new byte[0][];
+	private int[] ports = new int[0];
+	private HashMap<Integer, DataOutputStream> outgoing = new HashMap<Integer, DataOutputStream>();
+	private ArrayList<Socket> sockets = new ArrayList<Socket>();
+	private ConcurrentHashMap<Integer, LinkedBlockingQueue<byte[]>> queues = new ConcurrentHashMap<Integer, LinkedBlockingQueue<byte[]>>();
+	private AtomicLong bytesExchanged = new AtomicLong();	// Both ways, since the last take
+	private volatile boolean stop = false;
+
+	/** Starts listening for other nodes.
+	 * @param port Port to listen on
+	 * @throws IOException
+	 */
+	public HaloRouter(int port) throws IOException {
+		server = new ServerSocket(port);
+		Thread acceptor = new Thread(this::acceptConnections, "HaloRouter " + port);
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/** Tells the router where every node is, call again whenever nodes join or leave.
+	 * @param addresses Address of each node
+	 * @param ports Port each node's router listens on
+	 */
+	public synchronized void setDirectory(byte[][] addresses, int[] ports) {
+		if(!java.util.Arrays.equals(this.ports, ports) || !java.util.Arrays.deepEquals(this.addresses, addresses)) {
+			for(DataOutputStream out : outgoing.values()) {	// Node numbers may mean different nodes now
+				try { out.close(); } catch (IOException e) { e.printStackTrace(); }
+			}
+			outgoing.clear();
+		}
+		this.addresses = addresses;
+		this.ports = ports;
+	}
+
+	/** Queues a border for a strip or tile on another node, it goes out on the next flush.
+	 * @param node Node the strip or tile is on
+	 * @param strip Strip or tile to send to
+	 * @param side One of the SIDE constants, which of its borders this is for
+	 * @param border The border cells
+	 * @throws IOException
+	 */
+	public synchronized void send(int node, int strip, int side, byte[] border) throws IOException {
+		DataOutputStream out = outgoing.get(node);
+		if(out == null) {
+			out = connect(node);
+			outgoing.put(node, out);
+		}
+		out.writeInt(strip);
+		out.writeInt(side);
+		out.writeInt(border.length);
+		out.write(border);
+		bytesExchanged.addAndGet(12 + border.length);
+	}
+
+	/** Sends everything queued by send.
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		for(DataOutputStream out : outgoing.values()) {
+			out.flush();
+		}
+	}
+
+	/** Blocks until a border for the strip or tile arrives.
+	 * @param strip Strip or tile the border is for
+	 * @param side One of the SIDE constants
+	 * @return The border cells
+	 */
+	public byte[] receive(int strip, int side) {
+		LinkedBlockingQueue<byte[]> queue = getQueue(strip, side);
+		while(true) {
+			try {
+				return queue.take();
+			} catch (InterruptedException e) { }
+		}
+	}
+
+	private LinkedBlockingQueue<byte[]> getQueue(int strip, int side) {
+		return queues.computeIfAbsent(strip * SIDES + side, key -> new LinkedBlockingQueue<byte[]>());
+	}
+
+	/** Connects to several nodes at once, so the first exchange doesn't have to wait on them one by one.
+	 * @param nodes Nodes this one will send to
+	 * @throws IOException If any of them can't be reached
+	 */
+	public synchronized void connect(int[] nodes) throws IOException {
+		ArrayList<Thread> connectors = new ArrayList<Thread>();
+		ConcurrentHashMap<Integer, DataOutputStream> connected = new ConcurrentHashMap<Integer, DataOutputStream>();
+		IOException[] error = new IOException[1];
+		for(int node : nodes) {
+			if(outgoing.containsKey(node)) {
+				continue;
+			}
+			Thread connector = new Thread(() -> {
+				try {
+					connected.put(node, connect(node));
+				} catch (IOException e) {
+					error[0] = e;
+				}
+			}, "HaloRouter connect " + node);
+			connector.start();
+			connectors.add(connector);
+		}
+		for(Thread connector : connectors) {
+			try {
+				connector.join();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted connecting", e);
+			}
+		}
+		outgoing.putAll(connected);
+		if(error[0] != null) {
+			throw error[0];
+		}
+	}
+
+	private DataOutputStream connect(int node) throws IOException {
+		Socket socket = TransferManager.connectWithBackoff(InetAddress.getByAddress(addresses[node]), ports[node]);
+		socket.setTcpNoDelay(true);	// Borders are flushed in batches already
+		synchronized (sockets) {
+			sockets.add(socket);
+		}
+		return new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+	}
+
+	private void acceptConnections() {
+		while(!stop) {
+			try {
+				Socket socket = server.accept();
+				synchronized (sockets) {
+					sockets.add(socket);
+				}
+				Thread reader = new Thread(() -> readBorders(socket), "HaloRouter reader");
+				reader.setDaemon(true);
+				reader.start();
+			} catch (IOException e) {
+				break;	// Closed
+			}
+		}
+	}
+
+	private void readBorders(Socket socket) {
+		try {
+			DataInputStream in = new DataInputStream(new java.io.BufferedInputStream(socket.getInputStream(), 1 << 16));
+			while(!stop) {
+				int strip = in.readInt();
+				int side = in.readInt();
+				byte[] border = new byte[in.readInt()];
+				in.readFully(border);
+				bytesExchanged.addAndGet(12 + border.length);
+				getQueue(strip, side).add(border);
+			}
+		} catch (SocketException | EOFException e) {
+			// The other node closed this connection
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return Bytes sent to and received from other nodes since the last call, headers included
+	 */
+	public long takeBytesExchanged() {
+		return bytesExchanged.getAndSet(0);
+	}
+
+	/** Closes every connection.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		stop = true;
+		server.close();
+		synchronized (sockets) {
+			for(Socket socket : sockets) {
+				socket.close();
+			}
+		}
+	}
+}
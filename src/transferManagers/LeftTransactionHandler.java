@@ -6,6 +6,7 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.primitives.Bytes;
 import com.google.common.primitives.Longs;
@@ -20,6 +21,8 @@ public class LeftTransactionHandler extends Thread{
 	public static final int STATE_IDLE = 0;
 	public static final int STATE_WAITFORDECISION = 1;
 	public static final int STATE_WAITFORACK = 2;
+	static final String[] STATE_NAMES = {"idle", "wait for decision", "wait for ack"};
+	static final String SIDE = "left";
 	
 	public static final int OPC_TIME = 99;
 	public static final int OPC_REQ = 100;
@@ -27,6 +30,12 @@ public class LeftTransactionHandler extends Thread{
 	public static final int OPC_ACK = 102;
 	
 	private byte[] messageBuffer;
+	private AtomicLong bytesExchanged = new AtomicLong();	// Both ways, headers included, since the last take
+	private LinkStats linkStats;
+	private long transactionStart = 0;	// When startTransaction sent our time or took the neighbor's
+	private long dataTime = 0;	// When our column went out
+	private long transactionBytes = 0;
+	private volatile long lastTransactionBytes = 0;
 	private byte[] data;
 	private boolean stop = false;
 	
@@ -47,6 +56,7 @@ public class LeftTransactionHandler extends Thread{
 		this.reader = new DataInputStream(socket.getInputStream());
 		this.writer =  new DataOutputStream(socket.getOutputStream());
 		state = STATE_IDLE;
+		linkStats = new LinkStats(LinkStats.SIDE_LEFT);
 	}
 	@Override
 	public void run() {
@@ -60,6 +70,7 @@ public class LeftTransactionHandler extends Thread{
 				}
 				opCode = reader.readInt();
 				reader.readFully(messageBuffer, 0, messageSize); 
+				bytesExchanged.addAndGet(8 + messageSize);
 			}catch (SocketException | EOFException e){
 				try {
 					close();
@@ -72,6 +83,7 @@ public class LeftTransactionHandler extends Thread{
 				e.printStackTrace();
 			}
 			synchronized (this) {
+				transactionBytes += 8 + messageSize;
 				switch(state) {
 					case STATE_IDLE:
 						throw new IllegalStateException("Message idle.");
@@ -79,14 +91,18 @@ public class LeftTransactionHandler extends Thread{
 					case STATE_WAITFORDECISION:
 						switch (opCode) {
 							case OPC_REQ:
+								linkStats.record(LinkStats.HISTOGRAM_TIMEWAIT, System.nanoTime() - transactionStart);
 								sendPacket(OPC_DATA, Bytes.concat(currentBoard[0], currentBoard[1]));
-								state = STATE_WAITFORACK;
+								dataTime = System.nanoTime();
+								setState(STATE_WAITFORACK, opCode);
 								break;
-							case OPC_DATA:
+							case OPC_DATA:	// The decision and the column come together, so all of it counts as waiting
+								linkStats.record(LinkStats.HISTOGRAM_TIMEWAIT, System.nanoTime() - transactionStart);
 								System.arraycopy(messageBuffer, 0, data, 0, messageBuffer.length);
 								nowDone = true;
 								gotData = true;
 								sendPacket(OPC_ACK, null);
+								endTransaction(true);
 								this.notifyAll();
 								break;
 							default:
@@ -96,9 +112,11 @@ public class LeftTransactionHandler extends Thread{
 					case STATE_WAITFORACK:
 						switch (opCode) {
 							case OPC_ACK:
+								linkStats.record(LinkStats.HISTOGRAM_ACK, System.nanoTime() - dataTime);
+								endTransaction(false);
 								nowDone = true;
 								gotData = false;
-								state = STATE_IDLE;
+								setState(STATE_IDLE, opCode);
 								this.notifyAll();
 								break;
 							default:
@@ -121,11 +139,38 @@ public class LeftTransactionHandler extends Thread{
 			this.currentBoard = currentBoard;
 			nowDone = false;
 			gotData = false;
+			transactionStart = System.nanoTime();
 			sendPacket(OPC_TIME, Longs.toByteArray(simulationTime));
-			state = STATE_WAITFORDECISION;
+			setState(STATE_WAITFORDECISION, 0);
 		}
 	}
 	
+	/** Records how the transaction went.
+	 * @param isTaken True if the column came to this node
+	 */
+	private void endTransaction(boolean isTaken) {
+		linkStats.recordDecision(isTaken);
+		linkStats.record(LinkStats.HISTOGRAM_BYTES, transactionBytes);
+		lastTransactionBytes = transactionBytes;
+		transactionBytes = 0;
+	}
+	
+	/** Moves to another state and tells Flight Recorder about it.
+	 * @param newState The new state
+	 * @param opCode Packet that caused it, 0 for our own step
+	 */
+	private void setState(int newState, int opCode) {
+		TransactionEvent event = new TransactionEvent();
+		if(event.shouldCommit()) {
+			event.side = SIDE;
+			event.fromState = STATE_NAMES[state];
+			event.toState = STATE_NAMES[newState];
+			event.opCode = opCode;
+			event.commit();
+		}
+		state = newState;
+	}
+	
 	/**	
 	 * @param opCode What the message will contain, or typically the message itself
 	 * @param Packet either the bytes to send or null
@@ -140,6 +185,8 @@ public class LeftTransactionHandler extends Thread{
 				writer.writeInt(sendPacket.length);
 				writer.writeInt(opCode);
 				writer.write(sendPacket, 0, sendPacket.length);
+				bytesExchanged.addAndGet(8 + sendPacket.length);
+				transactionBytes += 8 + sendPacket.length;
 				writer.flush();
 			} catch (SocketException e) {
 				System.out.println("Master disconnected, stopping...");
@@ -196,6 +243,27 @@ public class LeftTransactionHandler extends Thread{
 		return returnBytes;
 	}
 	
+	/**
+	 * @return Bytes sent and received since the last call
+	 */
+	public long takeBytesExchanged() {
+		return bytesExchanged.getAndSet(0);
+	}
+	
+	/**
+	 * @return Timings of this link
+	 */
+	public LinkStats getLinkStats() {
+		return linkStats;
+	}
+	
+	/**
+	 * @return Bytes sent and received during the last finished transaction, headers included
+	 */
+	public long getLastTransactionBytes() {
+		return lastTransactionBytes;
+	}
+	
 	/** Closes and cleans up the object.
 	 * @throws IOException
 	 */
@@ -0,0 +1,138 @@
+package transferManagers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+
+/**
+ * Measures the links between nodes before the master picks the chain order, so neighbors in the simulation get the best links.
+ * Every node runs a small echo listener, then each node in turn measures round trip time and bandwidth to the others.
+ */
+public class LinkProbe {
+
+	public static final int PINGS = 20;	// Round trips per link, the median is used
+	public static final int BULK_BYTES = 1 << 20;	// Sent in one go to measure bandwidth
+	static final int OP_PING = 0;
+	static final int OP_BULK = 1;
+	static final int OP_CLOSE = 2;
+
+	private ServerSocket server;
+	private volatile boolean stop = false;
+
+	/** Starts the echo listener on a free port.
+	 * @throws IOException
+	 */
+	public LinkProbe() throws IOException {
+		server = new ServerSocket(0);
+		Thread acceptor = new Thread(this::acceptProbes, "LinkProbe " + server.getLocalPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * @return Port the echo listener is on
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	private void acceptProbes() {
+		while(!stop) {
+			try {
+				Socket socket = server.accept();
+				Thread echo = new Thread(() -> echo(socket), "LinkProbe echo");
+				echo.setDaemon(true);
+				echo.start();
+			} catch (IOException e) {
+				break;	// Closed
+			}
+		}
+	}
+
+	private void echo(Socket socket) {
+		try {
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			byte[] buffer = new byte[1 << 16];
+			while(true) {
+				int op = in.readInt();
+				if(op == OP_PING) {
+					out.writeInt(OP_PING);
+				}else if(op == OP_BULK) {
+					int length = in.readInt();
+					for(int read = 0; read < length; ) {
+						int chunk = in.read(buffer, 0, Math.min(buffer.length, length - read));
+						if(chunk < 0) {
+							throw new EOFException();
+						}
+						read += chunk;
+					}
+					out.writeInt(length);
+				}else {
+					break;
+				}
+				out.flush();
+			}
+			socket.close();
+		} catch (SocketException | EOFException e) {
+			// The prober went away
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/** Measures one link to another node's echo listener.
+	 * @param address Address of the other node
+	 * @param port Port its echo listener is on
+	 * @return Median round trip time in nanoseconds, then bandwidth in bytes per second
+	 * @throws IOException
+	 */
+	public static long[] measure(byte[] address, int port) throws IOException {
+		Socket socket = TransferManager.connectWithBackoff(InetAddress.getByAddress(address), port);
+		socket.setTcpNoDelay(true);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+		long[] roundTrips = new long[PINGS];
+		for(int i = -1; i < PINGS; i++) {	// The first one only warms up the connection
+			long startTime = System.nanoTime();
+			out.writeInt(OP_PING);
+			out.flush();
+			in.readInt();
+			if(i >= 0) {
+				roundTrips[i] = System.nanoTime() - startTime;
+			}
+		}
+		Arrays.sort(roundTrips);
+		long roundTrip = roundTrips[PINGS / 2];
+
+		byte[] bulk = new byte[BULK_BYTES];
+		long startTime = System.nanoTime();
+		out.writeInt(OP_BULK);
+		out.writeInt(bulk.length);
+		out.write(bulk);
+		out.flush();
+		in.readInt();
+		long transferNanos = Math.max(1, System.nanoTime() - startTime - roundTrip);
+		out.writeInt(OP_CLOSE);
+		out.flush();
+		socket.close();
+		return new long[] {roundTrip, (long) (bulk.length * 1e9 / transferNanos)};
+	}
+
+	/** Stops listening.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		stop = true;
+		server.close();
+	}
+}
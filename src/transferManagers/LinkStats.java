@@ -0,0 +1,126 @@
+package transferManagers;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * What one link to a neighbor spent its time on, as histograms in nanoseconds plus bytes per exchange and which way columns went.
+ * Summarized once a frame for the master, see ServerFragment.OPC_LINKSTATS.
+ */
+public class LinkStats {
+	public static final int SIDE_LEFT = 0;
+	public static final int SIDE_RIGHT = 1;
+	public static final String[] SIDE_NAMES = {"left", "right"};
+
+	public static final int HISTOGRAM_TIMEWAIT = 0;	// From sending our step time until the neighbor's decision, or its border, is in
+	public static final int HISTOGRAM_TRANSFER = 1;	// From asking for a column until it arrived, only the right side asks so the left side has none
+	public static final int HISTOGRAM_ACK = 2;	// From sending a column until the neighbor acknowledged it
+	public static final int HISTOGRAM_BYTES = 3;	// Bytes sent and received in one exchange, headers included
+	public static final String[] HISTOGRAM_NAMES = {"time_wait", "transfer", "ack", "bytes"};
+	public static final int HISTOGRAM_SIZE = LogHistogram.SUMMARY_LENGTH * 8;	// One histogram's summary
+
+	private int side;
+	private LogHistogram[] histograms = new LogHistogram[HISTOGRAM_NAMES.length];
+	private AtomicInteger columnsTaken = new AtomicInteger();
+	private AtomicInteger columnsGiven = new AtomicInteger();
+
+	/**
+	 * @param side SIDE_LEFT or SIDE_RIGHT
+	 */
+	public LinkStats(int side) {
+		this.side = side;
+		for(int i = 0; i < histograms.length; i++) {
+			if(hasHistogram(side, i)) {
+				histograms[i] = new LogHistogram();
+			}
+		}
+	}
+
+	/**
+	 * @param side SIDE_LEFT or SIDE_RIGHT
+	 * @param histogram One of the HISTOGRAM constants
+	 * @return False if a link on that side never records it, then it isn't summarized either
+	 */
+	public static boolean hasHistogram(int side, int histogram) {
+		return side != SIDE_LEFT || histogram != HISTOGRAM_TRANSFER;
+	}
+
+	/**
+	 * @param side SIDE_LEFT or SIDE_RIGHT
+	 * @return Bytes takeSummary writes for a link on that side: side, columns taken, columns given, then the summary of every histogram it has
+	 */
+	public static int getSummarySize(int side) {
+		int size = 3 * 4;
+		for(int i = 0; i < HISTOGRAM_NAMES.length; i++) {
+			if(hasHistogram(side, i)) {
+				size += HISTOGRAM_SIZE;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @param histogram One of the HISTOGRAM constants
+	 * @param value Nanoseconds, or bytes for HISTOGRAM_BYTES
+	 */
+	public void record(int histogram, long value) {
+		histograms[histogram].record(value);
+	}
+
+	/** Counts a balancing decision.
+	 * @param isTaken True if the column came to this node, false if it went to the neighbor
+	 */
+	public void recordDecision(boolean isTaken) {
+		(isTaken ? columnsTaken : columnsGiven).incrementAndGet();
+	}
+
+	public int getSide() {
+		return side;
+	}
+
+	/** Writes getSummarySize(getSide()) bytes and starts the histograms over, the column counts keep going.
+	 * @param packet Where to write
+	 */
+	public void takeSummary(ByteBuffer packet) {
+		packet.putInt(side).putInt(columnsTaken.get()).putInt(columnsGiven.get());
+		for(LogHistogram histogram : histograms) {
+			if(histogram == null) {
+				continue;
+			}
+			for(long value : histogram.takeSummary()) {
+				packet.putLong(value);
+			}
+		}
+	}
+
+	/**
+	 * One link's summary as the master reads it.
+	 */
+	public static class Summary {
+		public int side;
+		public int columnsTaken;
+		public int columnsGiven;
+		public long[][] histograms = new long[HISTOGRAM_NAMES.length][];	// Count, LogHistogram.PERCENTILES, then max, null for one the side doesn't have
+
+		/**
+		 * @param packet Positioned at a summary written by takeSummary
+		 * @return The summary
+		 */
+		public static Summary read(ByteBuffer packet) {
+			Summary summary = new Summary();
+			summary.side = packet.getInt();
+			summary.columnsTaken = packet.getInt();
+			summary.columnsGiven = packet.getInt();
+			for(int h = 0; h < HISTOGRAM_NAMES.length; h++) {
+				if(!hasHistogram(summary.side, h)) {
+					continue;
+				}
+				long[] histogram = summary.histograms[h] = new long[LogHistogram.SUMMARY_LENGTH];
+				for(int i = 0; i < histogram.length; i++) {
+					histogram[i] = packet.getLong();
+				}
+			}
+			return summary;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package transferManagers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts values in log-linear buckets, every power of two split into SUB_BUCKETS, so any value from 0 to Long.MAX_VALUE is kept within 1/SUB_BUCKETS.
+ * Recording is two atomic adds with no allocation, cheap enough to leave on for every exchange.
+ */
+public class LogHistogram {
+	public static final int SUB_BUCKET_BITS = 4;	// 16 buckets per power of two
+	public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	public static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+	public static final double[] PERCENTILES = {50, 90, 99};	// Summarized by takeSummary
+	public static final int SUMMARY_LENGTH = PERCENTILES.length + 2;	// Count, the percentiles, then the max
+
+	private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param value Value to count, negative counts as 0
+	 */
+	public void record(long value) {
+		value = Math.max(0, value);
+		counts.incrementAndGet(getBucket(value));
+		if(value > max.get()) {
+			max.accumulateAndGet(value, Math::max);
+		}
+	}
+
+	/** Summarizes everything recorded since the last call and starts over.
+	 * @return Count, then the value at each of PERCENTILES, then the max
+	 */
+	public long[] takeSummary() {
+		long[] taken = new long[BUCKETS];
+		long count = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			taken[i] = counts.getAndSet(i, 0);
+			count += taken[i];
+		}
+		long[] summary = new long[SUMMARY_LENGTH];
+		summary[0] = count;
+		summary[SUMMARY_LENGTH - 1] = max.getAndSet(0);
+		if(count == 0) {
+			return summary;
+		}
+		int bucket = 0;
+		long seen = taken[0];
+		for(int p = 0; p < PERCENTILES.length; p++) {
+			long rank = Math.max(1, (long) Math.ceil(PERCENTILES[p] / 100 * count));
+			while(seen < rank) {
+				seen += taken[++bucket];
+			}
+			summary[p + 1] = Math.min(getValue(bucket), summary[SUMMARY_LENGTH - 1]);
+		}
+		return summary;
+	}
+
+	/**
+	 * @param value A value, not negative
+	 * @return Bucket it is counted in
+	 */
+	static int getBucket(long value) {
+		if(value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return shift * SUB_BUCKETS + (int) (value >>> shift);	// The top bits are SUB_BUCKETS to 2 * SUB_BUCKETS - 1
+	}
+
+	/**
+	 * @param bucket A bucket
+	 * @return Middle of the values counted in it
+	 */
+	static long getValue(int bucket) {
+		if(bucket < 2 * SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long top = bucket - shift * SUB_BUCKETS;
+		return (top << shift) + (1L << (shift - 1));
+	}
+}
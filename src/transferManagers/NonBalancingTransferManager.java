@@ -4,14 +4,9 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.net.ConnectException;
-import java.net.InetAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 
-import server.ServerFragment;
-
 /**
  * Handles network traffic between adjacent nodes, this is the class that does the bulk of network handling. 
  *
@@ -24,6 +19,9 @@ public class NonBalancingTransferManager extends TransferManager{
 	boolean leftConnected = false;
 	boolean rightConnected = false;
 	
+	LinkStats leftStats = new LinkStats(LinkStats.SIDE_LEFT);
+	LinkStats rightStats = new LinkStats(LinkStats.SIDE_RIGHT);
+	
 	/** Just transfers the border evenly between two nodes 
 	 * @param currentBoard The node's board after it finishes simulation
 	 * @return The new board after the transfer manager changes it.
@@ -34,18 +32,39 @@ public class NonBalancingTransferManager extends TransferManager{
 		if(!(leftConnected || rightConnected)) {
 			throw new IllegalStateException("Must initialize either left or right side");
 		}
+		ExchangeEvent event = new ExchangeEvent();
+		event.begin();
+		long startTime = System.nanoTime();
 		if(leftConnected) {
 			leftTransactionHandler.sendData(currentBoard[1]);
 		}
 		if(rightConnected) {
 			rightTransactionHandler.sendData(currentBoard[currentBoard.length - 2]);
 		}
+		tracer.record(Tracer.SPAN_SEND, startTime);
 		
+		long waitTime = System.nanoTime();
 		if(leftConnected) {
 			currentBoard[0] = leftTransactionHandler.getData();
+			leftStats.record(LinkStats.HISTOGRAM_TIMEWAIT, leftTransactionHandler.getWaitTime());
+			leftStats.record(LinkStats.HISTOGRAM_BYTES, 2 * (4 + currentBoard[0].length));
+			bytesExchanged += 2 * (4 + currentBoard[0].length);
 		}
 		if(rightConnected) {
 			currentBoard[currentBoard.length - 1] = rightTransactionHandler.getData();
+			rightStats.record(LinkStats.HISTOGRAM_TIMEWAIT, rightTransactionHandler.getWaitTime());
+			rightStats.record(LinkStats.HISTOGRAM_BYTES, 2 * (4 + currentBoard[0].length));
+			bytesExchanged += 2 * (4 + currentBoard[0].length);
+		}
+		tracer.record(Tracer.SPAN_WAIT, waitTime);
+		event.end();
+		if(event.shouldCommit()) {
+			event.isBalancing = false;
+			event.oldWidth = currentBoard.length;
+			event.newWidth = currentBoard.length;
+			event.bytes = ((leftConnected ? 1 : 0) + (rightConnected ? 1 : 0)) * 2 * (4 + currentBoard[0].length);
+			event.cost = simulationTime;
+			event.commit();
 		}
 		
 		return currentBoard;
@@ -59,6 +78,14 @@ public class NonBalancingTransferManager extends TransferManager{
 		return 0;
 	}
 	
+	@Override
+	protected LinkStats[] getLinkStats() {
+		if(leftConnected && rightConnected) {
+			return new LinkStats[] {leftStats, rightStats};
+		}
+		return leftConnected ? new LinkStats[] {leftStats} : rightConnected ? new LinkStats[] {rightStats} : new LinkStats[0];
+	}
+	
 	Socket leftSocket;
 	/** Opens a server and waits for the node to the left to connect, does not need an address. 
 	 * @param connect True to connect, false to disconnect
@@ -70,12 +97,9 @@ public class NonBalancingTransferManager extends TransferManager{
 			return;
 		}
 		if(connect){
-			ServerSocket server = new ServerSocket(ServerFragment.PORT);
-			leftSocket = server.accept();
-			server.close();
+			leftSocket = acceptLeft();
 			leftTransactionHandler = new TransactionHandler(leftSocket, height);
 			leftTransactionHandler.start();
-			try { Thread.sleep(100); } catch (InterruptedException e) { e.printStackTrace(); }
 			leftConnected = true;
 		}else{
 			leftTransactionHandler.close();
@@ -96,30 +120,10 @@ public class NonBalancingTransferManager extends TransferManager{
 			return;
 		}
 		if(connect){
-			int tries = 0;
-			while(true) {
-				
-				try {
-					InetAddress rightAddress = InetAddress.getByAddress(address);
-					rightSocket = new Socket(rightAddress, ServerFragment.PORT);
-					break;
-				}catch (ConnectException e) {
-					if(tries > 5) {
-						System.exit(1);
-						System.out.println("Still retrying, try opening port " + ServerFragment.PORT + "...");
-					}else {
-						System.out.println("Connection attempt timed out, retry...");
-					}
-					tries++;
-				}
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e) { }
-			}
+			rightSocket = connectRightSocket(address);
 			
 			rightTransactionHandler = new TransactionHandler(rightSocket, height);
 			rightTransactionHandler.start();
-			try { Thread.sleep(100); } catch (InterruptedException e) { e.printStackTrace(); }
 			rightConnected = true;
 		}else{
 			rightTransactionHandler.close();
@@ -138,6 +142,9 @@ public class NonBalancingTransferManager extends TransferManager{
 
 		private byte[] messageBuffer;
 		boolean stop = false;
+		private long sentTime = 0;	// When our last border went out
+		private long receivedTime = 0;	// When the neighbor's last border was in
+		private long waitTime = 0;	// How long the last border taken came in after ours went out
 		
 		DataInputStream reader;
 		DataOutputStream writer;
@@ -163,6 +170,11 @@ public class NonBalancingTransferManager extends TransferManager{
 					if(messageSize == 0){
 						continue;
 					}
+					synchronized (this) {	// A neighbor a step ahead mustn't overwrite the border that hasn't been taken yet
+						while(nowDone && !stop) {
+							try { wait(); } catch (InterruptedException e) { }
+						}
+					}
 					reader.readFully(messageBuffer, 0, messageSize); 
 				}catch (SocketException | EOFException e){
 					try {
@@ -176,6 +188,7 @@ public class NonBalancingTransferManager extends TransferManager{
 					e.printStackTrace();
 				}
 				synchronized (this) {
+					receivedTime = System.nanoTime();
 					nowDone = true;
 					this.notifyAll();
 				}
@@ -186,6 +199,7 @@ public class NonBalancingTransferManager extends TransferManager{
 		 * @throws IOException
 		 */
 		private void sendData(byte[] data) throws IOException {
+			sentTime = System.nanoTime();
 			writer.writeInt(data.length);
 			writer.write(data, 0, data.length);
 			writer.flush();
@@ -201,17 +215,27 @@ public class NonBalancingTransferManager extends TransferManager{
 					try { wait(); } catch (InterruptedException e) { }
 				}
 			}
-			nowDone = false;
 		}
 
 		/** Gets the slices that were resultant from the transaction
 		 * @return Two slices
 		 */
 		public byte[] getData(){
-			waitForTransaction();
-			byte[] returnBytes = new byte[messageBuffer.length];
-			System.arraycopy(messageBuffer, 0, returnBytes, 0, messageBuffer.length);
-			return returnBytes;
+			synchronized (this) {
+				waitForTransaction();
+				byte[] returnBytes = new byte[messageBuffer.length];
+				System.arraycopy(messageBuffer, 0, returnBytes, 0, messageBuffer.length);
+				waitTime = Math.max(0, receivedTime - sentTime);	// A neighbor ahead of us had its border in before ours went out
+				nowDone = false;
+				this.notifyAll();	// The reader can take the next border
+				return returnBytes;
+			}
+		}
+		/**
+		 * @return Nanoseconds the border taken last came in after ours went out, on this link alone
+		 */
+		public synchronized long getWaitTime() {
+			return waitTime;
 		}
 		/** Closes and cleans up the object.
 		 * @throws IOException
@@ -219,7 +243,10 @@ public class NonBalancingTransferManager extends TransferManager{
 		public void close() throws IOException{
 			reader.close();
 			writer.close();
-			stop = true;
+			synchronized (this) {
+				stop = true;
+				this.notifyAll();
+			}
 		}
 	}
 	@Override
@@ -6,6 +6,7 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.primitives.Bytes;
 import com.google.common.primitives.Longs;
@@ -21,8 +22,17 @@ public class RightTransactionHandler extends Thread{
 	public static final int STATE_WAITFORTIME = 1;
 	public static final int STATE_WAITFORDATA = 2;
 	public static final int STATE_WAITFORACK = 3;
+	static final String[] STATE_NAMES = {"idle", "wait for time", "wait for data", "wait for ack"};
+	static final String SIDE = "right";
 	
 	private byte[] messageBuffer;
+	private AtomicLong bytesExchanged = new AtomicLong();	// Both ways, headers included, since the last take
+	private LinkStats linkStats;
+	private long transactionStart = 0;	// When startTransaction sent our time or took the neighbor's
+	private long requestTime = 0;	// When the request for a column went out
+	private long dataTime = 0;	// When our column went out
+	private long transactionBytes = 0;
+	private volatile long lastTransactionBytes = 0;
 	private byte[] data;
 	private boolean stop = false;
 	
@@ -46,6 +56,7 @@ public class RightTransactionHandler extends Thread{
 		this.reader = new DataInputStream(socket.getInputStream());
 		this.writer =  new DataOutputStream(socket.getOutputStream());
 		state = STATE_IDLE;
+		linkStats = new LinkStats(LinkStats.SIDE_RIGHT);
 	}
 	@Override
 	public void run() {
@@ -59,6 +70,7 @@ public class RightTransactionHandler extends Thread{
 				}
 				opCode = reader.readInt();
 				reader.readFully(messageBuffer, 0, messageSize); 
+				bytesExchanged.addAndGet(8 + messageSize);
 			}catch (SocketException | EOFException e){
 				try {
 					close();
@@ -71,6 +83,7 @@ public class RightTransactionHandler extends Thread{
 				e.printStackTrace();
 			}
 			synchronized (this) {
+				transactionBytes += 8 + messageSize;
 				switch(state) {
 					case STATE_IDLE:
 						switch (opCode) {
@@ -87,7 +100,7 @@ public class RightTransactionHandler extends Thread{
 						switch (opCode) {
 							case LeftTransactionHandler.OPC_TIME:
 								rightNodeTime = Longs.fromByteArray(messageBuffer);
-								handleTime();
+								handleTime(opCode);
 								break;
 							default:
 								throw new IllegalStateException("Wait for time " + opCode);
@@ -96,11 +109,13 @@ public class RightTransactionHandler extends Thread{
 					case STATE_WAITFORDATA:
 						switch (opCode) {
 							case LeftTransactionHandler.OPC_DATA:
+								linkStats.record(LinkStats.HISTOGRAM_TRANSFER, System.nanoTime() - requestTime);
 								System.arraycopy(messageBuffer, 0, data, 0, messageBuffer.length);
 								nowDone = true;
 								gotData = true;
 								sendPacket(LeftTransactionHandler.OPC_ACK, null);
-								state = STATE_IDLE;
+								endTransaction(true);
+								setState(STATE_IDLE, opCode);
 								this.notifyAll();
 								break;
 							default:
@@ -110,9 +125,11 @@ public class RightTransactionHandler extends Thread{
 					case STATE_WAITFORACK:
 						switch (opCode) {
 							case LeftTransactionHandler.OPC_ACK:
+								linkStats.record(LinkStats.HISTOGRAM_ACK, System.nanoTime() - dataTime);
+								endTransaction(false);
 								nowDone = true;
 								gotData = false;
-								state = STATE_IDLE;
+								setState(STATE_IDLE, opCode);
 								this.notifyAll();
 								break;
 							default:
@@ -136,27 +153,60 @@ public class RightTransactionHandler extends Thread{
 			nowDone = false;
 			gotData = false;
 			leftNodeTime = simulationTime;
+			transactionStart = System.nanoTime();
 			if(hasTime) {
-				handleTime();
+				handleTime(0);
 			}else {
-				state = STATE_WAITFORTIME;
+				setState(STATE_WAITFORTIME, 0);
 			}
 		}
 	}
 	
-	private void handleTime() {
+	/** Both step times are in, decides which way the column goes.
+	 * @param opCode Packet that brought the last of them, 0 if it was our own
+	 */
+	private void handleTime(int opCode) {
 		synchronized (this) {
 			hasTime = false;
+			linkStats.record(LinkStats.HISTOGRAM_TIMEWAIT, System.nanoTime() - transactionStart);
 			if(leftNodeTime > rightNodeTime) {	// Right done first
 				sendPacket(LeftTransactionHandler.OPC_DATA, Bytes.concat(currentBoard[currentBoard.length - 2], currentBoard[currentBoard.length - 1]));
-				state = STATE_WAITFORACK;
+				dataTime = System.nanoTime();
+				setState(STATE_WAITFORACK, opCode);
 			}else {	// Left done first
 				sendPacket(LeftTransactionHandler.OPC_REQ, null);
-				state = STATE_WAITFORDATA;
+				requestTime = System.nanoTime();
+				setState(STATE_WAITFORDATA, opCode);
 			}
 		}
 	}
 	
+	/** Records how the transaction went.
+	 * @param isTaken True if the column came to this node
+	 */
+	private void endTransaction(boolean isTaken) {
+		linkStats.recordDecision(isTaken);
+		linkStats.record(LinkStats.HISTOGRAM_BYTES, transactionBytes);
+		lastTransactionBytes = transactionBytes;
+		transactionBytes = 0;
+	}
+	
+	/** Moves to another state and tells Flight Recorder about it.
+	 * @param newState The new state
+	 * @param opCode Packet that caused it, 0 for our own step
+	 */
+	private void setState(int newState, int opCode) {
+		TransactionEvent event = new TransactionEvent();
+		if(event.shouldCommit()) {
+			event.side = SIDE;
+			event.fromState = STATE_NAMES[state];
+			event.toState = STATE_NAMES[newState];
+			event.opCode = opCode;
+			event.commit();
+		}
+		state = newState;
+	}
+	
 	/**	
 	 * @param opCode What the message will contain, or typically the message itself
 	 * @param Packet either the bytes to send or null
@@ -171,6 +221,8 @@ public class RightTransactionHandler extends Thread{
 				writer.writeInt(sendPacket.length);
 				writer.writeInt(opCode);
 				writer.write(sendPacket, 0, sendPacket.length);
+				bytesExchanged.addAndGet(8 + sendPacket.length);
+				transactionBytes += 8 + sendPacket.length;
 				writer.flush();
 			} catch (SocketException e) {
 				System.out.println("Master disconnected, stopping...");
@@ -226,6 +278,27 @@ public class RightTransactionHandler extends Thread{
 		return returnBytes;
 	}
 	
+	/**
+	 * @return Bytes sent and received since the last call
+	 */
+	public long takeBytesExchanged() {
+		return bytesExchanged.getAndSet(0);
+	}
+	
+	/**
+	 * @return Timings of this link
+	 */
+	public LinkStats getLinkStats() {
+		return linkStats;
+	}
+	
+	/**
+	 * @return Bytes sent and received during the last finished transaction, headers included
+	 */
+	public long getLastTransactionBytes() {
+		return lastTransactionBytes;
+	}
+	
 	/** Closes and cleans up the object.
 	 * @throws IOException
 	 */
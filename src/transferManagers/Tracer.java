@@ -0,0 +1,110 @@
+package transferManagers;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Records timed spans of what a node is doing, step by step, for the master to merge into one timeline of the whole cluster.
+ * Off until start is called, recording then costs one lock and a few array writes. Times are sent on the master's clock,
+ * the offset between the two clocks comes from a few round trips with the master, keeping the one with the shortest round trip.
+ */
+public class Tracer {
+	public static final int CAPACITY = 1 << 16;	// Spans kept between uploads, the oldest are dropped past this
+	public static final int CLOCK_SAMPLES = 8;	// Round trips to the master when starting, the shortest one sets the offset
+	public static final int SPAN_SIZE = (2 * 4) + (2 * 8);	// name, thread, start and duration in nanoseconds on the master's clock
+
+	public static final int SPAN_STEP = 0;	// Stepping the simulation
+	public static final int SPAN_SEND = 1;	// Handing the border and step time to the neighbors
+	public static final int SPAN_WAIT = 2;	// Waiting for the neighbors
+	public static final int SPAN_BALANCE = 3;	// Building the new board from what the neighbors decided
+	public static final int SPAN_EXCHANGE = 4;	// Strips and tiles, sending and waiting for borders in one
+	public static final int SPAN_RENDER = 5;	// Writing the frame
+	public static final int SPAN_FRAMEMARK = 6;	// Reporting the frame to the master
+	public static final String[] SPAN_NAMES = {"step", "send", "wait", "balance", "exchange", "render", "frame mark"};
+
+	private volatile boolean isOn = false;
+	private int[] names = new int[CAPACITY];
+	private int[] threads = new int[CAPACITY];
+	private long[] starts = new long[CAPACITY];
+	private long[] durations = new long[CAPACITY];
+	private int first = 0;	// Oldest span not uploaded yet
+	private int count = 0;
+	private long clockOffset = 0;	// Add to System.nanoTime to get the master's
+	private long bestRoundTrip = Long.MAX_VALUE;
+	private int clockSamples = 0;
+
+	/** Starts recording.
+	 * @return The first clock packet for the master, see ServerFragment.OPC_CLOCK
+	 */
+	public byte[] start() {
+		isOn = true;
+		return getClockPacket();
+	}
+
+	/**
+	 * @return True once start was called
+	 */
+	public boolean isOn() {
+		return isOn;
+	}
+
+	private byte[] getClockPacket() {
+		return ByteBuffer.allocate(8).putLong(System.nanoTime()).array();
+	}
+
+	/** Takes the master's answer to a clock packet.
+	 * @param packet Our time when the packet went out, then the master's when it answered
+	 * @return The next clock packet, or null when there are enough samples
+	 */
+	public synchronized byte[] clockAnswered(ByteBuffer packet) {
+		long now = System.nanoTime();
+		long sent = packet.getLong();
+		long masterTime = packet.getLong();
+		if(now - sent < bestRoundTrip) {
+			bestRoundTrip = now - sent;
+			clockOffset = masterTime - (sent + now) / 2;
+		}
+		return ++clockSamples < CLOCK_SAMPLES ? getClockPacket() : null;
+	}
+
+	/** Records a span that ends now.
+	 * @param name One of the SPAN constants
+	 * @param startNanos System.nanoTime when it started
+	 */
+	public void record(int name, long startNanos) {
+		if(!isOn) {
+			return;
+		}
+		long duration = System.nanoTime() - startNanos;
+		int thread = (int) Thread.currentThread().getId();
+		synchronized (this) {
+			int index = (first + count) % CAPACITY;
+			if(count == CAPACITY) {	// Full, drop the oldest
+				first = (first + 1) % CAPACITY;
+			}else {
+				count++;
+			}
+			names[index] = name;
+			threads[index] = thread;
+			starts[index] = startNanos;
+			durations[index] = duration;
+		}
+	}
+
+	/** Builds the spans packet for the master, see ServerFragment.OPC_SPANS, and forgets them.
+	 * @return The packet, or null if there is nothing to send
+	 */
+	public synchronized byte[] takeSpans() {
+		if(count == 0) {
+			return null;
+		}
+		ByteBuffer packet = ByteBuffer.allocate(4 + count * SPAN_SIZE);
+		packet.putInt(count);
+		for(int i = 0; i < count; i++) {
+			int index = (first + i) % CAPACITY;
+			packet.putInt(names[index]).putInt(threads[index]).putLong(starts[index] + clockOffset).putLong(durations[index]);
+		}
+		first = 0;
+		count = 0;
+		return packet.array();
+	}
+}
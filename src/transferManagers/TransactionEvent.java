@@ -0,0 +1,31 @@
+package transferManagers;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for a state change of a LeftTransactionHandler or RightTransactionHandler.
+ */
+@Name("ca.Transaction")
+@Label("Transaction State")
+@Category({"Cellular Automata", "Network"})
+@Description("A balancing transaction with a neighbor moved to another state")
+@StackTrace(false)
+class TransactionEvent extends jdk.jfr.Event {
+	@Label("Side")
+	@Description("Which neighbor the transaction is with")
+	String side;
+
+	@Label("From")
+	String fromState;
+
+	@Label("To")
+	String toState;
+
+	@Label("Op Code")
+	@Description("Packet that caused the change, 0 when our own step finished")
+	int opCode;
+}
@@ -1,8 +1,28 @@
 package transferManagers;
 
 import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import server.ServerFragment;
 
 public abstract class TransferManager {
+	public static final long CONNECT_FIRST_RETRY_MILLIS = 5;	// Wait before the first retry, doubled every retry after
+	public static final long CONNECT_MAX_RETRY_MILLIS = 500;	// Longest wait between retries
+	public static final long CONNECT_TIMEOUT_MILLIS = 30000;	// Give up connecting after this long
+	
+	protected int leftPort = ServerFragment.PORT;	// Port we listen on for the node to the left
+	protected int rightPort = ServerFragment.PORT;	// Port the node to the right listens on
+	protected boolean tcpNoDelay = true;
+	protected ServerSocket leftServer;	// Listening for the node to the left, between listenLeft and the accept
+	protected long bytesExchanged = 0;	// Counted by the subclass since the last take
+	protected long columnsMoved = 0;
+	protected Tracer tracer = new Tracer();	// Off unless setTracer gives one that is on
+	
 	public byte[][] doneNow(byte[][] currentBoard, long simulationTime) throws IOException{
 		return null;
 	}
@@ -18,4 +38,173 @@ public abstract class TransferManager {
 	public void close() throws IOException {
 		
 	}
+	
+	/**
+	 * @return Bytes sent to and received from the neighbors since the last call, headers included
+	 */
+	public long takeBytesExchanged() {
+		long bytes = bytesExchanged;
+		bytesExchanged = 0;
+		return bytes;
+	}
+	
+	/**
+	 * @return Columns given to or taken from the neighbors since the last call
+	 */
+	public long takeColumnsMoved() {
+		long columns = columnsMoved;
+		columnsMoved = 0;
+		return columns;
+	}
+	
+	/**
+	 * @return Timings of every link to a neighbor
+	 */
+	protected LinkStats[] getLinkStats() {
+		return new LinkStats[0];
+	}
+	
+	/** Builds the link summary packet for the master, see ServerFragment.OPC_LINKSTATS, and starts the histograms over.
+	 * @param frame The frame just finished
+	 * @return The packet
+	 */
+	public byte[] takeLinkStats(int frame) {
+		LinkStats[] links = getLinkStats();
+		int size = 8;
+		for(LinkStats link : links) {
+			size += LinkStats.getSummarySize(link.getSide());
+		}
+		ByteBuffer packet = ByteBuffer.allocate(size);
+		packet.putInt(frame).putInt(links.length);
+		for(LinkStats link : links) {
+			link.takeSummary(packet);
+		}
+		return packet.array();
+	}
+	
+	/** Connects both neighbors at the same time, the left one is accepted while the right one is connected to.
+	 * The listener is open before anything else happens, so every node in the chain can do this at once without waiting on the others.
+	 * @param rightAddress Address of the node to the right
+	 * @param hasLeft Is there a node to the left?
+	 * @param hasRight Is there a node to the right?
+	 * @param height Height of the board
+	 * @throws IOException
+	 */
+	public void connect(byte[] rightAddress, boolean hasLeft, boolean hasRight, int height) throws IOException {
+		if(!hasLeft) {
+			if(hasRight) {
+				connectRight(rightAddress, true, height);
+			}
+			return;
+		}
+		listenLeft();
+		IOException[] leftError = new IOException[1];
+		Thread left = new Thread(() -> {
+			try {
+				connectLeft(true, height);
+			} catch (IOException e) {
+				leftError[0] = e;
+			}
+		}, "TransferManager left");
+		left.start();
+		if(hasRight) {
+			connectRight(rightAddress, true, height);
+		}
+		try {
+			left.join();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted waiting for the left node", e);
+		}
+		if(leftError[0] != null) {
+			throw leftError[0];
+		}
+	}
+	
+	/** Opens the listener for the node to the left without waiting for it, so it can connect as soon as it wants.
+	 * @throws IOException
+	 */
+	public synchronized void listenLeft() throws IOException {
+		if(leftServer == null) {
+			leftServer = new ServerSocket();
+			leftServer.setReuseAddress(true);	// The port may have just been let go by the last chain
+			leftServer.bind(new InetSocketAddress(leftPort));
+		}
+	}
+	
+	/** Waits for the node to the left, listening first if listenLeft wasn't called.
+	 * @return The connection
+	 * @throws IOException
+	 */
+	protected Socket acceptLeft() throws IOException {
+		listenLeft();
+		Socket socket;
+		try {
+			socket = leftServer.accept();
+		} finally {
+			synchronized (this) {
+				leftServer.close();
+				leftServer = null;
+			}
+		}
+		socket.setTcpNoDelay(tcpNoDelay);
+		return socket;
+	}
+	
+	/** Connects to the node to the right, retrying with backoff while it isn't listening yet.
+	 * @param address Address of the node to the right
+	 * @return The connection
+	 * @throws IOException
+	 */
+	protected Socket connectRightSocket(byte[] address) throws IOException {
+		Socket socket = connectWithBackoff(InetAddress.getByAddress(address), rightPort);
+		socket.setTcpNoDelay(tcpNoDelay);
+		return socket;
+	}
+	
+	/** Connects to a port that may not be listening yet, waiting a little longer after every refusal.
+	 * @param address Where to connect
+	 * @param port Port to connect to
+	 * @return The connection
+	 * @throws IOException If it is still refused after CONNECT_TIMEOUT_MILLIS
+	 */
+	public static Socket connectWithBackoff(InetAddress address, int port) throws IOException {
+		long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+		long retryMillis = CONNECT_FIRST_RETRY_MILLIS;
+		while(true) {
+			try {
+				return new Socket(address, port);
+			}catch (ConnectException e) {
+				if(System.currentTimeMillis() + retryMillis > deadline) {
+					throw e;
+				}
+			}
+			try {
+				Thread.sleep(retryMillis);
+			} catch (InterruptedException e) { }
+			retryMillis = Math.min(CONNECT_MAX_RETRY_MILLIS, retryMillis * 2);
+		}
+	}
+	
+	/** Records the send, wait and balance of every exchange in the node's tracer.
+	 * @param tracer The node's tracer
+	 */
+	public void setTracer(Tracer tracer) {
+		this.tracer = tracer;
+	}
+	
+	/** Changes the ports used to connect to neighbors, only needed when several nodes share one machine. Call before connecting.
+	 * @param leftPort Port to listen on for the node to the left
+	 * @param rightPort Port the node to the right listens on
+	 */
+	public void setPorts(int leftPort, int rightPort) {
+		this.leftPort = leftPort;
+		this.rightPort = rightPort;
+	}
+	
+	/** Turns Nagle's algorithm on or off on the neighbor sockets, call before connecting. Off by default, the exchanges are small and every one is waited on.
+	 * @param tcpNoDelay True to send every packet right away
+	 */
+	public void setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+	}
 }
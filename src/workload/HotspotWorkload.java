@@ -0,0 +1,39 @@
+package workload;
+
+/**
+ * One band of columns is much more expensive than the rest, and it can move across the board.
+ * This is the classic case a balancer has to follow, the node under the hotspot should shrink and give it up as it passes.
+ */
+public class HotspotWorkload extends Workload {
+
+	private double baseUnits;
+	private double hotUnits;
+	private double centerX;
+	private double radius;
+	private double columnsPerStep;
+
+	/**
+	 * @param baseUnits Work units away from the hotspot
+	 * @param hotUnits Work units at the middle of the hotspot, it falls off smoothly to baseUnits at the radius
+	 * @param centerX Column of the middle of the hotspot at step 0
+	 * @param radius How many columns either side of the middle are hot
+	 * @param columnsPerStep How far the hotspot moves right each step, negative to move left
+	 */
+	public HotspotWorkload(double baseUnits, double hotUnits, double centerX, double radius, double columnsPerStep) {
+		this.baseUnits = baseUnits;
+		this.hotUnits = hotUnits;
+		this.centerX = centerX;
+		this.radius = Math.max(1, radius);
+		this.columnsPerStep = columnsPerStep;
+	}
+
+	@Override
+	public double getCost(int x, int y, int step) {
+		double distance = Math.abs(x - (centerX + columnsPerStep * step)) / radius;
+		if(distance >= 1) {
+			return baseUnits;
+		}
+		double falloff = 1 - distance * distance;
+		return baseUnits + (hotUnits - baseUnits) * falloff * falloff;
+	}
+}
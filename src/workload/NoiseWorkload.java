@@ -0,0 +1,55 @@
+package workload;
+
+import java.util.Arrays;
+
+import library.OpenSimplexNoise;
+
+/**
+ * Cost follows 3D simplex noise over x, y and time, so there are expensive and cheap regions that slowly drift and change shape.
+ * The noise is sampled once per block of cellSize by cellSize cells and stepsPerChange steps and kept in a small table,
+ * so most cells only cost a table lookup on top of their work.
+ */
+public class NoiseWorkload extends Workload {
+
+	static final int CACHE_SIZE = 1 << 12;	// Has to be a power of two
+
+	private double minUnits;
+	private double range;
+	private int cellSize;
+	private int stepsPerChange;
+	private OpenSimplexNoise simplex;
+
+	private long[] cacheKeys = new long[CACHE_SIZE];
+	private double[] cacheValues = new double[CACHE_SIZE];
+
+	/**
+	 * @param minUnits Work units in the cheapest regions
+	 * @param maxUnits Work units in the most expensive regions
+	 * @param cellSize Size of the blocks the cost is constant over, also roughly how big a region is
+	 * @param stepsPerChange How many steps the cost stays the same for, 0 for never changing
+	 * @param seed Seed of the noise
+	 */
+	public NoiseWorkload(double minUnits, double maxUnits, int cellSize, int stepsPerChange, long seed) {
+		this.minUnits = minUnits;
+		this.range = maxUnits - minUnits;
+		this.cellSize = Math.max(1, cellSize);
+		this.stepsPerChange = stepsPerChange;
+		simplex = new OpenSimplexNoise(seed);
+		Arrays.fill(cacheKeys, -1);
+	}
+
+	@Override
+	public double getCost(int x, int y, int step) {
+		int blockX = Math.floorDiv(x, cellSize);
+		int blockY = Math.floorDiv(y, cellSize);
+		int time = stepsPerChange > 0 ? step / stepsPerChange : 0;
+		long key = ((long) (blockX & 0xFFFFF) << 40) | ((long) (blockY & 0xFFFFF) << 20) | (time & 0xFFFFF);
+		int index = (int) (RandomWorkload.mix(key) & (CACHE_SIZE - 1));
+		if(cacheKeys[index] != key) {
+			double noise = simplex.eval(blockX * 0.5, blockY * 0.5, time * 0.25);	// Neighboring blocks are similar, one region is a few blocks wide
+			cacheKeys[index] = key;
+			cacheValues[index] = minUnits + range * Math.max(0, Math.min(1, (noise + 1) / 2));
+		}
+		return cacheValues[index];
+	}
+}
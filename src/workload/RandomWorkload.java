@@ -0,0 +1,38 @@
+package workload;
+
+/**
+ * Every bacteria costs a random amount, like the old SHA work, but the randomness comes from hashing the seed, the cell and the step.
+ * Two runs with the same seed cost exactly the same, no matter how the board is split.
+ */
+public class RandomWorkload extends Workload {
+
+	private double minUnits;
+	private double range;
+	private long seed;
+
+	/**
+	 * @param minUnits Least work units a bacteria can cost
+	 * @param maxUnits Most work units a bacteria can cost
+	 * @param seed Which random costs to use
+	 */
+	public RandomWorkload(double minUnits, double maxUnits, long seed) {
+		this.minUnits = minUnits;
+		this.range = maxUnits - minUnits;
+		this.seed = seed;
+	}
+
+	@Override
+	public double getCost(int x, int y, int step) {
+		long hash = mix(seed ^ mix(((long) x << 32) ^ (y & 0xFFFFFFFFL)) ^ mix(step));
+		return minUnits + range * ((hash >>> 11) * 0x1.0p-53);
+	}
+
+	/** SplitMix64 finalizer, spreads every input bit over the whole output
+	 */
+	static long mix(long z) {
+		z += 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
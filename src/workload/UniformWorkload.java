@@ -0,0 +1,21 @@
+package workload;
+
+/**
+ * Every bacteria costs the same, the closest thing to the old SHA work without its noise.
+ */
+public class UniformWorkload extends Workload {
+
+	private double units;
+
+	/**
+	 * @param units Work units per bacteria
+	 */
+	public UniformWorkload(double units) {
+		this.units = units;
+	}
+
+	@Override
+	public double getCost(int x, int y, int step) {
+		return units;
+	}
+}
@@ -0,0 +1,71 @@
+package workload;
+
+/**
+ * Burns CPU time without allocating or touching memory, so simulated work costs the same every time it is asked for.
+ * One work unit is about UNIT_NANOS of spinning on the machine the burner was calibrated on.
+ * The spin is a fixed number of loop iterations, not a clock check, so the same units always mean the same amount of CPU work.
+ */
+public class WorkBurner {
+
+	public static final long UNIT_NANOS = 1000;	// About what one bacteria cost with the old SHA work
+	static final int CALIBRATION_ITERATIONS = 1 << 22;
+	static final int CALIBRATION_ROUNDS = 5;
+
+	private static double calibratedIterationsPerUnit = 0;
+
+	private double iterationsPerUnit;
+	private long state = 0x9E3779B97F4A7C15L;
+	private volatile long sink;	// Keeps the JIT from dropping the loop
+
+	/**
+	 * Uses the iterations per unit measured on this machine, measuring them the first time.
+	 */
+	public WorkBurner() {
+		this(getCalibratedIterationsPerUnit());
+	}
+
+	/**
+	 * @param iterationsPerUnit Loop iterations per work unit, use the same value everywhere to burn the same work on every machine
+	 */
+	public WorkBurner(double iterationsPerUnit) {
+		this.iterationsPerUnit = iterationsPerUnit;
+	}
+
+	/** Spins for the given amount of work.
+	 * @param units Work units to burn
+	 */
+	public void burn(double units) {
+		long iterations = (long) (units * iterationsPerUnit);
+		long x = state;
+		for(long i = 0; i < iterations; i++) {	// xorshift, every iteration depends on the last so it can't be folded away
+			x ^= x << 13;
+			x ^= x >>> 7;
+			x ^= x << 17;
+		}
+		state = x;
+		if(x == 0) {
+			sink = x;	// Never true, but the JIT can't know that
+		}
+	}
+
+	public double getIterationsPerUnit() {
+		return iterationsPerUnit;
+	}
+
+	/** Times the spin loop on this machine, once per JVM.
+	 * @return How many loop iterations take UNIT_NANOS
+	 */
+	public static synchronized double getCalibratedIterationsPerUnit() {
+		if(calibratedIterationsPerUnit == 0) {
+			WorkBurner burner = new WorkBurner(1);
+			long best = Long.MAX_VALUE;
+			for(int i = 0; i < CALIBRATION_ROUNDS; i++) {	// The first rounds warm the loop up, the fastest round is the one without hiccups
+				long startTime = System.nanoTime();
+				burner.burn(CALIBRATION_ITERATIONS);
+				best = Math.min(best, System.nanoTime() - startTime);
+			}
+			calibratedIterationsPerUnit = CALIBRATION_ITERATIONS * (double) UNIT_NANOS / Math.max(1, best);
+		}
+		return calibratedIterationsPerUnit;
+	}
+}
@@ -0,0 +1,115 @@
+package workload;
+
+/**
+ * Decides how much simulated work each bacteria costs and burns it.
+ * The cost of a cell only depends on where it is on the full board and which step it is, never on which node has it,
+ * so the same workload costs the same however the board is split up and however often it is run.
+ * A slowdown factor multiplies everything, to make one node act like a weaker machine.
+ */
+public abstract class Workload {
+
+	public static final String TYPE_NONE = "none";
+	public static final String TYPE_UNIFORM = "uniform";
+	public static final String TYPE_RANDOM = "random";
+	public static final String TYPE_NOISE = "noise";
+	public static final String TYPE_HOTSPOT = "hotspot";
+
+	private WorkBurner burner = new WorkBurner();
+	private double slowdown = 1;
+
+	/**
+	 * @param x X coordinate on the full board
+	 * @param y Y coordinate
+	 * @param step Which simulation step
+	 * @return Work units the bacteria at the cell costs, before the slowdown
+	 */
+	public abstract double getCost(int x, int y, int step);
+
+	/** Burns the work of one bacteria.
+	 * @param x X coordinate on the full board
+	 * @param y Y coordinate
+	 * @param step Which simulation step
+	 * @return Work units burned, after the slowdown
+	 */
+	public double doWork(int x, int y, int step) {
+		double units = getCost(x, y, step) * slowdown;
+		burner.burn(units);
+		return units;
+	}
+
+	/**
+	 * @param slowdown How many times slower than normal this node works, 2 is half speed
+	 */
+	public void setSlowdown(double slowdown) {
+		this.slowdown = slowdown;
+	}
+
+	public double getSlowdown() {
+		return slowdown;
+	}
+
+	/**
+	 * @param burner What to burn the work with, for example one with a fixed iterations per unit
+	 */
+	public void setBurner(WorkBurner burner) {
+		this.burner = burner;
+	}
+
+	/** Builds a workload from a spec, type:values...@slowdowns. Every value can be left out to get its default.
+	 *  none
+	 *  uniform:units
+	 *  random:minUnits:maxUnits:seed
+	 *  noise:minUnits:maxUnits:cellSize:stepsPerChange:seed
+	 *  hotspot:baseUnits:hotUnits:centerX:radius:columnsPerStep
+	 *  The optional @ part is a comma separated list of slowdowns, node n gets the n-th one, wrapping around.
+	 * @param spec For example noise:0.5:4:64:50:7@1,1,2
+	 * @param nodeNumber Which node this is for, picks the slowdown
+	 * @return The workload, or null for none
+	 */
+	public static Workload parse(String spec, int nodeNumber) {
+		if(spec == null || spec.isEmpty()) {
+			return null;
+		}
+		String slowdowns = null;
+		if(spec.contains("@")) {
+			slowdowns = spec.substring(spec.indexOf('@') + 1);
+			spec = spec.substring(0, spec.indexOf('@'));
+		}
+		String[] parts = spec.split(":");
+		String type = parts[0];
+		Workload workload;
+		switch(type) {
+			case TYPE_NONE:
+				return null;
+			case TYPE_UNIFORM:
+				workload = new UniformWorkload(getValue(parts, 1, 1));
+				break;
+			case TYPE_RANDOM:
+				workload = new RandomWorkload(getValue(parts, 1, 0), getValue(parts, 2, 2), (long) getValue(parts, 3, 1));
+				break;
+			case TYPE_NOISE:
+				workload = new NoiseWorkload(getValue(parts, 1, 0.25), getValue(parts, 2, 4), (int) getValue(parts, 3, 64),
+						(int) getValue(parts, 4, 100), (long) getValue(parts, 5, 1));
+				break;
+			case TYPE_HOTSPOT:
+				workload = new HotspotWorkload(getValue(parts, 1, 0.5), getValue(parts, 2, 8), getValue(parts, 3, 250),
+						getValue(parts, 4, 100), getValue(parts, 5, 0));
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown workload " + type + ", use " + TYPE_NONE + ", " + TYPE_UNIFORM + ", "
+						+ TYPE_RANDOM + ", " + TYPE_NOISE + " or " + TYPE_HOTSPOT);
+		}
+		if(slowdowns != null) {
+			String[] factors = slowdowns.split(",");
+			workload.setSlowdown(Double.parseDouble(factors[Math.max(0, nodeNumber) % factors.length]));
+		}
+		return workload;
+	}
+
+	private static double getValue(String[] parts, int index, double defaultValue) {
+		if(index >= parts.length || parts[index].isEmpty()) {
+			return defaultValue;
+		}
+		return Double.parseDouble(parts[index]);
+	}
+}
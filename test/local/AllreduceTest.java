@@ -0,0 +1,97 @@
+package local;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class AllreduceTest {
+
+	private static final double DELTA = 0;
+
+	@Test
+	public void combinesEachOp() {
+		assertEquals(5, Allreduce.combine(Allreduce.OP_SUM, 2, 3), DELTA);
+		assertEquals(3, Allreduce.combine(Allreduce.OP_MAX, 2, 3), DELTA);
+		assertEquals(3, Allreduce.combine(Allreduce.OP_MAX, 3, -2), DELTA);
+		assertEquals(2, Allreduce.combine(Allreduce.OP_MIN, 2, 3), DELTA);
+		assertEquals(-2, Allreduce.combine(Allreduce.OP_MIN, 3, -2), DELTA);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void rejectsAnUnknownOp() {
+		Allreduce.combine(7, 1, 2);
+	}
+
+	@Test
+	public void packetIsFrameCountThenOpsAndValues() {
+		ByteBuffer packet = ByteBuffer.wrap(Allreduce.getPacket(12, new int[] {Allreduce.OP_SUM, Allreduce.OP_MIN}, new double[] {1.5, -4}));
+		assertEquals(2 * 4 + 2 * (4 + 8), packet.remaining());
+		assertEquals(12, packet.getInt());
+		assertEquals(2, packet.getInt());
+		assertEquals(Allreduce.OP_SUM, packet.getInt());
+		assertEquals(1.5, packet.getDouble(), DELTA);
+		assertEquals(Allreduce.OP_MIN, packet.getInt());
+		assertEquals(-4, packet.getDouble(), DELTA);
+	}
+
+	@Test
+	public void startsWithNoFrame() {
+		Allreduce allreduce = new Allreduce();
+		assertEquals(-1, allreduce.getFrame());
+		assertEquals(0, allreduce.getValues().length);
+	}
+
+	@Test
+	public void keepsOnlyTheLatestFrame() {
+		Allreduce allreduce = new Allreduce();
+		allreduce.reduced(getReduced(3, 10, 20));
+		assertEquals(3, allreduce.getFrame());
+		assertArrayEquals(new double[] {10, 20}, allreduce.getValues(), DELTA);
+		allreduce.reduced(getReduced(2, 1, 2));	// Came in late
+		allreduce.reduced(getReduced(3, 1, 2));
+		assertEquals(3, allreduce.getFrame());
+		assertArrayEquals(new double[] {10, 20}, allreduce.getValues(), DELTA);
+		allreduce.reduced(getReduced(5, 7));
+		assertEquals(5, allreduce.getFrame());
+		assertArrayEquals(new double[] {7}, allreduce.getValues(), DELTA);
+	}
+
+	@Test
+	public void valuesAreCopies() {
+		Allreduce allreduce = new Allreduce();
+		allreduce.reduced(getReduced(0, 1));
+		allreduce.getValues()[0] = 9;
+		assertEquals(1, allreduce.getValues()[0], DELTA);
+	}
+
+	@Test(timeout = 5000)
+	public void waitForBlocksUntilTheFrameIsIn() throws InterruptedException {
+		Allreduce allreduce = new Allreduce();
+		allreduce.reduced(getReduced(1, 1));
+		Thread sender = new Thread(() -> {
+			allreduce.reduced(getReduced(2, 2));
+			allreduce.reduced(getReduced(4, 4));
+		});
+		sender.start();
+		double[] values = allreduce.waitFor(3);	// Frame 3 never comes, 4 is later so it does
+		assertArrayEquals(new double[] {4}, values, DELTA);
+		assertArrayEquals(new double[] {4}, allreduce.waitFor(0), DELTA);
+		sender.join();
+	}
+
+	/**
+	 * @return A packet from the master, see ServerFragment.OPC_REDUCED
+	 */
+	private static ByteBuffer getReduced(int frame, double... values) {
+		ByteBuffer packet = ByteBuffer.allocate(2 * 4 + values.length * 8);
+		packet.putInt(frame).putInt(values.length);
+		for(double value : values) {
+			packet.putDouble(value);
+		}
+		packet.flip();
+		return packet;
+	}
+}
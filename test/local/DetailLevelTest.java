@@ -0,0 +1,137 @@
+package local;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DetailLevelTest {
+
+	private static final byte EMPTY = CAFragment.NO_BACTERIA;
+
+	@Test
+	public void majorityNeedsMoreThanHalfTheCells() {
+		byte[][] board = getEmptyBoard(4, 2);
+		board[0][0] = cell(10);	// Three of four in the left block
+		board[1][0] = cell(20);
+		board[0][1] = cell(30);
+		board[2][0] = cell(40);	// Two of four in the right block, not a majority
+		board[3][1] = cell(50);
+		byte[][] blocks = getBlocks(board, 2, CARenderer.AGGREGATE_MAJORITY);
+		assertEquals(cell(20), blocks[0][0]);	// Average health of the bacteria in it
+		assertEquals(EMPTY, blocks[1][0]);
+	}
+
+	@Test
+	public void meanCountsEmptyCellsAsNoHealth() {
+		byte[][] board = getEmptyBoard(4, 2);
+		board[0][0] = cell(10);
+		board[1][0] = cell(20);
+		board[0][1] = cell(30);
+		board[2][0] = cell(40);
+		board[3][1] = cell(50);
+		byte[][] blocks = getBlocks(board, 2, CARenderer.AGGREGATE_MEAN_HEALTH);
+		assertEquals(cell(60 / 4), blocks[0][0]);
+		assertEquals(cell(90 / 4), blocks[1][0]);
+	}
+
+	@Test
+	public void edgeBlocksOnlyCountRealCells() {
+		byte[][] board = getEmptyBoard(5, 5);
+		board[4][4] = cell(100);	// The corner block holds a single cell
+		byte[][] majority = getBlocks(board, 2, CARenderer.AGGREGATE_MAJORITY);
+		assertEquals(3, majority.length);
+		assertEquals(3, majority[0].length);
+		assertEquals(cell(100), majority[2][2]);
+		assertEquals(cell(100), getBlocks(board, 2, CARenderer.AGGREGATE_MEAN_HEALTH)[2][2]);
+		assertEquals(EMPTY, majority[1][1]);
+	}
+
+	@Test
+	public void fullHealthStaysFullHealth() {
+		byte[][] board = getEmptyBoard(8, 8);
+		for(byte[] column : board) {
+			Arrays.fill(column, CAFragment.MAX_BACTERIA);
+		}
+		for(int aggregation : new int[] {CARenderer.AGGREGATE_MAJORITY, CARenderer.AGGREGATE_MEAN_HEALTH}) {
+			for(byte[] column : getBlocks(board, 4, aggregation)) {
+				for(byte block : column) {
+					assertEquals(CAFragment.MAX_BACTERIA, block);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void coarseLevelsFromFinerBlocksMatchTheBoard() {
+		Random random = new Random(9);
+		byte[][] board = getEmptyBoard(37, 29);	// Not a multiple of any factor
+		for(int x = 0; x < 37; x++) {
+			for(int y = 0; y < 29; y++) {
+				if(random.nextInt(3) == 0) {
+					board[x][y] = cell(random.nextInt(256));
+				}
+			}
+		}
+		for(int aggregation : new int[] {CARenderer.AGGREGATE_MAJORITY, CARenderer.AGGREGATE_MEAN_HEALTH}) {
+			CARenderer.DetailLevel fine = getLevel(2, aggregation);
+			fine.accumulate(board);
+			for(int factor : new int[] {4, 8}) {
+				CARenderer.DetailLevel fromFiner = getLevel(factor, aggregation);
+				fromFiner.accumulate(fine);
+				byte[][] fromBoard = getBlocks(board, factor, aggregation);
+				byte[][] blocks = fromFiner.getBlocks();
+				assertEquals(fromBoard.length, blocks.length);
+				for(int x = 0; x < blocks.length; x++) {
+					assertArrayEquals("Factor " + factor + ", column " + x, fromBoard[x], blocks[x]);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void startsOverEveryFrameAndFollowsTheWidth() {
+		CARenderer.DetailLevel level = getLevel(2, CARenderer.AGGREGATE_MEAN_HEALTH);
+		byte[][] board = getEmptyBoard(4, 4);
+		board[0][0] = cell(40);
+		level.accumulate(board);
+		level.accumulate(board);	// Twice the same frame must not add up
+		assertEquals(cell(10), level.getBlocks()[0][0]);
+		level.accumulate(getEmptyBoard(6, 4));	// Balancing made the board wider
+		assertEquals(3, level.getBlocks().length);
+		assertEquals(EMPTY, level.getBlocks()[0][0]);
+	}
+
+	/**
+	 * @param health How healthy, 0 to 255
+	 * @return The cell value of a bacteria with that health
+	 */
+	private static byte cell(int health) {
+		return (byte) (health + EMPTY);
+	}
+
+	private static byte[][] getEmptyBoard(int width, int height) {
+		byte[][] board = new byte[width][height];
+		for(byte[] column : board) {
+			Arrays.fill(column, EMPTY);
+		}
+		return board;
+	}
+
+	private static CARenderer.DetailLevel getLevel(int factor, int aggregation) {
+		CARenderer.DetailLevel level = new CARenderer.DetailLevel();
+		level.factor = factor;
+		level.aggregation = aggregation;
+		level.cadence = 1;
+		return level;
+	}
+
+	private static byte[][] getBlocks(byte[][] board, int factor, int aggregation) {
+		CARenderer.DetailLevel level = getLevel(factor, aggregation);
+		level.accumulate(board);
+		return level.getBlocks();
+	}
+}
@@ -0,0 +1,166 @@
+package local;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class PngRowReaderTest {
+
+	@Test
+	public void readsEveryFilterPngWriterWrites() throws IOException {
+		int[] palette = PngWriterTest.getPalette();
+		byte[][] board = PngWriterTest.getBoard(37, 23, 1);
+		for(int filter = PngWriter.FILTER_NONE; filter <= PngWriter.FILTER_ADAPTIVE; filter++) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			new PngWriter(6, filter, 1).writeIndexed(out, board, palette);
+			assertBoard("Filter " + filter, board, palette, out.toByteArray());
+		}
+	}
+
+	@Test
+	public void readsAcrossParallelChunks() throws IOException {
+		int[] palette = PngWriterTest.getPalette();
+		byte[][] board = PngWriterTest.getBoard(700, 1200, 2);	// Several chunks of PngWriter.CHUNK_BYTES
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new PngWriter(6, PngWriter.FILTER_PAETH, 4).writeIndexed(out, board, palette);
+		assertBoard("Parallel", board, palette, out.toByteArray());
+	}
+
+	@Test
+	public void readsWhatImageIOWrites() throws IOException {
+		for(int type : new int[] {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_BYTE_GRAY}) {
+			BufferedImage image = new BufferedImage(9, 7, type);
+			for(int x = 0; x < 9; x++) {
+				for(int y = 0; y < 7; y++) {
+					int grey = (x * 7 + y) * 3;
+					image.setRGB(x, y, type == BufferedImage.TYPE_BYTE_GRAY ? 0xFF000000 | grey * 0x010101 : 0xFF000000 | (x * 28) << 16 | (y * 36) << 8 | grey);
+				}
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ImageIO.write(image, "png", out);
+			PngRowReader reader = new PngRowReader(new ByteArrayInputStream(out.toByteArray()));
+			int[] row = new int[9];
+			int[] expected = new int[9];
+			for(int y = 0; y < 7; y++) {
+				reader.readRow(row, 0, 9);
+				image.getRGB(0, y, 9, 1, expected, 0, 9);
+				for(int x = 0; x < 9; x++) {
+					expected[x] = type == BufferedImage.TYPE_BYTE_GRAY ? image.getRaster().getSample(x, y, 0) * 0x010101 : expected[x] & 0xFFFFFF;	// getRGB would convert grey from linear
+				}
+				assertArrayEquals("Type " + type + ", row " + y, expected, row);
+			}
+			reader.close();
+		}
+	}
+
+	@Test
+	public void partialRowsLandWhereTheBandWantsThem() throws IOException {
+		int[] palette = PngWriterTest.getPalette();
+		byte[][] left = PngWriterTest.getBoard(5, 3, 6);
+		byte[][] right = PngWriterTest.getBoard(5, 3, 7);
+		PngRowReader leftReader = new PngRowReader(new ByteArrayInputStream(write(left, palette)));
+		PngRowReader rightReader = new PngRowReader(new ByteArrayInputStream(write(right, palette)));
+		int width = 7;	// The right node overlaps the left one by a column and is cut off after three
+		int[] band = new int[width * 3];
+		for(int y = 0; y < 3; y++) {
+			leftReader.readRow(band, y * width, 5);
+			rightReader.readRow(band, y * width + 4, 3);	// The rest of the row is still read, the next one starts in the right place
+		}
+		for(int y = 0; y < 3; y++) {
+			for(int x = 0; x < width; x++) {
+				int expected = x < 4 ? palette[left[x][y] & 0xFF] : palette[right[x - 4][y] & 0xFF];
+				assertEquals(x + "," + y, expected, band[y * width + x]);
+			}
+		}
+		leftReader.close();
+		rightReader.close();
+	}
+
+	@Test
+	public void streamingWriterMatchesInBandsOfAnySize() throws IOException {
+		int width = 300;
+		int height = 500;
+		int[] pixels = new int[width * height];
+		for(int i = 0; i < pixels.length; i++) {
+			pixels[i] = (i * 2654435761L) % (1 << 24) < (1 << 22) ? 0x00FF00 : (i / width) * 0x010101 & 0xFFFFFF;
+		}
+		for(int bandRows : new int[] {1, 7, 128, height}) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			StreamingPngWriter writer = new StreamingPngWriter(out, width, height, new PngWriter(6, PngWriter.FILTER_SUB, 2));
+			int[] band = new int[width * bandRows];
+			for(int start = 0; start < height; start += bandRows) {
+				int rows = Math.min(bandRows, height - start);
+				System.arraycopy(pixels, start * width, band, 0, rows * width);
+				writer.writeRows(band, rows);
+			}
+			writer.close();
+			PngRowReader reader = new PngRowReader(new ByteArrayInputStream(out.toByteArray()));
+			assertEquals(width, reader.getWidth());
+			assertEquals(height, reader.getHeight());
+			int[] row = new int[width];
+			for(int y = 0; y < height; y++) {
+				reader.readRow(row, 0, width);
+				for(int x = 0; x < width; x++) {
+					assertEquals("Bands of " + bandRows + " at " + x + "," + y, pixels[y * width + x], row[x]);
+				}
+			}
+			reader.close();
+			BufferedImage image = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));	// The stream has to be valid for other decoders as well
+			assertEquals(pixels[pixels.length - 1], image.getRGB(width - 1, height - 1) & 0xFFFFFF);
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void streamingWriterNeedsEveryRow() throws IOException {
+		StreamingPngWriter writer = new StreamingPngWriter(new ByteArrayOutputStream(), 4, 4, new PngWriter(6, PngWriter.FILTER_NONE, 1));
+		writer.writeRows(new int[4 * 3], 3);
+		writer.close();
+	}
+
+	@Test(expected = EOFException.class)
+	public void stopsAfterTheLastRow() throws IOException {
+		PngRowReader reader = new PngRowReader(new ByteArrayInputStream(write(new byte[2][2], PngWriterTest.getPalette())));
+		int[] row = new int[2];
+		for(int y = 0; y < 3; y++) {
+			reader.readRow(row, 0, 2);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsWhatIsNotAPng() throws IOException {
+		new PngRowReader(new ByteArrayInputStream("GIF89a, not a PNG at all".getBytes("US-ASCII")));
+	}
+
+	private static byte[] write(byte[][] board, int[] palette) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new PngWriter(6, PngWriter.FILTER_ADAPTIVE, 1).writeIndexed(out, board, palette);
+		return out.toByteArray();
+	}
+
+	private static void assertBoard(String message, byte[][] board, int[] palette, byte[] png) throws IOException {
+		int width = board.length;
+		int height = board[0].length;
+		PngRowReader reader = new PngRowReader(new ByteArrayInputStream(png));
+		assertEquals(width, reader.getWidth());
+		assertEquals(height, reader.getHeight());
+		int[] row = new int[width];
+		int[] expected = new int[width];
+		for(int y = 0; y < height; y++) {
+			reader.readRow(row, 0, width);
+			for(int x = 0; x < width; x++) {
+				expected[x] = palette[board[x][y] & 0xFF];
+			}
+			assertArrayEquals(message + ", row " + y, expected, row);
+		}
+		reader.close();
+	}
+}
@@ -0,0 +1,158 @@
+package local;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Adler32;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class PngWriterTest {
+
+	@Test
+	public void indexedRoundTripsWithEveryFilter() throws IOException {
+		int[] palette = getPalette();
+		byte[][] board = getBoard(37, 23, 1);
+		for(int filter = PngWriter.FILTER_NONE; filter <= PngWriter.FILTER_ADAPTIVE; filter++) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			new PngWriter(6, filter, 1).writeIndexed(out, board, palette);
+			assertBoard("Filter " + filter, board, palette, out.toByteArray());
+		}
+	}
+
+	@Test
+	public void rgbRoundTripsWithEveryFilter() throws IOException {
+		int width = 19;
+		int height = 11;
+		int[] pixels = new int[width * height];
+		Random random = new Random(3);
+		for(int i = 0; i < pixels.length; i++) {
+			pixels[i] = random.nextInt(1 << 24);
+		}
+		for(int filter = PngWriter.FILTER_NONE; filter <= PngWriter.FILTER_ADAPTIVE; filter++) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			new PngWriter(6, filter, 1).writeImage(out, width, height, PngWriter.COLOR_RGB, null, (y, row) -> {
+				for(int x = 0; x < width; x++) {
+					int color = pixels[y * width + x];
+					row[x * 3] = (byte) (color >> 16);
+					row[x * 3 + 1] = (byte) (color >> 8);
+					row[x * 3 + 2] = (byte) color;
+				}
+			});
+			BufferedImage image = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+			for(int y = 0; y < height; y++) {
+				for(int x = 0; x < width; x++) {
+					assertEquals("Filter " + filter + " at " + x + "," + y, pixels[y * width + x], image.getRGB(x, y) & 0xFFFFFF);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void parallelChunksMakeOneValidStream() throws IOException {
+		int[] palette = getPalette();
+		byte[][] board = getBoard(700, 1200, 2);	// Several chunks of PngWriter.CHUNK_BYTES
+		ByteArrayOutputStream serial = new ByteArrayOutputStream();
+		new PngWriter(6, PngWriter.FILTER_PAETH, 1).writeIndexed(serial, board, palette);
+		ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+		new PngWriter(6, PngWriter.FILTER_PAETH, 4).writeIndexed(parallel, board, palette);
+		assertBoard("Parallel", board, palette, parallel.toByteArray());
+		assertBoard("Serial", board, palette, serial.toByteArray());
+	}
+
+	@Test
+	public void singlePixelImage() throws IOException {
+		int[] palette = getPalette();
+		byte[][] board = {{(byte) 200}};
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new PngWriter(9, PngWriter.FILTER_ADAPTIVE, 2).writeIndexed(out, board, palette);
+		assertBoard("1x1", board, palette, out.toByteArray());
+	}
+
+	@Test
+	public void singleColumnImage() throws IOException {
+		int[] palette = getPalette();
+		byte[][] board = getBoard(1, 50, 4);
+		for(int filter = PngWriter.FILTER_NONE; filter <= PngWriter.FILTER_ADAPTIVE; filter++) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			new PngWriter(6, filter, 2).writeIndexed(out, board, palette);
+			assertBoard("Filter " + filter, board, palette, out.toByteArray());
+		}
+	}
+
+	@Test
+	public void combinedAdler32MatchesOneRun() {
+		byte[] data = new byte[100000];
+		new Random(5).nextBytes(data);
+		for(int split : new int[] {0, 1, 65521, 70000, data.length}) {
+			Adler32 first = new Adler32();
+			first.update(data, 0, split);
+			Adler32 second = new Adler32();
+			second.update(data, split, data.length - split);
+			Adler32 whole = new Adler32();
+			whole.update(data);
+			assertEquals("Split at " + split, whole.getValue(), PngWriter.combineAdler32(first.getValue(), second.getValue(), data.length - split));
+		}
+	}
+
+	@Test
+	public void zlibHeaderChecksOut() {
+		for(int level = 0; level <= 9; level++) {
+			byte[] header = PngWriter.getZlibHeader(level);
+			assertEquals(0x78, header[0] & 0xFF);
+			assertEquals("Level " + level, 0, ((header[0] & 0xFF) * 256 + (header[1] & 0xFF)) % 31);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAnUnknownFilter() {
+		new PngWriter(6, PngWriter.FILTER_ADAPTIVE + 1, 1);
+	}
+
+	/** Decodes the PNG with ImageIO, so it has to satisfy a decoder that isn't ours, and compares every pixel.
+	 */
+	static void assertBoard(String message, byte[][] board, int[] palette, byte[] png) throws IOException {
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+		assertEquals(board.length, image.getWidth());
+		assertEquals(board[0].length, image.getHeight());
+		int[] row = new int[board.length];
+		int[] expected = new int[board.length];
+		for(int y = 0; y < board[0].length; y++) {
+			image.getRGB(0, y, row.length, 1, row, 0, row.length);
+			for(int x = 0; x < row.length; x++) {
+				row[x] &= 0xFFFFFF;
+				expected[x] = palette[board[x][y] & 0xFF];
+			}
+			assertArrayEquals(message + ", row " + y, expected, row);
+		}
+	}
+
+	static int[] getPalette() {
+		int[] palette = new int[256];
+		for(int i = 0; i < 256; i++) {
+			palette[i] = (i * 0x9E3779B1) & 0xFFFFFF;
+		}
+		return palette;
+	}
+
+	/**
+	 * @return A board with smooth regions and noise, so every filter gets something to do
+	 */
+	static byte[][] getBoard(int width, int height, long seed) {
+		Random random = new Random(seed);
+		byte[][] board = new byte[width][height];
+		for(int x = 0; x < width; x++) {
+			for(int y = 0; y < height; y++) {
+				board[x][y] = (byte) (random.nextInt(8) == 0 ? random.nextInt(256) : (x + y) / 4);
+			}
+		}
+		return board;
+	}
+}
@@ -0,0 +1,142 @@
+package local;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class PopulationStatsTest {
+
+	@Test
+	public void stepCountsMatchABoardRecount() {
+		CAFragment fragment = new CAFragment(40, 30, 100, 50, 7);
+		fragment.setCell(20, 15, CAFragment.MAX_BACTERIA);
+		fragment.setCell(5, 5, CAFragment.MAX_BACTERIA);
+		for(int step = 0; step < 30; step++) {
+			byte[][] before = copy(fragment.getBoard()[CAFragment.MUTABLE_BOARD]);
+			fragment.step();
+			assertStats("Step " + step, recount(before, fragment.getBoard()[CAFragment.MUTABLE_BOARD], 100, 50), fragment.getStepStats());
+		}
+		assertTrue(fragment.getStepStats().live > 2);
+	}
+
+	@Test
+	public void emptyBoardHasNoBounds() {
+		CAFragment fragment = new CAFragment(10, 10, 0, 1);
+		fragment.step();
+		PopulationStats stats = fragment.getStepStats();
+		assertEquals(0, stats.live);
+		assertEquals(0, stats.births);
+		assertEquals(0, stats.deaths);
+		assertTrue(stats.minX > stats.maxX);
+	}
+
+	@Test
+	public void addMergesCountsAndBounds() {
+		PopulationStats left = getStats(3, 1, 2, 10, 20, 5, 8);
+		PopulationStats right = getStats(4, 2, 0, 30, 35, 2, 6);
+		PopulationStats sum = new PopulationStats();
+		sum.add(left);
+		sum.add(right);
+		assertEquals(7, sum.live);
+		assertEquals(3, sum.births);
+		assertEquals(2, sum.deaths);
+		assertEquals(10, sum.minX);
+		assertEquals(35, sum.maxX);
+		assertEquals(2, sum.minY);
+		assertEquals(8, sum.maxY);
+		assertEquals(7, sum.health[1]);
+
+		sum.add(new PopulationStats());	// A board with nothing on it leaves the box alone
+		assertEquals(10, sum.minX);
+		assertEquals(35, sum.maxX);
+	}
+
+	@Test
+	public void writeThenReadRoundTrips() {
+		PopulationStats stats = getStats(5, 2, 1, -3, 40, 0, 9);
+		stats.changed = 6;
+		stats.health[PopulationStats.HEALTH_BUCKETS - 1] = 11;
+		ByteBuffer packet = ByteBuffer.allocate(PopulationStats.SIZE);
+		stats.write(packet);
+		assertEquals(PopulationStats.SIZE, packet.position());
+		packet.flip();
+		assertStats("Read", stats, PopulationStats.read(packet));
+	}
+
+	@Test
+	public void clearStartsOver() {
+		PopulationStats stats = getStats(5, 2, 1, 0, 4, 0, 4);
+		stats.clear();
+		assertStats("Cleared", new PopulationStats(), stats);
+	}
+
+	@Test
+	public void healthBucketsSpanTheLiveValues() {
+		assertEquals(0, PopulationStats.getHealthBucket((byte) (CAFragment.NO_BACTERIA + 1)));
+		assertEquals(PopulationStats.HEALTH_BUCKETS - 1, PopulationStats.getHealthBucket(CAFragment.MAX_BACTERIA));
+	}
+
+	private static PopulationStats getStats(int live, int births, int deaths, int minX, int maxX, int minY, int maxY) {
+		PopulationStats stats = new PopulationStats();
+		stats.live = live;
+		stats.births = births;
+		stats.deaths = deaths;
+		stats.health[1] = live;
+		stats.minX = minX;
+		stats.maxX = maxX;
+		stats.minY = minY;
+		stats.maxY = maxY;
+		return stats;
+	}
+
+	/** Counts what a step did from the cells before and after it, the slow way.
+	 */
+	private static PopulationStats recount(byte[][] before, byte[][] after, int xOffset, int yOffset) {
+		PopulationStats stats = new PopulationStats();
+		for(int x = 1; x < after.length - 1; x++) {
+			for(int y = 1; y < after[x].length - 1; y++) {
+				boolean wasLive = before[x][y] != CAFragment.NO_BACTERIA;
+				boolean isLive = after[x][y] != CAFragment.NO_BACTERIA;
+				if(before[x][y] != after[x][y]) {
+					stats.changed++;
+				}
+				if(isLive) {
+					stats.live++;
+					stats.health[PopulationStats.getHealthBucket(after[x][y])]++;
+					stats.minX = Math.min(stats.minX, xOffset + x);
+					stats.maxX = Math.max(stats.maxX, xOffset + x);
+					stats.minY = Math.min(stats.minY, yOffset + y);
+					stats.maxY = Math.max(stats.maxY, yOffset + y);
+				}
+				if(isLive && !wasLive) {
+					stats.births++;
+				}
+				if(wasLive && !isLive) {
+					stats.deaths++;
+				}
+			}
+		}
+		return stats;
+	}
+
+	private static void assertStats(String message, PopulationStats expected, PopulationStats actual) {
+		assertEquals(message + ", live", expected.live, actual.live);
+		assertEquals(message + ", births", expected.births, actual.births);
+		assertEquals(message + ", deaths", expected.deaths, actual.deaths);
+		assertEquals(message + ", changed", expected.changed, actual.changed);
+		assertArrayEquals(message + ", health", expected.health, actual.health);
+		assertArrayEquals(message + ", bounds", new int[] {expected.minX, expected.maxX, expected.minY, expected.maxY}, new int[] {actual.minX, actual.maxX, actual.minY, actual.maxY});
+	}
+
+	private static byte[][] copy(byte[][] board) {
+		byte[][] copy = new byte[board.length][];
+		for(int x = 0; x < board.length; x++) {
+			copy[x] = board[x].clone();
+		}
+		return copy;
+	}
+}
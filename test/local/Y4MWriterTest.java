@@ -0,0 +1,207 @@
+package local;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class Y4MWriterTest {
+
+	private static final int WHITE = 0xFFFFFF;
+	private static final int RED = 0xFF0000;
+	private static final int BLUE = 0x0000FF;
+
+	@Test
+	public void headerNamesSizeRateAndChroma() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new Y4MWriter(out, 5, 3, 24, Y4MWriter.CHROMA_420).close();
+		assertEquals("YUV4MPEG2 W5 H3 F24:1 Ip A1:1 C420jpeg\n", out.toString("US-ASCII"));
+
+		out = new ByteArrayOutputStream();
+		new Y4MWriter(out, 4, 4, 30, Y4MWriter.CHROMA_444).close();
+		assertEquals("YUV4MPEG2 W4 H4 F30:1 Ip A1:1 C444\n", out.toString("US-ASCII"));
+	}
+
+	@Test
+	public void oddSizedFramesHaveRoundedUpChromaPlanes() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Y4MWriter writer = new Y4MWriter(out, 5, 3, 24, Y4MWriter.CHROMA_420);
+		writer.writeFrame(getBoard(5, 3, 0), getPalette(0, 0));
+		writer.writeFrame(getBoard(5, 3, 0), getPalette(0, 0));
+		writer.close();
+
+		int header = "YUV4MPEG2 W5 H3 F24:1 Ip A1:1 C420jpeg\n".length();
+		int frame = "FRAME\n".length() + 5 * 3 + 2 * (3 * 2);
+		byte[] stream = out.toByteArray();
+		assertEquals(header + 2 * frame, stream.length);
+		assertEquals("FRAME\n", new String(stream, header, 6, StandardCharsets.US_ASCII));
+		assertEquals("FRAME\n", new String(stream, header + frame, 6, StandardCharsets.US_ASCII));
+		assertEquals(2, writer.getFramesWritten());
+	}
+
+	@Test
+	public void lumaIsRowMajorFromAnXYBoard() throws IOException {
+		int width = 4;
+		int height = 2;
+		byte[][] board = new byte[width][height];
+		int[] palette = new int[256];
+		for(int x = 0; x < width; x++) {
+			for(int y = 0; y < height; y++) {
+				board[x][y] = (byte) (y * width + x);
+				palette[y * width + x] = (y * width + x) * 0x202020;	// Greys, getting brighter in stream order
+			}
+		}
+		byte[] frame = writeOneFrame(width, height, Y4MWriter.CHROMA_444, board, palette);
+		for(int i = 0; i < width * height; i++) {
+			assertEquals("Luma " + i, getY(palette[i]), frame[i] & 0xFF);
+		}
+	}
+
+	@Test
+	public void usesLimitedRangeBt601() throws IOException {
+		byte[] white = writeOneFrame(2, 2, Y4MWriter.CHROMA_420, getBoard(2, 2, 0), getPalette(WHITE, WHITE));
+		assertArrayEquals(new byte[] {(byte) 235, (byte) 235, (byte) 235, (byte) 235, (byte) 128, (byte) 128}, white);
+		byte[] black = writeOneFrame(2, 2, Y4MWriter.CHROMA_420, getBoard(2, 2, 0), getPalette(0, 0));
+		assertArrayEquals(new byte[] {16, 16, 16, 16, (byte) 128, (byte) 128}, black);
+	}
+
+	@Test
+	public void chroma420AveragesOnlyRealPixelsOnOddEdges() throws IOException {
+		byte[] frame = writeOneFrame(3, 3, Y4MWriter.CHROMA_420, getBoard(3, 3, 0), getPalette(RED, RED));
+		byte[] u = Arrays.copyOfRange(frame, 9, 13);
+		byte[] v = Arrays.copyOfRange(frame, 13, 17);
+		for(int i = 0; i < 4; i++) {
+			assertEquals("U " + i, getU(RED), u[i] & 0xFF);
+			assertEquals("V " + i, getV(RED), v[i] & 0xFF);
+		}
+	}
+
+	@Test
+	public void chroma420AveragesEachBlock() throws IOException {
+		byte[][] board = getBoard(2, 2, 0);
+		board[1][0] = 1;
+		board[1][1] = 1;
+		byte[] frame = writeOneFrame(2, 2, Y4MWriter.CHROMA_420, board, getPalette(RED, BLUE));
+		assertEquals((getU(RED) * 2 + getU(BLUE) * 2 + 2) / 4, frame[4] & 0xFF);
+		assertEquals((getV(RED) * 2 + getV(BLUE) * 2 + 2) / 4, frame[5] & 0xFF);
+	}
+
+	@Test
+	public void rowsAndBoardsWriteTheSameFrame() throws IOException {
+		int width = 7;
+		int height = 5;
+		int[] palette = new int[256];
+		for(int i = 0; i < 256; i++) {
+			palette[i] = i * 0x010307 & 0xFFFFFF;
+		}
+		byte[][] board = new byte[width][height];
+		for(int x = 0; x < width; x++) {
+			for(int y = 0; y < height; y++) {
+				board[x][y] = (byte) (x * 31 + y * 17);
+			}
+		}
+		byte[] fromBoard = writeOneFrame(width, height, Y4MWriter.CHROMA_420, board, palette);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Y4MWriter writer = new Y4MWriter(out, width, height, 1, Y4MWriter.CHROMA_420);
+		int[] rgb = new int[width + 3];
+		writer.startFrame();
+		for(int y = height - 1; y >= 0; y--) {	// Rows can come in any order
+			for(int x = 0; x < width; x++) {
+				rgb[3 + x] = palette[board[x][y] & 0xFF];
+			}
+			writer.writeRow(y, rgb, 3);
+		}
+		writer.endFrame();
+		writer.close();
+		assertArrayEquals(fromBoard, getFrame(out.toByteArray()));
+	}
+
+	@Test
+	public void paletteChangedInPlaceIsPickedUp() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Y4MWriter writer = new Y4MWriter(out, 2, 2, 1, Y4MWriter.CHROMA_444);
+		int[] palette = getPalette(WHITE, WHITE);
+		writer.writeFrame(getBoard(2, 2, 0), palette);
+		palette[0] = 0;
+		writer.writeFrame(getBoard(2, 2, 0), palette);
+		writer.close();
+		byte[] stream = out.toByteArray();
+		int second = stream.length - 3 * 4;
+		assertEquals(16, stream[second] & 0xFF);
+		assertEquals(235, stream[second - "FRAME\n".length() - 3 * 4] & 0xFF);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsABoardOfTheWrongSize() throws IOException {
+		Y4MWriter writer = new Y4MWriter(new ByteArrayOutputStream(), 4, 4, 1, Y4MWriter.CHROMA_420);
+		writer.writeFrame(getBoard(4, 5, 0), getPalette(0, 0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAnUnknownChromaMode() throws IOException {
+		new Y4MWriter(new ByteArrayOutputStream(), 4, 4, 1, 7);
+	}
+
+	/**
+	 * @return The planes of the only frame written
+	 */
+	private static byte[] writeOneFrame(int width, int height, int chroma, byte[][] board, int[] palette) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Y4MWriter writer = new Y4MWriter(out, width, height, 1, chroma);
+		writer.writeFrame(board, palette);
+		writer.close();
+		return getFrame(out.toByteArray());
+	}
+
+	/**
+	 * @return The planes of a stream's only frame
+	 */
+	private static byte[] getFrame(byte[] stream) {
+		int header = 0;
+		while(stream[header] != '\n') {
+			header++;
+		}
+		int start = header + 1 + "FRAME\n".length();
+		assertEquals("FRAME\n", new String(stream, header + 1, "FRAME\n".length(), StandardCharsets.US_ASCII));
+		return Arrays.copyOfRange(stream, start, stream.length);
+	}
+
+	private static byte[][] getBoard(int width, int height, int value) {
+		byte[][] board = new byte[width][height];
+		for(byte[] column : board) {
+			Arrays.fill(column, (byte) value);
+		}
+		return board;
+	}
+
+	/**
+	 * @return Palette with the first color at 0 and the second at 1
+	 */
+	private static int[] getPalette(int first, int second) {
+		int[] palette = new int[256];
+		palette[0] = first;
+		palette[1] = second;
+		return palette;
+	}
+
+	private static int getY(int rgb) {
+		int r = (rgb >> 16) & 0xFF, g = (rgb >> 8) & 0xFF, b = rgb & 0xFF;
+		return ((66 * r + 129 * g + 25 * b + 128) >> 8) + 16;
+	}
+
+	private static int getU(int rgb) {
+		int r = (rgb >> 16) & 0xFF, g = (rgb >> 8) & 0xFF, b = rgb & 0xFF;
+		return ((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128;
+	}
+
+	private static int getV(int rgb) {
+		int r = (rgb >> 16) & 0xFF, g = (rgb >> 8) & 0xFF, b = rgb & 0xFF;
+		return ((112 * r - 94 * g - 18 * b + 128) >> 8) + 128;
+	}
+}
@@ -0,0 +1,175 @@
+package server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import local.PopulationStats;
+import transferManagers.LinkStats;
+
+public class ClusterMetricsTest {
+	private static int nextPort = 40000;	// Only names the MBean, nothing listens on it
+
+	private ClusterMetrics metrics = new ClusterMetrics(10, nextPort++);
+
+	@After
+	public void close() {
+		metrics.close();
+	}
+
+	@Test
+	public void chainIsInNodeOrder() {
+		ServerFragment second = getNode(1);
+		ServerFragment first = getNode(0);
+		metrics.frameDone(second, 3, 40, 300_000_000, 0, 7, 0, 0);
+		metrics.frameDone(first, 3, 60, 100_000_000, 50_000_000, 5, 0, 0);
+		assertEquals(2, metrics.getNodes());
+		assertArrayEquals(new int[] {60, 40}, metrics.getNodeWidths());
+		assertArrayEquals(new double[] {100, 300}, metrics.getNodeComputeMillis(), 1e-9);
+		assertArrayEquals(new double[] {50, 0}, metrics.getNodeNetworkMillis(), 1e-9);
+		assertEquals(12, metrics.getOccupiedCells());
+	}
+
+	@Test
+	public void imbalanceAndEfficiencyComeFromTheLastFrame() {
+		metrics.frameDone(getNode(0), 0, 50, 100_000_000, 50_000_000, 0, 0, 0);
+		metrics.frameDone(getNode(1), 0, 50, 300_000_000, 0, 0, 0, 0);
+		assertEquals(300 * 2 / 400.0, metrics.getLoadImbalance(), 1e-9);
+		assertEquals(400 / (2 * 300.0), metrics.getParallelEfficiency(), 1e-9);
+		assertEquals(1, metrics.getSlowestNode());
+	}
+
+	@Test
+	public void nothingMeasuredIsBalanced() {
+		assertEquals(1, metrics.getLoadImbalance(), 0);
+		assertEquals(0, metrics.getParallelEfficiency(), 0);
+		assertEquals(-1, metrics.getSlowestNode());
+		assertEquals(-1, metrics.getSlowestFrame());
+	}
+
+	@Test
+	public void slowestFrameWaitsForEveryNode() {
+		ServerFragment first = getNode(0);
+		ServerFragment second = getNode(1);
+		metrics.frameDone(first, 0, 50, 1, 0, 0, 0, 0);
+		assertEquals(0, metrics.getSlowestFrame());
+		metrics.frameDone(first, 1, 50, 1, 0, 0, 0, 0);
+		assertEquals(1, metrics.getSlowestFrame());
+		metrics.frameDone(second, 0, 50, 1, 0, 0, 0, 0);	// Joined late
+		assertEquals(1, metrics.getSlowestFrame());
+		metrics.frameDone(first, 2, 50, 1, 0, 0, 0, 0);
+		metrics.frameDone(second, 2, 50, 1, 0, 0, 0, 0);
+		assertEquals(2, metrics.getSlowestFrame());
+		assertTrue(metrics.getStepsPerSecond() > 0);
+	}
+
+	@Test
+	public void countersKeepNodesThatLeft() {
+		ServerFragment first = getNode(0);
+		ServerFragment joining = getNode(-1);	// Not in the chain yet
+		metrics.frameDone(first, 0, 50, 1, 0, 0, 1000, 4);
+		metrics.frameDone(joining, 0, 50, 1, 0, 0, 200, 1);
+		assertEquals(1, metrics.getNodes());
+		assertEquals(1200, metrics.getBytesExchanged());
+		assertEquals(5, metrics.getColumnsMoved());
+		metrics.nodeClosed(first);
+		metrics.frameDone(joining, 1, 50, 1, 0, 0, 300, 2);
+		assertEquals(1300, metrics.getBytesExchanged());
+		assertEquals(6, metrics.getColumnsMoved());
+	}
+
+	@Test
+	public void populationCountsOnceEveryNodeSentTheStep() {
+		metrics.setChainLength(2);
+		metrics.population(getPopulation(0, getStats(3, 1, 0, 0, 10, 5, 6), getStats(4, 2, 1, 0, 10, 5, 7)));
+		assertEquals(0, metrics.getPopulationStep());
+		assertArrayEquals(new int[0], metrics.getLiveBounds());
+
+		metrics.population(getPopulation(0, getStats(5, 5, 0, 20, 30, 1, 2)));
+		assertEquals(1, metrics.getPopulationStep());
+		assertEquals(8, metrics.getLiveCells());
+		assertEquals(6, metrics.getBirths());
+		assertArrayEquals(new int[] {0, 30, 1, 6}, metrics.getLiveBounds());
+		assertEquals(8, metrics.getHealthHistogram()[2]);
+
+		metrics.population(getPopulation(1, getStats(1, 0, 3, 0, 0, 0, 0), getStats(1, 0, 3, 0, 0, 0, 0)));
+		metrics.population(getPopulation(1, getStats(2, 1, 0, 25, 25, 4, 4), getStats(2, 0, 1, 25, 25, 4, 4)));
+		assertEquals(12, metrics.getPopulationStep());	// Frame 1 is steps 11 and 12, step 2 of frame 0 is dropped
+		assertEquals(3, metrics.getLiveCells());
+		assertEquals(4, metrics.getDeaths());
+		assertEquals(6 + 1 + 0, metrics.getTotalBirths());
+		assertEquals(0 + 3 + 4, metrics.getTotalDeaths());
+		assertArrayEquals(new int[] {0, 25, 0, 4}, metrics.getLiveBounds());
+
+		metrics.population(getPopulation(0, getStats(100, 100, 0, 0, 0, 0, 0)));	// Too late to count
+		assertEquals(12, metrics.getPopulationStep());
+		assertEquals(7, metrics.getTotalBirths());
+	}
+
+	@Test
+	public void prometheusHasLinkHistogramsTheSideKeeps() {
+		ServerFragment node = getNode(0);
+		metrics.frameDone(node, 0, 50, 1, 0, 0, 0, 0);
+		LinkStats left = new LinkStats(LinkStats.SIDE_LEFT);
+		LinkStats right = new LinkStats(LinkStats.SIDE_RIGHT);
+		left.record(LinkStats.HISTOGRAM_BYTES, 400);
+		right.record(LinkStats.HISTOGRAM_TRANSFER, 2000);
+		right.recordDecision(true);
+		right.recordDecision(false);
+		right.recordDecision(false);
+		ByteBuffer packet = ByteBuffer.allocate(2 * 4 + LinkStats.getSummarySize(LinkStats.SIDE_LEFT) + LinkStats.getSummarySize(LinkStats.SIDE_RIGHT));
+		packet.putInt(0).putInt(2);
+		left.takeSummary(packet);
+		right.takeSummary(packet);
+		assertFalse(packet.hasRemaining());
+		packet.flip();
+		metrics.linkStats(node, packet);
+
+		String text = metrics.toPrometheus();
+		assertTrue(text.contains("ca_link_transfer_seconds_count{node=\"0\",side=\"right\"} 1\n"));
+		assertFalse(text.contains("ca_link_transfer_seconds_count{node=\"0\",side=\"left\"}"));
+		assertTrue(text.contains("ca_link_bytes_count{node=\"0\",side=\"left\"} 1\n"));
+		assertFalse(text.contains("ca_link_time_wait_seconds_count"));	// Nothing waited on either side
+		assertTrue(text.contains("ca_link_columns_total{node=\"0\",side=\"right\",direction=\"taken\"} 1\n"));
+		assertTrue(text.contains("ca_link_columns_total{node=\"0\",side=\"right\",direction=\"given\"} 2\n"));
+		assertTrue(text.contains("ca_nodes 1\n"));
+	}
+
+	private static ServerFragment getNode(int nodeNumber) {
+		ServerFragment fragment = new ServerFragment(null);
+		fragment.nodeNumber = nodeNumber;
+		return fragment;
+	}
+
+	private static PopulationStats getStats(int live, int births, int deaths, int minX, int maxX, int minY, int maxY) {
+		PopulationStats stats = new PopulationStats();
+		stats.live = live;
+		stats.births = births;
+		stats.deaths = deaths;
+		stats.health[2] = live;
+		stats.minX = minX;
+		stats.maxX = maxX;
+		stats.minY = minY;
+		stats.maxY = maxY;
+		return stats;
+	}
+
+	/** Builds what a node sends, see ServerFragment.OPC_POPULATION.
+	 * @param steps Stats of the frame's first steps
+	 */
+	private static ByteBuffer getPopulation(int frame, PopulationStats... steps) {
+		ByteBuffer packet = ByteBuffer.allocate(2 * 4 + steps.length * PopulationStats.SIZE);
+		packet.putInt(frame).putInt(steps.length);
+		for(PopulationStats stats : steps) {
+			stats.write(packet);
+		}
+		packet.flip();
+		return packet;
+	}
+}
@@ -0,0 +1,62 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ClusterOverseerTest {
+
+	private static final String[] REQUIRED = {"-s", "500", "500", "3", "1", "50", "500", "true"};
+
+	@Test
+	public void noOptionsGivesAnEmptyMap() {
+		assertTrue(parse().isEmpty());
+	}
+
+	@Test
+	public void optionsComeInAnyOrder() {
+		Map<String, String> options = parse("--strips", "8", "--probe", "--workload", "noise:0.5:4@1,1,2", "--stop-when-quiet");
+		assertEquals(4, options.size());
+		assertEquals("8", options.get("strips"));
+		assertEquals("noise:0.5:4@1,1,2", options.get("workload"));
+		assertEquals("true", options.get("probe"));
+		assertEquals("true", options.get("stop-when-quiet"));
+	}
+
+	@Test
+	public void valuesCanLookLikeNumbersOrDashes() {
+		Map<String, String> options = parse("--grid", "-1", "--trace", "-");
+		assertEquals("-1", options.get("grid"));
+		assertEquals("-", options.get("trace"));
+	}
+
+	@Test
+	public void laterOptionWins() {
+		assertEquals("work", parse("--signal", "time", "--signal", "work").get("signal"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAnUnknownOption() {
+		parse("--strip", "8");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAPositionalArgumentAfterTheRequiredOnes() {
+		parse("noise:0.5:4");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAMissingValue() {
+		parse("--probe", "--metrics");
+	}
+
+	private static Map<String, String> parse(String... options) {
+		String[] args = new String[REQUIRED.length + options.length];
+		System.arraycopy(REQUIRED, 0, args, 0, REQUIRED.length);
+		System.arraycopy(options, 0, args, REQUIRED.length, options.length);
+		return ClusterOverseer.parseOptions(args, REQUIRED.length, ClusterOverseer.SERVER_FLAGS, ClusterOverseer.SERVER_OPTIONS);
+	}
+}
@@ -0,0 +1,141 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import local.CAFragment;
+
+public class CostHeatmapTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void wideBoardsPutSeveralColumnsInABin() {
+		assertEquals(1, new CostHeatmap("unused.png", 1).getBinColumns());
+		assertEquals(1, new CostHeatmap("unused.png", CostHeatmap.MAX_BINS).getBinColumns());
+		assertEquals(2, new CostHeatmap("unused.png", CostHeatmap.MAX_BINS + 1).getBinColumns());
+		assertEquals(3, new CostHeatmap("unused.png", 2 * CostHeatmap.MAX_BINS + 1).getBinColumns());
+	}
+
+	@Test
+	public void nodesAddUpPerBinAndColumn() throws IOException {
+		File png = folder.newFile("costs.png");
+		CostHeatmap heatmap = new CostHeatmap(png.getPath(), 2 * CostHeatmap.MAX_BINS + 2);	// 3 columns a bin, the last bin has 1
+		int lastBin = (2 * CostHeatmap.MAX_BINS + 1) / 3;
+		heatmap.add(0, getPacket(0, 3, 0, new float[] {30, 60, 90}, 1, 8));
+		heatmap.add(1, getPacket(0, 3, 2, new float[] {30, 60}, 8, 13));	// Bin 2 is shared with node 0
+		heatmap.add(1, getPacket(0, 3, lastBin, new float[] {20, 50}, 2047, 2049));	// One past the end is dropped
+		heatmap.write();
+
+		List<String> csv = Files.readAllLines(new File(folder.getRoot(), "costs.csv").toPath());
+		assertEquals("frame,column,columns,work_per_column_ns,is_boundary", csv.get(0));
+		assertEquals(1 + lastBin + 1, csv.size());
+		assertEquals("0,0,3,10.0,0", csv.get(1));
+		assertEquals("0,3,3,20.0,0", csv.get(2));
+		assertEquals("0,6,3,40.0,1", csv.get(3));	// Node 1 starts at column 8
+		assertEquals("0,9,3,20.0,0", csv.get(4));
+		assertEquals("0,12,3,0.0,0", csv.get(5));
+		assertEquals("0," + lastBin * 3 + ",1,20.0,0", csv.get(csv.size() - 1));
+	}
+
+	@Test
+	public void stripsOfOneNodeAreNoBoundary() throws IOException {
+		File png = folder.newFile("strips.png");
+		CostHeatmap heatmap = new CostHeatmap(png.getPath(), 12);
+		heatmap.add(0, getPacket(0, 1, 0, new float[12], 1, 4, 4, 7));
+		heatmap.add(1, getPacket(0, 1, 0, new float[12], 7, 11));
+		heatmap.write();
+
+		List<String> csv = Files.readAllLines(new File(folder.getRoot(), "strips.csv").toPath());
+		for(int column = 0; column < 12; column++) {
+			assertEquals("Column " + column, column == 7 ? "1" : "0", csv.get(1 + column).split(",")[4]);
+		}
+	}
+
+	@Test
+	public void framesAreRowsInOrder() throws IOException {
+		File png = folder.newFile("frames.png");
+		CostHeatmap heatmap = new CostHeatmap(png.getPath(), 4);
+		heatmap.add(0, getPacket(2, 1, 0, new float[] {0, 0, 0, 0}, 1, 3));
+		heatmap.add(0, getPacket(0, 1, 0, new float[] {0, 100, 0, 0}, 1, 3));
+		heatmap.add(0, getPacket(1, 1, 0, new float[] {0, 25, 0, 0}, 1, 3));
+		heatmap.add(1, getPacket(1, 1, 0, new float[] {0, 0, 0, 0}, 3, 4));
+		heatmap.write();
+
+		BufferedImage image = ImageIO.read(png);
+		assertEquals(4, image.getWidth());
+		assertEquals(3, image.getHeight());
+		assertEquals(0xFFFFFF, image.getRGB(1, 0) & 0xFFFFFF);	// The most work of the run
+		assertEquals(0x000000, image.getRGB(0, 0) & 0xFFFFFF);
+		assertEquals(0xFF0000, image.getRGB(1, 1) & 0xFF0000);	// Half as bright by the square root, in the red
+		assertEquals(CostHeatmap.BOUNDARY_COLOR, image.getRGB(3, 1) & 0xFFFFFF);
+		assertEquals(0x000000, image.getRGB(1, 2) & 0xFFFFFF);
+
+		List<String> csv = Files.readAllLines(new File(folder.getRoot(), "frames.csv").toPath());
+		assertEquals("0,1,1,100.0,0", csv.get(2));
+		assertEquals("1,1,1,25.0,0", csv.get(6));
+		assertEquals("2,1,1,0.0,0", csv.get(10));
+	}
+
+	@Test
+	public void nothingAddedWritesNothing() throws IOException {
+		File png = new File(folder.getRoot(), "empty.png");
+		new CostHeatmap(png.getPath(), 10).write();
+		assertFalse(png.exists());
+	}
+
+	@Test
+	public void columnWorkBinsAddUpToTheStepWork() {
+		CAFragment fragment = new CAFragment(50, 20, 37, 3);
+		fragment.setCell(20, 10, CAFragment.MAX_BACTERIA);
+		double work = 0;
+		for(int step = 0; step < 10; step++) {
+			fragment.step();
+			work += fragment.getStepWork();
+		}
+		int binColumns = 7;
+		int firstBin = fragment.getColumnWorkStart() / binColumns;
+		double[] bins = new double[(fragment.getColumnWorkEnd() - 1) / binColumns - firstBin + 1];
+		fragment.takeColumnWork(bins, firstBin, binColumns);
+		double binned = 0;
+		for(double bin : bins) {
+			binned += bin;
+		}
+		assertEquals(work, binned, work * 1e-9);
+		assertEquals(38 / binColumns, firstBin);	// Column 0 of the board is a border and never stepped
+
+		double[] again = new double[bins.length];
+		fragment.takeColumnWork(again, firstBin, binColumns);
+		assertEquals(0, again[0], 0);
+	}
+
+	/** Builds what LocalFragment sends, see ServerFragment.OPC_COLUMNCOSTS.
+	 * @param ranges First and end column of every range the node simulated
+	 */
+	private static ByteBuffer getPacket(int frame, int binColumns, int firstBin, float[] bins, int... ranges) {
+		ByteBuffer packet = ByteBuffer.allocate(5 * 4 + bins.length * 4 + ranges.length * 4);
+		packet.putInt(frame).putInt(binColumns).putInt(firstBin).putInt(bins.length).putInt(ranges.length / 2);
+		for(int range : ranges) {
+			packet.putInt(range);
+		}
+		for(float work : bins) {
+			packet.putFloat(work);
+		}
+		packet.flip();
+		return packet;
+	}
+}
@@ -0,0 +1,136 @@
+package server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import local.Allreduce;
+
+public class ReducerTest {
+
+	private static final int[] OPS = {Allreduce.OP_SUM, Allreduce.OP_MAX, Allreduce.OP_MIN};
+	private static final double DELTA = 0;
+
+	/** A node that keeps what the master sends it instead of sending it
+	 */
+	private static class Node extends ServerFragment {
+		List<byte[]> reduced = new ArrayList<byte[]>();
+
+		Node() {
+			super(null);
+		}
+
+		@Override
+		void reduced(byte[] packet) {
+			reduced.add(packet);
+		}
+	}
+
+	private List<Node> chain;
+	private Reducer reducer;
+	private List<Integer> frames;
+	private List<double[]> values;
+
+	@Before
+	public void setUp() {
+		chain = Arrays.asList(new Node(), new Node(), new Node());
+		frames = new ArrayList<Integer>();
+		values = new ArrayList<double[]>();
+		reducer = new Reducer((frame, reduced) -> {
+			frames.add(frame);
+			values.add(reduced);
+		});
+		reducer.setChain(new ArrayList<ServerFragment>(chain));
+	}
+
+	@Test
+	public void comesTogetherOnceTheWholeChainSent() {
+		reducer.add(getPacket(0, 1, 5, 5));
+		reducer.add(getPacket(0, 2, 9, 3));
+		assertEquals(0, frames.size());
+		assertEquals(0, chain.get(0).reduced.size());
+		reducer.add(getPacket(0, 3, 7, 4));
+		assertEquals(Arrays.asList(0), frames);
+		assertArrayEquals(new double[] {6, 9, 3}, values.get(0), DELTA);
+		for(Node node : chain) {
+			assertEquals(1, node.reduced.size());
+			ByteBuffer packet = ByteBuffer.wrap(node.reduced.get(0));
+			assertEquals(0, packet.getInt());
+			assertEquals(3, packet.getInt());
+			assertEquals(6, packet.getDouble(), DELTA);
+			assertEquals(9, packet.getDouble(), DELTA);
+			assertEquals(3, packet.getDouble(), DELTA);
+		}
+	}
+
+	@Test
+	public void framesComeTogetherApart() {
+		reducer.add(getPacket(1, 1, 1, 1));
+		reducer.add(getPacket(2, 10, 10, 10));
+		reducer.add(getPacket(1, 2, 2, 2));
+		reducer.add(getPacket(2, 20, 20, 20));
+		reducer.add(getPacket(1, 3, 3, 3));
+		reducer.add(getPacket(2, 30, 30, 30));
+		assertEquals(Arrays.asList(1, 2), frames);
+		assertArrayEquals(new double[] {6, 3, 1}, values.get(0), DELTA);
+		assertArrayEquals(new double[] {60, 30, 10}, values.get(1), DELTA);
+	}
+
+	@Test
+	public void dropsFramesOlderThanOneThatCameTogether() {
+		reducer.add(getPacket(1, 1, 1, 1));	// Some node never sends frame 1
+		for(int i = 0; i < chain.size(); i++) {
+			reducer.add(getPacket(2, 1, 1, 1));
+		}
+		reducer.add(getPacket(1, 1, 1, 1));
+		reducer.add(getPacket(1, 1, 1, 1));
+		reducer.add(getPacket(2, 1, 1, 1));	// Too late, frame 2 already came together
+		assertEquals(Arrays.asList(2), frames);
+		assertEquals(1, chain.get(0).reduced.size());
+	}
+
+	@Test
+	public void shorterChainNeedsFewerNodes() {
+		reducer.setChain(new ArrayList<ServerFragment>(chain.subList(0, 1)));
+		reducer.add(getPacket(0, 4, 4, 4));
+		assertEquals(Arrays.asList(0), frames);
+		assertEquals(1, chain.get(0).reduced.size());
+		assertEquals(0, chain.get(1).reduced.size());
+	}
+
+	@Test
+	public void noValuesMeansNothingToCombine() {
+		for(int i = 0; i < chain.size(); i++) {
+			reducer.add(ByteBuffer.wrap(Allreduce.getPacket(0, new int[0], new double[0])));
+		}
+		assertEquals(0, frames.size());
+		assertEquals(0, chain.get(0).reduced.size());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void rejectsADifferentCount() {
+		reducer.add(getPacket(0, 1, 1, 1));
+		reducer.add(ByteBuffer.wrap(Allreduce.getPacket(0, new int[] {Allreduce.OP_SUM}, new double[] {1})));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void rejectsDifferentOps() {
+		reducer.add(getPacket(0, 1, 1, 1));
+		reducer.add(ByteBuffer.wrap(Allreduce.getPacket(0, new int[] {Allreduce.OP_SUM, Allreduce.OP_MIN, Allreduce.OP_MIN},
+				new double[] {1, 1, 1})));
+	}
+
+	/**
+	 * @return One node's packet for a frame, with a value for each of OPS
+	 */
+	private static ByteBuffer getPacket(int frame, double... nodeValues) {
+		return ByteBuffer.wrap(Allreduce.getPacket(frame, OPS, nodeValues));
+	}
+}
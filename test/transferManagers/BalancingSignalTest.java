@@ -0,0 +1,64 @@
+package transferManagers;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class BalancingSignalTest {
+
+	private static final double DELTA = 1e-9;
+
+	@Test
+	public void parsesEveryName() {
+		assertEquals(BalancingSignal.SIGNAL_TIME, BalancingSignal.parse("time"));
+		assertEquals(BalancingSignal.SIGNAL_WORK, BalancingSignal.parse("work"));
+		assertEquals(BalancingSignal.SIGNAL_BLEND, BalancingSignal.parse("blend"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAnUnknownName() {
+		BalancingSignal.parse("Time");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsNoName() {
+		BalancingSignal.parse(null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAnUnknownSignal() {
+		new BalancingSignal(BalancingSignal.SIGNAL_BLEND + 1);
+	}
+
+	@Test
+	public void timeIsTheMeasuredTime() {
+		BalancingSignal signal = new BalancingSignal(BalancingSignal.SIGNAL_TIME);
+		assertEquals(1234, signal.getCost(1234, 99999));
+	}
+
+	@Test
+	public void workIsTheCountedWork() {
+		BalancingSignal signal = new BalancingSignal(BalancingSignal.SIGNAL_WORK);
+		assertEquals(500, signal.getCost(1234, 500.7));
+		assertEquals(500, signal.getCost(999999, 500.7));
+	}
+
+	@Test
+	public void blendStartsAtTheFirstMeasureAndFollowsSlowly() {
+		BalancingSignal signal = new BalancingSignal(BalancingSignal.SIGNAL_BLEND);
+		assertEquals(0, signal.getNanosPerWork(), DELTA);
+		assertEquals(2000, signal.getCost(2000, 1000));	// 2 ns per unit
+		assertEquals(2, signal.getNanosPerWork(), DELTA);
+		signal.getCost(4000, 1000);	// One slow step only moves it by the smoothing factor
+		double expected = 2 + BalancingSignal.NANOS_PER_WORK_ALPHA * (4 - 2);
+		assertEquals(expected, signal.getNanosPerWork(), DELTA);
+		assertEquals((long) (500 * expected), signal.getCost((long) (500 * expected), 500));
+	}
+
+	@Test
+	public void blendWithoutWorkFallsBackToTime() {
+		BalancingSignal signal = new BalancingSignal(BalancingSignal.SIGNAL_BLEND);
+		assertEquals(777, signal.getCost(777, 0));
+		assertEquals(0, signal.getNanosPerWork(), DELTA);	// An empty step doesn't teach it anything
+	}
+}
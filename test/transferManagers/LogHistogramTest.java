@@ -0,0 +1,85 @@
+package transferManagers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LogHistogramTest {
+
+	@Test
+	public void smallValuesAreExact() {
+		for(int value = 0; value < 2 * LogHistogram.SUB_BUCKETS; value++) {
+			assertEquals(value, LogHistogram.getValue(LogHistogram.getBucket(value)));
+		}
+	}
+
+	@Test
+	public void bucketsKeepValuesWithinOneSubBucket() {
+		for(long value = 1; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1) {
+			for(long near = value; near < value + 50; near++) {
+				long kept = LogHistogram.getValue(LogHistogram.getBucket(near));
+				assertTrue(near + " kept as " + kept, Math.abs(kept - near) <= near / LogHistogram.SUB_BUCKETS);
+			}
+		}
+	}
+
+	@Test
+	public void bucketsGrowWithValues() {
+		int last = 0;
+		for(long value = 0; value < 1 << 20; value++) {
+			int bucket = LogHistogram.getBucket(value);
+			assertTrue("Bucket of " + value, bucket == last || bucket == last + 1);
+			last = bucket;
+		}
+	}
+
+	@Test
+	public void largestValueFits() {
+		int bucket = LogHistogram.getBucket(Long.MAX_VALUE);
+		assertTrue(bucket < LogHistogram.BUCKETS);
+		assertTrue(LogHistogram.getValue(bucket) > Long.MAX_VALUE / 32 * 31);	// No overflow on the way back
+		LogHistogram histogram = new LogHistogram();
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, histogram.takeSummary()[LogHistogram.SUMMARY_LENGTH - 1]);
+	}
+
+	@Test
+	public void negativeValuesCountAsZero() {
+		LogHistogram histogram = new LogHistogram();
+		histogram.record(-5);
+		assertArrayEquals(new long[] {1, 0, 0, 0, 0}, histogram.takeSummary());
+	}
+
+	@Test
+	public void summarizesPercentiles() {
+		LogHistogram histogram = new LogHistogram();
+		for(int value = 100; value >= 1; value--) {
+			histogram.record(value);
+		}
+		long[] summary = histogram.takeSummary();
+		assertEquals(100, summary[0]);
+		assertEquals(50, summary[1], 50 / LogHistogram.SUB_BUCKETS);
+		assertEquals(90, summary[2], 90 / LogHistogram.SUB_BUCKETS);
+		assertEquals(99, summary[3], 99 / LogHistogram.SUB_BUCKETS);
+		assertEquals(100, summary[4]);
+	}
+
+	@Test
+	public void percentilesNeverPassTheMax() {
+		LogHistogram histogram = new LogHistogram();
+		histogram.record(100);	// Its bucket's middle is 102
+		assertArrayEquals(new long[] {1, 100, 100, 100, 100}, histogram.takeSummary());
+	}
+
+	@Test
+	public void takingASummaryStartsOver() {
+		LogHistogram histogram = new LogHistogram();
+		histogram.record(1000);
+		histogram.takeSummary();
+		assertArrayEquals(new long[LogHistogram.SUMMARY_LENGTH], histogram.takeSummary());
+		histogram.record(3);
+		assertArrayEquals(new long[] {1, 3, 3, 3, 3}, histogram.takeSummary());
+	}
+}
@@ -0,0 +1,113 @@
+package workload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class WorkloadTest {
+
+	private static final double DELTA = 1e-9;
+
+	@Test
+	public void noSpecMeansNoWorkload() {
+		assertNull(Workload.parse(null, 0));
+		assertNull(Workload.parse("", 0));
+		assertNull(Workload.parse(Workload.TYPE_NONE, 0));
+		assertNull(Workload.parse("none@2,3", 1));
+	}
+
+	@Test
+	public void eachTypeBuildsItsWorkload() {
+		assertTrue(Workload.parse("uniform", 0) instanceof UniformWorkload);
+		assertTrue(Workload.parse("random", 0) instanceof RandomWorkload);
+		assertTrue(Workload.parse("noise", 0) instanceof NoiseWorkload);
+		assertTrue(Workload.parse("hotspot", 0) instanceof HotspotWorkload);
+	}
+
+	@Test
+	public void valuesAreReadInOrder() {
+		assertEquals(2, Workload.parse("uniform:2", 0).getCost(5, 5, 0), DELTA);
+		Workload hotspot = Workload.parse("hotspot:1:9:100:10:2", 0);
+		assertEquals(9, hotspot.getCost(100, 0, 0), DELTA);
+		assertEquals(1, hotspot.getCost(100, 0, 50), DELTA);	// The hotspot moved to 200
+		assertEquals(9, hotspot.getCost(200, 0, 50), DELTA);
+	}
+
+	@Test
+	public void missingOrEmptyValuesGetDefaults() {
+		assertEquals(1, Workload.parse("uniform", 0).getCost(0, 0, 0), DELTA);
+		assertEquals(1, Workload.parse("uniform:", 0).getCost(0, 0, 0), DELTA);
+		Workload hotspot = Workload.parse("hotspot::3", 0);	// Base 0.5, hot 3, centered on 250
+		assertEquals(3, hotspot.getCost(250, 0, 0), DELTA);
+		assertEquals(0.5, hotspot.getCost(0, 0, 0), DELTA);
+	}
+
+	@Test
+	public void costsStayInTheirRange() {
+		Workload random = Workload.parse("random:1:3:7", 0);
+		Workload noise = Workload.parse("noise:0.5:4:16:10:7", 0);
+		for(int x = 0; x < 200; x++) {
+			for(int step = 0; step < 50; step++) {
+				double cost = random.getCost(x, x * 3, step);
+				assertTrue(cost + " out of range", cost >= 1 && cost < 3);
+				cost = noise.getCost(x, x * 3, step);
+				assertTrue(cost + " out of range", cost >= 0.5 - DELTA && cost <= 4 + DELTA);
+			}
+		}
+	}
+
+	@Test
+	public void sameSpecSameCosts() {
+		for(String spec : new String[] {"random:0:2:5", "noise:0.25:4:32:20:5", "hotspot:0.5:8:40:20:1"}) {
+			Workload first = Workload.parse(spec, 0);
+			Workload second = Workload.parse(spec, 3);
+			for(int x = 0; x < 100; x += 7) {
+				for(int step = 0; step < 100; step += 11) {
+					assertEquals(spec, first.getCost(x, x + step, step), second.getCost(x, x + step, step), 0);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void seedsChangeTheCosts() {
+		Workload first = Workload.parse("random:0:2:1", 0);
+		Workload second = Workload.parse("random:0:2:2", 0);
+		int same = 0;
+		for(int x = 0; x < 100; x++) {
+			if(first.getCost(x, 0, 0) == second.getCost(x, 0, 0)) {
+				same++;
+			}
+		}
+		assertEquals(0, same);
+	}
+
+	@Test
+	public void slowdownIsPickedByNodeAndWraps() {
+		assertEquals(1, Workload.parse("uniform:2", 4).getSlowdown(), DELTA);
+		assertEquals(1, Workload.parse("uniform:2@1,2,3", 0).getSlowdown(), DELTA);
+		assertEquals(3, Workload.parse("uniform:2@1,2,3", 2).getSlowdown(), DELTA);
+		assertEquals(2, Workload.parse("uniform:2@1,2,3", 4).getSlowdown(), DELTA);
+		assertEquals(1, Workload.parse("uniform:2@1,2,3", -1).getSlowdown(), DELTA);
+	}
+
+	@Test
+	public void slowdownScalesTheWorkDone() {
+		Workload workload = Workload.parse("uniform:0@3", 0);
+		assertEquals(0, workload.doWork(0, 0, 0), DELTA);
+		workload = Workload.parse("uniform:0.001@3", 0);
+		assertEquals(0.003, workload.doWork(0, 0, 0), DELTA);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAnUnknownType() {
+		Workload.parse("sawtooth:1", 0);
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void rejectsAValueThatIsNotANumber() {
+		Workload.parse("uniform:lots", 0);
+	}
+}